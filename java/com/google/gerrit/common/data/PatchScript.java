@@ -37,6 +37,59 @@ public class PatchScript {
     GITLINK
   }
 
+  /** Part of the file that is covered by a script that was built for a window of hunks. */
+  public static class Window {
+    private final int startA;
+    private final int startB;
+    private final int endA;
+    private final Integer nextHunk;
+    private final int nextOffset;
+
+    public Window(int startA, int startB, int endA, Integer nextHunk, int nextOffset) {
+      this.startA = startA;
+      this.startB = startB;
+      this.endA = endA;
+      this.nextHunk = nextHunk;
+      this.nextOffset = nextOffset;
+    }
+
+    /** @return 0-based line on side A at which the window starts. */
+    public int getStartA() {
+      return startA;
+    }
+
+    /** @return 0-based line on side B at which the window starts. */
+    public int getStartB() {
+      return startB;
+    }
+
+    /** @return 0-based line on side A after the end of the window. */
+    public int getEndA() {
+      return endA;
+    }
+
+    /**
+     * @return index of the hunk at which the next window starts, or null if there are no more
+     *     hunks. If the window is truncated, this is the index of its own hunk.
+     */
+    public Integer getNextHunk() {
+      return nextHunk;
+    }
+
+    /**
+     * @return number of lines of the next hunk that were already covered by this window, to be
+     *     skipped by the next window; 0 unless the window is truncated.
+     */
+    public int getNextOffset() {
+      return nextOffset;
+    }
+
+    /** @return true if the window ends within its first hunk, as the hunk exceeded the limit. */
+    public boolean isTruncated() {
+      return nextOffset > 0;
+    }
+  }
+
   private Change.Key changeId;
   private ChangeType changeType;
   private String oldName;
@@ -62,6 +115,7 @@ public class PatchScript {
   private boolean binary;
   private transient String commitIdA;
   private transient String commitIdB;
+  private transient Window window;
 
   public PatchScript(
       Change.Key ck,
@@ -229,4 +283,13 @@ public class PatchScript {
   public String getCommitIdB() {
     return commitIdB;
   }
+
+  /** @return the window of hunks covered by this script, or null if it covers the whole file. */
+  public Window getWindow() {
+    return window;
+  }
+
+  public void setWindow(Window w) {
+    window = w;
+  }
 }
@@ -45,6 +45,9 @@ public interface FileApi {
     private Boolean intraline;
     private Whitespace whitespace;
     private OptionalInt parent = OptionalInt.empty();
+    private int windowStart;
+    private int windowOffset;
+    private int windowSize;
 
     public abstract DiffInfo get() throws RestApiException;
 
@@ -73,6 +76,29 @@ public interface FileApi {
       return this;
     }
 
+    /**
+     * Only retrieve a window of hunks instead of the whole file.
+     *
+     * @param windowStart index of the first hunk of the window.
+     * @param windowSize maximum number of hunks in the window.
+     */
+    public DiffRequest withWindow(int windowStart, int windowSize) {
+      this.windowStart = windowStart;
+      this.windowSize = windowSize;
+      return this;
+    }
+
+    /**
+     * Start the window within its first hunk, to continue a truncated window.
+     *
+     * @param windowOffset number of lines of the first hunk to skip, as returned in {@link
+     *     DiffInfo.Window#nextOffset}.
+     */
+    public DiffRequest withWindowOffset(int windowOffset) {
+      this.windowOffset = windowOffset;
+      return this;
+    }
+
     public String getBase() {
       return base;
     }
@@ -92,6 +118,18 @@ public interface FileApi {
     public OptionalInt getParent() {
       return parent;
     }
+
+    public int getWindowStart() {
+      return windowStart;
+    }
+
+    public int getWindowOffset() {
+      return windowOffset;
+    }
+
+    public int getWindowSize() {
+      return windowSize;
+    }
   }
 
   /**
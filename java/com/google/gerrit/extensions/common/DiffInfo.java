@@ -34,6 +34,8 @@ public class DiffInfo {
   public List<DiffWebLinkInfo> webLinks;
   // Binary file
   public Boolean binary;
+  // The part of the file covered by content, if the diff was requested in windows of hunks
+  public Window window;
 
   public enum IntraLineStatus {
     OK,
@@ -54,6 +56,20 @@ public class DiffInfo {
     public List<WebLinkInfo> webLinks;
   }
 
+  public static class Window {
+    // 0-based line number on side A at which content starts
+    public int startA;
+    // 0-based line number on side B at which content starts
+    public int startB;
+    // Index of the hunk at which the next window starts, unset if content reaches the end of the
+    // file
+    public Integer nextHunk;
+    // Number of lines of the next hunk to skip, unset unless content is truncated
+    public Integer nextOffset;
+    // Whether content ends within its only hunk, as the hunk exceeded the line limit
+    public Boolean truncated;
+  }
+
   public static final class ContentEntry {
     // Common lines to both sides.
     public List<String> ab;
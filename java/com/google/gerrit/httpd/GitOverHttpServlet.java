@@ -29,6 +29,7 @@ import com.google.gerrit.server.git.DefaultAdvertiseRefsHook;
 import com.google.gerrit.server.git.GitRepositoryManager;
 import com.google.gerrit.server.git.TransferConfig;
 import com.google.gerrit.server.git.UploadPackInitializer;
+import com.google.gerrit.server.git.UploadPackTracer;
 import com.google.gerrit.server.git.receive.AsyncReceiveCommits;
 import com.google.gerrit.server.git.validators.UploadValidators;
 import com.google.gerrit.server.permissions.PermissionBackend;
@@ -46,6 +47,7 @@ import com.google.inject.name.Named;
 import java.io.IOException;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
 import javax.servlet.Filter;
@@ -81,8 +83,9 @@ import org.eclipse.jgit.transport.resolver.UploadPackFactory;
 public class GitOverHttpServlet extends GitServlet {
   private static final long serialVersionUID = 1L;
 
-  private static final String ATT_STATE = ProjectState.class.getName();
+  static final String ATT_STATE = ProjectState.class.getName();
   private static final String ATT_ARC = AsyncReceiveCommits.class.getName();
+  static final String ATT_TRACER = UploadPackTracer.class.getName();
   private static final String ID_CACHE = "adv_bases";
 
   public static final String URL_REGEX;
@@ -110,6 +113,7 @@ public class GitOverHttpServlet extends GitServlet {
       bind(Resolver.class);
       bind(UploadFactory.class);
       bind(UploadFilter.class);
+      bind(UploadPackResponseCacheFilter.class);
       bind(new TypeLiteral<ReceivePackFactory<HttpServletRequest>>() {})
           .to(enableReceive ? ReceiveFactory.class : DisabledReceiveFactory.class);
       bind(ReceiveFilter.class);
@@ -130,6 +134,7 @@ public class GitOverHttpServlet extends GitServlet {
       Resolver resolver,
       UploadFactory upload,
       UploadFilter uploadFilter,
+      UploadPackResponseCacheFilter uploadPackResponseCacheFilter,
       ReceivePackFactory<HttpServletRequest> receive,
       ReceiveFilter receiveFilter) {
     setRepositoryResolver(resolver);
@@ -137,6 +142,7 @@ public class GitOverHttpServlet extends GitServlet {
 
     setUploadPackFactory(upload);
     addUploadPackFilter(uploadFilter);
+    addUploadPackFilter(uploadPackResponseCacheFilter);
 
     setReceivePackFactory(receive);
     addReceivePackFilter(receiveFilter);
@@ -210,27 +216,35 @@ public class GitOverHttpServlet extends GitServlet {
     private final DynamicSet<PreUploadHook> preUploadHooks;
     private final DynamicSet<PostUploadHook> postUploadHooks;
     private final DynamicSet<UploadPackInitializer> uploadPackInitializers;
+    private final UploadPackTracer.Factory tracerFactory;
 
     @Inject
     UploadFactory(
         TransferConfig tc,
         DynamicSet<PreUploadHook> preUploadHooks,
         DynamicSet<PostUploadHook> postUploadHooks,
-        DynamicSet<UploadPackInitializer> uploadPackInitializers) {
+        DynamicSet<UploadPackInitializer> uploadPackInitializers,
+        UploadPackTracer.Factory tracerFactory) {
       this.config = tc;
       this.preUploadHooks = preUploadHooks;
       this.postUploadHooks = postUploadHooks;
       this.uploadPackInitializers = uploadPackInitializers;
+      this.tracerFactory = tracerFactory;
     }
 
     @Override
     public UploadPack create(HttpServletRequest req, Repository repo) {
+      ProjectState state = (ProjectState) req.getAttribute(ATT_STATE);
+      UploadPackTracer tracer = tracerFactory.create(state.getNameKey(), req.getRemoteHost());
+      req.setAttribute(ATT_TRACER, tracer);
+
       UploadPack up = new UploadPack(repo);
       up.setPackConfig(config.getPackConfig());
       up.setTimeout(config.getTimeout());
       up.setPreUploadHook(PreUploadHookChain.newChain(Lists.newArrayList(preUploadHooks)));
-      up.setPostUploadHook(PostUploadHookChain.newChain(Lists.newArrayList(postUploadHooks)));
-      ProjectState state = (ProjectState) req.getAttribute(ATT_STATE);
+      List<PostUploadHook> allPostUploadHooks = Lists.newArrayList(postUploadHooks);
+      allPostUploadHooks.add(tracer);
+      up.setPostUploadHook(PostUploadHookChain.newChain(allPostUploadHooks));
       for (UploadPackInitializer initializer : uploadPackInitializers) {
         initializer.init(state.getNameKey(), up);
       }
@@ -276,7 +290,9 @@ public class GitOverHttpServlet extends GitServlet {
           uploadValidatorsFactory.create(state.getProject(), repo, request.getRemoteHost());
       up.setPreUploadHook(
           PreUploadHookChain.newChain(Lists.newArrayList(up.getPreUploadHook(), uploadValidators)));
-      up.setAdvertiseRefsHook(new DefaultAdvertiseRefsHook(perm, RefFilterOptions.defaults()));
+      UploadPackTracer tracer = (UploadPackTracer) request.getAttribute(ATT_TRACER);
+      up.setAdvertiseRefsHook(
+          tracer.wrap(new DefaultAdvertiseRefsHook(perm, RefFilterOptions.defaults())));
       next.doFilter(request, response);
     }
 
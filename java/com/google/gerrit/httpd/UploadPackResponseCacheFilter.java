@@ -0,0 +1,347 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.httpd;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static org.eclipse.jgit.http.server.GitSmartHttpTools.UPLOAD_PACK_RESULT_TYPE;
+import static org.eclipse.jgit.util.HttpSupport.ENCODING_GZIP;
+import static org.eclipse.jgit.util.HttpSupport.ENCODING_X_GZIP;
+import static org.eclipse.jgit.util.HttpSupport.HDR_CONTENT_ENCODING;
+
+import com.google.common.io.ByteStreams;
+import com.google.gerrit.server.git.UploadPackResponseCache;
+import com.google.gerrit.server.git.UploadPackResponseCache.CachedResponse;
+import com.google.gerrit.server.git.UploadPackResponseCache.Capture;
+import com.google.gerrit.server.git.UploadPackResponseCache.CloneRequest;
+import com.google.gerrit.server.git.UploadPackTracer;
+import com.google.gerrit.server.project.ProjectState;
+import com.google.gwtexpui.server.CacheHeaders;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.util.Collections;
+import java.util.Optional;
+import java.util.zip.GZIPInputStream;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import org.eclipse.jgit.http.server.ServletUtils;
+import org.eclipse.jgit.storage.pack.PackStatistics;
+import org.eclipse.jgit.transport.ServiceMayNotContinueException;
+import org.eclipse.jgit.transport.UploadPack;
+
+/**
+ * Serves identical full clones from the {@link UploadPackResponseCache}.
+ *
+ * <p>Runs after {@link GitOverHttpServlet.UploadFilter}, which checked that the user may run
+ * upload-pack and installed the upload validators. Before a cached response is sent, the wanted
+ * objects are checked to be visible to the user and the upload validators are consulted, just as
+ * upload-pack would do. After a cached response was sent the post-upload hooks are run, with
+ * statistics that only contain the bytes sent. Responses of clones that are not cached yet are
+ * recorded while being sent.
+ */
+@Singleton
+class UploadPackResponseCacheFilter implements Filter {
+  /** Clone requests only list the wanted ref tips, larger requests are not cached. */
+  private static final int MAX_REQUEST_SIZE = 256 * 1024;
+
+  private final UploadPackResponseCache cache;
+
+  @Inject
+  UploadPackResponseCacheFilter(UploadPackResponseCache cache) {
+    this.cache = cache;
+  }
+
+  @Override
+  public void doFilter(ServletRequest request, ServletResponse response, FilterChain next)
+      throws IOException, ServletException {
+    HttpServletRequest req = (HttpServletRequest) request;
+    HttpServletResponse rsp = (HttpServletResponse) response;
+    if (!cache.isEnabled() || !"POST".equals(req.getMethod())) {
+      next.doFilter(request, response);
+      return;
+    }
+
+    InputStream in = req.getInputStream();
+    byte[] body = ByteStreams.toByteArray(ByteStreams.limit(in, MAX_REQUEST_SIZE + 1));
+    HttpServletRequest replay = new ReplayRequest(req, body, in);
+    Optional<CloneRequest> clone = parse(req, body);
+    if (!clone.isPresent()) {
+      cache.uncacheable();
+      next.doFilter(replay, rsp);
+      return;
+    }
+
+    ProjectState state = (ProjectState) req.getAttribute(GitOverHttpServlet.ATT_STATE);
+    UploadPack up = (UploadPack) req.getAttribute(ServletUtils.ATTRIBUTE_HANDLER);
+    try {
+      // Filter the refs with the hook installed by UploadFilter. Upload-pack uses the advertised
+      // refs set by the hook, so they are not filtered a second time on a cache miss.
+      up.getAdvertiseRefsHook().advertiseRefs(up);
+    } catch (ServiceMayNotContinueException e) {
+      // Let upload-pack report the error to the client.
+      next.doFilter(replay, rsp);
+      return;
+    }
+    Optional<UploadPackResponseCache.Key> key =
+        cache.key(
+            state.getNameKey(),
+            clone.get(),
+            ServletUtils.acceptsGzipEncoding(req),
+            up.getAdvertisedRefs());
+    if (!key.isPresent()) {
+      next.doFilter(replay, rsp);
+      return;
+    }
+
+    Optional<CachedResponse> cached = cache.get(key.get());
+    if (cached.isPresent() && serve(up, clone.get(), cached.get(), rsp)) {
+      return;
+    }
+
+    Optional<Capture> capture = cache.capture(key.get());
+    if (!capture.isPresent()) {
+      next.doFilter(replay, rsp);
+      return;
+    }
+    try (Capture c = capture.get()) {
+      CapturingResponse capturing = new CapturingResponse(rsp, c);
+      next.doFilter(replay, capturing);
+      UploadPackTracer tracer =
+          (UploadPackTracer) req.getAttribute(GitOverHttpServlet.ATT_TRACER);
+      if (tracer.isPackSent() && capturing.status == HttpServletResponse.SC_OK) {
+        c.commit(capturing.contentEncoding);
+      }
+    }
+  }
+
+  private boolean serve(
+      UploadPack up, CloneRequest clone, CachedResponse cached, HttpServletResponse rsp)
+      throws IOException {
+    try {
+      // Upload validators may reject the clone, e.g. to enforce quotas.
+      up.getPreUploadHook().onSendPack(up, clone.wants(), Collections.emptySet());
+    } catch (ServiceMayNotContinueException e) {
+      // Let upload-pack run the validators again and report the error to the client.
+      return false;
+    }
+
+    InputStream in;
+    try {
+      in = Files.newInputStream(cached.file());
+    } catch (NoSuchFileException e) {
+      // Evicted concurrently.
+      return false;
+    }
+    long start = System.nanoTime();
+    try {
+      rsp.setStatus(HttpServletResponse.SC_OK);
+      rsp.setContentType(UPLOAD_PACK_RESULT_TYPE);
+      CacheHeaders.setNotCacheable(rsp);
+      if (cached.contentEncoding() != null) {
+        rsp.setHeader(HDR_CONTENT_ENCODING, cached.contentEncoding());
+      }
+      rsp.setContentLengthLong(cached.length());
+      try (ServletOutputStream out = rsp.getOutputStream()) {
+        ByteStreams.copy(in, out);
+      }
+    } finally {
+      in.close();
+    }
+    cache.served(cached);
+
+    // No pack was computed, the statistics only describe sending the cached response.
+    PackStatistics.Accumulator stats = new PackStatistics.Accumulator();
+    stats.totalBytes = cached.length();
+    stats.timeWriting = NANOSECONDS.toMillis(System.nanoTime() - start);
+    up.getPostUploadHook().onPostUpload(new PackStatistics(stats));
+    return true;
+  }
+
+  private static Optional<CloneRequest> parse(HttpServletRequest req, byte[] body) {
+    if (body.length > MAX_REQUEST_SIZE) {
+      return Optional.empty();
+    }
+    String encoding = req.getHeader(HDR_CONTENT_ENCODING);
+    if (ENCODING_GZIP.equals(encoding) || ENCODING_X_GZIP.equals(encoding)) {
+      try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(body))) {
+        body = ByteStreams.toByteArray(ByteStreams.limit(in, MAX_REQUEST_SIZE));
+      } catch (IOException e) {
+        // Let upload-pack report the broken request.
+        return Optional.empty();
+      }
+    }
+    return CloneRequest.parse(body);
+  }
+
+  @Override
+  public void init(FilterConfig config) {}
+
+  @Override
+  public void destroy() {}
+
+  /** Request whose body was already read by this filter. */
+  private static class ReplayRequest extends HttpServletRequestWrapper {
+    private final ServletInputStream in;
+
+    ReplayRequest(HttpServletRequest req, byte[] consumed, InputStream rest) {
+      super(req);
+      InputStream body = new SequenceInputStream(new ByteArrayInputStream(consumed), rest);
+      in =
+          new ServletInputStream() {
+            private boolean finished;
+
+            @Override
+            public int read() throws IOException {
+              int b = body.read();
+              finished = b < 0;
+              return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+              int n = body.read(b, off, len);
+              finished = n < 0;
+              return n;
+            }
+
+            @Override
+            public boolean isFinished() {
+              return finished;
+            }
+
+            @Override
+            public boolean isReady() {
+              return true;
+            }
+
+            @Override
+            public void setReadListener(ReadListener listener) {
+              throw new UnsupportedOperationException();
+            }
+          };
+    }
+
+    @Override
+    public ServletInputStream getInputStream() {
+      return in;
+    }
+  }
+
+  /** Response that records the body sent to the client. */
+  private static class CapturingResponse extends HttpServletResponseWrapper {
+    private final Capture capture;
+    private ServletOutputStream out;
+    private int status = HttpServletResponse.SC_OK;
+    private String contentEncoding;
+
+    CapturingResponse(HttpServletResponse rsp, Capture capture) {
+      super(rsp);
+      this.capture = capture;
+    }
+
+    @Override
+    public void setStatus(int sc) {
+      status = sc;
+      super.setStatus(sc);
+    }
+
+    @Override
+    public void sendError(int sc) throws IOException {
+      status = sc;
+      super.sendError(sc);
+    }
+
+    @Override
+    public void sendError(int sc, String msg) throws IOException {
+      status = sc;
+      super.sendError(sc, msg);
+    }
+
+    @Override
+    public void setHeader(String name, String value) {
+      if (HDR_CONTENT_ENCODING.equalsIgnoreCase(name)) {
+        contentEncoding = value;
+      }
+      super.setHeader(name, value);
+    }
+
+    @Override
+    public void addHeader(String name, String value) {
+      if (HDR_CONTENT_ENCODING.equalsIgnoreCase(name)) {
+        contentEncoding = value;
+      }
+      super.addHeader(name, value);
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() throws IOException {
+      if (out == null) {
+        ServletOutputStream delegate = super.getOutputStream();
+        out =
+            new ServletOutputStream() {
+              @Override
+              public void write(int b) throws IOException {
+                delegate.write(b);
+                capture.write(new byte[] {(byte) b}, 0, 1);
+              }
+
+              @Override
+              public void write(byte[] b, int off, int len) throws IOException {
+                delegate.write(b, off, len);
+                capture.write(b, off, len);
+              }
+
+              @Override
+              public void flush() throws IOException {
+                delegate.flush();
+              }
+
+              @Override
+              public void close() throws IOException {
+                delegate.close();
+              }
+
+              @Override
+              public boolean isReady() {
+                return delegate.isReady();
+              }
+
+              @Override
+              public void setWriteListener(WriteListener listener) {
+                delegate.setWriteListener(listener);
+              }
+            };
+      }
+      return out;
+    }
+  }
+}
@@ -279,7 +279,8 @@ public class RestApiServlet extends HttpServlet {
     RestResource rsrc = TopLevelResource.INSTANCE;
     ViewData viewData = null;
 
-    try (PerThreadCache ignored = PerThreadCache.create()) {
+    try (PerThreadCache ignored =
+        isRead(req) ? PerThreadCache.createReadOnly() : PerThreadCache.create()) {
       if (isCorsPreflight(req)) {
         doCorsPreflight(req, res);
         return;
@@ -83,6 +83,7 @@ import com.google.gerrit.server.mail.send.SmtpEmailSender;
 import com.google.gerrit.server.mime.MimeUtil2Module;
 import com.google.gerrit.server.notedb.rebuild.NoteDbMigrator;
 import com.google.gerrit.server.notedb.rebuild.OnlineNoteDbMigrator;
+import com.google.gerrit.server.patch.AutoMergePruner;
 import com.google.gerrit.server.patch.DiffExecutorModule;
 import com.google.gerrit.server.permissions.DefaultPermissionBackendModule;
 import com.google.gerrit.server.plugins.PluginGuiceEnvironment;
@@ -480,6 +481,7 @@ public class Daemon extends SiteProgram {
     } else {
       modules.add(new AccountDeactivator.Module());
       modules.add(new ChangeCleanupRunner.Module());
+      modules.add(new AutoMergePruner.Module());
     }
     if (migrateToNoteDb()) {
       modules.add(new OnlineNoteDbMigrator.Module(trial));
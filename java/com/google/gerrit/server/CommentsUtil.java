@@ -45,10 +45,13 @@ import com.google.gerrit.reviewdb.server.ReviewDbUtil;
 import com.google.gerrit.server.config.AllUsersName;
 import com.google.gerrit.server.config.GerritServerId;
 import com.google.gerrit.server.git.GitRepositoryManager;
+import com.google.gerrit.server.git.RefSnapshots;
 import com.google.gerrit.server.notedb.ChangeNotes;
 import com.google.gerrit.server.notedb.ChangeUpdate;
+import com.google.gerrit.server.notedb.CommentSummary;
 import com.google.gerrit.server.notedb.NoteDbChangeState.PrimaryStorage;
 import com.google.gerrit.server.notedb.NotesMigration;
+import com.google.gerrit.server.notedb.RobotCommentCache;
 import com.google.gerrit.server.patch.PatchListCache;
 import com.google.gerrit.server.patch.PatchListNotAvailableException;
 import com.google.gerrit.server.update.BatchUpdateReviewDb;
@@ -128,25 +131,31 @@ public class CommentsUtil {
   private static final Ordering<Comparable<?>> NULLS_FIRST = Ordering.natural().nullsFirst();
 
   private final GitRepositoryManager repoManager;
+  private final RefSnapshots refSnapshots;
   private final AllUsersName allUsers;
   private final NotesMigration migration;
   private final PatchListCache patchListCache;
   private final PatchSetUtil psUtil;
+  private final RobotCommentCache robotCommentCache;
   private final String serverId;
 
   @Inject
   CommentsUtil(
       GitRepositoryManager repoManager,
+      RefSnapshots refSnapshots,
       AllUsersName allUsers,
       NotesMigration migration,
       PatchListCache patchListCache,
       PatchSetUtil psUtil,
+      RobotCommentCache robotCommentCache,
       @GerritServerId String serverId) {
     this.repoManager = repoManager;
+    this.refSnapshots = refSnapshots;
     this.allUsers = allUsers;
     this.migration = migration;
     this.patchListCache = patchListCache;
     this.psUtil = psUtil;
+    this.robotCommentCache = robotCommentCache;
     this.serverId = serverId;
   }
 
@@ -256,8 +265,19 @@ public class CommentsUtil {
       return ImmutableList.of();
     }
 
-    notes.load();
-    return sort(Lists.newArrayList(notes.getRobotComments().values()));
+    return sort(new ArrayList<>(robotCommentCache.getAll(notes)));
+  }
+
+  /**
+   * Get the summaries of all robot comments of a change, without decoding robot comments that are
+   * stored in compact notes.
+   */
+  public List<CommentSummary> robotCommentSummariesByChange(ChangeNotes notes)
+      throws OrmException {
+    if (!migration.readChanges()) {
+      return ImmutableList.of();
+    }
+    return robotCommentCache.getSummaries(notes);
   }
 
   public List<Comment> draftByChange(ReviewDb db, ChangeNotes notes) throws OrmException {
@@ -319,10 +339,15 @@ public class CommentsUtil {
 
   public List<RobotComment> robotCommentsByPatchSet(ChangeNotes notes, PatchSet.Id psId)
       throws OrmException {
+    return robotCommentsByPatchSet(notes, psId, null);
+  }
+
+  public List<RobotComment> robotCommentsByPatchSet(
+      ChangeNotes notes, PatchSet.Id psId, @Nullable String file) throws OrmException {
     if (!migration.readChanges()) {
       return ImmutableList.of();
     }
-    return commentsOnPatchSet(notes.load().getRobotComments().values(), psId);
+    return sort(new ArrayList<>(robotCommentCache.get(notes, psId, file)));
   }
 
   /**
@@ -524,7 +549,7 @@ public class CommentsUtil {
    */
   public Collection<Ref> getDraftRefs(Change.Id changeId) throws OrmException {
     try (Repository repo = repoManager.openRepository(allUsers)) {
-      return getDraftRefs(repo, changeId);
+      return refSnapshots.getRefs(repo, RefNames.refsDraftCommentsPrefix(changeId)).values();
     } catch (IOException e) {
       throw new OrmException(e);
     }
@@ -15,9 +15,12 @@
 package com.google.gerrit.server;
 
 import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableList;
+import com.google.gerrit.common.Nullable;
+import com.google.gerrit.metrics.Counter1;
 import com.google.gerrit.metrics.Description;
 import com.google.gerrit.metrics.Description.Units;
 import com.google.gerrit.metrics.Field;
@@ -29,6 +32,7 @@ import com.google.gerrit.server.config.AllUsersName;
 import com.google.gerrit.server.config.GerritServerConfig;
 import com.google.gerrit.server.extensions.events.GitReferenceUpdated;
 import com.google.gerrit.server.git.GitRepositoryManager;
+import com.google.gerrit.server.git.WorkQueue;
 import com.google.gerrit.server.notedb.NotesMigration;
 import com.google.gerrit.server.notedb.RepoSequence;
 import com.google.gwtorm.server.OrmException;
@@ -37,6 +41,7 @@ import com.google.inject.Provider;
 import com.google.inject.Singleton;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
 import org.eclipse.jgit.lib.Config;
 
 @Singleton
@@ -61,8 +66,39 @@ public class Sequences {
   private final RepoSequence changeSeq;
   private final RepoSequence groupSeq;
   private final Timer2<SequenceType, Boolean> nextIdLatency;
+  private final Timer2<SequenceType, Boolean> acquireLatency;
+  private final Counter1<SequenceType> acquireRetries;
+  private final Counter1<SequenceType> wastedIds;
 
   @Inject
+  Sequences(
+      @GerritServerConfig Config cfg,
+      Provider<ReviewDb> db,
+      NotesMigration migration,
+      GitRepositoryManager repoManager,
+      GitReferenceUpdated gitRefUpdated,
+      AllProjectsName allProjects,
+      AllUsersName allUsers,
+      MetricMaker metrics,
+      WorkQueue workQueue) {
+    this(
+        cfg,
+        db,
+        migration,
+        repoManager,
+        gitRefUpdated,
+        allProjects,
+        allUsers,
+        metrics,
+        cfg.getBoolean("noteDb", "changes", "sequencePrefetch", false)
+            ? workQueue.createQueue(1, "ChangeSequencePrefetch")
+            : null);
+  }
+
+  /**
+   * Creates sequences that never prefetch IDs, for use outside of a running server, e.g. during
+   * site initialization.
+   */
   public Sequences(
       @GerritServerConfig Config cfg,
       Provider<ReviewDb> db,
@@ -72,9 +108,54 @@ public class Sequences {
       AllProjectsName allProjects,
       AllUsersName allUsers,
       MetricMaker metrics) {
+    this(cfg, db, migration, repoManager, gitRefUpdated, allProjects, allUsers, metrics, null);
+  }
+
+  private Sequences(
+      Config cfg,
+      Provider<ReviewDb> db,
+      NotesMigration migration,
+      GitRepositoryManager repoManager,
+      GitReferenceUpdated gitRefUpdated,
+      AllProjectsName allProjects,
+      AllUsersName allUsers,
+      MetricMaker metrics,
+      @Nullable ExecutorService changePrefetchExecutor) {
     this.db = db;
     this.migration = migration;
 
+    Field<SequenceType> sequenceField = Field.ofEnum(SequenceType.class, "sequence");
+    nextIdLatency =
+        metrics.newTimer(
+            "sequence/next_id_latency",
+            new Description("Latency of requesting IDs from repo sequences")
+                .setCumulative()
+                .setUnit(Units.MILLISECONDS),
+            sequenceField,
+            Field.ofBoolean("multiple"));
+    acquireLatency =
+        metrics.newTimer(
+            "sequence/acquire_latency",
+            new Description("Latency of acquiring batches of IDs from the repository")
+                .setCumulative()
+                .setUnit(Units.MILLISECONDS),
+            sequenceField,
+            Field.ofBoolean("prefetch"));
+    acquireRetries =
+        metrics.newCounter(
+            "sequence/acquire_retry_count",
+            new Description("Ref updates retried due to lock failures while acquiring IDs")
+                .setRate()
+                .setUnit("retries"),
+            sequenceField);
+    wastedIds =
+        metrics.newCounter(
+            "sequence/wasted_id_count",
+            new Description("Acquired IDs that were dropped without being used")
+                .setRate()
+                .setUnit("ids"),
+            sequenceField);
+
     int accountBatchSize = cfg.getInt("noteDb", "accounts", "sequenceBatchSize", 1);
     accountSeq =
         new RepoSequence(
@@ -83,7 +164,9 @@ public class Sequences {
             allUsers,
             NAME_ACCOUNTS,
             () -> ReviewDb.FIRST_ACCOUNT_ID,
-            accountBatchSize);
+            accountBatchSize,
+            null,
+            listener(SequenceType.ACCOUNTS));
 
     int gap = getChangeSequenceGap(cfg);
     @SuppressWarnings("deprecation")
@@ -91,22 +174,27 @@ public class Sequences {
     int changeBatchSize = cfg.getInt("noteDb", "changes", "sequenceBatchSize", 20);
     changeSeq =
         new RepoSequence(
-            repoManager, gitRefUpdated, allProjects, NAME_CHANGES, changeSeed, changeBatchSize);
+            repoManager,
+            gitRefUpdated,
+            allProjects,
+            NAME_CHANGES,
+            changeSeed,
+            changeBatchSize,
+            changePrefetchExecutor,
+            listener(SequenceType.CHANGES));
 
     RepoSequence.Seed groupSeed = () -> nextGroupId(db.get());
     int groupBatchSize = 1;
     groupSeq =
         new RepoSequence(
-            repoManager, gitRefUpdated, allUsers, NAME_GROUPS, groupSeed, groupBatchSize);
-
-    nextIdLatency =
-        metrics.newTimer(
-            "sequence/next_id_latency",
-            new Description("Latency of requesting IDs from repo sequences")
-                .setCumulative()
-                .setUnit(Units.MILLISECONDS),
-            Field.ofEnum(SequenceType.class, "sequence"),
-            Field.ofBoolean("multiple"));
+            repoManager,
+            gitRefUpdated,
+            allUsers,
+            NAME_GROUPS,
+            groupSeed,
+            groupBatchSize,
+            null,
+            listener(SequenceType.GROUPS));
   }
 
   public int nextAccountId() throws OrmException {
@@ -154,6 +242,23 @@ public class Sequences {
     return changeSeq;
   }
 
+  private RepoSequence.Listener listener(SequenceType type) {
+    return new RepoSequence.Listener() {
+      @Override
+      public void onAcquire(boolean prefetch, int retries, long elapsedNanos) {
+        acquireLatency.record(type, prefetch, elapsedNanos, NANOSECONDS);
+        if (retries > 0) {
+          acquireRetries.incrementBy(type, retries);
+        }
+      }
+
+      @Override
+      public void onWasted(int count) {
+        wastedIds.incrementBy(type, count);
+      }
+    };
+  }
+
   @SuppressWarnings("deprecation")
   private static int nextChangeId(ReviewDb db) throws OrmException {
     return db.nextChangeId();
@@ -23,6 +23,7 @@ import com.google.auto.value.AutoValue;
 import com.google.common.base.CharMatcher;
 import com.google.common.base.Joiner;
 import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableListMultimap;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
@@ -41,6 +42,7 @@ import com.google.gerrit.server.extensions.events.GitReferenceUpdated;
 import com.google.gerrit.server.git.GitRepositoryManager;
 import com.google.gerrit.server.index.change.ChangeField;
 import com.google.gerrit.server.index.change.ChangeIndexer;
+import com.google.gerrit.server.notedb.AllUsersRefUpdateBatcher;
 import com.google.gerrit.server.project.NoSuchChangeException;
 import com.google.gerrit.server.query.change.ChangeData;
 import com.google.gerrit.server.query.change.InternalChangeQuery;
@@ -170,6 +172,7 @@ public class StarredChangesUtil {
   private final PersonIdent serverIdent;
   private final ChangeIndexer indexer;
   private final Provider<InternalChangeQuery> queryProvider;
+  private final AllUsersRefUpdateBatcher allUsersBatcher;
 
   @Inject
   StarredChangesUtil(
@@ -179,7 +182,8 @@ public class StarredChangesUtil {
       Provider<ReviewDb> dbProvider,
       @GerritPersonIdent PersonIdent serverIdent,
       ChangeIndexer indexer,
-      Provider<InternalChangeQuery> queryProvider) {
+      Provider<InternalChangeQuery> queryProvider,
+      AllUsersRefUpdateBatcher allUsersBatcher) {
     this.repoManager = repoManager;
     this.gitRefUpdated = gitRefUpdated;
     this.allUsers = allUsers;
@@ -187,6 +191,7 @@ public class StarredChangesUtil {
     this.serverIdent = serverIdent;
     this.indexer = indexer;
     this.queryProvider = queryProvider;
+    this.allUsersBatcher = allUsersBatcher;
   }
 
   public ImmutableSortedSet<String> getLabels(Account.Id accountId, Change.Id changeId)
@@ -447,11 +452,24 @@ public class StarredChangesUtil {
   private void updateLabels(
       Repository repo, String refName, ObjectId oldObjectId, Collection<String> labels)
       throws IOException, OrmException, InvalidLabelsException {
+    ObjectId newObjectId = writeLabels(repo, labels);
+    if (allUsersBatcher.isEnabled()) {
+      ReceiveCommand cmd = new ReceiveCommand(oldObjectId, newObjectId, refName);
+      allUsersBatcher.execute(ImmutableList.of(cmd), serverIdent, "Update star labels");
+      if (cmd.getResult() != ReceiveCommand.Result.OK) {
+        throw new OrmException(
+            String.format(
+                "Update star labels on ref %s failed: %s", refName, cmd.getResult().name()));
+      }
+      gitRefUpdated.fire(allUsers, cmd, null);
+      return;
+    }
+
     try (RevWalk rw = new RevWalk(repo)) {
       RefUpdate u = repo.updateRef(refName);
       u.setExpectedOldObjectId(oldObjectId);
       u.setForceUpdate(true);
-      u.setNewObjectId(writeLabels(repo, labels));
+      u.setNewObjectId(newObjectId);
       u.setRefLogIdent(serverIdent);
       u.setRefLogMessage("Update star labels", true);
       RefUpdate.Result result = u.update(rw);
@@ -479,6 +497,17 @@ public class StarredChangesUtil {
 
   private void deleteRef(Repository repo, String refName, ObjectId oldObjectId)
       throws IOException, OrmException {
+    if (allUsersBatcher.isEnabled() && !ObjectId.zeroId().equals(oldObjectId)) {
+      ReceiveCommand cmd = new ReceiveCommand(oldObjectId, ObjectId.zeroId(), refName);
+      allUsersBatcher.execute(ImmutableList.of(cmd), serverIdent, "Unstar change");
+      if (cmd.getResult() != ReceiveCommand.Result.OK) {
+        throw new OrmException(
+            String.format("Delete star ref %s failed: %s", refName, cmd.getResult().name()));
+      }
+      gitRefUpdated.fire(allUsers, cmd, null);
+      return;
+    }
+
     RefUpdate u = repo.updateRef(refName);
     u.setForceUpdate(true);
     u.setExpectedOldObjectId(oldObjectId);
@@ -102,6 +102,9 @@ class FileApiImpl implements FileApi {
       getDiff.setWhitespace(r.getWhitespace());
     }
     r.getParent().ifPresent(getDiff::setParent);
+    if (r.getWindowSize() > 0) {
+      getDiff.setWindow(r.getWindowStart(), r.getWindowOffset(), r.getWindowSize());
+    }
     try {
       return getDiff.apply(file).value();
     } catch (Exception e) {
@@ -93,8 +93,20 @@ public class PerThreadCache implements AutoCloseable {
   }
 
   public static PerThreadCache create() {
+    return create(false);
+  }
+
+  /**
+   * Creates a cache for a request that does not modify any repository. Values derived from the
+   * state of refs may be cached for such requests, see {@link #allowRefCache()}.
+   */
+  public static PerThreadCache createReadOnly() {
+    return create(true);
+  }
+
+  private static PerThreadCache create(boolean readOnlyRequest) {
     checkState(CACHE.get() == null, "called create() twice on the same request");
-    PerThreadCache cache = new PerThreadCache();
+    PerThreadCache cache = new PerThreadCache(readOnlyRequest);
     CACHE.set(cache);
     return cache;
   }
@@ -110,8 +122,27 @@ public class PerThreadCache implements AutoCloseable {
   }
 
   private final Map<Key<?>, Object> cache = Maps.newHashMapWithExpectedSize(10);
+  private final boolean readOnlyRequest;
+
+  private PerThreadCache(boolean readOnlyRequest) {
+    this.readOnlyRequest = readOnlyRequest;
+  }
 
-  private PerThreadCache() {}
+  /**
+   * Returns true if the request served by this thread does not modify refs, so that values
+   * depending on ref states can be cached for the remainder of the request.
+   */
+  public boolean allowRefCache() {
+    return readOnlyRequest;
+  }
+
+  /** Returns the cached instance of {@code T}, or null if there is none. */
+  @Nullable
+  public <T> T getIfPresent(Key<T> key) {
+    @SuppressWarnings("unchecked")
+    T value = (T) cache.get(key);
+    return value;
+  }
 
   /**
    * Returns an instance of {@code T} that was either loaded from the cache or obtained from the
@@ -51,6 +51,7 @@ import com.google.gerrit.server.mail.send.CreateChangeSender;
 import com.google.gerrit.server.notedb.ChangeNotes;
 import com.google.gerrit.server.notedb.ChangeUpdate;
 import com.google.gerrit.server.notedb.NotesMigration;
+import com.google.gerrit.server.patch.DiffPrecomputer;
 import com.google.gerrit.server.patch.PatchSetInfoFactory;
 import com.google.gerrit.server.permissions.ChangePermission;
 import com.google.gerrit.server.permissions.PermissionBackend;
@@ -102,6 +103,7 @@ public class ChangeInserter implements InsertChangeOp {
   private final RevisionCreated revisionCreated;
   private final CommentAdded commentAdded;
   private final NotesMigration migration;
+  private final DiffPrecomputer diffPrecomputer;
 
   private final Change.Id changeId;
   private final PatchSet.Id psId;
@@ -151,6 +153,7 @@ public class ChangeInserter implements InsertChangeOp {
       CommentAdded commentAdded,
       RevisionCreated revisionCreated,
       NotesMigration migration,
+      DiffPrecomputer diffPrecomputer,
       @Assisted Change.Id changeId,
       @Assisted ObjectId commitId,
       @Assisted String refName) {
@@ -166,6 +169,7 @@ public class ChangeInserter implements InsertChangeOp {
     this.revisionCreated = revisionCreated;
     this.commentAdded = commentAdded;
     this.migration = migration;
+    this.diffPrecomputer = diffPrecomputer;
 
     this.changeId = changeId;
     this.psId = new PatchSet.Id(changeId, INITIAL_PATCH_SET_ID);
@@ -541,6 +545,10 @@ public class ChangeInserter implements InsertChangeOp {
             change, patchSet, ctx.getAccount(), null, allApprovals, oldApprovals, ctx.getWhen());
       }
     }
+
+    if (change.getStatus().isOpen()) {
+      diffPrecomputer.precompute(ctx.getProject(), commitId, null);
+    }
   }
 
   private void validate(RepoContext ctx) throws IOException, ResourceConflictException {
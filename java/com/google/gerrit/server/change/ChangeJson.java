@@ -488,6 +488,17 @@ public class ChangeJson {
   private List<ChangeInfo> toChangeInfos(
       List<ChangeData> changes, Map<Change.Id, ChangeInfo> cache) {
     try (Timer0.Context ignored = metrics.toChangeInfosLatency.start()) {
+      if (lazyLoad) {
+        // Read the notes of all changes of a project at once, rather than one by one while
+        // formatting.
+        try {
+          ChangeData.ensureNotesLoaded(
+              changes.stream().filter(cd -> !cache.containsKey(cd.getId())).collect(toList()));
+        } catch (OrmException e) {
+          log.warn("Cannot bulk load changes, loading them one by one", e);
+        }
+      }
+
       // Create a list of formatting calls that can be called sequentially or in parallel
       List<Callable<Optional<ChangeInfo>>> formattingCalls = new ArrayList<>(changes.size());
       for (ChangeData cd : changes) {
@@ -24,12 +24,20 @@ import com.google.gerrit.extensions.restapi.ResourceConflictException;
 import com.google.gerrit.extensions.restapi.RestApiException;
 import com.google.gerrit.reviewdb.client.Project;
 import com.google.gerrit.server.git.GitRepositoryManager;
+import com.google.gerrit.server.git.ReachabilityCache;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
 import org.eclipse.jgit.errors.IncorrectObjectTypeException;
 import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.lib.Constants;
 import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefDatabase;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.revwalk.RevCommit;
 import org.eclipse.jgit.revwalk.RevWalk;
@@ -37,11 +45,16 @@ import org.eclipse.jgit.revwalk.RevWalk;
 @Singleton
 public class IncludedIn {
   private final GitRepositoryManager repoManager;
+  private final ReachabilityCache reachabilityCache;
   private final DynamicSet<ExternalIncludedIn> externalIncludedIn;
 
   @Inject
-  IncludedIn(GitRepositoryManager repoManager, DynamicSet<ExternalIncludedIn> externalIncludedIn) {
+  IncludedIn(
+      GitRepositoryManager repoManager,
+      ReachabilityCache reachabilityCache,
+      DynamicSet<ExternalIncludedIn> externalIncludedIn) {
     this.repoManager = repoManager;
+    this.reachabilityCache = reachabilityCache;
     this.externalIncludedIn = externalIncludedIn;
   }
 
@@ -59,7 +72,18 @@ public class IncludedIn {
         throw new ResourceConflictException(err.getMessage());
       }
 
-      IncludedInResolver.Result d = IncludedInResolver.resolve(r, rw, rev);
+      RefDatabase refDb = r.getRefDatabase();
+      Collection<Ref> tags = refDb.getRefs(Constants.R_TAGS).values();
+      Collection<Ref> branches = refDb.getRefs(Constants.R_HEADS).values();
+      List<Ref> allTagsAndBranches = new ArrayList<>(tags.size() + branches.size());
+      allTagsAndBranches.addAll(tags);
+      allTagsAndBranches.addAll(branches);
+      Set<String> matching =
+          reachabilityCache.refsContaining(project, r, rw, rev, allTagsAndBranches);
+
+      IncludedInResolver.Result d = new IncludedInResolver.Result();
+      d.setBranches(IncludedInResolver.getMatchingRefNames(matching, branches));
+      d.setTags(IncludedInResolver.getMatchingRefNames(matching, tags));
       ListMultimap<String, String> external = MultimapBuilder.hashKeys().arrayListValues().build();
       for (ExternalIncludedIn ext : externalIncludedIn) {
         ListMultimap<String, String> extIncludedIns =
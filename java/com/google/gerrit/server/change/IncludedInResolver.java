@@ -65,6 +65,26 @@ public class IncludedInResolver {
     }
   }
 
+  /**
+   * Resolves which of the given refs include a commit.
+   *
+   * @return names of the refs from {@code refs} from which {@code commit} is reachable.
+   */
+  public static Set<String> includedIn(
+      Repository repo, RevWalk rw, RevCommit commit, Collection<Ref> refs) throws IOException {
+    if (refs.isEmpty()) {
+      return new HashSet<>();
+    }
+    RevFlag flag = newFlag(rw);
+    try {
+      IncludedInResolver resolver = new IncludedInResolver(repo, rw, commit, flag);
+      resolver.parseCommits(refs);
+      return resolver.includedIn(resolver.tipsByCommitTime, 0);
+    } finally {
+      rw.disposeFlag(flag);
+    }
+  }
+
   private static RevFlag newFlag(RevWalk rw) {
     return rw.newFlag("CONTAINS_TARGET");
   }
@@ -177,7 +197,7 @@ public class IncludedInResolver {
    * Returns the short names of refs which are as well in the matchingRefs list as well as in the
    * allRef list.
    */
-  private static List<String> getMatchingRefNames(
+  static List<String> getMatchingRefNames(
       Set<String> matchingRefs, Collection<Ref> allRefs) {
     List<String> refNames = Lists.newArrayListWithCapacity(matchingRefs.size());
     for (Ref r : allRefs) {
@@ -18,6 +18,7 @@ import static com.google.common.collect.ImmutableList.toImmutableList;
 
 import com.google.common.collect.ImmutableList;
 import java.io.IOException;
+import java.util.Collection;
 import org.eclipse.jgit.lib.BatchRefUpdate;
 import org.eclipse.jgit.lib.RefUpdate;
 import org.eclipse.jgit.transport.ReceiveCommand;
@@ -34,10 +35,13 @@ public class LockFailureException extends IOException {
   }
 
   public LockFailureException(String message, BatchRefUpdate batchRefUpdate) {
+    this(message, batchRefUpdate.getCommands());
+  }
+
+  public LockFailureException(String message, Collection<ReceiveCommand> commands) {
     super(message);
     refs =
-        batchRefUpdate
-            .getCommands()
+        commands
             .stream()
             .filter(c -> c.getResult() == ReceiveCommand.Result.LOCK_FAILURE)
             .map(ReceiveCommand::getRefName)
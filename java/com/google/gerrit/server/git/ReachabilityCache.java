@@ -0,0 +1,312 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.git;
+
+import com.google.auto.value.AutoValue;
+import com.google.common.cache.Cache;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.LinkedListMultimap;
+import com.google.common.collect.ListMultimap;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.google.gerrit.common.Nullable;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.server.cache.CacheModule;
+import com.google.gerrit.server.change.IncludedInResolver;
+import com.google.inject.Inject;
+import com.google.inject.Module;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import org.eclipse.jgit.errors.IncorrectObjectTypeException;
+import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.lib.BitmapIndex;
+import org.eclipse.jgit.lib.BitmapIndex.Bitmap;
+import org.eclipse.jgit.lib.BitmapIndex.BitmapBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Answers whether commits are reachable from refs, using pack bitmaps where available.
+ *
+ * <p>For repositories with a bitmap index the history of a ref tip is walked once, down to the
+ * nearest commits that have a bitmap in the pack. The cache keeps the IDs of those bitmapped
+ * commits and of the commits walked above them, keyed by project and tip, so that later checks
+ * against the same tip only need to test the commit against a handful of packed bitmaps. Entries
+ * don't hold on to the bitmap index, so they stay valid across repacks; if a repack dropped one of
+ * the bitmaps an entry relies on, the entry is recomputed. The reachable set of a commit never
+ * changes otherwise, hence moving a ref simply leads to a new key.
+ *
+ * <p>Repositories without a bitmap index fall back to walking the history with {@link
+ * IncludedInResolver}.
+ */
+@Singleton
+public class ReachabilityCache {
+  private static final Logger log = LoggerFactory.getLogger(ReachabilityCache.class);
+
+  private static final String CACHE_NAME = "reachability";
+
+  public static Module module() {
+    return new CacheModule() {
+      @Override
+      protected void configure() {
+        cache(CACHE_NAME, Key.class, ReachableSet.class)
+            .weigher(ReachableSetWeigher.class)
+            .maximumWeight(10 << 20);
+        bind(ReachabilityCache.class);
+      }
+    };
+  }
+
+  @AutoValue
+  abstract static class Key {
+    abstract Project.NameKey project();
+
+    abstract ObjectId tip();
+
+    static Key create(Project.NameKey project, ObjectId tip) {
+      return new AutoValue_ReachabilityCache_Key(project, tip.copy());
+    }
+  }
+
+  /**
+   * Commits reachable from a single commit.
+   *
+   * <p>The set is the union of the packed bitmaps of {@code bitmapped} and the commits in {@code
+   * walked}.
+   */
+  static class ReachableSet {
+    private final ImmutableSet<ObjectId> bitmapped;
+    private final ImmutableSet<ObjectId> walked;
+
+    ReachableSet(ImmutableSet<ObjectId> bitmapped, ImmutableSet<ObjectId> walked) {
+      this.bitmapped = bitmapped;
+      this.walked = walked;
+    }
+
+    /** @return whether all bitmaps this set is made of are still present in {@code index}. */
+    boolean isCurrent(BitmapIndex index) {
+      for (ObjectId id : bitmapped) {
+        if (index.getBitmap(id) == null) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    boolean contains(BitmapIndex index, ObjectId commit) {
+      if (walked.contains(commit)) {
+        return true;
+      }
+      if (bitmapped.isEmpty()) {
+        return false;
+      }
+      BitmapBuilder probe = index.newBitmapBuilder();
+      probe.add(commit, Constants.OBJ_COMMIT);
+      for (ObjectId id : bitmapped) {
+        probe.andNot(index.getBitmap(id));
+        if (!probe.contains(commit)) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    int size() {
+      return bitmapped.size() + walked.size();
+    }
+  }
+
+  public static class ReachableSetWeigher implements Weigher<Key, ReachableSet> {
+    @Override
+    public int weigh(Key key, ReachableSet value) {
+      return 16
+          + 2 * key.project().get().length()
+          + 40 // Size of Key, 64 bit JVM
+          + 64 * value.size(); // ObjectId and hash table entry per commit, 64 bit JVM
+    }
+  }
+
+  private final Cache<Key, ReachableSet> cache;
+
+  @Inject
+  ReachabilityCache(@Named(CACHE_NAME) Cache<Key, ReachableSet> cache) {
+    this.cache = cache;
+  }
+
+  /**
+   * Checks whether a commit is reachable from any of the given refs.
+   *
+   * @param project project containing the commit.
+   * @param repo open repository of {@code project}.
+   * @param rw walk used to parse the ref tips.
+   * @param commit commit to check.
+   * @param refs refs to check; tags are peeled and refs not pointing to commits are ignored.
+   * @return true if {@code commit} is reachable from at least one of {@code refs}.
+   */
+  public boolean isMergedIntoAny(
+      Project.NameKey project, Repository repo, RevWalk rw, RevCommit commit, Collection<Ref> refs)
+      throws IOException {
+    if (refs.isEmpty()) {
+      return false;
+    }
+    BitmapIndex index = rw.getObjectReader().getBitmapIndex();
+    if (index == null) {
+      return IncludedInResolver.includedInAny(repo, rw, commit, refs);
+    }
+    for (RevCommit tip : parseTips(repo, rw, refs).keySet()) {
+      if (reaches(project, repo, index, tip, commit)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Finds the refs that contain a commit.
+   *
+   * @param project project containing the commit.
+   * @param repo open repository of {@code project}.
+   * @param rw walk used to parse the ref tips.
+   * @param commit commit to check.
+   * @param refs refs to check; tags are peeled and refs not pointing to commits are ignored.
+   * @return names of the refs from {@code refs} from which {@code commit} is reachable.
+   */
+  public Set<String> refsContaining(
+      Project.NameKey project, Repository repo, RevWalk rw, RevCommit commit, Collection<Ref> refs)
+      throws IOException {
+    BitmapIndex index = rw.getObjectReader().getBitmapIndex();
+    if (index == null) {
+      return IncludedInResolver.includedIn(repo, rw, commit, refs);
+    }
+    Set<String> result = new HashSet<>();
+    ListMultimap<RevCommit, String> tips = parseTips(repo, rw, refs);
+    for (Map.Entry<RevCommit, Collection<String>> e : tips.asMap().entrySet()) {
+      if (reaches(project, repo, index, e.getKey(), commit)) {
+        result.addAll(e.getValue());
+      }
+    }
+    return result;
+  }
+
+  private boolean reaches(
+      Project.NameKey project, Repository repo, BitmapIndex index, RevCommit tip, RevCommit commit)
+      throws IOException {
+    if (tip.equals(commit)) {
+      return true;
+    }
+    if (tip.getParentCount() == 0) {
+      // A root commit only reaches itself.
+      return false;
+    }
+    Key key = Key.create(project, tip);
+    try {
+      ReachableSet reachable = cache.get(key, () -> load(project, repo, tip));
+      if (!reachable.isCurrent(index)) {
+        // The repository was repacked and some bitmaps are gone.
+        cache.invalidate(key);
+        reachable = cache.get(key, () -> load(project, repo, tip));
+      }
+      return reachable.contains(index, commit);
+    } catch (ExecutionException | UncheckedExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException(e.getCause());
+    }
+  }
+
+  private static ReachableSet load(Project.NameKey project, Repository repo, ObjectId tip)
+      throws IOException {
+    try (ObjectReader reader = repo.newObjectReader();
+        RevWalk rw = new RevWalk(reader)) {
+      BitmapIndex index = reader.getBitmapIndex();
+      if (index == null) {
+        throw new IOException("bitmap index of " + project + " disappeared");
+      }
+      rw.setRetainBody(false);
+      ImmutableSet.Builder<ObjectId> bitmapped = ImmutableSet.builder();
+      ImmutableSet.Builder<ObjectId> walked = ImmutableSet.builder();
+      BitmapBuilder covered = index.newBitmapBuilder();
+      rw.markStart(rw.parseCommit(tip));
+      RevCommit c;
+      while ((c = rw.next()) != null) {
+        if (covered.contains(c)) {
+          rw.markUninteresting(c);
+          continue;
+        }
+        Bitmap bitmap = index.getBitmap(c);
+        if (bitmap != null) {
+          // Everything below this commit is covered by the packed bitmap.
+          bitmapped.add(c.copy());
+          covered.or(bitmap);
+          rw.markUninteresting(c);
+        } else {
+          walked.add(c.copy());
+        }
+      }
+      return new ReachableSet(bitmapped.build(), walked.build());
+    }
+  }
+
+  private static ListMultimap<RevCommit, String> parseTips(
+      Repository repo, RevWalk rw, Collection<Ref> refs) {
+    ListMultimap<RevCommit, String> tips = LinkedListMultimap.create();
+    for (Ref ref : refs) {
+      RevCommit tip = parseTip(repo, rw, ref);
+      if (tip != null) {
+        tips.put(tip, ref.getName());
+      }
+    }
+    return tips;
+  }
+
+  @Nullable
+  private static RevCommit parseTip(Repository repo, RevWalk rw, Ref ref) {
+    if (ref.getObjectId() == null) {
+      return null;
+    }
+    try {
+      return rw.parseCommit(ref.getObjectId());
+    } catch (IncorrectObjectTypeException notCommit) {
+      // Its OK for a tag reference to point to a blob or a tree.
+      return null;
+    } catch (MissingObjectException notHere) {
+      log.warn(
+          "Reference "
+              + ref.getName()
+              + " in "
+              + repo.getDirectory()
+              + " points to dangling object "
+              + ref.getObjectId());
+      return null;
+    } catch (IOException e) {
+      log.warn("Cannot parse " + ref.getName() + " in " + repo.getDirectory(), e);
+      return null;
+    }
+  }
+}
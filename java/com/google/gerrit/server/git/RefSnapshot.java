@@ -0,0 +1,105 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.git;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.gerrit.common.Nullable;
+import com.google.gerrit.server.cache.PerThreadCache;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Optional;
+import java.util.SortedMap;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefDatabase;
+import org.eclipse.jgit.lib.Repository;
+
+/**
+ * Immutable view of all refs of a repository, read with a single scan of the ref database.
+ *
+ * <p>Within a read-only request, a snapshot is shared by all callers reading refs of the same
+ * repository through {@link RefSnapshots}, so that the ref database is scanned only once, and all
+ * callers get a consistent view. Prefix lookups are served from a sorted map and don't rescan the
+ * ref database.
+ */
+public class RefSnapshot implements RefCache {
+  /**
+   * Returns the snapshot of {@code repo} that was loaded for the current request, if any.
+   *
+   * <p>Unlike {@link RefSnapshots#get(Repository)} this never scans the ref database.
+   */
+  public static Optional<RefSnapshot> current(Repository repo) {
+    PerThreadCache cache = PerThreadCache.get();
+    if (cache == null || !cache.allowRefCache()) {
+      return Optional.empty();
+    }
+    return Optional.ofNullable(cache.getIfPresent(key(repo)));
+  }
+
+  static PerThreadCache.Key<RefSnapshot> key(Repository repo) {
+    return PerThreadCache.Key.create(RefSnapshot.class, repo);
+  }
+
+  static RefSnapshot load(Repository repo) throws IOException {
+    return new RefSnapshot(repo.getRefDatabase().getRefs(RefDatabase.ALL));
+  }
+
+  private final ImmutableSortedMap<String, Ref> refs;
+
+  RefSnapshot(Map<String, Ref> refs) {
+    this.refs = ImmutableSortedMap.copyOf(refs);
+  }
+
+  @Override
+  public Optional<ObjectId> get(String refName) {
+    return Optional.ofNullable(refs.get(refName)).map(Ref::getObjectId);
+  }
+
+  /**
+   * Get a ref by its exact name.
+   *
+   * @param refName name of the ref.
+   * @return the ref, or null if it did not exist when the snapshot was taken.
+   */
+  @Nullable
+  public Ref exactRef(String refName) {
+    return refs.get(refName);
+  }
+
+  /**
+   * Get the refs starting with a prefix.
+   *
+   * @param prefix ref name prefix, or {@link RefDatabase#ALL} to get all refs.
+   * @return refs whose names start with {@code prefix}, keyed by their name with {@code prefix}
+   *     removed, matching the semantics of {@link RefDatabase#getRefs(String)}.
+   */
+  public Map<String, Ref> getRefs(String prefix) {
+    if (prefix.isEmpty()) {
+      return refs;
+    }
+    SortedMap<String, Ref> matching = refs.subMap(prefix, prefix + Character.MAX_VALUE);
+    ImmutableMap.Builder<String, Ref> result = ImmutableMap.builder();
+    for (Map.Entry<String, Ref> e : matching.entrySet()) {
+      result.put(e.getKey().substring(prefix.length()), e.getValue());
+    }
+    return result.build();
+  }
+
+  /** @return all refs of the repository, keyed by their full name. */
+  public Map<String, Ref> getAllRefs() {
+    return refs;
+  }
+}
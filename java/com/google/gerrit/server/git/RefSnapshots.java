@@ -0,0 +1,107 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.git;
+
+import com.google.gerrit.metrics.Counter0;
+import com.google.gerrit.metrics.Description;
+import com.google.gerrit.metrics.MetricMaker;
+import com.google.gerrit.server.cache.PerThreadCache;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Optional;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+
+/**
+ * Provides request-scoped {@link RefSnapshot}s.
+ *
+ * <p>During read-only requests the first caller scans the ref database and all later callers
+ * reading refs of the same repository get the same snapshot. Outside of read-only requests each
+ * call scans the ref database, so that callers never observe stale refs after an update.
+ */
+@Singleton
+public class RefSnapshots {
+  private final Counter0 scanCount;
+  private final Counter0 reuseCount;
+
+  @Inject
+  RefSnapshots(MetricMaker metricMaker) {
+    scanCount =
+        metricMaker.newCounter(
+            "git/ref_snapshot/scan_count",
+            new Description("Ref database scans for ref snapshots and prefix reads")
+                .setRate()
+                .setUnit("scans"));
+    reuseCount =
+        metricMaker.newCounter(
+            "git/ref_snapshot/reuse_count",
+            new Description("Ref snapshots reused within a request")
+                .setRate()
+                .setUnit("snapshots"));
+  }
+
+  /**
+   * Get the snapshot of all refs of a repository.
+   *
+   * @param repo open repository.
+   * @return snapshot shared with other callers of the current request, if the request is read-only;
+   *     a freshly loaded snapshot otherwise.
+   * @throws IOException if the ref database cannot be read.
+   */
+  public RefSnapshot get(Repository repo) throws IOException {
+    PerThreadCache cache = PerThreadCache.get();
+    if (cache == null || !cache.allowRefCache()) {
+      return scan(repo);
+    }
+    PerThreadCache.Key<RefSnapshot> key = RefSnapshot.key(repo);
+    RefSnapshot snapshot = cache.getIfPresent(key);
+    if (snapshot != null) {
+      reuseCount.increment();
+      return snapshot;
+    }
+    RefSnapshot loaded = scan(repo);
+    return cache.get(key, () -> loaded);
+  }
+
+  /**
+   * Get the refs of a repository starting with a prefix.
+   *
+   * <p>Reads from the snapshot of the current request if one was already loaded, and otherwise
+   * only scans the refs under {@code prefix}, so that callers reading a narrow namespace don't
+   * trigger a scan of the whole ref database.
+   *
+   * @param repo open repository.
+   * @param prefix ref name prefix.
+   * @return refs whose names start with {@code prefix}, keyed by their name with {@code prefix}
+   *     removed.
+   * @throws IOException if the ref database cannot be read.
+   */
+  public Map<String, Ref> getRefs(Repository repo, String prefix) throws IOException {
+    Optional<RefSnapshot> snapshot = RefSnapshot.current(repo);
+    if (snapshot.isPresent()) {
+      reuseCount.increment();
+      return snapshot.get().getRefs(prefix);
+    }
+    scanCount.increment();
+    return repo.getRefDatabase().getRefs(prefix);
+  }
+
+  private RefSnapshot scan(Repository repo) throws IOException {
+    scanCount.increment();
+    return RefSnapshot.load(repo);
+  }
+}
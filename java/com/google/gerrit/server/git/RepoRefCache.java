@@ -14,6 +14,7 @@
 
 package com.google.gerrit.server.git;
 
+import com.google.gerrit.common.Nullable;
 import java.io.IOException;
 import java.util.Collections;
 import java.util.HashMap;
@@ -24,13 +25,20 @@ import org.eclipse.jgit.lib.Ref;
 import org.eclipse.jgit.lib.RefDatabase;
 import org.eclipse.jgit.lib.Repository;
 
-/** {@link RefCache} backed directly by a repository. */
+/**
+ * {@link RefCache} backed directly by a repository.
+ *
+ * <p>If a {@link RefSnapshot} of the repository was already loaded for the current request, refs
+ * are read from the snapshot instead of the ref database.
+ */
 public class RepoRefCache implements RefCache {
   private final RefDatabase refdb;
+  @Nullable private final RefSnapshot snapshot;
   private final Map<String, Optional<ObjectId>> ids;
 
   public RepoRefCache(Repository repo) {
     this.refdb = repo.getRefDatabase();
+    this.snapshot = RefSnapshot.current(repo).orElse(null);
     this.ids = new HashMap<>();
   }
 
@@ -40,8 +48,12 @@ public class RepoRefCache implements RefCache {
     if (id != null) {
       return id;
     }
-    Ref ref = refdb.exactRef(refName);
-    id = Optional.ofNullable(ref).map(Ref::getObjectId);
+    if (snapshot != null) {
+      id = snapshot.get(refName);
+    } else {
+      Ref ref = refdb.exactRef(refName);
+      id = Optional.ofNullable(ref).map(Ref::getObjectId);
+    }
     ids.put(refName, id);
     return id;
   }
@@ -0,0 +1,462 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.git;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.auto.value.AutoValue;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.gerrit.common.Nullable;
+import com.google.gerrit.extensions.events.GitReferenceUpdatedListener;
+import com.google.gerrit.extensions.events.LifecycleListener;
+import com.google.gerrit.extensions.registration.DynamicSet;
+import com.google.gerrit.lifecycle.LifecycleModule;
+import com.google.gerrit.metrics.Counter0;
+import com.google.gerrit.metrics.Counter1;
+import com.google.gerrit.metrics.Description;
+import com.google.gerrit.metrics.Description.Units;
+import com.google.gerrit.metrics.Field;
+import com.google.gerrit.metrics.MetricMaker;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.server.config.GerritServerConfig;
+import com.google.gerrit.server.config.SitePaths;
+import com.google.inject.AbstractModule;
+import com.google.inject.Inject;
+import com.google.inject.Module;
+import com.google.inject.Singleton;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.transport.GitProtocolConstants;
+import org.eclipse.jgit.transport.PacketLineIn;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Caches complete upload-pack responses of full clones on disk.
+ *
+ * <p>When many clients clone the same commits at the same time, e.g. CI systems starting hundreds
+ * of builds at once, every clone would otherwise enumerate, compress and write the same pack.
+ * Instead the response of the first completed clone is stored in a file below the site's {@code
+ * tmp} directory and streamed to all later clients sending an identical request.
+ *
+ * <p>Only requests that want objects without having any, without shallow or filter options, can
+ * be cached. The pack sent for such a request is fully determined by the wanted objects, the
+ * requested capabilities and, if tags are included, the tags visible to the client. Callers must
+ * make sure the wanted objects are visible to the client before serving a cached response, {@link
+ * #key(Project.NameKey, CloneRequest, boolean, Map)} only returns a key if all wants are tips of
+ * visible refs.
+ *
+ * <p>The size of all cached responses on disk is bounded by {@code cache.upload_packs.diskLimit},
+ * which defaults to 0 and hence disables the cache. Only the index of the responses is kept in
+ * memory, it is not a {@link com.google.gerrit.server.cache.CacheModule} cache as their limits
+ * bound the memory used. Cached responses of a project are discarded when one of its branches or
+ * tags is updated, as clients will then want the new tips.
+ */
+@Singleton
+public class UploadPackResponseCache implements GitReferenceUpdatedListener, LifecycleListener {
+  private static final Logger log = LoggerFactory.getLogger(UploadPackResponseCache.class);
+
+  private static final String CACHE_NAME = "upload_packs";
+  private static final String OPTION_AGENT = "agent=";
+
+  public static Module module() {
+    return new AbstractModule() {
+      @Override
+      protected void configure() {
+        bind(UploadPackResponseCache.class);
+        DynamicSet.bind(binder(), GitReferenceUpdatedListener.class)
+            .to(UploadPackResponseCache.class);
+        install(
+            new LifecycleModule() {
+              @Override
+              protected void configure() {
+                listener().to(UploadPackResponseCache.class);
+              }
+            });
+      }
+    };
+  }
+
+  enum Result {
+    HIT,
+    MISS,
+    UNCACHEABLE;
+  }
+
+  /** Wanted objects and capabilities of a clone request. */
+  @AutoValue
+  public abstract static class CloneRequest {
+    /**
+     * Parses the body of a stateless upload-pack request.
+     *
+     * @param body uncompressed request body.
+     * @return the request, or empty if the request is not a plain clone that can be cached.
+     */
+    public static Optional<CloneRequest> parse(byte[] body) {
+      ByteArrayInputStream bin = new ByteArrayInputStream(body);
+      PacketLineIn in = new PacketLineIn(bin);
+      List<ObjectId> wants = new ArrayList<>();
+      Set<String> options = new HashSet<>();
+      try {
+        for (; ; ) {
+          String line = in.readString();
+          if (line == PacketLineIn.END) {
+            break;
+          }
+          if (!line.startsWith("want ") || line.length() < 45) {
+            // Shallow, deepen and filter lines influence the pack, don't cache those.
+            return Optional.empty();
+          }
+          wants.add(ObjectId.fromString(line.substring(5, 45)));
+          if (wants.size() == 1) {
+            for (String option : line.substring(45).trim().split(" ")) {
+              // The agent does not influence the response.
+              if (!option.isEmpty() && !option.startsWith(OPTION_AGENT)) {
+                options.add(option);
+              }
+            }
+          }
+        }
+        if (wants.isEmpty() || !"done".equals(in.readString()) || bin.available() > 0) {
+          return Optional.empty();
+        }
+      } catch (IOException | IllegalArgumentException e) {
+        return Optional.empty();
+      }
+      return Optional.of(
+          new AutoValue_UploadPackResponseCache_CloneRequest(
+              ImmutableList.copyOf(wants), ImmutableSortedSet.copyOf(options)));
+    }
+
+    public abstract ImmutableList<ObjectId> wants();
+
+    public abstract ImmutableSortedSet<String> options();
+
+    boolean includesTags() {
+      return options().contains(GitProtocolConstants.OPTION_INCLUDE_TAG);
+    }
+  }
+
+  @AutoValue
+  public abstract static class Key {
+    abstract Project.NameKey project();
+
+    abstract ObjectId digest();
+
+    static Key create(Project.NameKey project, ObjectId digest) {
+      return new AutoValue_UploadPackResponseCache_Key(project, digest);
+    }
+  }
+
+  /** Response stored on disk. */
+  public static class CachedResponse {
+    private final Path file;
+    private final long length;
+    private final String contentEncoding;
+
+    CachedResponse(Path file, long length, @Nullable String contentEncoding) {
+      this.file = file;
+      this.length = length;
+      this.contentEncoding = contentEncoding;
+    }
+
+    public Path file() {
+      return file;
+    }
+
+    public long length() {
+      return length;
+    }
+
+    /** @return encoding of the response body, or null if it was not compressed. */
+    @Nullable
+    public String contentEncoding() {
+      return contentEncoding;
+    }
+  }
+
+  public static class Weigher
+      implements com.google.common.cache.Weigher<Key, CachedResponse> {
+    @Override
+    public int weigh(Key key, CachedResponse response) {
+      // Weight is the size on disk in KiB.
+      return (int) Math.min(Integer.MAX_VALUE, (response.length() >>> 10) + 1);
+    }
+  }
+
+  /** Records a response while it is sent to the client. */
+  public class Capture implements AutoCloseable {
+    private final Key key;
+    private final Path file;
+    private OutputStream out;
+    private long length;
+
+    private Capture(Key key, Path file, OutputStream out) {
+      this.key = key;
+      this.file = file;
+      this.out = out;
+    }
+
+    /**
+     * Appends bytes sent to the client.
+     *
+     * <p>Errors and responses exceeding the size of the cache silently abort the capture, they
+     * must not affect the response sent to the client.
+     */
+    public void write(byte[] b, int off, int len) {
+      if (out == null) {
+        return;
+      }
+      length += len;
+      if (length > maxBytes) {
+        abort();
+        return;
+      }
+      try {
+        out.write(b, off, len);
+      } catch (IOException e) {
+        log.warn("Cannot write cached upload-pack response " + file, e);
+        abort();
+      }
+    }
+
+    /**
+     * Stores the captured response in the cache.
+     *
+     * <p>Must only be called if the complete response was sent successfully.
+     *
+     * @param contentEncoding encoding of the response body, or null if it was not compressed.
+     */
+    public void commit(@Nullable String contentEncoding) {
+      if (out == null) {
+        return;
+      }
+      try {
+        out.close();
+        out = null;
+      } catch (IOException e) {
+        log.warn("Cannot write cached upload-pack response " + file, e);
+        abort();
+        return;
+      }
+      CachedResponse response = new CachedResponse(file, length, contentEncoding);
+      if (cache.asMap().putIfAbsent(key, response) != null) {
+        // Another clone of the same request completed first.
+        deleteQuietly(file);
+      }
+    }
+
+    private void abort() {
+      if (out != null) {
+        try {
+          out.close();
+        } catch (IOException e) {
+          // Ignored, the file is deleted anyway.
+        }
+        out = null;
+        deleteQuietly(file);
+      }
+    }
+
+    @Override
+    public void close() {
+      abort();
+    }
+  }
+
+  private final Cache<Key, CachedResponse> cache;
+  private final Path dir;
+  private final long maxBytes;
+  private final Counter1<Result> requests;
+  private final Counter0 bytesServed;
+
+  @Inject
+  UploadPackResponseCache(SitePaths site, @GerritServerConfig Config cfg, MetricMaker metricMaker) {
+    this.dir = site.tmp_dir.resolve("upload-pack-cache");
+    this.maxBytes = cfg.getLong("cache", CACHE_NAME, "diskLimit", 0);
+    this.cache =
+        CacheBuilder.newBuilder()
+            // The weight limit is enforced per segment, a single segment admits responses up to
+            // the whole diskLimit.
+            .concurrencyLevel(1)
+            .maximumWeight(maxBytes >>> 10)
+            .weigher(new Weigher())
+            // Clients still streaming the response keep reading the unlinked file.
+            .removalListener(n -> deleteQuietly(n.getValue().file()))
+            .build();
+    requests =
+        metricMaker.newCounter(
+            "git/upload-pack/response_cache/request_count",
+            new Description("Clone requests looked up in the upload-pack response cache")
+                .setRate()
+                .setUnit("requests"),
+            Field.ofEnum(Result.class, "result"));
+    bytesServed =
+        metricMaker.newCounter(
+            "git/upload-pack/response_cache/bytes_served",
+            new Description("Bytes sent to clients from cached upload-pack responses")
+                .setRate()
+                .setUnit(Units.BYTES));
+  }
+
+  /** @return true if {@code cache.upload_packs.diskLimit} allows caching responses. */
+  public boolean isEnabled() {
+    return maxBytes > 0;
+  }
+
+  /**
+   * Computes the key of a clone request.
+   *
+   * @param project project being cloned.
+   * @param req parsed clone request.
+   * @param gzip whether the client accepts gzip compressed responses.
+   * @param visibleRefs refs visible to the client, keyed by name.
+   * @return key of the request, or empty if the client wants objects that are not the tip of a
+   *     visible ref.
+   */
+  public Optional<Key> key(
+      Project.NameKey project, CloneRequest req, boolean gzip, Map<String, Ref> visibleRefs) {
+    Set<ObjectId> tips = new HashSet<>();
+    for (Ref ref : visibleRefs.values()) {
+      if (ref.getObjectId() != null) {
+        tips.add(ref.getObjectId());
+      }
+    }
+    if (!tips.containsAll(req.wants())) {
+      requests.increment(Result.UNCACHEABLE);
+      return Optional.empty();
+    }
+
+    MessageDigest md = Constants.newMessageDigest();
+    for (ObjectId want : req.wants()) {
+      md.update(want.name().getBytes(UTF_8));
+    }
+    for (String option : req.options()) {
+      md.update((' ' + option).getBytes(UTF_8));
+    }
+    md.update((byte) (gzip ? 1 : 0));
+    if (req.includesTags()) {
+      // Included tags depend on the tags visible to the client.
+      for (Map.Entry<String, Ref> e : new TreeMap<>(visibleRefs).entrySet()) {
+        if (e.getKey().startsWith(Constants.R_TAGS) && e.getValue().getObjectId() != null) {
+          md.update((e.getKey() + ' ' + e.getValue().getObjectId().name()).getBytes(UTF_8));
+        }
+      }
+    }
+    return Optional.of(Key.create(project, ObjectId.fromRaw(md.digest())));
+  }
+
+  /**
+   * Looks up a cached response.
+   *
+   * @param key key of the request.
+   * @return cached response, or empty if the response has to be computed.
+   */
+  public Optional<CachedResponse> get(Key key) {
+    CachedResponse response = cache.getIfPresent(key);
+    requests.increment(response != null ? Result.HIT : Result.MISS);
+    return Optional.ofNullable(response);
+  }
+
+  /**
+   * Records that a cached response was sent to a client.
+   *
+   * @param response the response that was sent.
+   */
+  public void served(CachedResponse response) {
+    bytesServed.incrementBy(response.length());
+  }
+
+  /**
+   * Counts a request that cannot be served from the cache, e.g. because it is not a clone.
+   */
+  public void uncacheable() {
+    requests.increment(Result.UNCACHEABLE);
+  }
+
+  /**
+   * Starts recording a response.
+   *
+   * @param key key of the request whose response is recorded.
+   * @return capture to write the response to, or empty if the response cannot be recorded.
+   */
+  public Optional<Capture> capture(Key key) {
+    try {
+      Files.createDirectories(dir);
+      Path file = Files.createTempFile(dir, key.digest().name(), ".pack");
+      return Optional.of(new Capture(key, file, Files.newOutputStream(file)));
+    } catch (IOException e) {
+      log.warn("Cannot create cached upload-pack response in " + dir, e);
+      return Optional.empty();
+    }
+  }
+
+  @Override
+  public void onGitReferenceUpdated(GitReferenceUpdatedListener.Event event) {
+    String ref = event.getRefName();
+    if (ref.startsWith(Constants.R_HEADS) || ref.startsWith(Constants.R_TAGS)) {
+      Project.NameKey project = new Project.NameKey(event.getProjectName());
+      cache.asMap().keySet().removeIf(k -> k.project().equals(project));
+    }
+  }
+
+  @Override
+  public void start() {
+    // Responses cached by an earlier process are not known to the in-memory index anymore.
+    if (!Files.isDirectory(dir)) {
+      return;
+    }
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+      for (Path file : files) {
+        deleteQuietly(file);
+      }
+    } catch (IOException e) {
+      log.warn("Cannot clean up cached upload-pack responses in " + dir, e);
+    }
+  }
+
+  @Override
+  public void stop() {}
+
+  private static void deleteQuietly(Path file) {
+    try {
+      Files.delete(file);
+    } catch (NoSuchFileException e) {
+      // Already deleted.
+    } catch (IOException e) {
+      log.warn("Cannot delete cached upload-pack response " + file, e);
+    }
+  }
+}
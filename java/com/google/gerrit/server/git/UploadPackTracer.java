@@ -0,0 +1,224 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.git;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.gerrit.metrics.Counter1;
+import com.google.gerrit.metrics.Description;
+import com.google.gerrit.metrics.Description.Units;
+import com.google.gerrit.metrics.Field;
+import com.google.gerrit.metrics.MetricMaker;
+import com.google.gerrit.metrics.Timer2;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.server.config.ConfigUtil;
+import com.google.gerrit.server.config.GerritServerConfig;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.util.EnumMap;
+import java.util.Map;
+import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.storage.pack.PackStatistics;
+import org.eclipse.jgit.transport.AdvertiseRefsHook;
+import org.eclipse.jgit.transport.BaseReceivePack;
+import org.eclipse.jgit.transport.PostUploadHook;
+import org.eclipse.jgit.transport.ServiceMayNotContinueException;
+import org.eclipse.jgit.transport.UploadPack;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Records the time spent in the phases of a single upload-pack request.
+ *
+ * <p>The time needed to advertise refs, which includes filtering them by visibility, is measured
+ * by wrapping the advertise refs hook. The phases of sending the pack are taken from the {@link
+ * PackStatistics} reported by JGit once the pack was sent. Fetches that take longer than {@code
+ * upload.slowFetchThreshold} are logged with the time spent in each phase.
+ *
+ * <p>To keep the number of metrics bounded, timings are only reported per project for the
+ * projects listed in {@code upload.metricsProject}; all other projects are reported as {@link
+ * #OTHER_PROJECTS}.
+ */
+public class UploadPackTracer implements PostUploadHook {
+  private static final Logger log = LoggerFactory.getLogger(UploadPackTracer.class);
+
+  public static final String OTHER_PROJECTS = "_other";
+
+  enum Phase {
+    ADVERTISE,
+    NEGOTIATE,
+    SEARCH_FOR_REUSE,
+    SEARCH_FOR_SIZES,
+    COUNTING,
+    COMPRESSING,
+    WRITING;
+  }
+
+  @Singleton
+  static class Metrics {
+    final Timer2<Phase, String> phaseLatency;
+    final Counter1<String> slowRequests;
+
+    @Inject
+    Metrics(MetricMaker metricMaker) {
+      Field<String> project = Field.ofString("project");
+      phaseLatency =
+          metricMaker.newTimer(
+              "git/upload-pack/phase_latency",
+              new Description("Time spent in the phases of git-upload-pack requests")
+                  .setCumulative()
+                  .setUnit(Units.MILLISECONDS),
+              Field.ofEnum(Phase.class, "phase"),
+              project);
+      slowRequests =
+          metricMaker.newCounter(
+              "git/upload-pack/slow_request_count",
+              new Description("git-upload-pack requests exceeding upload.slowFetchThreshold")
+                  .setRate()
+                  .setUnit("requests"),
+              project);
+    }
+  }
+
+  @Singleton
+  public static class Factory {
+    private final Metrics metrics;
+    private final ImmutableSet<String> metricsProjects;
+    private final long slowThresholdMillis;
+
+    @Inject
+    Factory(Metrics metrics, @GerritServerConfig Config cfg) {
+      this.metrics = metrics;
+      this.metricsProjects =
+          ImmutableSet.copyOf(cfg.getStringList("upload", null, "metricsProject"));
+      this.slowThresholdMillis =
+          ConfigUtil.getTimeUnit(
+              cfg, "upload", null, "slowFetchThreshold", SECONDS.toMillis(60), MILLISECONDS);
+    }
+
+    /**
+     * Create a tracer for one upload-pack request.
+     *
+     * @param project project being fetched from.
+     * @param peer address of the client, used when logging slow fetches.
+     * @return new tracer.
+     */
+    public UploadPackTracer create(Project.NameKey project, String peer) {
+      String metricsProject =
+          metricsProjects.contains(project.get()) ? project.get() : OTHER_PROJECTS;
+      return new UploadPackTracer(
+          metrics, project, metricsProject, peer, slowThresholdMillis, System.nanoTime());
+    }
+  }
+
+  private final Metrics metrics;
+  private final Project.NameKey project;
+  private final String metricsProject;
+  private final String peer;
+  private final long slowThresholdMillis;
+  private final long startNanos;
+  private final Map<Phase, Long> phaseMillis = new EnumMap<>(Phase.class);
+  private boolean packSent;
+
+  private UploadPackTracer(
+      Metrics metrics,
+      Project.NameKey project,
+      String metricsProject,
+      String peer,
+      long slowThresholdMillis,
+      long startNanos) {
+    this.metrics = metrics;
+    this.project = project;
+    this.metricsProject = metricsProject;
+    this.peer = peer;
+    this.slowThresholdMillis = slowThresholdMillis;
+    this.startNanos = startNanos;
+  }
+
+  /**
+   * Wraps the advertise refs hook of the request to measure the time needed to advertise refs.
+   *
+   * <p>The tracer itself must be added to the post upload hooks of the request.
+   *
+   * @param hook hook advertising the visible refs.
+   * @return hook delegating to {@code hook}.
+   */
+  public AdvertiseRefsHook wrap(AdvertiseRefsHook hook) {
+    return new AdvertiseRefsHook() {
+      @Override
+      public void advertiseRefs(UploadPack up) throws ServiceMayNotContinueException {
+        long start = System.nanoTime();
+        try {
+          hook.advertiseRefs(up);
+        } finally {
+          record(Phase.ADVERTISE, NANOSECONDS.toMillis(System.nanoTime() - start));
+        }
+      }
+
+      @Override
+      public void advertiseRefs(BaseReceivePack rp) throws ServiceMayNotContinueException {
+        hook.advertiseRefs(rp);
+      }
+    };
+  }
+
+  /** @return true if the pack was sent completely to the client. */
+  public boolean isPackSent() {
+    return packSent;
+  }
+
+  @Override
+  public void onPostUpload(PackStatistics stats) {
+    packSent = true;
+    record(Phase.NEGOTIATE, stats.getTimeNegotiating());
+    record(Phase.SEARCH_FOR_REUSE, stats.getTimeSearchingForReuse());
+    record(Phase.SEARCH_FOR_SIZES, stats.getTimeSearchingForSizes());
+    record(Phase.COUNTING, stats.getTimeCounting());
+    record(Phase.COMPRESSING, stats.getTimeCompressing());
+    record(Phase.WRITING, stats.getTimeWriting());
+
+    long totalMillis = NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    if (slowThresholdMillis > 0 && totalMillis >= slowThresholdMillis) {
+      metrics.slowRequests.increment(metricsProject);
+      log.warn(
+          "Slow fetch of {} by {}: {} ms total, {} objects, {} bytes; phases: {}",
+          project,
+          peer,
+          totalMillis,
+          stats.getTotalObjects(),
+          stats.getTotalBytes(),
+          formatPhases());
+    }
+  }
+
+  private void record(Phase phase, long millis) {
+    metrics.phaseLatency.record(phase, metricsProject, millis, MILLISECONDS);
+    phaseMillis.merge(phase, millis, Long::sum);
+  }
+
+  private String formatPhases() {
+    StringBuilder b = new StringBuilder();
+    for (Map.Entry<Phase, Long> e : phaseMillis.entrySet()) {
+      if (b.length() > 0) {
+        b.append(", ");
+      }
+      b.append(e.getKey().name().toLowerCase()).append('=').append(e.getValue()).append(" ms");
+    }
+    return b.toString();
+  }
+}
@@ -19,6 +19,7 @@ import com.google.gerrit.common.Nullable;
 import com.google.gerrit.common.data.Capable;
 import com.google.gerrit.extensions.restapi.AuthException;
 import com.google.gerrit.extensions.restapi.ResourceConflictException;
+import com.google.gerrit.metrics.Timer1;
 import com.google.gerrit.reviewdb.client.Account;
 import com.google.gerrit.reviewdb.client.Project;
 import com.google.gerrit.server.IdentifiedUser;
@@ -29,6 +30,7 @@ import com.google.gerrit.server.git.DefaultAdvertiseRefsHook;
 import com.google.gerrit.server.git.MultiProgressMonitor;
 import com.google.gerrit.server.git.ProjectRunnable;
 import com.google.gerrit.server.git.TransferConfig;
+import com.google.gerrit.server.git.receive.ReceiveCommitsMetrics.Phase;
 import com.google.gerrit.server.notedb.ReviewerStateInternal;
 import com.google.gerrit.server.permissions.PermissionBackend;
 import com.google.gerrit.server.permissions.PermissionBackend.RefFilterOptions;
@@ -105,9 +107,11 @@ public class AsyncReceiveCommits implements PreReceiveHook {
 
     private final Collection<ReceiveCommand> commands;
     private final ReceiveCommits rc;
+    private final Timer1.Context queueTimer;
 
     private Worker(Collection<ReceiveCommand> commands) {
       this.commands = commands;
+      queueTimer = metrics.phaseLatency.start(Phase.QUEUE);
       rc = factory.create(projectState, user, rp, allRefsWatcher, extraReviewers);
       rc.init();
       rc.setMessageSender(messageSender);
@@ -116,6 +120,7 @@ public class AsyncReceiveCommits implements PreReceiveHook {
 
     @Override
     public void run() {
+      queueTimer.stop();
       rc.processCommands(commands, progress);
     }
 
@@ -167,6 +172,7 @@ public class AsyncReceiveCommits implements PreReceiveHook {
   }
 
   private final ReceiveCommits.Factory factory;
+  private final ReceiveCommitsMetrics metrics;
   private final PermissionBackend.ForProject perm;
   private final ReceivePack rp;
   private final ExecutorService executor;
@@ -184,6 +190,7 @@ public class AsyncReceiveCommits implements PreReceiveHook {
   @Inject
   AsyncReceiveCommits(
       ReceiveCommits.Factory factory,
+      ReceiveCommitsMetrics metrics,
       PermissionBackend permissionBackend,
       Provider<InternalChangeQuery> queryProvider,
       @ReceiveCommitsExecutor ExecutorService executor,
@@ -200,6 +207,7 @@ public class AsyncReceiveCommits implements PreReceiveHook {
       @Assisted SetMultimap<ReviewerStateInternal, Account.Id> extraReviewers)
       throws PermissionBackendException {
     this.factory = factory;
+    this.metrics = metrics;
     this.executor = executor;
     this.scopePropagator = scopePropagator;
     this.receiveConfig = receiveConfig;
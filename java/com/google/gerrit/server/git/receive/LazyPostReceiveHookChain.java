@@ -15,6 +15,8 @@
 package com.google.gerrit.server.git.receive;
 
 import com.google.gerrit.extensions.registration.DynamicSet;
+import com.google.gerrit.metrics.Timer1;
+import com.google.gerrit.server.git.receive.ReceiveCommitsMetrics.Phase;
 import com.google.inject.Inject;
 import java.util.Collection;
 import org.eclipse.jgit.transport.PostReceiveHook;
@@ -23,16 +25,20 @@ import org.eclipse.jgit.transport.ReceivePack;
 
 class LazyPostReceiveHookChain implements PostReceiveHook {
   private final DynamicSet<PostReceiveHook> hooks;
+  private final ReceiveCommitsMetrics metrics;
 
   @Inject
-  LazyPostReceiveHookChain(DynamicSet<PostReceiveHook> hooks) {
+  LazyPostReceiveHookChain(DynamicSet<PostReceiveHook> hooks, ReceiveCommitsMetrics metrics) {
     this.hooks = hooks;
+    this.metrics = metrics;
   }
 
   @Override
   public void onPostReceive(ReceivePack rp, Collection<ReceiveCommand> commands) {
-    for (PostReceiveHook h : hooks) {
-      h.onPostReceive(rp, commands);
+    try (Timer1.Context ignored = metrics.phaseLatency.start(Phase.HOOKS)) {
+      for (PostReceiveHook h : hooks) {
+        h.onPostReceive(rp, commands);
+      }
     }
   }
 }
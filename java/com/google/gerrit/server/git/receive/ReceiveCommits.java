@@ -75,6 +75,7 @@ import com.google.gerrit.extensions.restapi.AuthException;
 import com.google.gerrit.extensions.restapi.BadRequestException;
 import com.google.gerrit.extensions.restapi.ResourceConflictException;
 import com.google.gerrit.extensions.restapi.RestApiException;
+import com.google.gerrit.metrics.Timer1;
 import com.google.gerrit.reviewdb.client.Account;
 import com.google.gerrit.reviewdb.client.BooleanProjectConfig;
 import com.google.gerrit.reviewdb.client.Branch;
@@ -115,6 +116,7 @@ import com.google.gerrit.server.git.MultiProgressMonitor.Task;
 import com.google.gerrit.server.git.ReceivePackInitializer;
 import com.google.gerrit.server.git.TagCache;
 import com.google.gerrit.server.git.ValidationError;
+import com.google.gerrit.server.git.receive.ReceiveCommitsMetrics.Phase;
 import com.google.gerrit.server.git.validators.CommitValidationException;
 import com.google.gerrit.server.git.validators.CommitValidationMessage;
 import com.google.gerrit.server.git.validators.CommitValidators;
@@ -147,6 +149,7 @@ import com.google.gerrit.server.submit.MergeOpRepoManager;
 import com.google.gerrit.server.submit.SubmoduleException;
 import com.google.gerrit.server.submit.SubmoduleOp;
 import com.google.gerrit.server.update.BatchUpdate;
+import com.google.gerrit.server.update.BatchUpdateListener;
 import com.google.gerrit.server.update.BatchUpdateOp;
 import com.google.gerrit.server.update.ChangeContext;
 import com.google.gerrit.server.update.Context;
@@ -323,6 +326,7 @@ class ReceiveCommits {
   private final DynamicMap<ProjectConfigEntry> pluginConfigEntries;
   private final DynamicSet<ReceivePackInitializer> initializers;
   private final MergedByPushOp.Factory mergedByPushOpFactory;
+  private final ReceiveCommitsMetrics metrics;
   private final NotesMigration notesMigration;
   private final PatchSetInfoFactory patchSetInfoFactory;
   private final PatchSetUtil psUtil;
@@ -415,6 +419,7 @@ class ReceiveCommits {
       DynamicMap<ProjectConfigEntry> pluginConfigEntries,
       DynamicSet<ReceivePackInitializer> initializers,
       MergedByPushOp.Factory mergedByPushOpFactory,
+      ReceiveCommitsMetrics metrics,
       NotesMigration notesMigration,
       PatchSetInfoFactory patchSetInfoFactory,
       PatchSetUtil psUtil,
@@ -458,6 +463,7 @@ class ReceiveCommits {
     this.initializers = initializers;
     this.mergeOpProvider = mergeOpProvider;
     this.mergedByPushOpFactory = mergedByPushOpFactory;
+    this.metrics = metrics;
     this.notesFactory = notesFactory;
     this.notesMigration = notesMigration;
     this.optionParserFactory = optionParserFactory;
@@ -561,7 +567,7 @@ class ReceiveCommits {
     closeProgress = progress.beginSubTask("closed", UNKNOWN);
     commandProgress = progress.beginSubTask("refs", UNKNOWN);
 
-    try {
+    try (Timer1.Context ignored = metrics.phaseLatency.start(Phase.PARSE_COMMANDS)) {
       parsePushOptions();
       parseCommands(commands);
     } catch (PermissionBackendException | NoSuchProjectException | IOException err) {
@@ -572,10 +578,12 @@ class ReceiveCommits {
       }
       logError(String.format("Failed to process refs in %s", project.getName()), err);
     }
-    if (magicBranch != null && magicBranch.cmd.getResult() == NOT_ATTEMPTED) {
-      selectNewAndReplacedChangesFromMagicBranch();
+    try (Timer1.Context ignored = metrics.phaseLatency.start(Phase.VALIDATE)) {
+      if (magicBranch != null && magicBranch.cmd.getResult() == NOT_ATTEMPTED) {
+        selectNewAndReplacedChangesFromMagicBranch();
+      }
+      preparePatchSetsForReplace();
     }
-    preparePatchSetsForReplace();
     insertChangesAndPatchSets();
     newProgress.end();
     replaceProgress.end();
@@ -589,6 +597,7 @@ class ReceiveCommits {
       rp.sendMessage(COMMAND_REJECTION_MESSAGE_FOOTER);
     }
 
+    Timer1.Context postUpdateTimer = metrics.phaseLatency.start(Phase.POST_UPDATE);
     Set<Branch.NameKey> branches = new HashSet<>();
     for (ReceiveCommand c : actualCommands) {
       // Most post-update steps should happen in UpdateOneRefOp#postUpdate. The only steps that
@@ -625,6 +634,7 @@ class ReceiveCommits {
 
     // Update account info with details discovered during commit walking.
     updateAccountInfo();
+    postUpdateTimer.stop();
 
     closeProgress.end();
     commandProgress.end();
@@ -728,7 +738,8 @@ class ReceiveCommits {
                 db, project.getNameKey(), user.materializedCopy(), TimeUtil.nowTs());
         ObjectInserter ins = repo.newObjectInserter();
         ObjectReader reader = ins.newReader();
-        RevWalk rw = new RevWalk(reader)) {
+        RevWalk rw = new RevWalk(reader);
+        PhaseTimingListener timing = new PhaseTimingListener()) {
       bu.setRepository(repo, rw, ins).updateChangesInParallel();
       bu.setRequestId(receiveId);
       bu.setRefLogMessage("push");
@@ -751,7 +762,7 @@ class ReceiveCommits {
 
       logDebug("Executing batch");
       try {
-        bu.execute();
+        bu.execute(timing);
       } catch (UpdateException e) {
         throw INSERT_EXCEPTION.apply(e);
       }
@@ -797,6 +808,22 @@ class ReceiveCommits {
     }
   }
 
+  /** Splits the time spent executing a batch update into inserting and reindexing changes. */
+  private class PhaseTimingListener implements BatchUpdateListener, AutoCloseable {
+    private Timer1.Context current = metrics.phaseLatency.start(Phase.INSERT_CHANGES);
+
+    @Override
+    public void afterUpdateChanges() {
+      current.close();
+      current = metrics.phaseLatency.start(Phase.INDEX);
+    }
+
+    @Override
+    public void close() {
+      current.close();
+    }
+  }
+
   private String buildError(ReceiveError error, List<String> branches) {
     StringBuilder sb = new StringBuilder();
     if (branches.size() == 1) {
@@ -0,0 +1,57 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.git.receive;
+
+import com.google.gerrit.metrics.Description;
+import com.google.gerrit.metrics.Description.Units;
+import com.google.gerrit.metrics.Field;
+import com.google.gerrit.metrics.MetricMaker;
+import com.google.gerrit.metrics.Timer1;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+/** Timers for the phases of processing a push. */
+@Singleton
+class ReceiveCommitsMetrics {
+  enum Phase {
+    /** Waiting for a thread of the receive-commits executor. */
+    QUEUE,
+    /** Parsing push options and commands, including permission checks. */
+    PARSE_COMMANDS,
+    /** Selecting new and replaced changes and validating their commits. */
+    VALIDATE,
+    /** Updating refs and inserting changes and patch sets. */
+    INSERT_CHANGES,
+    /** Waiting for reindexing and running post-update steps of the inserted changes. */
+    INDEX,
+    /** Auto-closing changes, updating superprojects and account info. */
+    POST_UPDATE,
+    /** Running post-receive hooks. */
+    HOOKS;
+  }
+
+  final Timer1<Phase> phaseLatency;
+
+  @Inject
+  ReceiveCommitsMetrics(MetricMaker metricMaker) {
+    phaseLatency =
+        metricMaker.newTimer(
+            "receivecommits/phase_latency",
+            new Description("Time spent in the phases of processing a push")
+                .setCumulative()
+                .setUnit(Units.MILLISECONDS),
+            Field.ofEnum(Phase.class, "phase"));
+  }
+}
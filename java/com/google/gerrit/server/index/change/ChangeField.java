@@ -58,7 +58,6 @@ import com.google.gerrit.server.mail.Address;
 import com.google.gerrit.server.notedb.ChangeNotes;
 import com.google.gerrit.server.notedb.NoteDbChangeState.PrimaryStorage;
 import com.google.gerrit.server.notedb.ReviewerStateInternal;
-import com.google.gerrit.server.notedb.RobotCommentNotes;
 import com.google.gerrit.server.project.SubmitRuleOptions;
 import com.google.gerrit.server.query.change.ChangeData;
 import com.google.gerrit.server.query.change.ChangeQueryBuilder;
@@ -150,16 +149,18 @@ public class ChangeField {
   public static final FieldDef<ChangeData, Iterable<String>> PATH =
       // Named for backwards compatibility.
       exact(ChangeQueryBuilder.FIELD_FILE)
-          .buildRepeatable(cd -> firstNonNull(cd.currentFilePaths(), ImmutableList.of()));
+          .buildRepeatable(
+              cd -> firstNonNull(cd.currentFilePathsFromDiffSummary(), ImmutableList.of()));
 
   public static Set<String> getFileParts(ChangeData cd) throws OrmException {
-    List<String> paths;
     try {
-      paths = cd.currentFilePaths();
+      return getFileParts(cd.currentFilePaths());
     } catch (IOException e) {
       throw new OrmException(e);
     }
+  }
 
+  private static Set<String> getFileParts(List<String> paths) {
     Splitter s = Splitter.on('/').omitEmptyStrings();
     Set<String> r = new HashSet<>();
     for (String path : paths) {
@@ -183,7 +184,8 @@ public class ChangeField {
 
   /** Components of each file path modified in the current patch set. */
   public static final FieldDef<ChangeData, Iterable<String>> FILE_PART =
-      exact(ChangeQueryBuilder.FIELD_FILEPART).buildRepeatable(ChangeField::getFileParts);
+      exact(ChangeQueryBuilder.FIELD_FILEPART)
+          .buildRepeatable(cd -> getFileParts(cd.currentFilePathsFromDiffSummary()));
 
   /** Owner/creator of the change. */
   public static final FieldDef<ChangeData, Integer> OWNER =
@@ -812,10 +814,10 @@ public class ChangeField {
                   ChangeNotes notes = cd.notes();
                   result.add(
                       RefState.create(notes.getRefName(), notes.getMetaId()).toByteArray(project));
-                  notes.getRobotComments(); // Force loading robot comments.
-                  RobotCommentNotes robotNotes = notes.getRobotCommentNotes();
                   result.add(
-                      RefState.create(robotNotes.getRefName(), robotNotes.getMetaId())
+                      RefState.create(
+                              RefNames.robotCommentsRef(notes.getChangeId()),
+                              notes.getRobotCommentsMetaId())
                           .toByteArray(project));
                   cd.draftRefs()
                       .values()
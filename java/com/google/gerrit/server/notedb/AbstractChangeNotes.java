@@ -139,9 +139,40 @@ public abstract class AbstractChangeNotes<T> {
   }
 
   public T load() throws OrmException {
-    if (loaded) {
+    if (!prepareLoad()) {
+      return self();
+    }
+    try (Timer1.Context timer = args.metrics.readLatency.start(CHANGES);
+        Repository repo = args.repoManager.openRepository(getProjectName())) {
+      loadFrom(repo);
+    } catch (ConfigInvalidException | IOException e) {
+      throw new OrmException(e);
+    }
+    return self();
+  }
+
+  /**
+   * Load from a repository that was already opened by the caller.
+   *
+   * @param repo open repository of {@link #getProjectName()}; not closed by this method.
+   */
+  T load(Repository repo) throws OrmException {
+    if (!prepareLoad()) {
       return self();
     }
+    try (Timer1.Context timer = args.metrics.readLatency.start(CHANGES)) {
+      loadFrom(repo);
+    } catch (ConfigInvalidException | IOException e) {
+      throw new OrmException(e);
+    }
+    return self();
+  }
+
+  /** @return whether the repository needs to be opened to finish loading. */
+  private boolean prepareLoad() throws OrmException {
+    if (loaded) {
+      return false;
+    }
     boolean read = args.migration.readChanges();
     if (!read && primaryStorage == PrimaryStorage.NOTE_DB) {
       throw new OrmException("NoteDb is required to read change " + changeId);
@@ -152,27 +183,27 @@ public abstract class AbstractChangeNotes<T> {
       // there is some garbage in the noteDbState field and/or the repo, but at this point NoteDb is
       // completely off so it's none of our business.
       loadDefaults();
-      return self();
+      return false;
     }
     if (args.migration.failOnLoadForTest()) {
       throw new OrmException("Reading from NoteDb is disabled");
     }
-    try (Timer1.Context timer = args.metrics.readLatency.start(CHANGES);
-        Repository repo = args.repoManager.openRepository(getProjectName());
-        // Call openHandle even if reading is disabled, to trigger
-        // auto-rebuilding before this object may get passed to a ChangeUpdate.
-        LoadHandle handle = openHandle(repo)) {
-      if (read) {
+    return true;
+  }
+
+  private void loadFrom(Repository repo)
+      throws NoSuchChangeException, ConfigInvalidException, IOException {
+    // Call openHandle even if reading is disabled, to trigger
+    // auto-rebuilding before this object may get passed to a ChangeUpdate.
+    try (LoadHandle handle = openHandle(repo)) {
+      if (args.migration.readChanges()) {
         revision = handle.id();
         onLoad(handle);
       } else {
         loadDefaults();
       }
       loaded = true;
-    } catch (ConfigInvalidException | IOException e) {
-      throw new OrmException(e);
     }
-    return self();
   }
 
   protected ObjectId readRef(Repository repo) throws IOException {
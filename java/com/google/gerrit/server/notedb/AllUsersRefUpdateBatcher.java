@@ -0,0 +1,332 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.notedb;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.google.gerrit.common.Nullable;
+import com.google.gerrit.metrics.Description;
+import com.google.gerrit.metrics.Description.Units;
+import com.google.gerrit.metrics.Histogram0;
+import com.google.gerrit.metrics.MetricMaker;
+import com.google.gerrit.metrics.Timer0;
+import com.google.gerrit.server.GerritPersonIdent;
+import com.google.gerrit.server.config.AllUsersName;
+import com.google.gerrit.server.config.ConfigUtil;
+import com.google.gerrit.server.config.GerritServerConfig;
+import com.google.gerrit.server.git.GitRepositoryManager;
+import com.google.gerrit.server.git.LockFailureException;
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.eclipse.jgit.lib.BatchRefUpdate;
+import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.transport.ReceiveCommand;
+
+/**
+ * Coalesces concurrent ref updates in the {@code All-Users} repository into one {@link
+ * BatchRefUpdate}.
+ *
+ * <p>Updates of draft comment and star refs are small and frequent. Instead of updating each ref on
+ * its own, callers hand their commands to this class and wait. While a batch is executed, further
+ * commands are queued; the next batch then contains all of them. Optionally, the first caller waits
+ * for {@code noteDb.allUsers.coalesceWindow} before executing, to give concurrent callers the
+ * chance to join the batch.
+ *
+ * <p>Batches are not atomic: each command is applied with its own compare-and-swap on the old
+ * value, so that a lock failure of one caller doesn't fail the commands of others. Commands of
+ * different callers that update the same ref are never part of the same batch.
+ */
+@Singleton
+public class AllUsersRefUpdateBatcher {
+  private static final int MAX_BATCH_COMMANDS = 1000;
+
+  @Singleton
+  static class Metrics {
+    final Histogram0 batchSize;
+    final Timer0 waitLatency;
+
+    @Inject
+    Metrics(MetricMaker metricMaker) {
+      batchSize =
+          metricMaker.newHistogram(
+              "notedb/all_users_batch_size",
+              new Description("Number of callers whose All-Users ref updates were coalesced")
+                  .setCumulative()
+                  .setUnit("updates"));
+      waitLatency =
+          metricMaker.newTimer(
+              "notedb/all_users_batch_wait_latency",
+              new Description("Time All-Users ref updates waited before their batch was executed")
+                  .setCumulative()
+                  .setUnit(Units.MILLISECONDS));
+    }
+  }
+
+  private static class Request {
+    final ImmutableList<ReceiveCommand> cmds;
+    @Nullable final PersonIdent refLogIdent;
+    @Nullable final String refLogMessage;
+    final long submitted = System.nanoTime();
+
+    boolean done;
+    IOException error;
+
+    Request(
+        Collection<ReceiveCommand> cmds,
+        @Nullable PersonIdent refLogIdent,
+        @Nullable String refLogMessage) {
+      this.cmds = ImmutableList.copyOf(cmds);
+      this.refLogIdent = refLogIdent;
+      this.refLogMessage = refLogMessage;
+    }
+
+    /** Requests with the same key can share a {@link BatchRefUpdate} and its reflog ident. */
+    @Nullable
+    String identKey() {
+      return refLogIdent != null
+          ? refLogIdent.getName() + " <" + refLogIdent.getEmailAddress() + ">"
+          : null;
+    }
+  }
+
+  private final GitRepositoryManager repoManager;
+  private final AllUsersName allUsers;
+  private final Provider<PersonIdent> serverIdent;
+  private final Metrics metrics;
+  private final boolean enabled;
+  private final long windowMillis;
+
+  // Protects pending and running.
+  private final Object lock = new Object();
+  private final List<Request> pending = new ArrayList<>();
+  private boolean running;
+
+  @Inject
+  AllUsersRefUpdateBatcher(
+      GitRepositoryManager repoManager,
+      AllUsersName allUsers,
+      @GerritPersonIdent Provider<PersonIdent> serverIdent,
+      Metrics metrics,
+      @GerritServerConfig Config cfg) {
+    this(
+        repoManager,
+        allUsers,
+        serverIdent,
+        metrics,
+        cfg.getBoolean("noteDb", "allUsers", "coalesceRefUpdates", false),
+        ConfigUtil.getTimeUnit(cfg, "noteDb", "allUsers", "coalesceWindow", 0, MILLISECONDS));
+  }
+
+  @VisibleForTesting
+  AllUsersRefUpdateBatcher(
+      GitRepositoryManager repoManager,
+      AllUsersName allUsers,
+      Provider<PersonIdent> serverIdent,
+      Metrics metrics,
+      boolean enabled,
+      long windowMillis) {
+    this.repoManager = repoManager;
+    this.allUsers = allUsers;
+    this.serverIdent = serverIdent;
+    this.metrics = metrics;
+    this.enabled = enabled;
+    this.windowMillis = windowMillis;
+  }
+
+  /** @return whether ref updates in All-Users should be executed through this batcher. */
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Execute commands as part of the next batch, and wait until the batch was executed.
+   *
+   * <p>As with {@link BatchRefUpdate#execute(RevWalk, org.eclipse.jgit.lib.ProgressMonitor)}, the
+   * result of each command is set on the command itself. All objects referenced by the commands
+   * must already be flushed to the repository.
+   *
+   * @param cmds commands to execute.
+   * @param refLogIdent reflog ident for the commands, or null to use the server identity.
+   * @param refLogMessage reflog message for the commands, or null to use a generic message.
+   * @throws IOException if the batch could not be executed.
+   */
+  public void execute(
+      Collection<ReceiveCommand> cmds,
+      @Nullable PersonIdent refLogIdent,
+      @Nullable String refLogMessage)
+      throws IOException {
+    if (cmds.isEmpty()) {
+      return;
+    }
+    Request req = new Request(cmds, refLogIdent, refLogMessage);
+    boolean interrupted = false;
+    try {
+      synchronized (lock) {
+        pending.add(req);
+      }
+      while (true) {
+        synchronized (lock) {
+          while (!req.done && running) {
+            try {
+              lock.wait();
+            } catch (InterruptedException e) {
+              // The command may already be part of a running batch, so keep waiting.
+              interrupted = true;
+            }
+          }
+          if (req.done) {
+            break;
+          }
+          running = true;
+        }
+        runBatch();
+      }
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    if (req.error != null) {
+      throw new IOException("Update of " + allUsers + " failed", req.error);
+    }
+  }
+
+  /**
+   * Execute commands as part of the next batch, throwing a checked exception if not all commands
+   * succeeded.
+   *
+   * @param cmds commands to execute.
+   * @param refLogIdent reflog ident for the commands, or null to use the server identity.
+   * @param refLogMessage reflog message for the commands, or null to use a generic message.
+   * @throws LockFailureException if all commands failed with {@code LOCK_FAILURE}.
+   * @throws IOException if any command was not successful.
+   */
+  public void executeChecked(
+      Collection<ReceiveCommand> cmds,
+      @Nullable PersonIdent refLogIdent,
+      @Nullable String refLogMessage)
+      throws IOException {
+    execute(cmds, refLogIdent, refLogMessage);
+    int lockFailure = 0;
+    int failure = 0;
+    for (ReceiveCommand cmd : cmds) {
+      if (cmd.getResult() != ReceiveCommand.Result.OK) {
+        failure++;
+      }
+      if (cmd.getResult() == ReceiveCommand.Result.LOCK_FAILURE) {
+        lockFailure++;
+      }
+    }
+    if (lockFailure == cmds.size()) {
+      throw new LockFailureException("Update failed with lock failures: " + cmds, cmds);
+    } else if (failure > 0) {
+      throw new IOException("Update failed: " + cmds);
+    }
+  }
+
+  private void runBatch() {
+    if (windowMillis > 0) {
+      Uninterruptibles.sleepUninterruptibly(windowMillis, MILLISECONDS);
+    }
+    List<Request> batch = new ArrayList<>();
+    try {
+      synchronized (lock) {
+        Set<String> refs = new HashSet<>();
+        int size = 0;
+        for (Iterator<Request> it = pending.iterator(); it.hasNext(); ) {
+          Request r = it.next();
+          if (!batch.isEmpty() && size + r.cmds.size() > MAX_BATCH_COMMANDS) {
+            break;
+          }
+          if (r.cmds.stream().anyMatch(c -> refs.contains(c.getRefName()))) {
+            // Leave for the next batch, so that it sees the result of the earlier update.
+            continue;
+          }
+          r.cmds.forEach(c -> refs.add(c.getRefName()));
+          size += r.cmds.size();
+          batch.add(r);
+          it.remove();
+        }
+      }
+      execute(batch);
+    } finally {
+      synchronized (lock) {
+        for (Request r : batch) {
+          r.done = true;
+        }
+        running = false;
+        lock.notifyAll();
+      }
+    }
+  }
+
+  private void execute(List<Request> batch) {
+    long now = System.nanoTime();
+    for (Request r : batch) {
+      metrics.waitLatency.record(now - r.submitted, NANOSECONDS);
+    }
+    metrics.batchSize.record(batch.size());
+
+    // A BatchRefUpdate has a single reflog ident, so requests on behalf of different users are
+    // executed as separate batch updates.
+    Map<String, List<Request>> byIdent = new LinkedHashMap<>();
+    for (Request r : batch) {
+      byIdent.computeIfAbsent(r.identKey(), k -> new ArrayList<>()).add(r);
+    }
+    try (Repository repo = repoManager.openRepository(allUsers);
+        RevWalk rw = new RevWalk(repo)) {
+      for (List<Request> requests : byIdent.values()) {
+        PersonIdent refLogIdent = requests.get(0).refLogIdent;
+        BatchRefUpdate bru = repo.getRefDatabase().newBatchUpdate();
+        bru.setAtomic(false);
+        bru.setAllowNonFastForwards(true);
+        bru.setRefLogIdent(refLogIdent != null ? refLogIdent : serverIdent.get());
+        bru.setRefLogMessage("Update " + allUsers, false);
+        for (Request r : requests) {
+          for (ReceiveCommand cmd : r.cmds) {
+            if (r.refLogMessage != null) {
+              cmd.setRefLogMessage(r.refLogMessage, false);
+            }
+            bru.addCommand(cmd);
+          }
+        }
+        bru.execute(rw, NullProgressMonitor.INSTANCE);
+      }
+    } catch (IOException | RuntimeException e) {
+      IOException err = e instanceof IOException ? (IOException) e : new IOException(e);
+      for (Request r : batch) {
+        r.error = err;
+      }
+    }
+  }
+}
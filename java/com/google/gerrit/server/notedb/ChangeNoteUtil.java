@@ -118,6 +118,7 @@ public class ChangeNoteUtil {
   private final String serverId;
   private final Gson gson = newGson();
   private final boolean writeJson;
+  private final boolean writeCompactComments;
 
   @Inject
   public ChangeNoteUtil(
@@ -129,6 +130,7 @@ public class ChangeNoteUtil {
     this.serverIdent = serverIdent;
     this.serverId = serverId;
     this.writeJson = config.getBoolean("notedb", "writeJson", true);
+    this.writeCompactComments = config.getBoolean("notedb", "writeCompactComments", false);
   }
 
   public PersonIdent newIdent(Account.Id authorId, Date when, PersonIdent serverIdent) {
@@ -150,6 +152,11 @@ public class ChangeNoteUtil {
     return writeJson;
   }
 
+  /** @return whether JSON comment notes are written in the compact binary format. */
+  public boolean getWriteCompactComments() {
+    return writeCompactComments;
+  }
+
   public Gson getGson() {
     return gson;
   }
@@ -20,6 +20,7 @@ import static com.google.common.base.Preconditions.checkState;
 import static com.google.gerrit.reviewdb.client.RefNames.changeMetaRef;
 import static com.google.gerrit.server.notedb.NoteDbTable.CHANGES;
 import static java.util.Comparator.comparing;
+import static java.util.stream.Collectors.toSet;
 
 import com.google.auto.value.AutoValue;
 import com.google.common.annotations.VisibleForTesting;
@@ -36,6 +37,7 @@ import com.google.common.collect.Ordering;
 import com.google.common.collect.Sets;
 import com.google.common.collect.Sets.SetView;
 import com.google.common.collect.Streams;
+import com.google.common.util.concurrent.Futures;
 import com.google.gerrit.common.Nullable;
 import com.google.gerrit.common.data.SubmitRecord;
 import com.google.gerrit.metrics.Timer1;
@@ -52,10 +54,12 @@ import com.google.gerrit.reviewdb.client.RevId;
 import com.google.gerrit.reviewdb.client.RobotComment;
 import com.google.gerrit.reviewdb.server.ReviewDb;
 import com.google.gerrit.reviewdb.server.ReviewDbUtil;
+import com.google.gerrit.server.FanOutExecutor;
 import com.google.gerrit.server.ReviewerByEmailSet;
 import com.google.gerrit.server.ReviewerSet;
 import com.google.gerrit.server.ReviewerStatusUpdate;
 import com.google.gerrit.server.git.RefCache;
+import com.google.gerrit.server.git.RefSnapshot;
 import com.google.gerrit.server.git.RepoRefCache;
 import com.google.gerrit.server.notedb.NoteDbChangeState.PrimaryStorage;
 import com.google.gerrit.server.notedb.rebuild.ChangeRebuilder;
@@ -64,19 +68,28 @@ import com.google.gerrit.server.project.ProjectCache;
 import com.google.gerrit.server.query.change.ChangeData;
 import com.google.gerrit.server.query.change.InternalChangeQuery;
 import com.google.gwtorm.server.OrmException;
+import com.google.gwtorm.server.SchemaFactory;
 import com.google.inject.Inject;
 import com.google.inject.Provider;
 import com.google.inject.Singleton;
 import java.io.IOException;
 import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.IntConsumer;
 import java.util.function.Predicate;
 import java.util.stream.Stream;
 import org.eclipse.jgit.errors.ConfigInvalidException;
@@ -108,10 +121,18 @@ public class ChangeNotes extends AbstractChangeNotes<ChangeNotes> {
 
   @Singleton
   public static class Factory {
+    /** Number of threads, including the calling thread, that parse notes in a bulk load. */
+    private static final int BULK_LOAD_THREADS = 4;
+
+    /** Minimum number of changes in a bulk load for parsing notes in parallel. */
+    private static final int BULK_LOAD_PARALLEL_THRESHOLD = 8;
+
     private final Args args;
     private final Provider<InternalChangeQuery> queryProvider;
     private final ProjectCache projectCache;
 
+    private ExecutorService bulkLoadExecutor;
+
     @VisibleForTesting
     @Inject
     public Factory(
@@ -121,6 +142,11 @@ public class ChangeNotes extends AbstractChangeNotes<ChangeNotes> {
       this.projectCache = projectCache;
     }
 
+    @Inject(optional = true)
+    void setBulkLoadExecutor(@FanOutExecutor ExecutorService executor) {
+      this.bulkLoadExecutor = executor;
+    }
+
     public ChangeNotes createChecked(ReviewDb db, Change c) throws OrmException {
       return createChecked(db, c.getProject(), c.getId());
     }
@@ -229,11 +255,39 @@ public class ChangeNotes extends AbstractChangeNotes<ChangeNotes> {
         throws OrmException {
       List<ChangeNotes> notes = new ArrayList<>();
       if (args.migration.readChanges()) {
+        ListMultimap<Change.Id, ChangeData> byId =
+            MultimapBuilder.hashKeys().arrayListValues().build();
+        for (ChangeData cd : queryProvider.get().noFields().byLegacyChangeIds(changeIds)) {
+          byId.put(cd.getId(), cd);
+        }
+        ListMultimap<Project.NameKey, Change.Id> byProject =
+            MultimapBuilder.hashKeys().arrayListValues().build();
+        for (Change.Id changeId : byId.keySet()) {
+          List<ChangeData> changes = byId.get(changeId);
+          if (changes.size() != 1) {
+            log.error(String.format("Multiple changes found for %d", changeId.get()));
+            continue;
+          }
+          byProject.put(changes.get(0).project(), changeId);
+        }
+
+        Map<Change.Id, ChangeNotes> loaded = new HashMap<>();
+        for (Project.NameKey project : byProject.keySet()) {
+          for (ChangeNotesResult r : createBulk(db, project, byProject.get(project))) {
+            if (r.error().isPresent()) {
+              if (r.error().get() instanceof NoSuchChangeException) {
+                // Ignore missing changes to match Access#get(Iterable) behavior.
+                continue;
+              }
+              throw r.error().get();
+            }
+            loaded.put(r.id(), r.notes());
+          }
+        }
         for (Change.Id changeId : changeIds) {
-          try {
-            notes.add(createChecked(changeId));
-          } catch (NoSuchChangeException e) {
-            // Ignore missing changes to match Access#get(Iterable) behavior.
+          ChangeNotes n = loaded.get(changeId);
+          if (n != null) {
+            notes.add(n);
           }
         }
         return notes;
@@ -253,16 +307,18 @@ public class ChangeNotes extends AbstractChangeNotes<ChangeNotes> {
         throws OrmException {
       List<ChangeNotes> notes = new ArrayList<>();
       if (args.migration.readChanges()) {
-        for (Change.Id cid : changeIds) {
-          try {
-            ChangeNotes cn = create(db, project, cid);
-            if (cn.getChange() != null && predicate.test(cn)) {
-              notes.add(cn);
+        for (ChangeNotesResult r : createBulk(db, project, changeIds)) {
+          if (r.error().isPresent()) {
+            if (r.error().get() instanceof NoSuchChangeException) {
+              // Match ReviewDb behavior, returning not found; maybe the caller learned about it
+              // from a dangling patch set ref or something.
+              continue;
             }
-          } catch (NoSuchChangeException e) {
-            // Match ReviewDb behavior, returning not found; maybe the caller learned about it from
-            // a dangling patch set ref or something.
-            continue;
+            throw r.error().get();
+          }
+          ChangeNotes cn = r.notes();
+          if (cn.getChange() != null && predicate.test(cn)) {
+            notes.add(cn);
           }
         }
         return notes;
@@ -279,6 +335,143 @@ public class ChangeNotes extends AbstractChangeNotes<ChangeNotes> {
       return notes;
     }
 
+    /**
+     * Load the notes of several changes in the same project.
+     *
+     * <p>Unlike calling {@link #create(ReviewDb, Project.NameKey, Change.Id)} for each change, the
+     * repository is opened once and all meta refs are read with a single ref database lookup, or
+     * taken from the {@link RefSnapshot} of the current request. When ReviewDb is disabled for
+     * changes, notes of larger batches are parsed in parallel.
+     *
+     * @param db review database.
+     * @param project project of all changes.
+     * @param changeIds changes to load.
+     * @return one result per distinct change, in the order of {@code changeIds}.
+     * @throws OrmException if the repository could not be read.
+     */
+    public List<ChangeNotesResult> createBulk(
+        ReviewDb db, Project.NameKey project, Collection<Change.Id> changeIds)
+        throws OrmException {
+      ImmutableSet<Change.Id> ids = ImmutableSet.copyOf(changeIds);
+      if (!args.migration.readChanges()) {
+        List<ChangeNotesResult> results = new ArrayList<>(ids.size());
+        for (Change.Id id : ids) {
+          try {
+            results.add(ChangeNotesResult.notes(create(db, project, id)));
+          } catch (OrmException e) {
+            results.add(ChangeNotesResult.error(id, e));
+          }
+        }
+        return results;
+      }
+
+      try (Repository repo = args.repoManager.openRepository(project)) {
+        RefCache refs = readMetaRefs(repo, ids);
+        ChangeNotesResult[] results = new ChangeNotesResult[ids.size()];
+        List<Integer> toLoad = new ArrayList<>(ids.size());
+        List<ChangeNotes> notes = new ArrayList<>(ids.size());
+        int i = 0;
+        for (Change.Id id : ids) {
+          try {
+            // Without ReviewDb, changes are only read from NoteDb; skip the lookup per change.
+            Change change =
+                args.migration.disableChangeReviewDb()
+                    ? newNoteDbOnlyChange(project, id)
+                    : loadChangeFromDb(db, project, id);
+            notes.add(new ChangeNotes(args, change, true, true, refs));
+            toLoad.add(i);
+          } catch (OrmException e) {
+            results[i] = ChangeNotesResult.error(id, e);
+          }
+          i++;
+        }
+
+        // Auto-rebuilding reads the request-scoped ReviewDb, so only load in parallel if it can't
+        // happen.
+        boolean parallel =
+            args.migration.disableChangeReviewDb()
+                && notes.size() >= BULK_LOAD_PARALLEL_THRESHOLD;
+        runShared(
+            bulkLoadExecutor,
+            parallel ? BULK_LOAD_THREADS : 1,
+            notes.size(),
+            n -> results[toLoad.get(n)] = loadFrom(repo, notes.get(n)));
+        return Arrays.asList(results);
+      } catch (IOException e) {
+        throw new OrmException(e);
+      }
+    }
+
+    private ChangeNotesResult loadFrom(Repository repo, ChangeNotes notes) {
+      try {
+        return ChangeNotesResult.notes(notes.load(repo));
+      } catch (OrmException e) {
+        return ChangeNotesResult.error(notes.getChangeId(), e);
+      } catch (RuntimeException e) {
+        return ChangeNotesResult.error(notes.getChangeId(), new OrmException(e));
+      }
+    }
+
+    /**
+     * Run {@code task} for each index in {@code [0, count)} on up to {@code threads} threads, one
+     * of which is the calling thread.
+     *
+     * <p>The calling thread takes part in the work and only waits for tasks that already started,
+     * so a busy executor, or one that runs this very call, can't stall it.
+     */
+    private static void runShared(
+        @Nullable ExecutorService executor, int threads, int count, IntConsumer task) {
+      AtomicInteger next = new AtomicInteger();
+      Runnable worker =
+          () -> {
+            int i;
+            while ((i = next.getAndIncrement()) < count) {
+              task.accept(i);
+            }
+          };
+      List<Future<?>> helpers = new ArrayList<>();
+      if (executor != null) {
+        try {
+          for (int t = 1; t < Math.min(threads, count); t++) {
+            helpers.add(executor.submit(worker));
+          }
+        } catch (RejectedExecutionException e) {
+          // Do the remaining work in this thread.
+        }
+      }
+      try {
+        worker.run();
+      } finally {
+        next.set(count);
+        for (Future<?> h : helpers) {
+          if (!h.cancel(false)) {
+            Futures.getUnchecked(h);
+          }
+        }
+      }
+    }
+
+    private static RefCache readMetaRefs(Repository repo, Set<Change.Id> ids) throws IOException {
+      Optional<RefSnapshot> snapshot = RefSnapshot.current(repo);
+      if (snapshot.isPresent()) {
+        return snapshot.get();
+      }
+      Set<String> names = ids.stream().map(RefNames::changeMetaRef).collect(toSet());
+      Map<String, ObjectId> metaIds = new HashMap<>();
+      for (Ref r : repo.getRefDatabase().exactRef(names.toArray(new String[0])).values()) {
+        if (r.getObjectId() != null) {
+          metaIds.put(r.getName(), r.getObjectId());
+        }
+      }
+      // Only read by the loading threads after this method returned, so it's safe to share.
+      return refName -> {
+        if (names.contains(refName)) {
+          return Optional.ofNullable(metaIds.get(refName));
+        }
+        return Optional.ofNullable(repo.exactRef(refName)).map(Ref::getObjectId);
+      };
+    }
+
     public ListMultimap<Project.NameKey, ChangeNotes> create(
         ReviewDb db, Predicate<ChangeNotes> predicate) throws IOException, OrmException {
       ListMultimap<Project.NameKey, ChangeNotes> m =
@@ -309,6 +502,63 @@ public class ChangeNotes extends AbstractChangeNotes<ChangeNotes> {
       return args.migration.readChanges() ? scanNoteDb(repo, db, project) : scanReviewDb(repo, db);
     }
 
+    /**
+     * Scan all changes of a project like {@link #scan(Repository, ReviewDb, Project.NameKey)}, but
+     * process the changes of different {@code refs/changes/NN} shards concurrently.
+     *
+     * <p>Shards are handed out one at a time to the calling thread and up to {@code threads - 1}
+     * tasks on {@code executor}, so at most {@code threads} shards are in flight and no results are
+     * buffered. Each thread reads changes with its own database connection. If NoteDb is not read,
+     * changes are scanned sequentially.
+     *
+     * @param repo open repository of the project.
+     * @param schemaFactory factory to open database connections.
+     * @param project project to scan.
+     * @param executor executor to run additional scan tasks, or null to only use the calling
+     *     thread.
+     * @param threads maximum number of threads to scan with, including the calling thread.
+     * @param consumer called with the database connection that was used to read a change, or null
+     *     if no connection could be opened, and the result; called concurrently from different
+     *     threads.
+     */
+    public void scanInParallel(
+        Repository repo,
+        SchemaFactory<ReviewDb> schemaFactory,
+        Project.NameKey project,
+        @Nullable ExecutorService executor,
+        int threads,
+        BiConsumer<ReviewDb, ChangeNotesResult> consumer)
+        throws IOException, OrmException {
+      if (!args.migration.readChanges()) {
+        try (ReviewDb db = schemaFactory.open()) {
+          scanReviewDb(repo, db).forEach(r -> consumer.accept(db, r));
+        }
+        return;
+      }
+
+      ScanResult sr = scanChangeIds(repo);
+      PrimaryStorage defaultStorage = args.migration.changePrimaryStorage();
+      ImmutableList<Collection<Change.Id>> shards =
+          ImmutableList.copyOf(Multimaps.index(sr.all(), id -> id.get() % 100).asMap().values());
+      runShared(
+          executor,
+          threads,
+          shards.size(),
+          i -> {
+            try (ReviewDb db = schemaFactory.open()) {
+              for (Change.Id id : shards.get(i)) {
+                ChangeNotesResult r =
+                    scanOneNoteDbChange(repo, db, project, sr, defaultStorage, id);
+                if (r != null) {
+                  consumer.accept(db, r);
+                }
+              }
+            } catch (OrmException e) {
+              shards.get(i).forEach(id -> consumer.accept(null, ChangeNotesResult.error(id, e)));
+            }
+          });
+    }
+
     private Stream<ChangeNotesResult> scanReviewDb(Repository repo, ReviewDb db)
         throws IOException {
       // Scan IDs that might exist in ReviewDb, assuming that each change has at least one patch set
@@ -323,7 +573,7 @@ public class ChangeNotes extends AbstractChangeNotes<ChangeNotes> {
               batch -> {
                 try {
                   return Streams.stream(ReviewDbUtil.unwrapDb(db).changes().get(batch))
-                      .map(this::toResult)
+                      .map(c -> toResult(null, c))
                       .filter(Objects::nonNull);
                 } catch (OrmException e) {
                   // Return this error for each Id in the input batch.
@@ -339,11 +589,12 @@ public class ChangeNotes extends AbstractChangeNotes<ChangeNotes> {
 
       return sr.all()
           .stream()
-          .map(id -> scanOneNoteDbChange(db, project, sr, defaultStorage, id))
+          .map(id -> scanOneNoteDbChange(repo, db, project, sr, defaultStorage, id))
           .filter(Objects::nonNull);
     }
 
     private ChangeNotesResult scanOneNoteDbChange(
+        Repository repo,
         ReviewDb db,
         Project.NameKey project,
         ScanResult sr,
@@ -351,7 +602,8 @@ public class ChangeNotes extends AbstractChangeNotes<ChangeNotes> {
         Change.Id id) {
       Change change;
       try {
-        change = readOneReviewDbChange(db, id);
+        // Without ReviewDb, changes are only read from NoteDb; skip the lookup per change.
+        change = args.migration.disableChangeReviewDb() ? null : readOneReviewDbChange(db, id);
       } catch (OrmException e) {
         return ChangeNotesResult.error(id, e);
       }
@@ -379,14 +631,20 @@ public class ChangeNotes extends AbstractChangeNotes<ChangeNotes> {
         return null;
       }
       log.debug("adding change {} found in project {}", id, project);
-      return toResult(change);
+      return toResult(repo, change);
     }
 
     @Nullable
-    private ChangeNotesResult toResult(Change rawChangeFromReviewDbOrNoteDb) {
+    private ChangeNotesResult toResult(
+        @Nullable Repository repo, Change rawChangeFromReviewDbOrNoteDb) {
       ChangeNotes n = new ChangeNotes(args, rawChangeFromReviewDbOrNoteDb);
       try {
-        n.load();
+        if (repo != null) {
+          // The repository of the project that was scanned, which the change was checked to be in.
+          n.load(repo);
+        } else {
+          n.load();
+        }
       } catch (OrmException e) {
         return ChangeNotesResult.error(n.getChangeId(), e);
       }
@@ -609,6 +867,23 @@ public class ChangeNotes extends AbstractChangeNotes<ChangeNotes> {
     return robotCommentNotes.getComments();
   }
 
+  /**
+   * @return ID of the robot comments ref, or null if there are no robot comments. Unlike {@link
+   *     #getRobotComments()}, this doesn't load the robot comments.
+   */
+  @Nullable
+  public ObjectId getRobotCommentsMetaId() throws OrmException {
+    if (robotCommentNotes != null) {
+      return robotCommentNotes.getMetaId();
+    }
+    try (Repository repo = args.repoManager.openRepository(getProjectName())) {
+      Ref ref = repo.exactRef(RefNames.robotCommentsRef(getChangeId()));
+      return ref != null ? ref.getObjectId() : null;
+    } catch (IOException e) {
+      throw new OrmException("Failed to read robot comments ref of change " + getChangeId(), e);
+    }
+  }
+
   /**
    * If draft comments have already been loaded for this author, then they will not be reloaded.
    * However, this method will load the comments if no draft comments have been loaded or if the
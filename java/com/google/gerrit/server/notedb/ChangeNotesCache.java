@@ -14,9 +14,12 @@
 
 package com.google.gerrit.server.notedb;
 
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
 import com.google.auto.value.AutoValue;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.Table;
 import com.google.gerrit.common.Nullable;
 import com.google.gerrit.reviewdb.client.Change;
@@ -25,33 +28,49 @@ import com.google.gerrit.reviewdb.client.RefNames;
 import com.google.gerrit.server.ReviewerByEmailSet;
 import com.google.gerrit.server.ReviewerSet;
 import com.google.gerrit.server.cache.CacheModule;
+import com.google.gerrit.server.cache.CacheSerializer;
+import com.google.gerrit.server.cache.ProtoCacheSerializers;
+import com.google.gerrit.server.cache.proto.Cache.ChangeNotesKeyProto;
+import com.google.gerrit.server.config.GerritServerConfig;
 import com.google.gerrit.server.notedb.AbstractChangeNotes.Args;
 import com.google.gerrit.server.notedb.ChangeNotesCommit.ChangeNotesRevWalk;
+import com.google.gerrit.server.notedb.NoteDbMetrics.HistoryLength;
+import com.google.gerrit.server.notedb.NoteDbMetrics.LoadSource;
 import com.google.inject.Inject;
 import com.google.inject.Module;
 import com.google.inject.Singleton;
 import com.google.inject.name.Named;
+import com.google.protobuf.ByteString;
 import java.io.IOException;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import org.eclipse.jgit.errors.ConfigInvalidException;
+import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.lib.Constants;
 import org.eclipse.jgit.lib.ObjectId;
 
 @Singleton
 public class ChangeNotesCache {
   @VisibleForTesting static final String CACHE_NAME = "change_notes";
 
+  /** Number of changes for which the most recently loaded key is remembered. */
+  private static final int MAX_LATEST_KEYS = 20_000;
+
   public static Module module() {
     return new CacheModule() {
       @Override
       protected void configure() {
         bind(ChangeNotesCache.class);
-        cache(CACHE_NAME, Key.class, ChangeNotesState.class)
+        persist(CACHE_NAME, Key.class, ChangeNotesState.class)
             .weigher(Weigher.class)
-            .maximumWeight(10 << 20);
+            .maximumWeight(10 << 20)
+            .version(1)
+            .keySerializer(new Key.Serializer())
+            .valueSerializer(new ChangeNotesState.Serializer());
       }
     };
   }
@@ -63,6 +82,30 @@ public class ChangeNotesCache {
     abstract Change.Id changeId();
 
     abstract ObjectId id();
+
+    @VisibleForTesting
+    static class Serializer implements CacheSerializer<Key> {
+      @Override
+      public byte[] serialize(Key object) {
+        byte[] buf = new byte[Constants.OBJECT_ID_LENGTH];
+        object.id().copyRawTo(buf, 0);
+        return ProtoCacheSerializers.toByteArray(
+            ChangeNotesKeyProto.newBuilder()
+                .setProject(object.project().get())
+                .setChangeId(object.changeId().get())
+                .setId(ByteString.copyFrom(buf))
+                .build());
+      }
+
+      @Override
+      public Key deserialize(byte[] in) throws IOException {
+        ChangeNotesKeyProto proto = ChangeNotesKeyProto.parseFrom(in);
+        return new AutoValue_ChangeNotesCache_Key(
+            new Project.NameKey(proto.getProject()),
+            new Change.Id(proto.getChangeId()),
+            ObjectId.fromRaw(proto.getId().toByteArray()));
+      }
+    }
   }
 
   public static class Weigher implements com.google.common.cache.Weigher<Key, ChangeNotesState> {
@@ -303,6 +346,7 @@ public class ChangeNotesCache {
     private final ChangeNotesRevWalk rw;
 
     private RevisionNoteMap<ChangeRevisionNote> revisionNoteMap;
+    private boolean parsed;
 
     private Loader(Key key, ChangeNotesRevWalk rw) {
       this.key = key;
@@ -311,23 +355,76 @@ public class ChangeNotesCache {
 
     @Override
     public ChangeNotesState call() throws ConfigInvalidException, IOException {
+      parsed = true;
+      ChangeNotesState base = getIncrementalBase(key);
+      if (base != null) {
+        long start = System.nanoTime();
+        ChangeNotesParser parser =
+            new ChangeNotesParser(key.changeId(), key.id(), rw, args.noteUtil, args.metrics);
+        Optional<ChangeNotesState> result = parser.parseIncremental(base);
+        args.metrics.incrementalParseCount.increment(result.isPresent());
+        if (result.isPresent()) {
+          recordParse(parser, result.get(), LoadSource.INCREMENTAL, System.nanoTime() - start);
+          return result.get();
+        }
+      }
+
+      long start = System.nanoTime();
       ChangeNotesParser parser =
           new ChangeNotesParser(key.changeId(), key.id(), rw, args.noteUtil, args.metrics);
       ChangeNotesState result = parser.parseAll();
+      recordParse(parser, result, LoadSource.FULL, System.nanoTime() - start);
       // This assignment only happens if call() was actually called, which only
       // happens when Cache#get(K, Callable<V>) incurs a cache miss.
       revisionNoteMap = parser.getRevisionNoteMap();
       return result;
     }
+
+    private void recordParse(
+        ChangeNotesParser parser, ChangeNotesState state, LoadSource source, long elapsedNanos) {
+      NoteDbMetrics metrics = args.metrics;
+      int commits = parser.getParsedCommits();
+      long noteBytes = parser.getParsedNoteBytes();
+      metrics.changeLoadCount.increment(source);
+      metrics.parsedMetaCommits.record(commits);
+      metrics.parsedNoteBytes.record(noteBytes);
+      metrics.parsedComments.record(state.publishedComments().size());
+      if (source == LoadSource.FULL) {
+        metrics.parseLatencyByHistoryLength.record(
+            HistoryLength.of(commits), elapsedNanos, NANOSECONDS);
+      }
+      slowLoads.record(
+          key.project(),
+          key.changeId(),
+          source == LoadSource.INCREMENTAL,
+          commits,
+          noteBytes,
+          elapsedNanos);
+    }
   }
 
   private final Cache<Key, ChangeNotesState> cache;
   private final Args args;
+  private final SlowChangeLoads slowLoads;
+  private final boolean incrementalParse;
+
+  /**
+   * Most recently loaded key of each change, used to find a cached state to parse new meta commits
+   * incrementally from. May point to states that were already evicted from the cache.
+   */
+  private final Cache<Change.Id, Key> latestKeys;
 
   @Inject
-  ChangeNotesCache(@Named(CACHE_NAME) Cache<Key, ChangeNotesState> cache, Args args) {
+  ChangeNotesCache(
+      @Named(CACHE_NAME) Cache<Key, ChangeNotesState> cache,
+      Args args,
+      SlowChangeLoads slowLoads,
+      @GerritServerConfig Config cfg) {
     this.cache = cache;
     this.args = args;
+    this.slowLoads = slowLoads;
+    this.incrementalParse = cfg.getBoolean("notedb", "changes", "incrementalParse", true);
+    this.latestKeys = CacheBuilder.newBuilder().maximumSize(MAX_LATEST_KEYS).build();
   }
 
   Value get(Project.NameKey project, Change.Id changeId, ObjectId metaId, ChangeNotesRevWalk rw)
@@ -336,6 +433,10 @@ public class ChangeNotesCache {
       Key key = new AutoValue_ChangeNotesCache_Key(project, changeId, metaId.copy());
       Loader loader = new Loader(key, rw);
       ChangeNotesState s = cache.get(key, loader);
+      if (!loader.parsed) {
+        args.metrics.changeLoadCount.increment(LoadSource.CACHED);
+      }
+      latestKeys.put(changeId, key);
       return new AutoValue_ChangeNotesCache_Value(s, loader.revisionNoteMap);
     } catch (ExecutionException e) {
       throw new IOException(
@@ -345,4 +446,16 @@ public class ChangeNotesCache {
           e);
     }
   }
+
+  @Nullable
+  private ChangeNotesState getIncrementalBase(Key key) {
+    if (!incrementalParse) {
+      return null;
+    }
+    Key latest = latestKeys.getIfPresent(key.changeId());
+    if (latest == null || !latest.project().equals(key.project())) {
+      return null;
+    }
+    return cache.getIfPresent(latest);
+  }
 }
@@ -0,0 +1,491 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.notedb;
+
+import static com.google.gerrit.server.notedb.ChangeNoteUtil.FOOTER_HASHTAGS;
+import static com.google.gerrit.server.notedb.ChangeNoteUtil.FOOTER_LABEL;
+import static com.google.gerrit.server.notedb.ChangeNoteUtil.FOOTER_PATCH_SET;
+import static com.google.gerrit.server.notedb.ChangeNoteUtil.FOOTER_REAL_USER;
+import static com.google.gerrit.server.notedb.ChangeNoteUtil.FOOTER_TAG;
+import static com.google.gerrit.server.notedb.ChangeNoteUtil.FOOTER_TOPIC;
+import static java.util.stream.Collectors.toList;
+
+import com.google.auto.value.AutoValue;
+import com.google.common.collect.ImmutableList;
+import com.google.common.primitives.Ints;
+import com.google.gerrit.common.Nullable;
+import com.google.gerrit.reviewdb.client.Change;
+import com.google.gerrit.reviewdb.client.PatchSet;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.reviewdb.client.RefNames;
+import com.google.gerrit.server.GerritPersonIdent;
+import com.google.gerrit.server.git.GitRepositoryManager;
+import com.google.gerrit.server.git.InMemoryInserter;
+import com.google.gerrit.server.git.InsertedObject;
+import com.google.gerrit.server.notedb.ChangeNotesCommit.ChangeNotesRevWalk;
+import com.google.gerrit.server.project.NoSuchChangeException;
+import com.google.gwtorm.server.OrmException;
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import org.eclipse.jgit.errors.ConfigInvalidException;
+import org.eclipse.jgit.lib.BatchRefUpdate;
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.FooterKey;
+import org.eclipse.jgit.revwalk.FooterLine;
+import org.eclipse.jgit.revwalk.RevSort;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.transport.ReceiveCommand;
+
+/**
+ * Compacts the meta history of a change by dropping commits that don't contribute to the parsed
+ * {@link ChangeNotesState}.
+ *
+ * <p>Changes that are voted on repeatedly, e.g. by CI systems, may accumulate thousands of meta
+ * commits, all of which are walked by a full parse. A commit is dropped if it has no change message
+ * and only contains votes, topics or hashtags that are overwritten by a later commit. All other
+ * commits, including their trees, authors and timestamps, are kept as they are. Since commits are
+ * rewritten, the IDs of change messages after the first dropped commit change, as with any other
+ * rewrite of the meta history.
+ *
+ * <p>Before the compacted history replaces the meta ref, both histories are parsed and their states
+ * are compared, so a history is only replaced if the result is the same. The compacted history is
+ * first written to a separate ref, which is then swapped with the meta ref, failing if the meta ref
+ * was updated in the meantime.
+ *
+ * <p>Rewriting the meta ref is only safe if ReviewDb doesn't keep a copy of the NoteDb state of the
+ * change, i.e. if ReviewDb is disabled for changes.
+ */
+@Singleton
+public class ChangeNotesCompactor {
+  /** Footers of commits that may be dropped. */
+  private static final ImmutableList<FooterKey> DROPPABLE_FOOTERS =
+      ImmutableList.of(
+          FOOTER_HASHTAGS,
+          FOOTER_LABEL,
+          FOOTER_PATCH_SET,
+          FOOTER_REAL_USER,
+          FOOTER_TAG,
+          FOOTER_TOPIC);
+
+  /** Number of times each history is parsed; the fastest parse is reported. */
+  private static final int PARSE_ITERATIONS = 3;
+
+  @AutoValue
+  public abstract static class Result {
+    /** @return number of commits in the original history. */
+    public abstract int commitsBefore();
+
+    /** @return number of commits in the compacted history. */
+    public abstract int commitsAfter();
+
+    /** @return time to parse the original history, in nanoseconds. */
+    public abstract long parseNanosBefore();
+
+    /** @return time to parse the compacted history, in nanoseconds. */
+    public abstract long parseNanosAfter();
+
+    /**
+     * @return fields of {@link ChangeNotesState} that differ between the original and the compacted
+     *     history. If not empty, the meta ref is not updated.
+     */
+    public abstract ImmutableList<String> differences();
+
+    /** @return whether the meta ref was updated to the compacted history. */
+    public abstract boolean applied();
+  }
+
+  private final GitRepositoryManager repoManager;
+  private final ChangeNoteUtil noteUtil;
+  private final NoteDbMetrics metrics;
+  private final Provider<PersonIdent> serverIdent;
+
+  @Inject
+  ChangeNotesCompactor(
+      GitRepositoryManager repoManager,
+      ChangeNoteUtil noteUtil,
+      NoteDbMetrics metrics,
+      @GerritPersonIdent Provider<PersonIdent> serverIdent) {
+    this.repoManager = repoManager;
+    this.noteUtil = noteUtil;
+    this.metrics = metrics;
+    this.serverIdent = serverIdent;
+  }
+
+  /**
+   * Compact the meta history of a change.
+   *
+   * @param project project of the change.
+   * @param changeId change to compact.
+   * @param dryRun if true, only compute and parse the compacted history, without updating refs.
+   * @return result of the compaction.
+   * @throws NoSuchChangeException if the change has no meta ref.
+   * @throws IOException if the history could not be read or written.
+   * @throws ConfigInvalidException if the history could not be parsed.
+   */
+  public Result compact(Project.NameKey project, Change.Id changeId, boolean dryRun)
+      throws IOException, ConfigInvalidException, OrmException {
+    String metaRef = RefNames.changeMetaRef(changeId);
+    try (Repository repo = repoManager.openRepository(project)) {
+      Ref ref = repo.exactRef(metaRef);
+      if (ref == null) {
+        throw new NoSuchChangeException(changeId);
+      }
+      ObjectId oldTip = ref.getObjectId();
+
+      List<ChangeNotesCommit> history = readHistory(repo, oldTip);
+      ObjectId newTip;
+      int commitsAfter;
+      List<InsertedObject> inserted;
+      try (InMemoryInserter ins = new InMemoryInserter(repo)) {
+        List<ChangeNotesCommit> kept = filter(history);
+        newTip = rewrite(kept, ins);
+        commitsAfter = kept.size();
+        inserted = ins.getInsertedObjects();
+      }
+      if (commitsAfter == history.size()) {
+        long nanos = parseTime(changeId, oldTip, () -> ChangeNotesCommit.newRevWalk(repo));
+        return new AutoValue_ChangeNotesCompactor_Result(
+            history.size(), commitsAfter, nanos, nanos, ImmutableList.of(), false);
+      }
+
+      ChangeNotesState before;
+      ChangeNotesState after;
+      try (ChangeNotesRevWalk rw = ChangeNotesCommit.newStagedRevWalk(repo, inserted)) {
+        before = parse(changeId, oldTip, rw);
+        after = parse(changeId, newTip, rw);
+      }
+      long nanosBefore = parseTime(changeId, oldTip, () -> ChangeNotesCommit.newRevWalk(repo));
+      long nanosAfter =
+          parseTime(changeId, newTip, () -> ChangeNotesCommit.newStagedRevWalk(repo, inserted));
+      ImmutableList<String> differences = differences(before, after);
+
+      boolean applied = false;
+      if (!dryRun && differences.isEmpty()) {
+        applied = swap(repo, changeId, oldTip, newTip, inserted);
+      }
+      return new AutoValue_ChangeNotesCompactor_Result(
+          history.size(), commitsAfter, nanosBefore, nanosAfter, differences, applied);
+    }
+  }
+
+  private static List<ChangeNotesCommit> readHistory(Repository repo, ObjectId tip)
+      throws IOException {
+    List<ChangeNotesCommit> history = new ArrayList<>();
+    try (ChangeNotesRevWalk rw = ChangeNotesCommit.newRevWalk(repo)) {
+      rw.sort(RevSort.REVERSE);
+      rw.markStart(rw.parseCommit(tip));
+      ChangeNotesCommit c;
+      while ((c = rw.next()) != null) {
+        if (c.getParentCount() > 1) {
+          throw new IOException("Cannot compact non-linear history of " + tip.name());
+        }
+        history.add(c);
+      }
+    }
+    return history;
+  }
+
+  /**
+   * Select the commits to keep.
+   *
+   * @param history commits in the order they were created.
+   * @return commits to keep, in the same order.
+   */
+  private static List<ChangeNotesCommit> filter(List<ChangeNotesCommit> history) {
+    // Walk newest first, remembering everything that later commits overwrite. The first and the
+    // last commit are always kept, so createdOn, lastUpdatedOn and all initial footers stay the
+    // same.
+    Set<String> laterVotes = new HashSet<>();
+    boolean laterTopic = false;
+    boolean laterHashtags = false;
+    List<ChangeNotesCommit> kept = new ArrayList<>(history.size());
+    for (int i = history.size() - 1; i >= 0; i--) {
+      ChangeNotesCommit c = history.get(i);
+      List<String> votes = votes(c);
+      boolean topic = !c.getFooterLineValues(FOOTER_TOPIC).isEmpty();
+      boolean hashtags = !c.getFooterLineValues(FOOTER_HASHTAGS).isEmpty();
+
+      boolean drop =
+          i > 0
+              && i < history.size() - 1
+              && votes != null
+              && isFooterOnly(c)
+              && laterVotes.containsAll(votes)
+              && (!topic || laterTopic)
+              && (!hashtags || laterHashtags);
+      if (!drop) {
+        kept.add(c);
+      }
+      if (votes != null) {
+        laterVotes.addAll(votes);
+      }
+      laterTopic |= topic;
+      laterHashtags |= hashtags;
+    }
+    return ImmutableList.copyOf(kept).reverse();
+  }
+
+  /**
+   * @return keys of the votes in a commit, or null if the commit doesn't reference exactly one
+   *     patch set.
+   */
+  @Nullable
+  private static List<String> votes(ChangeNotesCommit c) {
+    List<String> psIds = c.getFooterLineValues(FOOTER_PATCH_SET);
+    if (psIds.size() != 1 || Ints.tryParse(psIds.get(0)) == null) {
+      // Missing patch set or patch set state, e.g. deletion.
+      return null;
+    }
+    String psId = psIds.get(0);
+    String author = c.getAuthorIdent().getEmailAddress();
+    List<String> votes = new ArrayList<>();
+    for (String line : c.getFooterLineValues(FOOTER_LABEL)) {
+      // See ChangeNotesParser#parseAddApproval and #parseRemoveApproval.
+      int s = line.indexOf(' ');
+      String vote = s > 0 ? line.substring(0, s) : line;
+      String account = s > 0 ? line.substring(s + 1) : "<" + author + ">";
+      String label;
+      if (vote.startsWith("-")) {
+        label = vote.substring(1);
+      } else {
+        int eq = vote.indexOf('=');
+        if (eq < 0) {
+          return null;
+        }
+        label = vote.substring(0, eq);
+      }
+      votes.add(psId + " " + label + " " + account);
+    }
+    return votes;
+  }
+
+  /** @return whether the commit has no change message and only footers that may be dropped. */
+  private static boolean isFooterOnly(ChangeNotesCommit c) {
+    String msg = c.getFullMessage();
+    int subjectEnd = msg.indexOf("\n\n");
+    if (subjectEnd < 0) {
+      return false;
+    }
+    String rest = msg.substring(subjectEnd + 2).trim();
+    if (rest.contains("\n\n")) {
+      return false;
+    }
+    List<FooterLine> footers = c.getFooterLines();
+    if (footers.size() != rest.split("\n").length) {
+      return false;
+    }
+    for (FooterLine fl : footers) {
+      if (DROPPABLE_FOOTERS.stream().noneMatch(fl::matches)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** @return tip of a history consisting of the given commits, each with its original tree. */
+  private static ObjectId rewrite(List<ChangeNotesCommit> kept, ObjectInserter ins)
+      throws IOException {
+    ObjectId parent = null;
+    boolean rewritten = false;
+    for (ChangeNotesCommit c : kept) {
+      if (!rewritten && Objects.equals(parent, c.getParentCount() > 0 ? c.getParent(0) : null)) {
+        // Unchanged prefix of the history.
+        parent = c.copy();
+        continue;
+      }
+      rewritten = true;
+      CommitBuilder cb = new CommitBuilder();
+      if (parent != null) {
+        cb.setParentId(parent);
+      }
+      cb.setTreeId(c.getTree());
+      cb.setAuthor(c.getAuthorIdent());
+      cb.setCommitter(c.getCommitterIdent());
+      cb.setMessage(c.getFullMessage());
+      cb.setEncoding(c.getEncoding());
+      parent = ins.insert(cb);
+    }
+    return parent;
+  }
+
+  private ChangeNotesState parse(Change.Id changeId, ObjectId tip, ChangeNotesRevWalk rw)
+      throws IOException, ConfigInvalidException {
+    return new ChangeNotesParser(changeId, tip, rw, noteUtil, metrics).parseAll();
+  }
+
+  @FunctionalInterface
+  private interface WalkFactory {
+    ChangeNotesRevWalk create();
+  }
+
+  private long parseTime(Change.Id changeId, ObjectId tip, WalkFactory walks)
+      throws IOException, ConfigInvalidException {
+    long min = Long.MAX_VALUE;
+    for (int i = 0; i < PARSE_ITERATIONS; i++) {
+      // Use a new walk each time, so that no parsed commits are reused.
+      try (ChangeNotesRevWalk rw = walks.create()) {
+        long start = System.nanoTime();
+        parse(changeId, tip, rw);
+        min = Math.min(min, System.nanoTime() - start);
+      }
+    }
+    return min;
+  }
+
+  /**
+   * Compare two states, ignoring the meta ID and the IDs of change messages, which both depend on
+   * the commit IDs.
+   */
+  private static ImmutableList<String> differences(ChangeNotesState a, ChangeNotesState b) {
+    ImmutableList.Builder<String> diffs = ImmutableList.builder();
+    diff(diffs, "columns", a.columns(), b.columns());
+    diff(diffs, "pastAssignees", a.pastAssignees(), b.pastAssignees());
+    diff(diffs, "hashtags", a.hashtags(), b.hashtags());
+    diff(diffs, "patchSets", patchSets(a), patchSets(b));
+    diff(diffs, "approvals", a.approvals(), b.approvals());
+    diff(diffs, "reviewers", a.reviewers(), b.reviewers());
+    diff(diffs, "reviewersByEmail", a.reviewersByEmail(), b.reviewersByEmail());
+    diff(diffs, "pendingReviewers", a.pendingReviewers(), b.pendingReviewers());
+    diff(
+        diffs,
+        "pendingReviewersByEmail",
+        a.pendingReviewersByEmail(),
+        b.pendingReviewersByEmail());
+    diff(diffs, "allPastReviewers", a.allPastReviewers(), b.allPastReviewers());
+    diff(diffs, "reviewerUpdates", a.reviewerUpdates(), b.reviewerUpdates());
+    diff(diffs, "submitRecords", a.submitRecords(), b.submitRecords());
+    diff(diffs, "changeMessages", messages(a), messages(b));
+    diff(diffs, "publishedComments", a.publishedComments(), b.publishedComments());
+    diff(diffs, "readOnlyUntil", a.readOnlyUntil(), b.readOnlyUntil());
+    return diffs.build();
+  }
+
+  private static void diff(
+      ImmutableList.Builder<String> diffs, String field, @Nullable Object a, @Nullable Object b) {
+    if (!Objects.equals(a, b)) {
+      diffs.add(field);
+    }
+  }
+
+  private static List<List<Object>> patchSets(ChangeNotesState s) {
+    // PatchSet doesn't implement equals.
+    return s.patchSets()
+        .stream()
+        .map(
+            e -> {
+              PatchSet ps = e.getValue();
+              return Arrays.<Object>asList(
+                  ps.getId(),
+                  ps.getRevision(),
+                  ps.getUploader(),
+                  ps.getCreatedOn(),
+                  ps.getGroups(),
+                  ps.getPushCertificate(),
+                  ps.getDescription());
+            })
+        .collect(toList());
+  }
+
+  private static List<List<Object>> messages(ChangeNotesState s) {
+    // ChangeMessage doesn't implement equals, and its key is the ID of the commit.
+    return s.allChangeMessages()
+        .stream()
+        .map(
+            m ->
+                Arrays.<Object>asList(
+                    m.getPatchSetId(),
+                    m.getAuthor(),
+                    m.getRealAuthor(),
+                    m.getWrittenOn(),
+                    m.getMessage(),
+                    m.getTag()))
+        .collect(toList());
+  }
+
+  private boolean swap(
+      Repository repo,
+      Change.Id changeId,
+      ObjectId oldTip,
+      ObjectId newTip,
+      List<InsertedObject> inserted)
+      throws IOException {
+    try (ObjectInserter ins = repo.newObjectInserter()) {
+      for (InsertedObject obj : inserted) {
+        ins.insert(obj.type(), obj.data().toByteArray());
+      }
+      ins.flush();
+    }
+
+    String metaRef = RefNames.changeMetaRef(changeId);
+    String compactedRef = metaRef + "-compacted";
+    PersonIdent ident = serverIdent.get();
+    try (RevWalk rw = new RevWalk(repo)) {
+      // Write the compacted history to its own ref first, so that it is reachable while both refs
+      // are swapped.
+      RefUpdate ru = repo.updateRef(compactedRef);
+      ru.setNewObjectId(newTip);
+      ru.setForceUpdate(true);
+      ru.setRefLogIdent(ident);
+      ru.setRefLogMessage("Compact NoteDb history", false);
+      RefUpdate.Result r = ru.update(rw);
+      if (r != RefUpdate.Result.NEW && r != RefUpdate.Result.FORCED) {
+        throw new IOException("Failed to create " + compactedRef + ": " + r);
+      }
+
+      BatchRefUpdate bru = repo.getRefDatabase().newBatchUpdate();
+      bru.setAtomic(repo.getRefDatabase().performsAtomicTransactions());
+      // The compacted history is a rewrite, so it doesn't descend from the old tip. The command
+      // still only applies if the meta ref wasn't updated concurrently.
+      bru.setAllowNonFastForwards(true);
+      bru.setRefLogIdent(ident);
+      bru.setRefLogMessage("Compact NoteDb history", false);
+      ReceiveCommand updateMeta = new ReceiveCommand(oldTip, newTip, metaRef);
+      bru.addCommand(updateMeta);
+      bru.addCommand(new ReceiveCommand(newTip, ObjectId.zeroId(), compactedRef));
+      bru.execute(rw, NullProgressMonitor.INSTANCE);
+
+      if (repo.exactRef(compactedRef) != null) {
+        RefUpdate del = repo.updateRef(compactedRef);
+        del.setForceUpdate(true);
+        del.delete(rw);
+      }
+      switch (updateMeta.getResult()) {
+        case OK:
+          return true;
+        case LOCK_FAILURE:
+          // Meta ref was updated concurrently; the compacted history is already outdated.
+          return false;
+        default:
+          throw new IOException(
+              "Failed to update " + metaRef + ": " + updateMeta.getResult() + " " + updateMeta);
+      }
+    }
+  }
+}
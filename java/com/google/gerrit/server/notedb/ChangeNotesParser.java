@@ -42,8 +42,10 @@ import com.google.auto.value.AutoValue;
 import com.google.common.base.Enums;
 import com.google.common.base.Splitter;
 import com.google.common.collect.HashBasedTable;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableTable;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.LinkedListMultimap;
 import com.google.common.collect.ListMultimap;
 import com.google.common.collect.Lists;
@@ -77,6 +79,7 @@ import java.nio.charset.Charset;
 import java.sql.Timestamp;
 import java.text.ParseException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
@@ -91,13 +94,18 @@ import java.util.Optional;
 import java.util.Set;
 import java.util.TreeSet;
 import java.util.function.Function;
+import java.util.stream.Stream;
 import org.eclipse.jgit.errors.ConfigInvalidException;
 import org.eclipse.jgit.errors.InvalidObjectIdException;
+import org.eclipse.jgit.errors.MissingObjectException;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.ObjectReader;
 import org.eclipse.jgit.lib.PersonIdent;
 import org.eclipse.jgit.notes.NoteMap;
 import org.eclipse.jgit.revwalk.FooterKey;
+import org.eclipse.jgit.revwalk.FooterLine;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
 import org.eclipse.jgit.util.GitDateParser;
 import org.eclipse.jgit.util.RawParseUtils;
 import org.slf4j.Logger;
@@ -123,6 +131,35 @@ class ChangeNotesParser {
     }
   }
 
+  /** Footers that {@link #parseIncremental(ChangeNotesState)} knows how to fold into a state. */
+  private static final ImmutableList<FooterKey> INCREMENTAL_FOOTERS =
+      ImmutableList.<FooterKey>builder()
+          .add(
+              FOOTER_ASSIGNEE,
+              FOOTER_BRANCH,
+              FOOTER_CHANGE_ID,
+              FOOTER_COMMIT,
+              FOOTER_CURRENT,
+              FOOTER_GROUPS,
+              FOOTER_HASHTAGS,
+              FOOTER_LABEL,
+              FOOTER_PATCH_SET,
+              FOOTER_PATCH_SET_DESCRIPTION,
+              FOOTER_PRIVATE,
+              FOOTER_READ_ONLY_UNTIL,
+              FOOTER_REAL_USER,
+              FOOTER_STATUS,
+              FOOTER_SUBJECT,
+              FOOTER_SUBMISSION_ID,
+              FOOTER_SUBMITTED_WITH,
+              FOOTER_TAG,
+              FOOTER_TOPIC)
+          .addAll(
+              Arrays.stream(ReviewerStateInternal.values())
+                  .flatMap(s -> Stream.of(s.getFooterKey(), s.getByEmailFooterKey()))
+                  .iterator())
+          .build();
+
   // Private final members initialized in the constructor.
   private final ChangeNoteUtil noteUtil;
   private final NoteDbMetrics metrics;
@@ -130,6 +167,10 @@ class ChangeNotesParser {
   private final ObjectId tip;
   private final ChangeNotesRevWalk walk;
 
+  // Size of the parsed history, for metrics.
+  private int parsedCommits;
+  private long parsedNoteBytes;
+
   // Private final but mutable members initialized in the constructor and filled
   // in during the parsing process.
   private final Table<Account.Id, ReviewerStateInternal, Timestamp> reviewers;
@@ -212,6 +253,7 @@ class ChangeNotesParser {
       ChangeNotesCommit commit;
       while ((commit = walk.next()) != null) {
         parse(commit);
+        parsedCommits++;
       }
       if (hasReviewStarted == null) {
         if (previousWorkInProgressFooter == null) {
@@ -232,10 +274,325 @@ class ChangeNotesParser {
     return buildState();
   }
 
+  /**
+   * Parse only the commits between the meta commit of a previously parsed state and {@code tip}.
+   *
+   * <p>The state at the tip is produced by folding the new commits into {@code base}, and by
+   * re-reading only the revision notes that changed since {@code base}. This is only possible if
+   * {@code base} is an ancestor of {@code tip} and the new commits contain only footers for which
+   * the result of folding is known to match a full parse, e.g. votes, messages, comments and new
+   * patch sets. In all other cases, such as deleted patch sets or work-in-progress changes, callers
+   * need to fall back to {@link #parseAll()}.
+   *
+   * <p>If this method returns a state, {@link #getRevisionNoteMap()} returns null.
+   *
+   * @param base state parsed from an earlier meta commit of the same change.
+   * @return state at {@code tip}, or empty if the state could not be parsed incrementally.
+   */
+  Optional<ChangeNotesState> parseIncremental(ChangeNotesState base)
+      throws ConfigInvalidException, IOException {
+    if (base.metaId() == null || base.columns() == null) {
+      return Optional.empty();
+    }
+    walk.reset();
+    ChangeNotesCommit tipCommit = walk.parseCommit(tip);
+    ChangeNotesCommit baseCommit;
+    try {
+      baseCommit = walk.parseCommit(base.metaId());
+    } catch (MissingObjectException e) {
+      return Optional.empty();
+    }
+    if (!walk.isMergedInto(baseCommit, tipCommit)) {
+      // Meta ref was rewritten, e.g. by rebuilding the change.
+      return Optional.empty();
+    }
+    walk.reset();
+    walk.markStart(tipCommit);
+    walk.markUninteresting(baseCommit);
+
+    try (Timer1.Context timer = metrics.parseLatency.start(CHANGES)) {
+      List<ChangeNotesCommit> commits = new ArrayList<>();
+      ChangeNotesCommit commit;
+      while ((commit = walk.next()) != null) {
+        if (!canParseIncrementally(commit)) {
+          return Optional.empty();
+        }
+        commits.add(commit);
+      }
+      if (commits.isEmpty()) {
+        return Optional.empty();
+      }
+      for (ChangeNotesCommit c : commits) {
+        parse(c);
+      }
+      parsedCommits = commits.size();
+      if (!mergeBase(base) || !mergeNotes(base, baseCommit, tipCommit)) {
+        return Optional.empty();
+      }
+      checkMandatoryFooters();
+    }
+
+    return Optional.of(buildState());
+  }
+
+  private static boolean canParseIncrementally(ChangeNotesCommit commit) {
+    for (FooterLine fl : commit.getFooterLines()) {
+      if (INCREMENTAL_FOOTERS.stream().noneMatch(fl::matches)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Fold the commits parsed so far, which are all newer than {@code base}, into {@code base}.
+   *
+   * <p>Afterwards the members of this parser hold what {@link #parseAll()} would have produced
+   * before parsing notes and building the state.
+   *
+   * @return false if the result of folding could differ from a full parse.
+   */
+  private boolean mergeBase(ChangeNotesState base) {
+    ChangeNotesState.ChangeColumns c = base.columns();
+    if (!deletedPatchSets.isEmpty()) {
+      return false;
+    }
+    if (c.status() == Change.Status.MERGED) {
+      if (status != null) {
+        // Post-submit bits of approvals in base depend on the most recent status.
+        return false;
+      }
+      for (PatchSetApproval psa : bufferedApprovals) {
+        if (!psa.isLegacySubmit()) {
+          psa.setPostSubmit(true);
+        }
+      }
+    }
+    bufferedApprovals.clear();
+
+    Map<PatchSet.Id, PatchSet> newPatchSets = new HashMap<>(patchSets);
+    patchSets.clear();
+    for (Map.Entry<PatchSet.Id, PatchSet> e : base.patchSets()) {
+      patchSets.put(e.getKey(), e.getValue());
+    }
+    for (PatchSet ps : newPatchSets.values()) {
+      PatchSet old = patchSets.get(ps.getId());
+      if (!ps.getRevision().equals(PARTIAL_PATCH_SET)) {
+        if (old != null) {
+          return false; // Let the full parse report multiple revisions.
+        }
+        patchSets.put(ps.getId(), ps);
+      } else {
+        if (old == null) {
+          return false; // Let the full parse report the missing patch set.
+        }
+        PatchSet updated = new PatchSet(old);
+        if (!ps.getGroups().isEmpty()) {
+          updated.setGroups(ps.getGroups());
+        }
+        if (ps.getDescription() != null) {
+          updated.setDescription(ps.getDescription());
+        }
+        patchSets.put(ps.getId(), updated);
+      }
+    }
+    if (c.currentPatchSetId() != null) {
+      currentPatchSets.add(c.currentPatchSetId());
+    }
+
+    if (Boolean.TRUE.equals(c.isWorkInProgress())
+        && (!reviewers.isEmpty() || !reviewersByEmail.isEmpty())) {
+      // Reviewers added while the change is work in progress are pending.
+      return false;
+    }
+    Table<Account.Id, ReviewerStateInternal, Timestamp> newReviewers =
+        HashBasedTable.create(reviewers);
+    reviewers.clear();
+    reviewers.putAll(Tables.transpose(base.reviewers().asTable()));
+    allPastReviewers.addAll(base.allPastReviewers());
+    for (Table.Cell<Account.Id, ReviewerStateInternal, Timestamp> cell : newReviewers.cellSet()) {
+      Account.Id accountId = cell.getRowKey();
+      if (cell.getColumnKey() != ReviewerStateInternal.REMOVED
+          && allPastReviewers.contains(accountId)
+          && !reviewers.containsRow(accountId)) {
+        // Approvals of the removed reviewer were dropped from base, but are visible again.
+        return false;
+      }
+      reviewers.row(accountId).clear();
+      reviewers.put(accountId, cell.getColumnKey(), cell.getValue());
+      if (!allPastReviewers.contains(accountId)) {
+        allPastReviewers.add(accountId);
+      }
+    }
+    pruneReviewers();
+
+    Table<Address, ReviewerStateInternal, Timestamp> newReviewersByEmail =
+        HashBasedTable.create(reviewersByEmail);
+    reviewersByEmail.clear();
+    reviewersByEmail.putAll(Tables.transpose(base.reviewersByEmail().asTable()));
+    for (Table.Cell<Address, ReviewerStateInternal, Timestamp> cell :
+        newReviewersByEmail.cellSet()) {
+      reviewersByEmail.row(cell.getRowKey()).clear();
+      reviewersByEmail.put(cell.getRowKey(), cell.getColumnKey(), cell.getValue());
+    }
+    pruneReviewersByEmail();
+
+    // Buffers below are in parse order, i.e. newest first, so older entries from base are appended
+    // in reverse order.
+    reviewerUpdates.addAll(base.reviewerUpdates().reverse());
+    allChangeMessages.addAll(base.allChangeMessages().reverse());
+    for (Map.Entry<PatchSet.Id, Collection<ChangeMessage>> e :
+        base.changeMessagesByPatchSet().asMap().entrySet()) {
+      changeMessagesByPatchSet.putAll(
+          e.getKey(), Lists.reverse(ImmutableList.copyOf(e.getValue())));
+    }
+    pastAssignees.addAll(base.pastAssignees().asList().reverse());
+
+    Map<ApprovalKey, PatchSetApproval> newApprovals = new LinkedHashMap<>(approvals);
+    approvals.clear();
+    for (Map.Entry<PatchSet.Id, PatchSetApproval> e : base.approvals()) {
+      PatchSetApproval a = e.getValue();
+      approvals.put(ApprovalKey.create(e.getKey(), a.getAccountId(), a.getLabel()), a);
+    }
+    approvals.putAll(newApprovals);
+
+    for (PatchSet.Id psId :
+        Iterables.concat(
+            Iterables.transform(approvals.keySet(), ApprovalKey::psId),
+            changeMessagesByPatchSet.keySet())) {
+      if (!patchSets.containsKey(psId)) {
+        return false; // Let the full parse report entities for missing patch sets.
+      }
+    }
+
+    if (submitRecords.isEmpty()) {
+      submitRecords.addAll(base.submitRecords());
+    }
+    if (branch == null) {
+      branch = c.branch();
+    }
+    if (status == null) {
+      status = c.status();
+    }
+    if (topic == null) {
+      topic = c.topic();
+    }
+    if (subject == null) {
+      subject = c.subject();
+    }
+    if (submissionId == null) {
+      submissionId = c.submissionId();
+    }
+    if (assignee == null) {
+      assignee = Optional.ofNullable(c.assignee());
+    }
+    if (hashtags == null) {
+      hashtags = base.hashtags();
+    }
+    if (readOnlyUntil == null) {
+      readOnlyUntil = base.readOnlyUntil();
+    }
+    if (isPrivate == null) {
+      isPrivate = c.isPrivate();
+    }
+    if (lastUpdatedOn == null || c.lastUpdatedOn().after(lastUpdatedOn)) {
+      lastUpdatedOn = c.lastUpdatedOn();
+    }
+    changeId = c.changeKey().get();
+    originalSubject = c.originalSubject();
+    createdOn = c.createdOn();
+    ownerId = c.owner();
+    workInProgress = c.isWorkInProgress();
+    hasReviewStarted = c.hasReviewStarted();
+    pendingReviewers = base.pendingReviewers();
+    pendingReviewersByEmail = base.pendingReviewersByEmail();
+    revertOf = c.revertOf();
+    return true;
+  }
+
+  /**
+   * Take over published comments from {@code base}, re-reading only the notes that changed.
+   *
+   * @return false if the result could differ from a full parse.
+   */
+  private boolean mergeNotes(
+      ChangeNotesState base, ChangeNotesCommit baseCommit, ChangeNotesCommit tipCommit)
+      throws IOException, ConfigInvalidException {
+    ObjectReader reader = walk.getObjectReader();
+    Set<RevId> changed = new HashSet<>();
+    try (TreeWalk tw = new TreeWalk(reader)) {
+      tw.setRecursive(true);
+      tw.setFilter(TreeFilter.ANY_DIFF);
+      tw.addTree(baseCommit.getTree());
+      tw.addTree(tipCommit.getTree());
+      while (tw.next()) {
+        // Notes may be fanned out into subdirectories.
+        String name = tw.getPathString().replace("/", "");
+        if (ObjectId.isId(name)) {
+          changed.add(new RevId(name));
+        }
+      }
+    }
+
+    for (Map.Entry<RevId, Collection<Comment>> e :
+        base.publishedComments().asMap().entrySet()) {
+      if (!changed.contains(e.getKey())) {
+        comments.putAll(e.getKey(), e.getValue());
+      }
+    }
+    if (changed.isEmpty()) {
+      return true;
+    }
+
+    Map<RevId, PatchSet> newPatchSetsByRevision = new HashMap<>();
+    Set<PatchSet.Id> basePatchSets = new HashSet<>();
+    for (Map.Entry<PatchSet.Id, PatchSet> e : base.patchSets()) {
+      basePatchSets.add(e.getKey());
+    }
+    for (PatchSet ps : patchSets.values()) {
+      if (!basePatchSets.contains(ps.getId())) {
+        newPatchSetsByRevision.put(ps.getRevision(), ps);
+      }
+    }
+
+    NoteMap noteMap = NoteMap.read(reader, tipCommit);
+    for (RevId revId : changed) {
+      ObjectId data = noteMap.get(ObjectId.fromString(revId.get()));
+      if (data == null) {
+        continue;
+      }
+      ChangeRevisionNote rn =
+          new ChangeRevisionNote(noteUtil, id, reader, data, PatchLineComment.Status.PUBLISHED);
+      rn.parse();
+      parsedNoteBytes += rn.getRaw().length;
+      for (Comment c : rn.getComments()) {
+        if (!patchSets.containsKey(new PatchSet.Id(id, c.key.patchSetId))) {
+          return false; // Let the full parse report comments on missing patch sets.
+        }
+        comments.put(revId, c);
+      }
+      PatchSet ps = newPatchSetsByRevision.get(revId);
+      if (ps != null && rn.getPushCert() != null) {
+        ps.setPushCertificate(rn.getPushCert());
+      }
+    }
+    return true;
+  }
+
   RevisionNoteMap<ChangeRevisionNote> getRevisionNoteMap() {
     return revisionNoteMap;
   }
 
+  /** @return number of meta commits parsed by the last call to a parse method. */
+  int getParsedCommits() {
+    return parsedCommits;
+  }
+
+  /** @return total size in bytes of the revision notes read by the last call to a parse method. */
+  long getParsedNoteBytes() {
+    return parsedNoteBytes;
+  }
+
   private ChangeNotesState buildState() {
     return ChangeNotesState.create(
         tip.copy(),
@@ -768,6 +1125,7 @@ class ChangeNotesParser {
     Map<RevId, ChangeRevisionNote> rns = revisionNoteMap.revisionNotes;
 
     for (Map.Entry<RevId, ChangeRevisionNote> e : rns.entrySet()) {
+      parsedNoteBytes += e.getValue().getRaw().length;
       for (Comment c : e.getValue().getComments()) {
         comments.put(e.getKey(), c);
       }
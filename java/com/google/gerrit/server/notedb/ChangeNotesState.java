@@ -14,15 +14,22 @@
 
 package com.google.gerrit.server.notedb;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
+import static java.util.stream.Collectors.toCollection;
+import static java.util.stream.Collectors.toList;
 
 import com.google.auto.value.AutoValue;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableListMultimap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableTable;
 import com.google.common.collect.ListMultimap;
+import com.google.common.collect.MultimapBuilder;
+import com.google.common.collect.Table;
 import com.google.gerrit.common.Nullable;
 import com.google.gerrit.common.data.SubmitRecord;
 import com.google.gerrit.reviewdb.client.Account;
@@ -37,12 +44,29 @@ import com.google.gerrit.reviewdb.client.RevId;
 import com.google.gerrit.server.ReviewerByEmailSet;
 import com.google.gerrit.server.ReviewerSet;
 import com.google.gerrit.server.ReviewerStatusUpdate;
+import com.google.gerrit.server.cache.CacheSerializer;
+import com.google.gerrit.server.cache.ProtoCacheSerializers;
+import com.google.gerrit.server.cache.proto.Cache.ChangeNotesStateProto;
+import com.google.gerrit.server.cache.proto.Cache.ChangeNotesStateProto.ChangeColumnsProto;
+import com.google.gerrit.server.cache.proto.Cache.ChangeNotesStateProto.ReviewerByEmailSetEntryProto;
+import com.google.gerrit.server.cache.proto.Cache.ChangeNotesStateProto.ReviewerSetEntryProto;
+import com.google.gerrit.server.cache.proto.Cache.ChangeNotesStateProto.ReviewerStatusUpdateProto;
+import com.google.gerrit.server.mail.Address;
 import com.google.gerrit.server.notedb.NoteDbChangeState.PrimaryStorage;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gwtorm.protobuf.CodecFactory;
+import com.google.gwtorm.protobuf.ProtobufCodec;
+import com.google.protobuf.ByteString;
 import java.io.IOException;
 import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import org.eclipse.jgit.lib.Constants;
 import org.eclipse.jgit.lib.ObjectId;
 
 /**
@@ -338,4 +362,261 @@ public abstract class ChangeNotesState {
       change.clearCurrentPatchSet();
     }
   }
+
+  /** Serializes states for the persistent {@link ChangeNotesCache}. */
+  static class Serializer implements CacheSerializer<ChangeNotesState> {
+    // Unlike ChangeNoteUtil, don't pretty-print, as the JSON is only read by this class.
+    @VisibleForTesting
+    static final Gson GSON =
+        new GsonBuilder()
+            .registerTypeAdapter(Timestamp.class, new CommentTimestampAdapter().nullSafe())
+            .create();
+
+    private static final ProtobufCodec<PatchSet> PATCH_SET_CODEC =
+        CodecFactory.encoder(PatchSet.class);
+    private static final ProtobufCodec<PatchSetApproval> APPROVAL_CODEC =
+        CodecFactory.encoder(PatchSetApproval.class);
+    private static final ProtobufCodec<ChangeMessage> MESSAGE_CODEC =
+        CodecFactory.encoder(ChangeMessage.class);
+
+    @Override
+    public byte[] serialize(ChangeNotesState object) {
+      checkArgument(object.metaId() != null, "meta ID is required in: %s", object);
+      checkArgument(object.columns() != null, "ChangeColumns is required in: %s", object);
+      ChangeNotesStateProto.Builder b = ChangeNotesStateProto.newBuilder();
+
+      byte[] buf = new byte[Constants.OBJECT_ID_LENGTH];
+      object.metaId().copyRawTo(buf, 0);
+      b.setMetaId(ByteString.copyFrom(buf))
+          .setChangeId(object.changeId().get())
+          .setColumns(toChangeColumnsProto(object.columns()));
+
+      object.pastAssignees().forEach(a -> b.addPastAssignee(a.get()));
+      object.hashtags().forEach(b::addHashtag);
+      object
+          .patchSets()
+          .forEach(e -> b.addPatchSet(PATCH_SET_CODEC.encodeToByteString(e.getValue())));
+      object
+          .approvals()
+          .forEach(e -> b.addApproval(APPROVAL_CODEC.encodeToByteString(e.getValue())));
+      object.reviewers().asTable().cellSet().forEach(c -> b.addReviewer(toReviewerSetEntry(c)));
+      object
+          .reviewersByEmail()
+          .asTable()
+          .cellSet()
+          .forEach(c -> b.addReviewerByEmail(toReviewerByEmailSetEntry(c)));
+      object
+          .pendingReviewers()
+          .asTable()
+          .cellSet()
+          .forEach(c -> b.addPendingReviewer(toReviewerSetEntry(c)));
+      object
+          .pendingReviewersByEmail()
+          .asTable()
+          .cellSet()
+          .forEach(c -> b.addPendingReviewerByEmail(toReviewerByEmailSetEntry(c)));
+      object.allPastReviewers().forEach(a -> b.addPastReviewer(a.get()));
+      object.reviewerUpdates().forEach(u -> b.addReviewerUpdate(toReviewerStatusUpdateProto(u)));
+      object.submitRecords().forEach(r -> b.addSubmitRecord(GSON.toJson(r)));
+      object
+          .allChangeMessages()
+          .forEach(m -> b.addChangeMessage(MESSAGE_CODEC.encodeToByteString(m)));
+      object.publishedComments().values().forEach(c -> b.addPublishedComment(GSON.toJson(c)));
+      if (object.readOnlyUntil() != null) {
+        b.setReadOnlyUntil(object.readOnlyUntil().getTime()).setHasReadOnlyUntil(true);
+      }
+
+      return ProtoCacheSerializers.toByteArray(b.build());
+    }
+
+    private static ChangeColumnsProto toChangeColumnsProto(ChangeColumns cols) {
+      ChangeColumnsProto.Builder b =
+          ChangeColumnsProto.newBuilder()
+              .setChangeKey(cols.changeKey().get())
+              .setCreatedOn(cols.createdOn().getTime())
+              .setLastUpdatedOn(cols.lastUpdatedOn().getTime())
+              .setOwner(cols.owner().get())
+              .setBranch(cols.branch())
+              .setSubject(cols.subject());
+      if (cols.currentPatchSetId() != null) {
+        b.setCurrentPatchSetId(cols.currentPatchSetId().get()).setHasCurrentPatchSetId(true);
+      }
+      if (cols.topic() != null) {
+        b.setTopic(cols.topic()).setHasTopic(true);
+      }
+      if (cols.originalSubject() != null) {
+        b.setOriginalSubject(cols.originalSubject()).setHasOriginalSubject(true);
+      }
+      if (cols.submissionId() != null) {
+        b.setSubmissionId(cols.submissionId()).setHasSubmissionId(true);
+      }
+      if (cols.assignee() != null) {
+        b.setAssignee(cols.assignee().get()).setHasAssignee(true);
+      }
+      if (cols.status() != null) {
+        b.setStatus(cols.status().name()).setHasStatus(true);
+      }
+      if (cols.isPrivate() != null) {
+        b.setIsPrivate(cols.isPrivate()).setHasIsPrivate(true);
+      }
+      if (cols.isWorkInProgress() != null) {
+        b.setWorkInProgress(cols.isWorkInProgress()).setHasWorkInProgress(true);
+      }
+      if (cols.hasReviewStarted() != null) {
+        b.setReviewStarted(cols.hasReviewStarted());
+      }
+      if (cols.revertOf() != null) {
+        b.setRevertOf(cols.revertOf().get()).setHasRevertOf(true);
+      }
+      return b.build();
+    }
+
+    private static ReviewerSetEntryProto toReviewerSetEntry(
+        Table.Cell<ReviewerStateInternal, Account.Id, Timestamp> c) {
+      return ReviewerSetEntryProto.newBuilder()
+          .setState(c.getRowKey().name())
+          .setAccountId(c.getColumnKey().get())
+          .setTimestamp(c.getValue().getTime())
+          .build();
+    }
+
+    private static ReviewerByEmailSetEntryProto toReviewerByEmailSetEntry(
+        Table.Cell<ReviewerStateInternal, Address, Timestamp> c) {
+      ReviewerByEmailSetEntryProto.Builder b =
+          ReviewerByEmailSetEntryProto.newBuilder()
+              .setState(c.getRowKey().name())
+              .setEmail(c.getColumnKey().getEmail())
+              .setTimestamp(c.getValue().getTime());
+      if (c.getColumnKey().getName() != null) {
+        b.setName(c.getColumnKey().getName());
+      }
+      return b.build();
+    }
+
+    private static ReviewerStatusUpdateProto toReviewerStatusUpdateProto(ReviewerStatusUpdate u) {
+      return ReviewerStatusUpdateProto.newBuilder()
+          .setDate(u.date().getTime())
+          .setUpdatedBy(u.updatedBy().get())
+          .setReviewer(u.reviewer().get())
+          .setState(u.state().name())
+          .build();
+    }
+
+    @Override
+    public ChangeNotesState deserialize(byte[] in) throws IOException {
+      ChangeNotesStateProto proto = ChangeNotesStateProto.parseFrom(in);
+      Change.Id changeId = new Change.Id(proto.getChangeId());
+      ChangeColumnsProto cols = proto.getColumns();
+
+      Map<PatchSet.Id, PatchSet> patchSets = new LinkedHashMap<>();
+      for (ByteString bytes : proto.getPatchSetList()) {
+        PatchSet ps = PATCH_SET_CODEC.decode(bytes);
+        patchSets.put(ps.getId(), ps);
+      }
+      ListMultimap<PatchSet.Id, PatchSetApproval> approvals =
+          MultimapBuilder.linkedHashKeys().arrayListValues().build();
+      for (ByteString bytes : proto.getApprovalList()) {
+        PatchSetApproval psa = APPROVAL_CODEC.decode(bytes);
+        approvals.put(psa.getPatchSetId(), psa);
+      }
+      List<ChangeMessage> messages = new ArrayList<>(proto.getChangeMessageCount());
+      ListMultimap<PatchSet.Id, ChangeMessage> messagesByPatchSet =
+          MultimapBuilder.linkedHashKeys().arrayListValues().build();
+      for (ByteString bytes : proto.getChangeMessageList()) {
+        ChangeMessage m = MESSAGE_CODEC.decode(bytes);
+        messages.add(m);
+        // Messages of deleted patch sets are only kept in the list of all messages, see
+        // ChangeNotesParser.
+        if (patchSets.containsKey(m.getPatchSetId())) {
+          messagesByPatchSet.put(m.getPatchSetId(), m);
+        }
+      }
+      ListMultimap<RevId, Comment> comments =
+          MultimapBuilder.linkedHashKeys().arrayListValues().build();
+      for (String json : proto.getPublishedCommentList()) {
+        Comment c = GSON.fromJson(json, Comment.class);
+        comments.put(new RevId(c.revId), c);
+      }
+
+      return ChangeNotesState.create(
+          ObjectId.fromRaw(proto.getMetaId().toByteArray()),
+          changeId,
+          new Change.Key(cols.getChangeKey()),
+          new Timestamp(cols.getCreatedOn()),
+          new Timestamp(cols.getLastUpdatedOn()),
+          new Account.Id(cols.getOwner()),
+          cols.getBranch(),
+          cols.getHasCurrentPatchSetId()
+              ? new PatchSet.Id(changeId, cols.getCurrentPatchSetId())
+              : null,
+          cols.getSubject(),
+          cols.getHasTopic() ? cols.getTopic() : null,
+          cols.getHasOriginalSubject() ? cols.getOriginalSubject() : null,
+          cols.getHasSubmissionId() ? cols.getSubmissionId() : null,
+          cols.getHasAssignee() ? new Account.Id(cols.getAssignee()) : null,
+          cols.getHasStatus() ? Change.Status.valueOf(cols.getStatus()) : null,
+          proto
+              .getPastAssigneeList()
+              .stream()
+              .map(Account.Id::new)
+              .collect(toCollection(LinkedHashSet::new)),
+          ImmutableSet.copyOf(proto.getHashtagList()),
+          patchSets,
+          approvals,
+          toReviewerSet(proto.getReviewerList()),
+          toReviewerByEmailSet(proto.getReviewerByEmailList()),
+          toReviewerSet(proto.getPendingReviewerList()),
+          toReviewerByEmailSet(proto.getPendingReviewerByEmailList()),
+          proto.getPastReviewerList().stream().map(Account.Id::new).collect(toList()),
+          proto
+              .getReviewerUpdateList()
+              .stream()
+              .map(
+                  u ->
+                      ReviewerStatusUpdate.create(
+                          new Timestamp(u.getDate()),
+                          new Account.Id(u.getUpdatedBy()),
+                          new Account.Id(u.getReviewer()),
+                          ReviewerStateInternal.valueOf(u.getState())))
+              .collect(toList()),
+          proto
+              .getSubmitRecordList()
+              .stream()
+              .map(r -> GSON.fromJson(r, SubmitRecord.class))
+              .collect(toList()),
+          messages,
+          messagesByPatchSet,
+          comments,
+          proto.getHasReadOnlyUntil() ? new Timestamp(proto.getReadOnlyUntil()) : null,
+          cols.getHasIsPrivate() ? cols.getIsPrivate() : null,
+          cols.getHasWorkInProgress() ? cols.getWorkInProgress() : null,
+          cols.getReviewStarted(),
+          cols.getHasRevertOf() ? new Change.Id(cols.getRevertOf()) : null);
+    }
+
+    private static ReviewerSet toReviewerSet(List<ReviewerSetEntryProto> protos) {
+      ImmutableTable.Builder<ReviewerStateInternal, Account.Id, Timestamp> b =
+          ImmutableTable.builder();
+      for (ReviewerSetEntryProto e : protos) {
+        b.put(
+            ReviewerStateInternal.valueOf(e.getState()),
+            new Account.Id(e.getAccountId()),
+            new Timestamp(e.getTimestamp()));
+      }
+      return ReviewerSet.fromTable(b.build());
+    }
+
+    private static ReviewerByEmailSet toReviewerByEmailSet(
+        List<ReviewerByEmailSetEntryProto> protos) {
+      ImmutableTable.Builder<ReviewerStateInternal, Address, Timestamp> b =
+          ImmutableTable.builder();
+      for (ReviewerByEmailSetEntryProto e : protos) {
+        b.put(
+            ReviewerStateInternal.valueOf(e.getState()),
+            new Address(Strings.emptyToNull(e.getName()), e.getEmail()),
+            new Timestamp(e.getTimestamp()));
+      }
+      return ReviewerByEmailSet.fromTable(b.build());
+    }
+  }
 }
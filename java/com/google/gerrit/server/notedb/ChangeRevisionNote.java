@@ -85,6 +85,16 @@ class ChangeRevisionNote extends RevisionNote<Comment> {
     return comments;
   }
 
+  @Override
+  protected void onParseCompact(CompactCommentNote note) {
+    pushCert = status == PatchLineComment.Status.PUBLISHED ? note.getPushCert() : null;
+  }
+
+  @Override
+  protected Class<Comment> getCommentType() {
+    return Comment.class;
+  }
+
   private static boolean isJson(byte[] raw, int offset) {
     return raw[offset] == '{' || raw[offset] == '[';
   }
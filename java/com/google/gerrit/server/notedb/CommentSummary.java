@@ -0,0 +1,92 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.notedb;
+
+import com.google.auto.value.AutoValue;
+import com.google.gerrit.common.Nullable;
+import com.google.gerrit.reviewdb.client.Comment;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The fields of a comment that are needed to resolve comment threads.
+ *
+ * <p>Compact comment notes store these in their header, so they can be read without decoding the
+ * comment bodies.
+ */
+@AutoValue
+public abstract class CommentSummary {
+  public static CommentSummary create(Comment c) {
+    return create(c.key.uuid, c.parentUuid, c.writtenOn, c.unresolved);
+  }
+
+  static CommentSummary create(
+      String uuid, @Nullable String parentUuid, Timestamp writtenOn, boolean unresolved) {
+    return new AutoValue_CommentSummary(uuid, parentUuid, writtenOn, unresolved);
+  }
+
+  /**
+   * Count the unresolved comment threads.
+   *
+   * <p>A thread is unresolved if its latest comment is unresolved.
+   *
+   * @param comments all comments of a change.
+   * @return number of unresolved threads.
+   */
+  public static int countUnresolvedThreads(Iterable<CommentSummary> comments) {
+    // Build a map of uuid to list of direct descendants.
+    Map<String, List<CommentSummary>> forest = new HashMap<>();
+    for (CommentSummary c : comments) {
+      forest.computeIfAbsent(c.parentUuid(), k -> new ArrayList<>()).add(c);
+    }
+
+    // Find latest comment in each thread and apply to unresolved counter.
+    int unresolved = 0;
+    for (CommentSummary root : forest.getOrDefault(null, new ArrayList<>())) {
+      if (getLatestComment(forest, root).unresolved()) {
+        unresolved++;
+      }
+    }
+    return unresolved;
+  }
+
+  private static CommentSummary getLatestComment(
+      Map<String, List<CommentSummary>> forest, CommentSummary root) {
+    List<CommentSummary> children = forest.get(root.uuid());
+    if (children == null) {
+      return root;
+    }
+    CommentSummary latest = null;
+    for (CommentSummary comment : children) {
+      CommentSummary branchLatest = getLatestComment(forest, comment);
+      if (latest == null || branchLatest.writtenOn().after(latest.writtenOn())) {
+        latest = branchLatest;
+      }
+    }
+    return latest;
+  }
+
+  public abstract String uuid();
+
+  @Nullable
+  public abstract String parentUuid();
+
+  public abstract Timestamp writtenOn();
+
+  public abstract boolean unresolved();
+}
@@ -0,0 +1,213 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.notedb;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.collect.ImmutableList;
+import com.google.gerrit.common.Nullable;
+import com.google.gerrit.reviewdb.client.Comment;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import org.eclipse.jgit.errors.ConfigInvalidException;
+
+/**
+ * Compact binary encoding of the comments of a revision note.
+ *
+ * <p>The note starts with a header that holds the number of comments and a {@link CommentSummary}
+ * per comment, so that comment counts and thread resolution can be read without decoding the
+ * comments. The comments themselves follow the header as individual JSON documents, encoded like
+ * in JSON revision notes. All numbers are big-endian:
+ *
+ * <pre>
+ * magic       3 bytes   0xFF 'G' 'C'
+ * version     1 byte    1
+ * count       int32     number of comments
+ * unresolved  int32     number of comments with the unresolved flag set
+ * pushCert    int32     length of the UTF-8 encoded push certificate, -1 if absent
+ *             bytes     push certificate
+ * index       count times:
+ *               UTF     uuid
+ *               byte    1 if a parent UUID follows, 0 otherwise
+ *               UTF     parent UUID
+ *               int64   written on, in milliseconds truncated to seconds
+ *               byte    flags, 1 if unresolved
+ *               int32   length of the comment
+ * comments    count times the UTF-8 encoded JSON of the comment
+ * </pre>
+ *
+ * <p>The first byte can't start a JSON or legacy revision note, so the formats can be read side by
+ * side.
+ */
+class CompactCommentNote {
+  private static final byte[] MAGIC = {(byte) 0xFF, 'G', 'C'};
+  private static final int VERSION = 1;
+  private static final int FLAG_UNRESOLVED = 1;
+
+  // Unlike ChangeNoteUtil#getGson(), don't pretty print.
+  private static final Gson GSON =
+      new GsonBuilder()
+          .registerTypeAdapter(Timestamp.class, new CommentTimestampAdapter().nullSafe())
+          .create();
+
+  static boolean isCompact(byte[] raw, int offset) {
+    if (raw.length - offset < MAGIC.length) {
+      return false;
+    }
+    for (int i = 0; i < MAGIC.length; i++) {
+      if (raw[offset + i] != MAGIC[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  static void write(@Nullable String pushCert, List<? extends Comment> comments, OutputStream out)
+      throws IOException {
+    List<byte[]> bodies = new ArrayList<>(comments.size());
+    int unresolved = 0;
+    for (Comment c : comments) {
+      bodies.add(GSON.toJson(c).getBytes(UTF_8));
+      if (c.unresolved) {
+        unresolved++;
+      }
+    }
+
+    ByteArrayOutputStream buf = new ByteArrayOutputStream();
+    DataOutputStream dout = new DataOutputStream(buf);
+    dout.write(MAGIC);
+    dout.writeByte(VERSION);
+    dout.writeInt(comments.size());
+    dout.writeInt(unresolved);
+    if (pushCert != null) {
+      byte[] cert = pushCert.getBytes(UTF_8);
+      dout.writeInt(cert.length);
+      dout.write(cert);
+    } else {
+      dout.writeInt(-1);
+    }
+    for (int i = 0; i < comments.size(); i++) {
+      Comment c = comments.get(i);
+      dout.writeUTF(c.key.uuid);
+      dout.writeBoolean(c.parentUuid != null);
+      if (c.parentUuid != null) {
+        dout.writeUTF(c.parentUuid);
+      }
+      dout.writeLong(c.writtenOn.getTime() / 1000 * 1000);
+      dout.writeByte(c.unresolved ? FLAG_UNRESOLVED : 0);
+      dout.writeInt(bodies.get(i).length);
+    }
+    for (byte[] body : bodies) {
+      dout.write(body);
+    }
+    dout.flush();
+    buf.writeTo(out);
+  }
+
+  static CompactCommentNote parse(byte[] raw, int offset) throws ConfigInvalidException {
+    try {
+      ByteArrayInputStream bin = new ByteArrayInputStream(raw, offset, raw.length - offset);
+      DataInputStream in = new DataInputStream(bin);
+      in.skipBytes(MAGIC.length);
+      int version = in.readUnsignedByte();
+      if (version != VERSION) {
+        throw new ConfigInvalidException("unsupported compact comment note version " + version);
+      }
+      int count = in.readInt();
+      if (count < 0) {
+        throw new ConfigInvalidException("invalid compact comment note: negative comment count");
+      }
+      // Number of unresolved comments, only for readers that don't need the index.
+      in.readInt();
+      String pushCert = null;
+      int certLength = in.readInt();
+      if (certLength >= 0) {
+        byte[] cert = new byte[certLength];
+        in.readFully(cert);
+        pushCert = new String(cert, UTF_8);
+      }
+
+      ImmutableList.Builder<CommentSummary> summaries = ImmutableList.builder();
+      int[] lengths = new int[count];
+      for (int i = 0; i < count; i++) {
+        String uuid = in.readUTF();
+        String parentUuid = in.readBoolean() ? in.readUTF() : null;
+        Timestamp writtenOn = new Timestamp(in.readLong());
+        boolean isUnresolved = (in.readByte() & FLAG_UNRESOLVED) != 0;
+        summaries.add(CommentSummary.create(uuid, parentUuid, writtenOn, isUnresolved));
+        lengths[i] = in.readInt();
+      }
+
+      int[] offsets = new int[count];
+      int p = raw.length - bin.available();
+      for (int i = 0; i < count; i++) {
+        offsets[i] = p;
+        p += lengths[i];
+      }
+      if (p != raw.length) {
+        throw new ConfigInvalidException("invalid compact comment note: comments don't add up");
+      }
+      return new CompactCommentNote(raw, pushCert, summaries.build(), offsets, lengths);
+    } catch (IOException e) {
+      throw new ConfigInvalidException("invalid compact comment note", e);
+    }
+  }
+
+  private final byte[] raw;
+  private final String pushCert;
+  private final ImmutableList<CommentSummary> summaries;
+  private final int[] offsets;
+  private final int[] lengths;
+
+  private CompactCommentNote(
+      byte[] raw,
+      @Nullable String pushCert,
+      ImmutableList<CommentSummary> summaries,
+      int[] offsets,
+      int[] lengths) {
+    this.raw = raw;
+    this.pushCert = pushCert;
+    this.summaries = summaries;
+    this.offsets = offsets;
+    this.lengths = lengths;
+  }
+
+  @Nullable
+  String getPushCert() {
+    return pushCert;
+  }
+
+  ImmutableList<CommentSummary> getSummaries() {
+    return summaries;
+  }
+
+  /** Decode the comments, which is only done when they are actually needed. */
+  <T extends Comment> ImmutableList<T> decodeComments(Class<T> type) {
+    ImmutableList.Builder<T> comments = ImmutableList.builderWithExpectedSize(offsets.length);
+    for (int i = 0; i < offsets.length; i++) {
+      comments.add(GSON.fromJson(new String(raw, offsets[i], lengths[i], UTF_8), type));
+    }
+    return comments.build();
+  }
+}
@@ -18,6 +18,7 @@ import com.google.gerrit.metrics.Counter1;
 import com.google.gerrit.metrics.Description;
 import com.google.gerrit.metrics.Description.Units;
 import com.google.gerrit.metrics.Field;
+import com.google.gerrit.metrics.Histogram0;
 import com.google.gerrit.metrics.MetricMaker;
 import com.google.gerrit.metrics.Timer1;
 import com.google.inject.Inject;
@@ -25,6 +26,35 @@ import com.google.inject.Singleton;
 
 @Singleton
 class NoteDbMetrics {
+  /** How the state of a change was obtained when loading its notes. */
+  enum LoadSource {
+    /** Found in the {@link ChangeNotesCache}. */
+    CACHED,
+    /** Parsed incrementally from an earlier cached state. */
+    INCREMENTAL,
+    /** Parsed from the full meta history. */
+    FULL
+  }
+
+  /** Buckets of meta history length, in commits. */
+  enum HistoryLength {
+    UP_TO_10,
+    UP_TO_100,
+    UP_TO_1000,
+    OVER_1000;
+
+    static HistoryLength of(int commits) {
+      if (commits <= 10) {
+        return UP_TO_10;
+      } else if (commits <= 100) {
+        return UP_TO_100;
+      } else if (commits <= 1000) {
+        return UP_TO_1000;
+      }
+      return OVER_1000;
+    }
+  }
+
   /** End-to-end latency for writing a collection of updates. */
   final Timer1<NoteDbTable> updateLatency;
 
@@ -54,6 +84,27 @@ class NoteDbMetrics {
   /** Count of auto-rebuild attempts that failed. */
   final Counter1<NoteDbTable> autoRebuildFailureCount;
 
+  /**
+   * Count of attempts to parse changes incrementally from a cached state, by whether the attempt
+   * succeeded or fell back to a full parse.
+   */
+  final Counter1<Boolean> incrementalParseCount;
+
+  /** Count of change state loads, by whether they were served from the cache or parsed. */
+  final Counter1<LoadSource> changeLoadCount;
+
+  /** Latency of parsing the full meta history of a change, by the length of the history. */
+  final Timer1<HistoryLength> parseLatencyByHistoryLength;
+
+  /** Number of meta commits read per parse of a change. */
+  final Histogram0 parsedMetaCommits;
+
+  /** Total size of the revision notes read per parse of a change. */
+  final Histogram0 parsedNoteBytes;
+
+  /** Number of published comments of a parsed change. */
+  final Histogram0 parsedComments;
+
   @Inject
   NoteDbMetrics(MetricMaker metrics) {
     Field<NoteDbTable> view = Field.ofEnum(NoteDbTable.class, "table");
@@ -103,5 +154,49 @@ class NoteDbMetrics {
             "notedb/auto_rebuild_failure_count",
             new Description("NoteDb auto-rebuilding attempts that failed by table").setCumulative(),
             view);
+
+    incrementalParseCount =
+        metrics.newCounter(
+            "notedb/incremental_parse_count",
+            new Description("Attempts to parse changes incrementally from a cached state")
+                .setCumulative(),
+            Field.ofBoolean("success"));
+
+    changeLoadCount =
+        metrics.newCounter(
+            "notedb/change_load_count",
+            new Description("Loads of change states, by whether they were cached or parsed")
+                .setCumulative()
+                .setUnit("loads"),
+            Field.ofEnum(LoadSource.class, "source"));
+
+    parseLatencyByHistoryLength =
+        metrics.newTimer(
+            "notedb/full_parse_latency_by_history_length",
+            new Description("Latency for parsing the full meta history of changes by its length")
+                .setCumulative()
+                .setUnit(Units.MICROSECONDS),
+            Field.ofEnum(HistoryLength.class, "history_length"));
+
+    parsedMetaCommits =
+        metrics.newHistogram(
+            "notedb/parsed_meta_commits",
+            new Description("Number of meta commits read per parse of a change")
+                .setCumulative()
+                .setUnit("commits"));
+
+    parsedNoteBytes =
+        metrics.newHistogram(
+            "notedb/parsed_note_bytes",
+            new Description("Size of the revision notes read per parse of a change")
+                .setCumulative()
+                .setUnit(Units.BYTES));
+
+    parsedComments =
+        metrics.newHistogram(
+            "notedb/parsed_comments",
+            new Description("Number of published comments per parsed change")
+                .setCumulative()
+                .setUnit("comments"));
   }
 }
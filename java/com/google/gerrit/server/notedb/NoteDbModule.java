@@ -29,6 +29,7 @@ import com.google.gerrit.server.notedb.rebuild.NotesMigrationStateListener;
 import com.google.inject.TypeLiteral;
 import com.google.inject.name.Names;
 import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.lib.ObjectId;
 
 public class NoteDbModule extends FactoryModule {
   private final Config cfg;
@@ -60,6 +61,7 @@ public class NoteDbModule extends FactoryModule {
 
     if (!useTestBindings) {
       install(ChangeNotesCache.module());
+      install(RobotCommentCache.module());
       if (cfg.getBoolean("noteDb", null, "testRebuilderWrapper", false)) {
         // Yes, another variety of test bindings with a different way of
         // configuring it.
@@ -110,6 +112,9 @@ public class NoteDbModule extends FactoryModule {
       bind(new TypeLiteral<Cache<ChangeNotesCache.Key, ChangeNotesState>>() {})
           .annotatedWith(Names.named(ChangeNotesCache.CACHE_NAME))
           .toInstance(CacheBuilder.newBuilder().<ChangeNotesCache.Key, ChangeNotesState>build());
+      bind(new TypeLiteral<Cache<ObjectId, RobotCommentsRevisionNote>>() {})
+          .annotatedWith(Names.named(RobotCommentCache.CACHE_NAME))
+          .toInstance(CacheBuilder.newBuilder().<ObjectId, RobotCommentsRevisionNote>build());
     }
   }
 }
@@ -251,6 +251,7 @@ public class NoteDbUpdateManager implements AutoCloseable {
   private final NotesMigration migration;
   private final AllUsersName allUsersName;
   private final NoteDbMetrics metrics;
+  private final AllUsersRefUpdateBatcher allUsersBatcher;
   private final Project.NameKey projectName;
   private final ListMultimap<String, ChangeUpdate> changeUpdates;
   private final ListMultimap<String, ChangeDraftUpdate> draftUpdates;
@@ -275,12 +276,14 @@ public class NoteDbUpdateManager implements AutoCloseable {
       NotesMigration migration,
       AllUsersName allUsersName,
       NoteDbMetrics metrics,
+      AllUsersRefUpdateBatcher allUsersBatcher,
       @Assisted Project.NameKey projectName) {
     this.serverIdent = serverIdent;
     this.repoManager = repoManager;
     this.migration = migration;
     this.allUsersName = allUsersName;
     this.metrics = metrics;
+    this.allUsersBatcher = allUsersBatcher;
     this.projectName = projectName;
     changeUpdates = MultimapBuilder.hashKeys().arrayListValues().build();
     draftUpdates = MultimapBuilder.hashKeys().arrayListValues().build();
@@ -633,6 +636,16 @@ public class NoteDbUpdateManager implements AutoCloseable {
       or.flushToFinalInserter();
     }
 
+    if (!dryrun && or == allUsersRepo && canBatch(or)) {
+      // Draft updates of concurrent requests are coalesced into a single batch; the commands of
+      // this update are still applied with their own compare-and-swap.
+      allUsersBatcher.executeChecked(
+          or.cmds.getCommands().values(),
+          refLogIdent,
+          refLogMessage != null ? refLogMessage : guessRestApiHandler());
+      return null;
+    }
+
     BatchRefUpdate bru = or.repo.getRefDatabase().newBatchUpdate();
     bru.setPushCertificate(pushCert);
     if (refLogMessage != null) {
@@ -651,6 +664,14 @@ public class NoteDbUpdateManager implements AutoCloseable {
     return bru;
   }
 
+  private boolean canBatch(OpenRepo or) {
+    // The batcher opens All-Users itself, so a repository passed in by the caller must be updated
+    // directly. Updates of multiple refs can't be coalesced if they must be atomic.
+    return allUsersBatcher.isEnabled()
+        && or.close
+        && (!atomicRefUpdates || or.cmds.getCommands().size() == 1);
+  }
+
   private static String guessRestApiHandler() {
     StackTraceElement[] trace = Thread.currentThread().getStackTrace();
     int i = findRestApiServlet(trace);
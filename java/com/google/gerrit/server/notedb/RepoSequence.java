@@ -33,6 +33,7 @@ import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
 import com.google.common.primitives.Ints;
 import com.google.common.util.concurrent.Runnables;
+import com.google.common.util.concurrent.Uninterruptibles;
 import com.google.gerrit.common.Nullable;
 import com.google.gerrit.reviewdb.client.Project;
 import com.google.gerrit.reviewdb.client.RefNames;
@@ -44,7 +45,11 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 import org.eclipse.jgit.errors.IncorrectObjectTypeException;
@@ -67,6 +72,10 @@ import org.eclipse.jgit.transport.ReceiveCommand;
  * processes can increment the counter by a larger number and hand out numbers from that range in
  * memory until they run out. This means concurrent processes will hand out somewhat non-monotonic
  * numbers.
+ *
+ * <p>Numbers are taken from the in-memory range without locking; only replacing an exhausted range
+ * is serialized. If a prefetch executor is given, the next range is acquired in the background
+ * before the current one runs out, so callers don't have to wait for the ref update.
  */
 public class RepoSequence {
   @FunctionalInterface
@@ -74,6 +83,27 @@ public class RepoSequence {
     int get() throws OrmException;
   }
 
+  /** Observes how IDs are acquired from the repository, e.g. to record metrics. */
+  public interface Listener {
+    Listener NONE = new Listener() {};
+
+    /**
+     * Called after an attempt to acquire a batch of IDs finished, successfully or not.
+     *
+     * @param prefetch whether the batch was acquired in the background before it was needed.
+     * @param retries number of times the ref update was retried due to lock failures.
+     * @param elapsedNanos time spent acquiring the batch.
+     */
+    default void onAcquire(boolean prefetch, int retries, long elapsedNanos) {}
+
+    /**
+     * Called when acquired IDs are dropped without being handed out.
+     *
+     * @param count number of dropped IDs.
+     */
+    default void onWasted(int count) {}
+  }
+
   @VisibleForTesting
   static RetryerBuilder<RefUpdate.Result> retryerBuilder() {
     return RetryerBuilder.<RefUpdate.Result>newBuilder()
@@ -96,14 +126,17 @@ public class RepoSequence {
   private final int batchSize;
   private final Runnable afterReadRef;
   private final Retryer<RefUpdate.Result> retryer;
+  @Nullable private final ExecutorService prefetchExecutor;
+  private final Listener listener;
 
-  // Protects all non-final fields.
+  // Protects replacing the current block and the prefetch. IDs are taken from the current block
+  // without holding the lock.
   private final Lock counterLock;
 
-  private int limit;
-  private int counter;
+  private volatile Block current = Block.EMPTY;
+  private Future<Block> prefetch;
 
-  @VisibleForTesting int acquireCount;
+  @VisibleForTesting final AtomicInteger acquireCount = new AtomicInteger();
 
   public RepoSequence(
       GitRepositoryManager repoManager,
@@ -121,7 +154,9 @@ public class RepoSequence {
         batchSize,
         Runnables.doNothing(),
         RETRYER,
-        0);
+        0,
+        null,
+        Listener.NONE);
   }
 
   public RepoSequence(
@@ -141,7 +176,42 @@ public class RepoSequence {
         batchSize,
         Runnables.doNothing(),
         RETRYER,
-        floor);
+        floor,
+        null,
+        Listener.NONE);
+  }
+
+  /**
+   * Create a sequence that acquires the next batch of IDs in the background.
+   *
+   * <p>Once half of the current batch was handed out, the next batch is acquired on {@code
+   * prefetchExecutor}, so that callers rarely need to wait for a ref update.
+   *
+   * @param prefetchExecutor executor to acquire batches on, or null to acquire them only when
+   *     needed.
+   * @param listener listener notified about acquired and dropped IDs.
+   */
+  public RepoSequence(
+      GitRepositoryManager repoManager,
+      GitReferenceUpdated gitRefUpdated,
+      Project.NameKey projectName,
+      String name,
+      Seed seed,
+      int batchSize,
+      @Nullable ExecutorService prefetchExecutor,
+      Listener listener) {
+    this(
+        repoManager,
+        gitRefUpdated,
+        projectName,
+        name,
+        seed,
+        batchSize,
+        Runnables.doNothing(),
+        RETRYER,
+        0,
+        prefetchExecutor,
+        listener);
   }
 
   @VisibleForTesting
@@ -154,7 +224,18 @@ public class RepoSequence {
       int batchSize,
       Runnable afterReadRef,
       Retryer<RefUpdate.Result> retryer) {
-    this(repoManager, gitRefUpdated, projectName, name, seed, batchSize, afterReadRef, retryer, 0);
+    this(
+        repoManager,
+        gitRefUpdated,
+        projectName,
+        name,
+        seed,
+        batchSize,
+        afterReadRef,
+        retryer,
+        0,
+        null,
+        Listener.NONE);
   }
 
   RepoSequence(
@@ -166,7 +247,9 @@ public class RepoSequence {
       int batchSize,
       Runnable afterReadRef,
       Retryer<RefUpdate.Result> retryer,
-      int floor) {
+      int floor,
+      @Nullable ExecutorService prefetchExecutor,
+      Listener listener) {
     this.repoManager = checkNotNull(repoManager, "repoManager");
     this.gitRefUpdated = checkNotNull(gitRefUpdated, "gitRefUpdated");
     this.projectName = checkNotNull(projectName, "projectName");
@@ -186,20 +269,14 @@ public class RepoSequence {
     this.batchSize = batchSize;
     this.afterReadRef = checkNotNull(afterReadRef, "afterReadRef");
     this.retryer = checkNotNull(retryer, "retryer");
+    this.prefetchExecutor = prefetchExecutor;
+    this.listener = checkNotNull(listener, "listener");
 
     counterLock = new ReentrantLock(true);
   }
 
   public int next() throws OrmException {
-    counterLock.lock();
-    try {
-      if (counter >= limit) {
-        acquire(batchSize);
-      }
-      return counter++;
-    } finally {
-      counterLock.unlock();
-    }
+    return next(1).get(0);
   }
 
   public ImmutableList<Integer> next(int count) throws OrmException {
@@ -207,23 +284,24 @@ public class RepoSequence {
       return ImmutableList.of();
     }
     checkArgument(count > 0, "count is negative: %s", count);
-    counterLock.lock();
-    try {
-      List<Integer> ids = new ArrayList<>(count);
-      while (counter < limit) {
-        ids.add(counter++);
-        if (ids.size() == count) {
-          return ImmutableList.copyOf(ids);
+    List<Integer> ids = new ArrayList<>(count);
+    current.take(count, ids);
+    if (ids.size() < count) {
+      counterLock.lock();
+      try {
+        // Another caller may have replaced the block while we were waiting for the lock.
+        current.take(count - ids.size(), ids);
+        while (ids.size() < count) {
+          Block next = nextBlock(count - ids.size());
+          next.take(count - ids.size(), ids);
+          current = next;
         }
+      } finally {
+        counterLock.unlock();
       }
-      acquire(Math.max(count - ids.size(), batchSize));
-      while (ids.size() < count) {
-        ids.add(counter++);
-      }
-      return ImmutableList.copyOf(ids);
-    } finally {
-      counterLock.unlock();
     }
+    maybePrefetch();
+    return ImmutableList.copyOf(ids);
   }
 
   @VisibleForTesting
@@ -232,10 +310,10 @@ public class RepoSequence {
     // concurrently with other writes is doing it wrong.
     counterLock.lock();
     try {
+      discardBlocks();
       try (Repository repo = repoManager.openRepository(projectName);
           RevWalk rw = new RevWalk(repo)) {
         checkResult(store(repo, rw, null, val));
-        counter = limit;
       } catch (IOException e) {
         throw new OrmException(e);
       }
@@ -247,11 +325,11 @@ public class RepoSequence {
   public void increaseTo(int val) throws OrmException {
     counterLock.lock();
     try {
+      discardBlocks();
       try (Repository repo = repoManager.openRepository(projectName);
           RevWalk rw = new RevWalk(repo)) {
         TryIncreaseTo attempt = new TryIncreaseTo(repo, rw, val);
         checkResult(retryer.call(attempt));
-        counter = limit;
       } catch (ExecutionException | RetryException e) {
         if (e.getCause() != null) {
           Throwables.throwIfInstanceOf(e.getCause(), OrmException.class);
@@ -265,14 +343,70 @@ public class RepoSequence {
     }
   }
 
-  private void acquire(int count) throws OrmException {
+  /** Returns the prefetched block if there is one, otherwise acquires a block. */
+  private Block nextBlock(int needed) throws OrmException {
+    Block prefetched = takePrefetched();
+    if (prefetched != null) {
+      return prefetched;
+    }
+    return acquire(Math.max(needed, batchSize), false);
+  }
+
+  @Nullable
+  private Block takePrefetched() {
+    if (prefetch == null) {
+      return null;
+    }
+    try {
+      return Uninterruptibles.getUninterruptibly(prefetch);
+    } catch (ExecutionException e) {
+      // Acquire again in the calling thread, which reports the error if it persists.
+      return null;
+    } finally {
+      prefetch = null;
+    }
+  }
+
+  /** Starts acquiring the next block in the background once the current block runs low. */
+  private void maybePrefetch() {
+    if (prefetchExecutor == null
+        || prefetch != null
+        || current.remaining() > batchSize / 2
+        || !counterLock.tryLock()) {
+      return;
+    }
+    try {
+      if (prefetch == null && current.remaining() <= batchSize / 2) {
+        prefetch = prefetchExecutor.submit(() -> acquire(batchSize, true));
+      }
+    } catch (RejectedExecutionException e) {
+      // Executor is shutting down, acquire in the calling thread.
+    } finally {
+      counterLock.unlock();
+    }
+  }
+
+  /** Drops all IDs that were acquired but not handed out yet. */
+  private void discardBlocks() {
+    int wasted = current.drain();
+    Block prefetched = takePrefetched();
+    if (prefetched != null) {
+      wasted += prefetched.drain();
+    }
+    if (wasted > 0) {
+      listener.onWasted(wasted);
+    }
+  }
+
+  private Block acquire(int count, boolean background) throws OrmException {
+    long start = System.nanoTime();
+    TryAcquire attempt = null;
     try (Repository repo = repoManager.openRepository(projectName);
         RevWalk rw = new RevWalk(repo)) {
-      TryAcquire attempt = new TryAcquire(repo, rw, count);
+      attempt = new TryAcquire(repo, rw, count);
       checkResult(retryer.call(attempt));
-      counter = attempt.next;
-      limit = counter + count;
-      acquireCount++;
+      acquireCount.incrementAndGet();
+      return new Block(attempt.next, attempt.next + count);
     } catch (ExecutionException | RetryException e) {
       if (e.getCause() != null) {
         Throwables.throwIfInstanceOf(e.getCause(), OrmException.class);
@@ -280,6 +414,9 @@ public class RepoSequence {
       throw new OrmException(e);
     } catch (IOException e) {
       throw new OrmException(e);
+    } finally {
+      int retries = attempt != null ? Math.max(attempt.attempts - 1, 0) : 0;
+      listener.onAcquire(background, retries, System.nanoTime() - start);
     }
   }
 
@@ -299,6 +436,7 @@ public class RepoSequence {
     private final int count;
 
     private int next;
+    private int attempts;
 
     private TryAcquire(Repository repo, RevWalk rw, int count) {
       this.repo = repo;
@@ -308,6 +446,7 @@ public class RepoSequence {
 
     @Override
     public RefUpdate.Result call() throws Exception {
+      attempts++;
       Ref ref = repo.exactRef(refName);
       afterReadRef.run();
       ObjectId oldId;
@@ -389,6 +528,45 @@ public class RepoSequence {
     return result;
   }
 
+  /** Range of acquired IDs that are handed out in memory. */
+  private static class Block {
+    static final Block EMPTY = new Block(0, 0);
+
+    private final AtomicInteger next;
+    private final int limit;
+
+    Block(int start, int limit) {
+      this.next = new AtomicInteger(start);
+      this.limit = limit;
+    }
+
+    int remaining() {
+      return Math.max(limit - next.get(), 0);
+    }
+
+    /** Takes up to {@code count} consecutive IDs and appends them to {@code ids}. */
+    void take(int count, List<Integer> ids) {
+      while (true) {
+        int start = next.get();
+        int n = Math.min(count, limit - start);
+        if (n <= 0) {
+          return;
+        }
+        if (next.compareAndSet(start, start + n)) {
+          for (int i = 0; i < n; i++) {
+            ids.add(start + i);
+          }
+          return;
+        }
+      }
+    }
+
+    /** Takes all remaining IDs and returns their number. */
+    int drain() {
+      return Math.max(limit - next.getAndSet(limit), 0);
+    }
+  }
+
   public static ReceiveCommand storeNew(ObjectInserter ins, String name, int val)
       throws IOException {
     ObjectId newId = ins.insert(OBJ_BLOB, Integer.toString(val).getBytes(UTF_8));
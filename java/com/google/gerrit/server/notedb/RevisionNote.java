@@ -15,6 +15,7 @@
 package com.google.gerrit.server.notedb;
 
 import static com.google.common.base.Preconditions.checkState;
+import static com.google.common.collect.ImmutableList.toImmutableList;
 import static org.eclipse.jgit.lib.Constants.OBJ_BLOB;
 
 import com.google.common.collect.ImmutableList;
@@ -35,11 +36,14 @@ abstract class RevisionNote<T extends Comment> {
     }
   }
 
-  private final ObjectReader reader;
+  // Only needed until the note is parsed, so that parsed notes can be cached without the reader.
+  private ObjectReader reader;
   private final ObjectId noteId;
 
   private byte[] raw;
-  private ImmutableList<T> comments;
+  // Decoded lazily for compact notes; notes may be shared through the ChangeNotesCache.
+  private volatile ImmutableList<T> comments;
+  private CompactCommentNote compact;
 
   RevisionNote(ObjectReader reader, ObjectId noteId) {
     this.reader = reader;
@@ -53,11 +57,31 @@ abstract class RevisionNote<T extends Comment> {
 
   public ImmutableList<T> getComments() {
     checkParsed();
-    return comments;
+    ImmutableList<T> result = comments;
+    if (result == null) {
+      result = compact.decodeComments(getCommentType());
+      comments = result;
+    }
+    return result;
+  }
+
+  /**
+   * Get the summaries of the comments in this note.
+   *
+   * <p>For compact notes, this doesn't decode the comments.
+   */
+  public ImmutableList<CommentSummary> getSummaries() {
+    checkParsed();
+    if (compact != null) {
+      return compact.getSummaries();
+    }
+    return getComments().stream().map(CommentSummary::create).collect(toImmutableList());
   }
 
   public void parse() throws IOException, ConfigInvalidException {
+    checkState(reader != null, "revision note already parsed");
     raw = reader.open(noteId, OBJ_BLOB).getCachedBytes(MAX_NOTE_SZ);
+    reader = null;
     MutableInteger p = new MutableInteger();
     trimLeadingEmptyLines(raw, p);
     if (p.value >= raw.length) {
@@ -65,12 +89,23 @@ abstract class RevisionNote<T extends Comment> {
       return;
     }
 
+    if (CompactCommentNote.isCompact(raw, p.value)) {
+      compact = CompactCommentNote.parse(raw, p.value);
+      comments = null;
+      onParseCompact(compact);
+      return;
+    }
     comments = ImmutableList.copyOf(parse(raw, p.value));
   }
 
   protected abstract List<T> parse(byte[] raw, int offset)
       throws IOException, ConfigInvalidException;
 
+  /** Called after the header of a compact note was parsed; comments are decoded later. */
+  protected void onParseCompact(CompactCommentNote note) {}
+
+  protected abstract Class<T> getCommentType();
+
   protected void checkParsed() {
     checkState(raw != null, "revision note not parsed yet");
   }
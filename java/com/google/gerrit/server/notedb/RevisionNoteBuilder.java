@@ -84,10 +84,12 @@ class RevisionNoteBuilder {
 
   public byte[] build(ChangeNoteUtil noteUtil, boolean writeJson) throws IOException {
     ByteArrayOutputStream out = new ByteArrayOutputStream();
-    if (writeJson) {
-      buildNoteJson(noteUtil, out);
-    } else {
+    if (!writeJson) {
       buildNoteLegacy(noteUtil, out);
+    } else if (noteUtil.getWriteCompactComments()) {
+      buildNoteCompact(out);
+    } else {
+      buildNoteJson(noteUtil, out);
     }
     return out.toByteArray();
   }
@@ -137,6 +139,14 @@ class RevisionNoteBuilder {
     }
   }
 
+  private void buildNoteCompact(OutputStream out) throws IOException {
+    ListMultimap<Integer, Comment> comments = buildCommentMap();
+    if (comments.isEmpty() && pushCert == null) {
+      return;
+    }
+    CompactCommentNote.write(pushCert, COMMENT_ORDER.sortedCopy(comments.values()), out);
+  }
+
   private void buildNoteLegacy(ChangeNoteUtil noteUtil, OutputStream out) throws IOException {
     if (pushCert != null) {
       byte[] certBytes = pushCert.getBytes(UTF_8);
@@ -0,0 +1,240 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.notedb;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.gerrit.common.Nullable;
+import com.google.gerrit.reviewdb.client.Change;
+import com.google.gerrit.reviewdb.client.PatchSet;
+import com.google.gerrit.reviewdb.client.RefNames;
+import com.google.gerrit.reviewdb.client.RobotComment;
+import com.google.gerrit.server.cache.CacheModule;
+import com.google.gerrit.server.git.GitRepositoryManager;
+import com.google.gwtorm.server.OrmException;
+import com.google.inject.Inject;
+import com.google.inject.Module;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import org.eclipse.jgit.errors.ConfigInvalidException;
+import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.notes.Note;
+import org.eclipse.jgit.notes.NoteMap;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+
+/**
+ * Cache of robot comments, independent of {@link ChangeNotes}.
+ *
+ * <p>Robot comments can be numerous and large, but only few callers need them. Loading them through
+ * {@link ChangeNotes} keeps all robot comments of a change in memory for as long as the notes are
+ * held, e.g. by {@link com.google.gerrit.server.query.change.ChangeData}. Instead, callers get the
+ * robot comments of one patch set or file from this class, while the parsed revision notes are held
+ * in their own cache, which is weighed separately from the {@code change_notes} cache.
+ *
+ * <p>Entries are keyed by the SHA-1 of the revision note blob, so they never become stale, and
+ * entries of patch sets whose robot comments didn't change are reused when the robot comments ref
+ * is updated. Compact notes are only decoded when the comments, rather than their summaries, are
+ * requested.
+ */
+@Singleton
+public class RobotCommentCache {
+  @VisibleForTesting static final String CACHE_NAME = "robot_comments";
+
+  public static Module module() {
+    return new CacheModule() {
+      @Override
+      protected void configure() {
+        bind(RobotCommentCache.class);
+        cache(CACHE_NAME, ObjectId.class, RobotCommentsRevisionNote.class)
+            .weigher(Weigher.class)
+            .maximumWeight(20 << 20);
+      }
+    };
+  }
+
+  public static class Weigher
+      implements com.google.common.cache.Weigher<ObjectId, RobotCommentsRevisionNote> {
+    @Override
+    public int weigh(ObjectId key, RobotCommentsRevisionNote note) {
+      // The raw note is kept, and decoded strings take about twice as much memory as their UTF-8
+      // encoding. Parsed notes don't hold on to the reader they were read with.
+      return 3 * note.getRaw().length + 64;
+    }
+  }
+
+  private final GitRepositoryManager repoManager;
+  private final ChangeNoteUtil noteUtil;
+  private final Cache<ObjectId, RobotCommentsRevisionNote> cache;
+
+  @Inject
+  RobotCommentCache(
+      GitRepositoryManager repoManager,
+      ChangeNoteUtil noteUtil,
+      @Named(CACHE_NAME) Cache<ObjectId, RobotCommentsRevisionNote> cache) {
+    this.repoManager = repoManager;
+    this.noteUtil = noteUtil;
+    this.cache = cache;
+  }
+
+  /**
+   * Get the robot comments of a patch set.
+   *
+   * <p>Only the notes of the patch set revision and of its base are read: comments on the base of
+   * a patch set are stored in the note of its parent, or of its auto-merge for merge commits. If
+   * the patch set or its auto-merge is unknown, the notes of all revisions are looked at.
+   *
+   * @param notes notes of the change.
+   * @param psId patch set to get the robot comments of.
+   * @param file if not null, only return robot comments on this file.
+   * @return robot comments of the patch set.
+   */
+  public ImmutableList<RobotComment> get(
+      ChangeNotes notes, PatchSet.Id psId, @Nullable String file) throws OrmException {
+    ImmutableList.Builder<RobotComment> result = ImmutableList.builder();
+    for (RobotCommentsRevisionNote rn : load(notes, psId)) {
+      for (RobotComment c : rn.getComments()) {
+        if (c.key.patchSetId == psId.get() && (file == null || file.equals(c.key.filename))) {
+          result.add(c);
+        }
+      }
+    }
+    return result.build();
+  }
+
+  /**
+   * Get all robot comments of a change.
+   *
+   * @param notes notes of the change.
+   * @return robot comments of all patch sets.
+   */
+  public ImmutableList<RobotComment> getAll(ChangeNotes notes) throws OrmException {
+    ImmutableList.Builder<RobotComment> result = ImmutableList.builder();
+    for (RobotCommentsRevisionNote rn : load(notes, null)) {
+      result.addAll(rn.getComments());
+    }
+    return result.build();
+  }
+
+  /**
+   * Get the summaries of all robot comments of a change.
+   *
+   * <p>Unlike {@link #getAll(ChangeNotes)}, this doesn't decode comments stored in compact notes.
+   *
+   * @param notes notes of the change.
+   * @return summaries of the robot comments of all patch sets.
+   */
+  public ImmutableList<CommentSummary> getSummaries(ChangeNotes notes) throws OrmException {
+    ImmutableList.Builder<CommentSummary> result = ImmutableList.builder();
+    for (RobotCommentsRevisionNote rn : load(notes, null)) {
+      result.addAll(rn.getSummaries());
+    }
+    return result.build();
+  }
+
+  private ImmutableList<RobotCommentsRevisionNote> load(
+      ChangeNotes notes, @Nullable PatchSet.Id psId) throws OrmException {
+    Change.Id changeId = notes.getChangeId();
+    try (Repository repo = repoManager.openRepository(notes.getProjectName());
+        RevWalk rw = new RevWalk(repo)) {
+      NoteMap noteMap = readNoteMap(repo, rw, changeId);
+      if (noteMap == null) {
+        return ImmutableList.of();
+      }
+      PatchSet ps = psId != null ? notes.getPatchSets().get(psId) : null;
+      ImmutableSet<ObjectId> revisions = ps != null ? revisionsOf(repo, rw, ps) : null;
+      ImmutableList.Builder<RobotCommentsRevisionNote> result = ImmutableList.builder();
+      if (revisions == null) {
+        for (Note note : noteMap) {
+          result.add(load(rw.getObjectReader(), note.getData()));
+        }
+      } else {
+        for (ObjectId revision : revisions) {
+          ObjectId noteId = noteMap.get(revision);
+          if (noteId != null) {
+            result.add(load(rw.getObjectReader(), noteId));
+          }
+        }
+      }
+      return result.build();
+    } catch (IOException | ConfigInvalidException e) {
+      throw new OrmException("Failed to read robot comments of change " + changeId, e);
+    }
+  }
+
+  /**
+   * Get the revisions whose notes may hold robot comments of a patch set.
+   *
+   * @return the patch set revision, its parents and, for merge commits, its auto-merge; null if
+   *     the revision or its auto-merge is not available.
+   */
+  @Nullable
+  private static ImmutableSet<ObjectId> revisionsOf(Repository repo, RevWalk rw, PatchSet ps)
+      throws IOException {
+    RevCommit commit;
+    try {
+      commit = rw.parseCommit(ObjectId.fromString(ps.getRevision().get()));
+    } catch (MissingObjectException e) {
+      return null;
+    }
+    ImmutableSet.Builder<ObjectId> revisions = ImmutableSet.builder();
+    revisions.add(commit);
+    revisions.add(commit.getParents());
+    if (commit.getParentCount() > 1) {
+      Ref autoMerge = repo.exactRef(RefNames.refsCacheAutomerge(commit.name()));
+      if (autoMerge == null) {
+        return null;
+      }
+      revisions.add(autoMerge.getObjectId());
+    }
+    return revisions.build();
+  }
+
+  @Nullable
+  private static NoteMap readNoteMap(Repository repo, RevWalk rw, Change.Id changeId)
+      throws IOException {
+    Ref ref = repo.exactRef(RefNames.robotCommentsRef(changeId));
+    if (ref == null) {
+      return null;
+    }
+    return NoteMap.read(rw.getObjectReader(), rw.parseCommit(ref.getObjectId()));
+  }
+
+  private RobotCommentsRevisionNote load(ObjectReader reader, ObjectId noteId)
+      throws IOException, ConfigInvalidException {
+    try {
+      return cache.get(
+          noteId.copy(),
+          () -> {
+            RobotCommentsRevisionNote rn = new RobotCommentsRevisionNote(noteUtil, reader, noteId);
+            rn.parse();
+            return rn;
+          });
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof ConfigInvalidException) {
+        throw (ConfigInvalidException) e.getCause();
+      }
+      throw new IOException("Failed to load robot comment note " + noteId.name(), e.getCause());
+    }
+  }
+}
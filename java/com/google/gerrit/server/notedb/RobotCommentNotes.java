@@ -55,11 +55,20 @@ public class RobotCommentNotes extends AbstractChangeNotes<RobotCommentNotes> {
   }
 
   public ImmutableListMultimap<RevId, RobotComment> getComments() {
+    if (comments == null) {
+      ListMultimap<RevId, RobotComment> cs = MultimapBuilder.hashKeys().arrayListValues().build();
+      for (RobotCommentsRevisionNote rn : revisionNoteMap.revisionNotes.values()) {
+        for (RobotComment c : rn.getComments()) {
+          cs.put(new RevId(c.revId), c);
+        }
+      }
+      comments = ImmutableListMultimap.copyOf(cs);
+    }
     return comments;
   }
 
   public boolean containsComment(RobotComment c) {
-    for (RobotComment existing : comments.values()) {
+    for (RobotComment existing : getComments().values()) {
       if (c.key.equals(existing.key)) {
         return true;
       }
@@ -90,13 +99,8 @@ public class RobotCommentNotes extends AbstractChangeNotes<RobotCommentNotes> {
     ObjectReader reader = handle.walk().getObjectReader();
     revisionNoteMap =
         RevisionNoteMap.parseRobotComments(args.noteUtil, reader, NoteMap.read(reader, tipCommit));
-    ListMultimap<RevId, RobotComment> cs = MultimapBuilder.hashKeys().arrayListValues().build();
-    for (RobotCommentsRevisionNote rn : revisionNoteMap.revisionNotes.values()) {
-      for (RobotComment c : rn.getComments()) {
-        cs.put(new RevId(c.revId), c);
-      }
-    }
-    comments = ImmutableListMultimap.copyOf(cs);
+    // Comments are collected on first access, as some callers only need the summaries.
+    comments = null;
   }
 
   @Override
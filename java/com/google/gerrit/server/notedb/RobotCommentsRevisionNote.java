@@ -41,4 +41,9 @@ public class RobotCommentsRevisionNote extends RevisionNote<RobotComment> {
       return noteUtil.getGson().fromJson(r, RobotCommentsRevisionNoteData.class).comments;
     }
   }
+
+  @Override
+  protected Class<RobotComment> getCommentType() {
+    return RobotComment.class;
+  }
 }
@@ -0,0 +1,125 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.notedb;
+
+import static com.google.common.collect.ImmutableList.toImmutableList;
+import static java.util.Comparator.comparingLong;
+
+import com.google.auto.value.AutoValue;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.google.gerrit.common.TimeUtil;
+import com.google.gerrit.reviewdb.client.Change;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.server.config.GerritServerConfig;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.sql.Timestamp;
+import java.util.HashMap;
+import java.util.Map;
+import org.eclipse.jgit.lib.Config;
+
+/**
+ * Keeps the changes that took the longest to parse from NoteDb since the server was started.
+ *
+ * <p>Only parses that missed the {@link ChangeNotesCache} are recorded. At most one entry is kept
+ * per change, the slowest one. The number of entries is configured by {@code
+ * notedb.slowChangeLoads}, and recording is disabled if it is 0.
+ */
+@Singleton
+public class SlowChangeLoads {
+  @AutoValue
+  public abstract static class Entry {
+    public abstract Project.NameKey project();
+
+    public abstract Change.Id changeId();
+
+    /** Whether the change was parsed incrementally from an earlier cached state. */
+    public abstract boolean incremental();
+
+    public abstract int metaCommits();
+
+    public abstract long noteBytes();
+
+    public abstract long parseNanos();
+
+    public abstract Timestamp loadedOn();
+  }
+
+  private final int limit;
+  private final Map<Change.Id, Entry> entries;
+
+  /** Parse time below which a load can't make it into the full list; only read unsynchronized. */
+  private volatile long threshold;
+
+  @Inject
+  SlowChangeLoads(@GerritServerConfig Config cfg) {
+    this(cfg.getInt("notedb", null, "slowChangeLoads", 20));
+  }
+
+  @VisibleForTesting
+  SlowChangeLoads(int limit) {
+    this.limit = Math.max(limit, 0);
+    this.entries = new HashMap<>();
+    this.threshold = this.limit > 0 ? 0 : Long.MAX_VALUE;
+  }
+
+  void record(
+      Project.NameKey project,
+      Change.Id changeId,
+      boolean incremental,
+      int metaCommits,
+      long noteBytes,
+      long parseNanos) {
+    if (parseNanos <= threshold) {
+      return;
+    }
+    synchronized (this) {
+      Entry old = entries.get(changeId);
+      if (old != null && old.parseNanos() >= parseNanos) {
+        return;
+      }
+      entries.put(
+          changeId,
+          new AutoValue_SlowChangeLoads_Entry(
+              project,
+              changeId,
+              incremental,
+              metaCommits,
+              noteBytes,
+              parseNanos,
+              TimeUtil.nowTs()));
+      if (entries.size() > limit) {
+        entries.values().stream().min(comparingLong(Entry::parseNanos)).ifPresent(this::remove);
+      }
+      if (entries.size() == limit) {
+        threshold = entries.values().stream().mapToLong(Entry::parseNanos).min().getAsLong();
+      }
+    }
+  }
+
+  /** @return recorded loads, slowest first. */
+  public synchronized ImmutableList<Entry> getAll() {
+    return entries
+        .values()
+        .stream()
+        .sorted(comparingLong(Entry::parseNanos).reversed())
+        .collect(toImmutableList());
+  }
+
+  private void remove(Entry e) {
+    entries.remove(e.changeId());
+  }
+}
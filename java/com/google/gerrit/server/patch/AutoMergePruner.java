@@ -0,0 +1,228 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.patch;
+
+import static java.util.Comparator.comparingLong;
+
+import com.google.gerrit.common.Nullable;
+import com.google.gerrit.extensions.events.LifecycleListener;
+import com.google.gerrit.lifecycle.LifecycleModule;
+import com.google.gerrit.metrics.Counter0;
+import com.google.gerrit.metrics.Description;
+import com.google.gerrit.metrics.MetricMaker;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.reviewdb.client.RefNames;
+import com.google.gerrit.server.config.GerritServerConfig;
+import com.google.gerrit.server.config.ScheduleConfig;
+import com.google.gerrit.server.config.ScheduleConfig.Schedule;
+import com.google.gerrit.server.git.GitRepositoryManager;
+import com.google.gerrit.server.git.WorkQueue;
+import com.google.gerrit.server.project.ProjectCache;
+import com.google.gerrit.server.update.RefUpdateUtil;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.lib.BatchRefUpdate;
+import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevObject;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.transport.ReceiveCommand;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runnable to enable scheduling the pruning of {@code refs/cache-automerge/*} refs to run
+ * periodically.
+ *
+ * <p>Each project keeps at most {@code autoMergePruning.maxRefs} auto-merge refs. Refs beyond the
+ * limit are deleted least recently used first, where auto-merges that weren't used since the
+ * server was started are ordered by the time of their merge commit. Deleted auto-merges are
+ * recreated by {@link AutoMerger} when a diff against them is computed, and by {@link
+ * AutoMerger#ensureStored} before a cached diff against them is read.
+ */
+public class AutoMergePruner implements Runnable {
+  private static final Logger log = LoggerFactory.getLogger(AutoMergePruner.class);
+
+  private static final String SECTION = "autoMergePruning";
+
+  public static class Module extends LifecycleModule {
+    @Override
+    protected void configure() {
+      listener().to(Lifecycle.class);
+    }
+  }
+
+  static class Lifecycle implements LifecycleListener {
+    private final WorkQueue queue;
+    private final AutoMergePruner pruner;
+    private final Optional<Schedule> schedule;
+
+    @Inject
+    Lifecycle(WorkQueue queue, AutoMergePruner pruner, @GerritServerConfig Config cfg) {
+      this.queue = queue;
+      this.pruner = pruner;
+      schedule = ScheduleConfig.createSchedule(cfg, SECTION);
+    }
+
+    @Override
+    public void start() {
+      schedule.ifPresent(s -> queue.scheduleAtFixedRate(pruner, s));
+    }
+
+    @Override
+    public void stop() {
+      // handled by WorkQueue.stop() already
+    }
+  }
+
+  @Singleton
+  static class Metrics {
+    final Counter0 prunedRefs;
+
+    @Inject
+    Metrics(MetricMaker metricMaker) {
+      prunedRefs =
+          metricMaker.newCounter(
+              "diff/auto_merge_pruned_count",
+              new Description("Auto-merge refs deleted by the auto-merge pruning")
+                  .setRate()
+                  .setUnit("refs"));
+    }
+  }
+
+  private static class Candidate {
+    final Ref ref;
+    final long lastUse;
+
+    Candidate(Ref ref, long lastUse) {
+      this.ref = ref;
+      this.lastUse = lastUse;
+    }
+  }
+
+  private final GitRepositoryManager repoManager;
+  private final ProjectCache projectCache;
+  private final AutoMergeStore store;
+  private final Metrics metrics;
+  private final int maxRefs;
+
+  @Inject
+  AutoMergePruner(
+      GitRepositoryManager repoManager,
+      ProjectCache projectCache,
+      AutoMergeStore store,
+      Metrics metrics,
+      @GerritServerConfig Config cfg) {
+    this.repoManager = repoManager;
+    this.projectCache = projectCache;
+    this.store = store;
+    this.metrics = metrics;
+    this.maxRefs = Math.max(cfg.getInt(SECTION, "maxRefs", 10000), 0);
+  }
+
+  @Override
+  public void run() {
+    log.info("Running auto-merge pruning");
+    int pruned = 0;
+    for (Project.NameKey project : projectCache.all()) {
+      try {
+        pruned += prune(project);
+      } catch (IOException e) {
+        log.warn("Failed to prune auto-merge refs of " + project, e);
+      }
+    }
+    log.info("Auto-merge pruning complete, {} ref(s) were deleted", pruned);
+  }
+
+  /**
+   * Delete the least recently used auto-merge refs of a project that exceed the limit.
+   *
+   * @return number of deleted refs.
+   */
+  public int prune(Project.NameKey project) throws IOException {
+    try (Repository repo = repoManager.openRepository(project);
+        RevWalk rw = new RevWalk(repo)) {
+      Collection<Ref> refs = repo.getRefDatabase().getRefs(RefNames.REFS_CACHE_AUTOMERGE).values();
+      int excess = refs.size() - maxRefs;
+      if (excess <= 0) {
+        return 0;
+      }
+
+      List<Candidate> candidates = new ArrayList<>(refs.size());
+      for (Ref ref : refs) {
+        candidates.add(new Candidate(ref, lastUse(rw, ref)));
+      }
+      candidates.sort(comparingLong(c -> c.lastUse));
+
+      BatchRefUpdate bru = repo.getRefDatabase().newBatchUpdate();
+      bru.disableRefLog();
+      for (Candidate c : candidates.subList(0, excess)) {
+        bru.addCommand(new ReceiveCommand(c.ref.getObjectId(), ObjectId.zeroId(), c.ref.getName()));
+      }
+      RefUpdateUtil.executeChecked(bru, rw);
+
+      for (Candidate c : candidates.subList(0, excess)) {
+        ObjectId mergeId = mergeId(c.ref);
+        if (mergeId != null) {
+          store.remove(mergeId);
+        }
+      }
+      metrics.prunedRefs.incrementBy(excess);
+      return excess;
+    }
+  }
+
+  private long lastUse(RevWalk rw, Ref ref) throws IOException {
+    ObjectId mergeId = mergeId(ref);
+    if (mergeId != null) {
+      Long lastUse = store.getLastUse(mergeId);
+      if (lastUse != null) {
+        return lastUse;
+      }
+    }
+    // Auto-merge commits use the committer time of their merge commit. Refs
+    // that point to anything else are left over from old versions and are
+    // pruned first.
+    try {
+      RevObject obj = rw.parseAny(ref.getObjectId());
+      if (obj instanceof RevCommit) {
+        return ((RevCommit) obj).getCommitTime() * 1000L;
+      }
+    } catch (MissingObjectException e) {
+      // Prune dangling refs first.
+    }
+    return 0;
+  }
+
+  @Nullable
+  private static ObjectId mergeId(Ref ref) {
+    String name = ref.getName().substring(RefNames.REFS_CACHE_AUTOMERGE.length()).replace("/", "");
+    return ObjectId.isId(name) ? ObjectId.fromString(name) : null;
+  }
+
+  @Override
+  public String toString() {
+    return "auto-merge pruner";
+  }
+}
@@ -0,0 +1,79 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.patch;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.gerrit.common.Nullable;
+import com.google.gerrit.common.TimeUtil;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.util.List;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.revwalk.RevCommit;
+
+/**
+ * In-memory bookkeeping for auto-merge commits.
+ *
+ * <p>Remembers when the auto-merge of a merge commit was last used, so that {@link
+ * AutoMergePruner} can delete the least recently used {@code refs/cache-automerge/*} refs first,
+ * and the merged tree of each set of parents, so that merge commits with the same parents (e.g.
+ * patch sets that only differ in their commit message) don't run the merger again.
+ */
+@Singleton
+public class AutoMergeStore {
+  private static final int MAX_ENTRIES = 100_000;
+
+  private final Cache<ObjectId, Long> lastUse;
+  private final Cache<List<ObjectId>, ObjectId> trees;
+
+  @Inject
+  AutoMergeStore() {
+    lastUse = CacheBuilder.newBuilder().maximumSize(MAX_ENTRIES).build();
+    trees = CacheBuilder.newBuilder().maximumSize(MAX_ENTRIES).build();
+  }
+
+  void touch(ObjectId mergeId) {
+    lastUse.put(mergeId.copy(), TimeUtil.nowMs());
+  }
+
+  /** @return time in milliseconds the auto-merge was last used, or null if unknown. */
+  @Nullable
+  Long getLastUse(ObjectId mergeId) {
+    return lastUse.getIfPresent(mergeId);
+  }
+
+  @Nullable
+  ObjectId getTree(RevCommit merge) {
+    return trees.getIfPresent(parents(merge));
+  }
+
+  void putTree(RevCommit merge, ObjectId treeId) {
+    trees.put(parents(merge), treeId.copy());
+  }
+
+  void remove(ObjectId mergeId) {
+    lastUse.invalidate(mergeId);
+  }
+
+  private static List<ObjectId> parents(RevCommit merge) {
+    ImmutableList.Builder<ObjectId> b = ImmutableList.builder();
+    for (RevCommit p : merge.getParents()) {
+      b.add(p.copy());
+    }
+    return b.build();
+  }
+}
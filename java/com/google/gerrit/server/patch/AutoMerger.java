@@ -18,11 +18,19 @@ import static com.google.common.base.Preconditions.checkArgument;
 import static java.nio.charset.StandardCharsets.UTF_8;
 
 import com.google.gerrit.common.Nullable;
+import com.google.gerrit.metrics.Counter1;
+import com.google.gerrit.metrics.Description;
+import com.google.gerrit.metrics.Description.Units;
+import com.google.gerrit.metrics.Field;
+import com.google.gerrit.metrics.MetricMaker;
+import com.google.gerrit.metrics.Timer0;
 import com.google.gerrit.reviewdb.client.RefNames;
 import com.google.gerrit.server.GerritPersonIdent;
 import com.google.gerrit.server.config.GerritServerConfig;
 import com.google.gerrit.server.git.InMemoryInserter;
+import com.google.gerrit.server.git.MergeUtil;
 import com.google.inject.Inject;
+import com.google.inject.Singleton;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.HashMap;
@@ -59,13 +67,91 @@ public class AutoMerger {
     return cfg.getBoolean("change", null, "cacheAutomerge", true);
   }
 
+  enum Result {
+    /** An existing auto-merge commit was read from {@code refs/cache-automerge/*}. */
+    REUSED_COMMIT,
+
+    /** The merged tree of another merge commit with the same parents was reused. */
+    REUSED_TREE,
+
+    /** The auto-merge was computed by running the merger. */
+    CREATED,
+
+    /** The merger failed, no auto-merge commit was returned. */
+    FAILED;
+  }
+
+  @Singleton
+  static class Metrics {
+    final Timer0 latency;
+    final Counter1<Result> count;
+
+    @Inject
+    Metrics(MetricMaker metricMaker) {
+      latency =
+          metricMaker.newTimer(
+              "diff/auto_merge_latency",
+              new Description("Latency for running the merger to create an auto-merge commit")
+                  .setCumulative()
+                  .setUnit(Units.MILLISECONDS));
+      count =
+          metricMaker.newCounter(
+              "diff/auto_merge_count",
+              new Description("Auto-merge lookups by whether the result was reused or created")
+                  .setRate()
+                  .setUnit("auto-merges"),
+              Field.ofEnum(Result.class, "result"));
+    }
+  }
+
   private final PersonIdent gerritIdent;
   private final boolean save;
+  private final ThreeWayMergeStrategy mergeStrategy;
+  private final AutoMergeStore store;
+  private final Metrics metrics;
 
   @Inject
-  AutoMerger(@GerritServerConfig Config cfg, @GerritPersonIdent PersonIdent gerritIdent) {
+  AutoMerger(
+      @GerritServerConfig Config cfg,
+      @GerritPersonIdent PersonIdent gerritIdent,
+      AutoMergeStore store,
+      Metrics metrics) {
     save = cacheAutomerge(cfg);
+    mergeStrategy = MergeUtil.getMergeStrategy(cfg);
     this.gerritIdent = gerritIdent;
+    this.store = store;
+    this.metrics = metrics;
+  }
+
+  /**
+   * Make sure the auto-merge of a merge commit is stored, e.g. before reading it for a diff that
+   * was cached earlier.
+   *
+   * <p>{@link AutoMergePruner} deletes auto-merge refs while diffs against them may still be
+   * cached, and the commits are eventually garbage collected. If the ref is missing, the auto-merge
+   * is recreated; as its commit only depends on the merge commit, it gets the same ID again.
+   *
+   * @param autoMergeId ID of the auto-merge commit the diff was computed against.
+   * @param mergeId ID of the merge commit.
+   * @return ID of the stored auto-merge commit, {@code autoMergeId} if it couldn't be recreated or
+   *     auto-merges are not stored in the repository.
+   */
+  public ObjectId ensureStored(Repository repo, ObjectId autoMergeId, ObjectId mergeId)
+      throws IOException {
+    if (!save) {
+      return autoMergeId;
+    }
+    Ref ref = repo.getRefDatabase().exactRef(RefNames.refsCacheAutomerge(mergeId.name()));
+    if (ref != null && autoMergeId.equals(ref.getObjectId())) {
+      store.touch(mergeId);
+      return autoMergeId;
+    }
+    try (ObjectInserter ins = repo.newObjectInserter();
+        ObjectReader reader = ins.newReader();
+        RevWalk rw = new RevWalk(reader)) {
+      RevCommit autoMerge = merge(repo, rw, ins, rw.parseCommit(mergeId), mergeStrategy);
+      return autoMerge != null ? autoMerge.copy() : autoMergeId;
+    }
   }
 
   /**
@@ -99,6 +185,8 @@ public class AutoMerger {
     String refName = RefNames.refsCacheAutomerge(merge.name());
     Ref ref = repo.getRefDatabase().exactRef(refName);
     if (ref != null && ref.getObjectId() != null) {
+      store.touch(merge);
+      metrics.count.increment(Result.REUSED_COMMIT);
       RevObject obj = rw.parseAny(ref.getObjectId());
       if (obj instanceof RevCommit) {
         return (RevCommit) obj;
@@ -106,6 +194,40 @@ public class AutoMerger {
       return commit(repo, rw, tmpIns, ins, refName, obj, merge);
     }
 
+    // Merge commits with the same parents have the same auto-merge tree. The
+    // tree may only have been written to an in-memory inserter before, so it
+    // is only reused if it can still be read.
+    ObjectId knownTreeId = store.getTree(merge);
+    if (knownTreeId != null && rw.getObjectReader().has(knownTreeId, Constants.OBJ_TREE)) {
+      store.touch(merge);
+      metrics.count.increment(Result.REUSED_TREE);
+      return commit(repo, rw, tmpIns, ins, refName, knownTreeId, merge);
+    }
+
+    ObjectId treeId;
+    try (Timer0.Context ignored = metrics.latency.start()) {
+      treeId = createTree(repo, rw, ins, tmpIns, merge, mergeStrategy, refName);
+    }
+    if (treeId == null) {
+      metrics.count.increment(Result.FAILED);
+      return null;
+    }
+    store.putTree(merge, treeId);
+    store.touch(merge);
+    metrics.count.increment(Result.CREATED);
+    return commit(repo, rw, tmpIns, ins, refName, treeId, merge);
+  }
+
+  @Nullable
+  private ObjectId createTree(
+      Repository repo,
+      RevWalk rw,
+      ObjectInserter ins,
+      @Nullable InMemoryInserter tmpIns,
+      RevCommit merge,
+      ThreeWayMergeStrategy mergeStrategy,
+      String refName)
+      throws IOException {
     ResolveMerger m = (ResolveMerger) mergeStrategy.newMerger(repo, true);
     DirCache dc = DirCache.newInCore();
     m.setDirCache(dc);
@@ -205,8 +327,7 @@ public class AutoMerger {
       builder.finish();
       treeId = dc.writeTree(ins);
     }
-
-    return commit(repo, rw, tmpIns, ins, refName, treeId, merge);
+    return treeId;
   }
 
   private RevCommit commit(
@@ -15,13 +15,16 @@
 package com.google.gerrit.server.patch;
 
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gerrit.server.config.GerritServerConfig;
+import com.google.gerrit.server.git.WorkQueue;
 import com.google.inject.AbstractModule;
 import com.google.inject.Provides;
 import com.google.inject.Singleton;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import org.eclipse.jgit.lib.Config;
 
-/** Module providing the {@link DiffExecutor}. */
+/** Module providing the {@link DiffExecutor} and the {@link DiffPrecomputeExecutor}. */
 public class DiffExecutorModule extends AbstractModule {
 
   @Override
@@ -34,4 +37,15 @@ public class DiffExecutorModule extends AbstractModule {
     return Executors.newCachedThreadPool(
         new ThreadFactoryBuilder().setNameFormat("Diff-%d").setDaemon(true).build());
   }
+
+  @Provides
+  @Singleton
+  @DiffPrecomputeExecutor
+  public ExecutorService createDiffPrecomputeExecutor(
+      @GerritServerConfig Config cfg, WorkQueue queues) {
+    return queues.createQueue(
+        Math.max(cfg.getInt("cache", "diff", "precomputeThreads", 1), 1),
+        "DiffPrecompute",
+        Thread.MIN_PRIORITY);
+  }
 }
@@ -0,0 +1,224 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.patch;
+
+import com.google.gerrit.common.Nullable;
+import com.google.gerrit.extensions.client.DiffPreferencesInfo.Whitespace;
+import com.google.gerrit.reviewdb.client.Patch;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.server.config.GerritServerConfig;
+import com.google.gerrit.server.git.GitRepositoryManager;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevTree;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Computes the diffs of new patch sets in the background, so that they are cached by the time
+ * reviewers look at them.
+ *
+ * <p>For each patch set, the patch list and diff summary against the parent and against the
+ * previous patch set are computed, as well as the intraline diffs of the modified files that are
+ * not larger than {@code cache.diff.precomputeIntralineMaxFileSize}. Diffs are computed with the
+ * default whitespace setting of the diff preferences.
+ *
+ * <p>Disabled unless {@code cache.diff.precompute} is set. Diffs that are already queued are not
+ * queued again, and no more than {@code cache.diff.precomputeMaxPending} diffs are queued at a
+ * time; diffs of patch sets uploaded while the queue is full are computed when they are viewed.
+ */
+@Singleton
+public class DiffPrecomputer {
+  private static final Logger log = LoggerFactory.getLogger(DiffPrecomputer.class);
+
+  private static final Whitespace WHITESPACE = Whitespace.IGNORE_NONE;
+
+  private final GitRepositoryManager repoManager;
+  private final PatchListCache patchListCache;
+  private final ExecutorService executor;
+  private final boolean enabled;
+  private final long intralineMaxFileSize;
+  private final int maxPending;
+  private final Set<PatchListKey> pending;
+
+  @Inject
+  DiffPrecomputer(
+      GitRepositoryManager repoManager,
+      PatchListCache patchListCache,
+      @DiffPrecomputeExecutor ExecutorService executor,
+      @GerritServerConfig Config cfg) {
+    this.repoManager = repoManager;
+    this.patchListCache = patchListCache;
+    this.executor = executor;
+    this.enabled = cfg.getBoolean("cache", "diff", "precompute", false);
+    this.intralineMaxFileSize =
+        cfg.getLong("cache", "diff", "precomputeIntralineMaxFileSize", 100 * 1024);
+    this.maxPending = cfg.getInt("cache", "diff", "precomputeMaxPending", 1000);
+    this.pending = ConcurrentHashMap.newKeySet();
+  }
+
+  /**
+   * Queues the diffs of a new patch set.
+   *
+   * @param project project of the change.
+   * @param commitId commit of the new patch set.
+   * @param priorCommitId commit of the previous patch set, or null if this is the first one.
+   */
+  public void precompute(
+      Project.NameKey project, ObjectId commitId, @Nullable ObjectId priorCommitId) {
+    if (!enabled) {
+      return;
+    }
+    List<PatchListKey> keys = new ArrayList<>(2);
+    addIfNotPending(keys, PatchListKey.againstDefaultBase(commitId, WHITESPACE));
+    if (priorCommitId != null) {
+      addIfNotPending(keys, PatchListKey.againstCommit(priorCommitId, commitId, WHITESPACE));
+    }
+    if (keys.isEmpty()) {
+      return;
+    }
+
+    @SuppressWarnings("unused")
+    Future<?> possiblyIgnoredError =
+        executor.submit(
+            new Runnable() {
+              @Override
+              public void run() {
+                for (PatchListKey key : keys) {
+                  try {
+                    precompute(project, key);
+                  } catch (Exception e) {
+                    log.warn("Cannot precompute " + key + " in " + project, e);
+                  } finally {
+                    pending.remove(key);
+                  }
+                }
+              }
+
+              @Override
+              public String toString() {
+                return "precompute-diff " + project + " " + commitId.name();
+              }
+            });
+  }
+
+  private void addIfNotPending(List<PatchListKey> keys, PatchListKey key) {
+    if (pending.size() >= maxPending) {
+      log.debug("Not precomputing {}, {} diffs are pending already", key, pending.size());
+      return;
+    }
+    if (pending.add(key)) {
+      keys.add(key);
+    }
+  }
+
+  private void precompute(Project.NameKey project, PatchListKey key)
+      throws PatchListNotAvailableException, IOException {
+    PatchList patchList = patchListCache.get(key, project);
+    patchListCache.getDiffSummary(DiffSummaryKey.fromPatchListKey(key), project);
+    if (patchList.getOldId() == null || intralineMaxFileSize <= 0) {
+      return;
+    }
+
+    try (Repository repo = repoManager.openRepository(project);
+        ObjectReader reader = repo.newObjectReader();
+        RevWalk rw = new RevWalk(reader)) {
+      RevTree aTree = rw.parseTree(patchList.getOldId());
+      RevTree bTree = rw.parseTree(patchList.getNewId());
+      for (PatchListEntry e : patchList.getPatches()) {
+        if (!needsIntraline(e)) {
+          continue;
+        }
+        ObjectId aId = findBlob(reader, aTree, oldName(e));
+        ObjectId bId = findBlob(reader, bTree, e.getNewName());
+        if (aId == null || bId == null) {
+          continue;
+        }
+        // Same arguments as in PatchScriptBuilder, so that the cache entry is reused when the file
+        // is displayed.
+        patchListCache.getIntraLineDiff(
+            IntraLineDiffKey.create(aId, bId, WHITESPACE),
+            IntraLineDiffArgs.create(
+                new Text(reader.open(aId, Constants.OBJ_BLOB)),
+                new Text(reader.open(bId, Constants.OBJ_BLOB)),
+                e.getEdits(),
+                e.getEditsDueToRebase(),
+                project,
+                patchList.getNewId(),
+                e.getNewName()));
+      }
+    }
+  }
+
+  private boolean needsIntraline(PatchListEntry e) {
+    if (Patch.isMagic(e.getNewName())
+        || e.getPatchType() != Patch.PatchType.UNIFIED
+        || e.getPackedEdits().isEmpty()
+        || Math.max(e.getSize(), e.getSize() - e.getSizeDelta()) > intralineMaxFileSize) {
+      return false;
+    }
+    switch (e.getChangeType()) {
+      case MODIFIED:
+      case COPIED:
+      case RENAMED:
+      case REWRITE:
+        return true;
+
+      case ADDED:
+      case DELETED:
+      default:
+        return false;
+    }
+  }
+
+  private static String oldName(PatchListEntry e) {
+    switch (e.getChangeType()) {
+      case COPIED:
+      case RENAMED:
+        return e.getOldName();
+      case ADDED:
+      case DELETED:
+      case MODIFIED:
+      case REWRITE:
+      default:
+        return e.getNewName();
+    }
+  }
+
+  @Nullable
+  private static ObjectId findBlob(ObjectReader reader, RevTree tree, String path)
+      throws IOException {
+    try (TreeWalk tw = TreeWalk.forPath(reader, path, tree)) {
+      if (tw == null || tw.getFileMode(0).getObjectType() != Constants.OBJ_BLOB) {
+        return null;
+      }
+      return tw.getObjectId(0);
+    }
+  }
+}
@@ -14,8 +14,10 @@
 
 package com.google.gerrit.server.patch;
 
+import static com.google.gerrit.server.ioutil.BasicSerialization.readFixInt64;
 import static com.google.gerrit.server.ioutil.BasicSerialization.readString;
 import static com.google.gerrit.server.ioutil.BasicSerialization.readVarInt32;
+import static com.google.gerrit.server.ioutil.BasicSerialization.writeFixInt64;
 import static com.google.gerrit.server.ioutil.BasicSerialization.writeString;
 import static com.google.gerrit.server.ioutil.BasicSerialization.writeVarInt32;
 
@@ -36,11 +38,13 @@ public class DiffSummary implements Serializable {
   private transient String[] paths;
   private transient int insertions;
   private transient int deletions;
+  private transient long sizeDelta;
 
-  public DiffSummary(String[] paths, int insertions, int deletions) {
+  public DiffSummary(String[] paths, int insertions, int deletions, long sizeDelta) {
     this.paths = paths;
     this.insertions = insertions;
     this.deletions = deletions;
+    this.sizeDelta = sizeDelta;
   }
 
   public List<String> getPaths() {
@@ -51,9 +55,18 @@ public class DiffSummary implements Serializable {
     return new ChangedLines(insertions, deletions);
   }
 
+  /**
+   * @return sum of the size deltas of all files in bytes, including binary files that have no
+   *     changed lines.
+   */
+  public long getSizeDelta() {
+    return sizeDelta;
+  }
+
   private void writeObject(ObjectOutputStream output) throws IOException {
     writeVarInt32(output, insertions);
     writeVarInt32(output, deletions);
+    writeFixInt64(output, sizeDelta);
     writeVarInt32(output, paths.length);
     try (DeflaterOutputStream out = new DeflaterOutputStream(output)) {
       for (String p : paths) {
@@ -65,6 +78,7 @@ public class DiffSummary implements Serializable {
   private void readObject(ObjectInputStream input) throws IOException {
     insertions = readVarInt32(input);
     deletions = readVarInt32(input);
+    sizeDelta = readFixInt64(input);
     paths = new String[readVarInt32(input)];
     try (InflaterInputStream in = new InflaterInputStream(input)) {
       for (int i = 0; i < paths.length; i++) {
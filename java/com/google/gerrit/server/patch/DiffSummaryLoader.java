@@ -51,10 +51,12 @@ public class DiffSummaryLoader implements Callable<DiffSummary> {
 
   private DiffSummary toDiffSummary(PatchList patchList) {
     List<String> r = new ArrayList<>(patchList.getPatches().size());
+    long sizeDelta = 0;
     for (PatchListEntry e : patchList.getPatches()) {
       if (Patch.isMagic(e.getNewName())) {
         continue;
       }
+      sizeDelta += e.getSizeDelta();
       switch (e.getChangeType()) {
         case ADDED:
         case MODIFIED:
@@ -72,6 +74,9 @@ public class DiffSummaryLoader implements Callable<DiffSummary> {
     }
     Collections.sort(r);
     return new DiffSummary(
-        r.toArray(new String[r.size()]), patchList.getInsertions(), patchList.getDeletions());
+        r.toArray(new String[r.size()]),
+        patchList.getInsertions(),
+        patchList.getDeletions(),
+        sizeDelta);
   }
 }
@@ -14,11 +14,7 @@
 
 package com.google.gerrit.server.patch;
 
-import static com.google.common.collect.ImmutableList.toImmutableList;
-import static com.google.common.collect.Multimaps.toMultimap;
-import static java.util.Comparator.comparing;
 import static java.util.stream.Collectors.groupingBy;
-import static java.util.stream.Collectors.toList;
 
 import com.google.auto.value.AutoValue;
 import com.google.common.base.MoreObjects;
@@ -26,11 +22,13 @@ import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Multimap;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
-import java.util.function.Function;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 import org.eclipse.jgit.diff.Edit;
 
@@ -40,10 +38,13 @@ import org.eclipse.jgit.diff.Edit;
  * treeA'} and {@code treeB'} given the transformation of {@code treeA} to {@code treeA'} and {@code
  * treeB} to {@code treeB'}. Edits which can't be transformed due to conflicts with the
  * transformation are omitted.
+ *
+ * <p>The edits are kept per file in arrays of primitives while they are transformed. {@link
+ * ContextAwareEdit} objects are only created for the result.
  */
 class EditTransformer {
 
-  private List<ContextAwareEdit> edits;
+  private List<FileEdits> edits;
 
   /**
    * Creates a new {@code EditTransformer} for the edits contained in the specified {@code
@@ -52,7 +53,10 @@ class EditTransformer {
    * @param patchListEntries a list of {@code PatchListEntry}s containing the edits
    */
   public EditTransformer(List<PatchListEntry> patchListEntries) {
-    edits = patchListEntries.stream().flatMap(EditTransformer::toEdits).collect(toImmutableList());
+    edits = new ArrayList<>(patchListEntries.size());
+    for (PatchListEntry entry : patchListEntries) {
+      edits.add(FileEdits.create(entry));
+    }
   }
 
   /**
@@ -66,7 +70,7 @@ class EditTransformer {
    *     {@code treeA} to {@code treeA'}
    */
   public void transformReferencesOfSideA(List<PatchListEntry> transformationEntries) {
-    transformEdits(transformationEntries, SideAStrategy.INSTANCE);
+    transformEdits(transformationEntries, Side.A);
   }
 
   /**
@@ -80,7 +84,7 @@ class EditTransformer {
    *     {@code treeB} to {@code treeB'}
    */
   public void transformReferencesOfSideB(List<PatchListEntry> transformationEntries) {
-    transformEdits(transformationEntries, SideBStrategy.INSTANCE);
+    transformEdits(transformationEntries, Side.B);
   }
 
   /**
@@ -89,111 +93,185 @@ class EditTransformer {
    * @return the transformed edits per file path
    */
   public Multimap<String, ContextAwareEdit> getEditsPerFilePath() {
-    return edits
-        .stream()
-        .collect(
-            toMultimap(
-                ContextAwareEdit::getNewFilePath, Function.identity(), ArrayListMultimap::create));
+    Multimap<String, ContextAwareEdit> result = ArrayListMultimap.create();
+    for (FileEdits fileEdits : edits) {
+      for (int i = 0; i < fileEdits.size; i++) {
+        result.put(fileEdits.newFilePath, fileEdits.toContextAwareEdit(i));
+      }
+    }
+    return result;
   }
 
   public static Stream<ContextAwareEdit> toEdits(PatchListEntry patchListEntry) {
-    ImmutableList<Edit> edits = patchListEntry.getEdits();
+    PackedEditList edits = patchListEntry.getPackedEdits();
     if (edits.isEmpty()) {
       return Stream.of(ContextAwareEdit.createForNoContentEdit(patchListEntry));
     }
 
-    return edits.stream().map(edit -> ContextAwareEdit.create(patchListEntry, edit));
+    return IntStream.range(0, edits.size())
+        .mapToObj(
+            i ->
+                ContextAwareEdit.create(
+                    patchListEntry.getOldName(),
+                    patchListEntry.getNewName(),
+                    edits.getBeginA(i),
+                    edits.getEndA(i),
+                    edits.getBeginB(i),
+                    edits.getEndB(i),
+                    false));
   }
 
-  private void transformEdits(List<PatchListEntry> transformingEntries, SideStrategy sideStrategy) {
-    Map<String, List<ContextAwareEdit>> editsPerFilePath =
-        edits.stream().collect(groupingBy(sideStrategy::getFilePath));
+  private void transformEdits(List<PatchListEntry> transformingEntries, Side side) {
     Map<String, List<PatchListEntry>> transEntriesPerPath =
         transformingEntries.stream().collect(groupingBy(EditTransformer::getOldFilePath));
 
-    edits =
-        editsPerFilePath
-            .entrySet()
-            .stream()
-            .flatMap(
-                pathAndEdits -> {
-                  List<PatchListEntry> transEntries =
-                      transEntriesPerPath.getOrDefault(pathAndEdits.getKey(), ImmutableList.of());
-                  return transformEdits(sideStrategy, pathAndEdits.getValue(), transEntries);
-                })
-            .collect(toList());
+    List<FileEdits> result = new ArrayList<>(edits.size());
+    for (FileEdits fileEdits : edits) {
+      List<PatchListEntry> transEntries =
+          transEntriesPerPath.getOrDefault(side.getFilePath(fileEdits), ImmutableList.of());
+      if (transEntries.isEmpty()) {
+        result.add(fileEdits);
+        continue;
+      }
+
+      // TODO(aliceks): Find a way to prevent an explosion of the number of entries.
+      for (PatchListEntry transEntry : transEntries) {
+        result.add(
+            transformEdits(
+                side, fileEdits, sortedByA(transEntry.getPackedEdits()), transEntry.getNewName()));
+      }
+    }
+    edits = result;
   }
 
   private static String getOldFilePath(PatchListEntry patchListEntry) {
     return MoreObjects.firstNonNull(patchListEntry.getOldName(), patchListEntry.getNewName());
   }
 
-  private static Stream<ContextAwareEdit> transformEdits(
-      SideStrategy sideStrategy,
-      List<ContextAwareEdit> originalEdits,
-      List<PatchListEntry> transformingEntries) {
-    if (transformingEntries.isEmpty()) {
-      return originalEdits.stream();
-    }
-
-    // TODO(aliceks): Find a way to prevent an explosion of the number of entries.
-    return transformingEntries
-        .stream()
-        .flatMap(
-            transEntry ->
-                transformEdits(
-                        sideStrategy, originalEdits, transEntry.getEdits(), transEntry.getNewName())
-                    .stream());
-  }
-
-  private static List<ContextAwareEdit> transformEdits(
-      SideStrategy sideStrategy,
-      List<ContextAwareEdit> unorderedOriginalEdits,
-      List<Edit> unorderedTransformingEdits,
-      String adjustedFilePath) {
-    List<ContextAwareEdit> originalEdits = new ArrayList<>(unorderedOriginalEdits);
-    originalEdits.sort(comparing(sideStrategy::getBegin).thenComparing(sideStrategy::getEnd));
-    List<Edit> transformingEdits = new ArrayList<>(unorderedTransformingEdits);
-    transformingEdits.sort(comparing(Edit::getBeginA).thenComparing(Edit::getEndA));
+  private static FileEdits transformEdits(
+      Side side, FileEdits unorderedOriginalEdits, PackedEditList transEdits, String adjustedPath) {
+    FileEdits originalEdits = unorderedOriginalEdits.sortedBy(side);
+    int begin = side.offset;
+    int end = side.offset + 1;
 
     int shiftedAmount = 0;
     int transIndex = 0;
     int origIndex = 0;
-    List<ContextAwareEdit> resultingEdits = new ArrayList<>(originalEdits.size());
-    while (origIndex < originalEdits.size() && transIndex < transformingEdits.size()) {
-      ContextAwareEdit originalEdit = originalEdits.get(origIndex);
-      Edit transformingEdit = transformingEdits.get(transIndex);
-      if (transformingEdit.getEndA() <= sideStrategy.getBegin(originalEdit)) {
-        shiftedAmount = transformingEdit.getEndB() - transformingEdit.getEndA();
+    int[] resultingEdits = new int[4 * originalEdits.size];
+    int resultSize = 0;
+    while (origIndex < originalEdits.size && transIndex < transEdits.size()) {
+      int origBegin = originalEdits.get(origIndex, begin);
+      int origEnd = originalEdits.get(origIndex, end);
+      if (transEdits.getEndA(transIndex) <= origBegin) {
+        shiftedAmount = transEdits.getEndB(transIndex) - transEdits.getEndA(transIndex);
         transIndex++;
-      } else if (sideStrategy.getEnd(originalEdit) <= transformingEdit.getBeginA()) {
-        resultingEdits.add(sideStrategy.create(originalEdit, shiftedAmount, adjustedFilePath));
+      } else if (origEnd <= transEdits.getBeginA(transIndex)) {
+        originalEdits.copyShifted(origIndex, side, shiftedAmount, resultingEdits, resultSize++);
         origIndex++;
       } else {
         // Overlapping -> ignore.
         origIndex++;
       }
     }
-    for (int i = origIndex; i < originalEdits.size(); i++) {
-      resultingEdits.add(
-          sideStrategy.create(originalEdits.get(i), shiftedAmount, adjustedFilePath));
+    for (int i = origIndex; i < originalEdits.size; i++) {
+      originalEdits.copyShifted(i, side, shiftedAmount, resultingEdits, resultSize++);
     }
-    return resultingEdits;
+    return side.adjust(originalEdits, adjustedPath, resultingEdits, resultSize);
   }
 
-  @AutoValue
-  abstract static class ContextAwareEdit {
-    static ContextAwareEdit create(PatchListEntry patchListEntry, Edit edit) {
-      return create(
-          patchListEntry.getOldName(),
-          patchListEntry.getNewName(),
-          edit.getBeginA(),
-          edit.getEndA(),
-          edit.getBeginB(),
-          edit.getEndB(),
-          false);
+  private static PackedEditList sortedByA(PackedEditList edits) {
+    for (int i = 1; i < edits.size(); i++) {
+      if (edits.getBeginA(i - 1) > edits.getBeginA(i)
+          || (edits.getBeginA(i - 1) == edits.getBeginA(i)
+              && edits.getEndA(i - 1) > edits.getEndA(i))) {
+        List<Edit> sorted = new ArrayList<>(edits.toEdits());
+        sorted.sort(Comparator.comparingInt(Edit::getBeginA).thenComparingInt(Edit::getEndA));
+        return PackedEditList.of(sorted);
+      }
+    }
+    return edits;
+  }
+
+  /**
+   * Edits of a file between {@code oldFilePath} and {@code newFilePath}, as four ints per edit.
+   *
+   * <p>A file without content edits has a single edit of -1 values, like {@link
+   * ContextAwareEdit#createForNoContentEdit(PatchListEntry)}.
+   */
+  private static class FileEdits {
+    static FileEdits create(PatchListEntry entry) {
+      PackedEditList packed = entry.getPackedEdits();
+      int[] edits;
+      if (packed.isEmpty()) {
+        edits = new int[] {-1, -1, -1, -1};
+      } else {
+        edits = new int[4 * packed.size()];
+        for (int i = 0; i < packed.size(); i++) {
+          edits[4 * i] = packed.getBeginA(i);
+          edits[4 * i + 1] = packed.getEndA(i);
+          edits[4 * i + 2] = packed.getBeginB(i);
+          edits[4 * i + 3] = packed.getEndB(i);
+        }
+      }
+      return new FileEdits(
+          getOldFilePath(entry), entry.getNewName(), false, edits, edits.length / 4);
+    }
+
+    final String oldFilePath;
+    final String newFilePath;
+    final boolean implicitRename;
+    final int[] edits;
+    final int size;
+
+    FileEdits(
+        String oldFilePath, String newFilePath, boolean implicitRename, int[] edits, int size) {
+      this.oldFilePath = oldFilePath;
+      this.newFilePath = newFilePath;
+      this.implicitRename = implicitRename;
+      this.edits = edits;
+      this.size = size;
+    }
+
+    int get(int i, int field) {
+      return edits[4 * i + field];
+    }
+
+    void copyShifted(int i, Side side, int shiftedAmount, int[] dst, int dstIndex) {
+      System.arraycopy(edits, 4 * i, dst, 4 * dstIndex, 4);
+      dst[4 * dstIndex + side.offset] += shiftedAmount;
+      dst[4 * dstIndex + side.offset + 1] += shiftedAmount;
     }
 
+    FileEdits sortedBy(Side side) {
+      int begin = side.offset;
+      int end = side.offset + 1;
+      for (int i = 1; i < size; i++) {
+        if (get(i - 1, begin) > get(i, begin)
+            || (get(i - 1, begin) == get(i, begin) && get(i - 1, end) > get(i, end))) {
+          Integer[] order = new Integer[size];
+          Arrays.setAll(order, j -> j);
+          Arrays.sort(
+              order,
+              Comparator.<Integer>comparingInt(j -> get(j, begin))
+                  .thenComparingInt(j -> get(j, end)));
+          int[] sorted = new int[4 * size];
+          for (int j = 0; j < size; j++) {
+            System.arraycopy(edits, 4 * order[j], sorted, 4 * j, 4);
+          }
+          return new FileEdits(oldFilePath, newFilePath, implicitRename, sorted, size);
+        }
+      }
+      return this;
+    }
+
+    ContextAwareEdit toContextAwareEdit(int i) {
+      return new AutoValue_EditTransformer_ContextAwareEdit(
+          oldFilePath, newFilePath, get(i, 0), get(i, 1), get(i, 2), get(i, 3), implicitRename);
+    }
+  }
+
+  @AutoValue
+  abstract static class ContextAwareEdit {
     static ContextAwareEdit createForNoContentEdit(PatchListEntry patchListEntry) {
       return create(
           patchListEntry.getOldName(), patchListEntry.getNewName(), -1, -1, -1, -1, false);
@@ -237,77 +315,53 @@ class EditTransformer {
     }
   }
 
-  private interface SideStrategy {
-    String getFilePath(ContextAwareEdit edit);
-
-    int getBegin(ContextAwareEdit edit);
-
-    int getEnd(ContextAwareEdit edit);
-
-    ContextAwareEdit create(ContextAwareEdit edit, int shiftedAmount, String adjustedFilePath);
-  }
-
-  private enum SideAStrategy implements SideStrategy {
-    INSTANCE;
-
-    @Override
-    public String getFilePath(ContextAwareEdit edit) {
-      return edit.getOldFilePath();
-    }
-
-    @Override
-    public int getBegin(ContextAwareEdit edit) {
-      return edit.getBeginA();
-    }
+  private enum Side {
+    A(0) {
+      @Override
+      String getFilePath(FileEdits edits) {
+        return edits.oldFilePath;
+      }
 
-    @Override
-    public int getEnd(ContextAwareEdit edit) {
-      return edit.getEndA();
-    }
+      @Override
+      FileEdits adjust(FileEdits edits, String adjustedFilePath, int[] transformed, int size) {
+        return new FileEdits(
+            adjustedFilePath,
+            edits.newFilePath,
+            !Objects.equals(adjustedFilePath, edits.newFilePath)
+                && !Objects.equals(edits.oldFilePath, adjustedFilePath),
+            transformed,
+            size);
+      }
+    },
 
-    @Override
-    public ContextAwareEdit create(
-        ContextAwareEdit edit, int shiftedAmount, String adjustedFilePath) {
-      return ContextAwareEdit.create(
-          adjustedFilePath,
-          edit.getNewFilePath(),
-          edit.getBeginA() + shiftedAmount,
-          edit.getEndA() + shiftedAmount,
-          edit.getBeginB(),
-          edit.getEndB(),
-          !Objects.equals(edit.getOldFilePath(), adjustedFilePath));
-    }
-  }
+    B(2) {
+      @Override
+      String getFilePath(FileEdits edits) {
+        return edits.newFilePath;
+      }
 
-  private enum SideBStrategy implements SideStrategy {
-    INSTANCE;
+      @Override
+      FileEdits adjust(FileEdits edits, String adjustedFilePath, int[] transformed, int size) {
+        return new FileEdits(
+            edits.oldFilePath,
+            adjustedFilePath,
+            !Objects.equals(edits.oldFilePath, adjustedFilePath)
+                && !Objects.equals(edits.newFilePath, adjustedFilePath),
+            transformed,
+            size);
+      }
+    };
 
-    @Override
-    public String getFilePath(ContextAwareEdit edit) {
-      return edit.getNewFilePath();
-    }
+    /** Index of the begin of this side in the four ints of an edit. */
+    final int offset;
 
-    @Override
-    public int getBegin(ContextAwareEdit edit) {
-      return edit.getBeginB();
+    Side(int offset) {
+      this.offset = offset;
     }
 
-    @Override
-    public int getEnd(ContextAwareEdit edit) {
-      return edit.getEndB();
-    }
+    abstract String getFilePath(FileEdits edits);
 
-    @Override
-    public ContextAwareEdit create(
-        ContextAwareEdit edit, int shiftedAmount, String adjustedFilePath) {
-      return ContextAwareEdit.create(
-          edit.getOldFilePath(),
-          adjustedFilePath,
-          edit.getBeginA(),
-          edit.getEndA(),
-          edit.getBeginB() + shiftedAmount,
-          edit.getEndB() + shiftedAmount,
-          !Objects.equals(edit.getNewFilePath(), adjustedFilePath));
-    }
+    /** Creates the transformed edits, with the file path of this side adjusted. */
+    abstract FileEdits adjust(FileEdits edits, String adjustedFilePath, int[] transformed, int size);
   }
 }
@@ -18,21 +18,16 @@ import static com.google.gerrit.server.ioutil.BasicSerialization.readEnum;
 import static com.google.gerrit.server.ioutil.BasicSerialization.readVarInt32;
 import static com.google.gerrit.server.ioutil.BasicSerialization.writeEnum;
 import static com.google.gerrit.server.ioutil.BasicSerialization.writeVarInt32;
-import static java.util.stream.Collectors.toList;
 
 import com.google.common.collect.ImmutableList;
 import com.google.gerrit.reviewdb.client.CodedEnum;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.OutputStream;
 import java.io.Serializable;
-import java.util.Arrays;
-import java.util.Collections;
 import java.util.List;
 import org.eclipse.jgit.diff.Edit;
-import org.eclipse.jgit.diff.ReplaceEdit;
 
 public class IntraLineDiff implements Serializable {
   static final long serialVersionUID = IntraLineDiffKey.serialVersionUID;
@@ -56,42 +51,45 @@ public class IntraLineDiff implements Serializable {
   }
 
   private transient Status status;
-  private transient ImmutableList<Edit> edits;
+  private transient PackedEditList edits;
 
   IntraLineDiff(Status status) {
     this.status = status;
-    this.edits = ImmutableList.of();
+    this.edits = PackedEditList.empty();
   }
 
   IntraLineDiff(List<Edit> edits) {
     this.status = Status.EDIT_LIST;
-    this.edits = ImmutableList.copyOf(edits);
+    this.edits = PackedEditList.of(edits);
   }
 
   public Status getStatus() {
     return status;
   }
 
+  /**
+   * Returns new {@link Edit} objects on every call, as edits are mutable objects and the cached
+   * value must not be modified.
+   */
   public ImmutableList<Edit> getEdits() {
-    // Edits are mutable objects. As we serialize IntraLineDiff asynchronously in H2CacheImpl, we
-    // must ensure that its state isn't modified until it was properly stored in the cache.
-    return deepCopyEdits(edits);
+    return edits.toEdits();
+  }
+
+  /** Returns the edits without creating {@link Edit} objects. */
+  public PackedEditList getPackedEdits() {
+    return edits;
   }
 
   private void writeObject(ObjectOutputStream out) throws IOException {
     writeEnum(out, status);
     writeVarInt32(out, edits.size());
-    for (Edit e : edits) {
-      writeEdit(out, e);
-
-      if (e instanceof ReplaceEdit) {
-        ReplaceEdit r = (ReplaceEdit) e;
-        writeVarInt32(out, r.getInternalEdits().size());
-        for (Edit i : r.getInternalEdits()) {
-          writeEdit(out, i);
-        }
-      } else {
-        writeVarInt32(out, 0);
+    for (int i = 0; i < edits.size(); i++) {
+      writeEdit(out, edits, i);
+
+      PackedEditList internal = edits.getInternalEdits(i);
+      writeVarInt32(out, internal.size());
+      for (int j = 0; j < internal.size(); j++) {
+        writeEdit(out, internal, j);
       }
     }
   }
@@ -99,56 +97,22 @@ public class IntraLineDiff implements Serializable {
   private void readObject(ObjectInputStream in) throws IOException {
     status = readEnum(in, Status.values());
     int editCount = readVarInt32(in);
-    Edit[] editArray = new Edit[editCount];
+    PackedEditList.Builder b = PackedEditList.builder(editCount);
     for (int i = 0; i < editCount; i++) {
-      editArray[i] = readEdit(in);
+      b.add(readVarInt32(in), readVarInt32(in), readVarInt32(in), readVarInt32(in));
 
       int innerCount = readVarInt32(in);
-      if (0 < innerCount) {
-        Edit[] inner = new Edit[innerCount];
-        for (int j = 0; j < innerCount; j++) {
-          inner[j] = readEdit(in);
-        }
-        editArray[i] = new ReplaceEdit(editArray[i], asList(inner));
+      for (int j = 0; j < innerCount; j++) {
+        b.addInternal(readVarInt32(in), readVarInt32(in), readVarInt32(in), readVarInt32(in));
       }
     }
-    edits = ImmutableList.copyOf(editArray);
-  }
-
-  private static ImmutableList<Edit> deepCopyEdits(List<Edit> edits) {
-    return edits.stream().map(IntraLineDiff::copy).collect(ImmutableList.toImmutableList());
-  }
-
-  private static Edit copy(Edit edit) {
-    if (edit instanceof ReplaceEdit) {
-      return copy((ReplaceEdit) edit);
-    }
-    return new Edit(edit.getBeginA(), edit.getEndA(), edit.getBeginB(), edit.getEndB());
-  }
-
-  private static ReplaceEdit copy(ReplaceEdit edit) {
-    List<Edit> internalEdits =
-        edit.getInternalEdits().stream().map(IntraLineDiff::copy).collect(toList());
-    return new ReplaceEdit(
-        edit.getBeginA(), edit.getEndA(), edit.getBeginB(), edit.getEndB(), internalEdits);
-  }
-
-  private static void writeEdit(OutputStream out, Edit e) throws IOException {
-    writeVarInt32(out, e.getBeginA());
-    writeVarInt32(out, e.getEndA());
-    writeVarInt32(out, e.getBeginB());
-    writeVarInt32(out, e.getEndB());
-  }
-
-  private static Edit readEdit(InputStream in) throws IOException {
-    int beginA = readVarInt32(in);
-    int endA = readVarInt32(in);
-    int beginB = readVarInt32(in);
-    int endB = readVarInt32(in);
-    return new Edit(beginA, endA, beginB, endB);
+    edits = b.build();
   }
 
-  private static List<Edit> asList(Edit[] l) {
-    return Collections.unmodifiableList(Arrays.asList(l));
+  private static void writeEdit(OutputStream out, PackedEditList edits, int i) throws IOException {
+    writeVarInt32(out, edits.getBeginA(i));
+    writeVarInt32(out, edits.getEndA(i));
+    writeVarInt32(out, edits.getBeginB(i));
+    writeVarInt32(out, edits.getEndB(i));
   }
 }
@@ -18,9 +18,14 @@ package com.google.gerrit.server.patch;
 import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
+import com.google.gerrit.metrics.Counter1;
+import com.google.gerrit.metrics.Description;
+import com.google.gerrit.metrics.Field;
+import com.google.gerrit.metrics.MetricMaker;
 import com.google.gerrit.server.config.ConfigUtil;
 import com.google.gerrit.server.config.GerritServerConfig;
 import com.google.inject.Inject;
+import com.google.inject.Singleton;
 import com.google.inject.assistedinject.Assisted;
 import java.util.ArrayList;
 import java.util.List;
@@ -28,8 +33,12 @@ import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.regex.Pattern;
 import org.eclipse.jgit.diff.Edit;
 import org.eclipse.jgit.diff.MyersDiff;
@@ -50,18 +59,90 @@ class IntraLineLoader implements Callable<IntraLineDiff> {
 
   private static final Pattern CONTROL_BLOCK_START_RE = Pattern.compile("[{:][ \\t]*$");
 
+  /** Outcome of the intraline diff of one replaced region of a file. */
+  enum HunkResult {
+    COMPUTED,
+
+    /** The region has more characters than {@code cache.diff_intraline.maxHunkSize}. */
+    SKIPPED_TOO_LARGE,
+
+    /** The region wasn't diffed before {@code cache.diff_intraline.timeout}. */
+    SKIPPED_TIMEOUT;
+  }
+
+  @Singleton
+  static class Metrics {
+    final Counter1<HunkResult> hunks;
+
+    @Inject
+    Metrics(MetricMaker metricMaker) {
+      hunks =
+          metricMaker.newCounter(
+              "diff/intraline_hunk_count",
+              new Description(
+                      "Replaced regions of files by whether their intraline diff was computed or"
+                          + " skipped")
+                  .setRate()
+                  .setUnit("hunks"),
+              Field.ofEnum(HunkResult.class, "result"));
+    }
+  }
+
+  /**
+   * Threads that compute intraline diffs of regions in addition to the one thread every file gets,
+   * shared by all files.
+   */
+  @Singleton
+  static class Workers {
+    private final Semaphore extraThreads;
+
+    @Inject
+    Workers(@GerritServerConfig Config cfg) {
+      extraThreads =
+          new Semaphore(
+              Math.max(
+                  0,
+                  cfg.getInt(
+                      "cache",
+                      PatchListCacheImpl.INTRA_NAME,
+                      "maxExtraThreads",
+                      Runtime.getRuntime().availableProcessors())));
+    }
+
+    /** @return number of extra threads acquired, at most {@code wanted}; never blocks. */
+    int acquire(int wanted) {
+      int acquired = 0;
+      while (acquired < wanted && extraThreads.tryAcquire()) {
+        acquired++;
+      }
+      return acquired;
+    }
+
+    void release() {
+      extraThreads.release();
+    }
+  }
+
   private final ExecutorService diffExecutor;
+  private final Metrics metrics;
+  private final Workers workers;
   private final long timeoutMillis;
+  private final int parallelism;
+  private final int maxHunkSize;
   private final IntraLineDiffKey key;
   private final IntraLineDiffArgs args;
 
   @Inject
   IntraLineLoader(
       @DiffExecutor ExecutorService diffExecutor,
+      Metrics metrics,
+      Workers workers,
       @GerritServerConfig Config cfg,
       @Assisted IntraLineDiffKey key,
       @Assisted IntraLineDiffArgs args) {
     this.diffExecutor = diffExecutor;
+    this.metrics = metrics;
+    this.workers = workers;
     timeoutMillis =
         ConfigUtil.getTimeUnit(
             cfg,
@@ -70,41 +151,158 @@ class IntraLineLoader implements Callable<IntraLineDiff> {
             "timeout",
             TimeUnit.MILLISECONDS.convert(5, TimeUnit.SECONDS),
             TimeUnit.MILLISECONDS);
+    parallelism =
+        Math.max(1, cfg.getInt("cache", PatchListCacheImpl.INTRA_NAME, "parallelism", 2));
+    maxHunkSize = cfg.getInt("cache", PatchListCacheImpl.INTRA_NAME, "maxHunkSize", 100_000);
     this.key = key;
     this.args = args;
   }
 
+  /**
+   * Computes the intraline diff of each replaced region of the file independently.
+   *
+   * <p>Regions are diffed concurrently on the {@link DiffExecutor}, by at most {@code
+   * cache.diff_intraline.parallelism} threads. Threads beyond the first one are only used if they
+   * are available from the {@code cache.diff_intraline.maxExtraThreads} shared by all files.
+   * Regions with more than {@code cache.diff_intraline.maxHunkSize} characters are skipped, and so
+   * are the regions that weren't diffed within {@code cache.diff_intraline.timeout}. Skipped
+   * regions are returned without intraline edits, so the regions that were diffed are still
+   * highlighted and cached.
+   */
   @Override
   public IntraLineDiff call() throws Exception {
-    Future<IntraLineDiff> result =
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    Text aText = args.aText();
+    Text bText = args.bText();
+    Future<List<Edit>> combined =
         diffExecutor.submit(
-            () ->
-                IntraLineLoader.compute(
-                    args.aText(), args.bText(), args.edits(), args.editsDueToRebase()));
+            () -> {
+              List<Edit> edits = new ArrayList<>(args.edits());
+              combineLineEdits(edits, args.editsDueToRebase(), aText, bText);
+              return edits;
+            });
+    List<Edit> edits;
     try {
-      return result.get(timeoutMillis, TimeUnit.MILLISECONDS);
+      edits = combined.get(remaining(deadline), TimeUnit.NANOSECONDS);
     } catch (InterruptedException | TimeoutException e) {
-      log.warn(
-          timeoutMillis
-              + " ms timeout reached for IntraLineDiff"
-              + " in project "
-              + args.project()
-              + " on commit "
-              + args.commit().name()
-              + " for path "
-              + args.path()
-              + " comparing "
-              + key.getBlobA().name()
-              + ".."
-              + key.getBlobB().name());
-      result.cancel(true);
+      combined.cancel(true);
+      logTimeout("no regions were diffed");
       return new IntraLineDiff(IntraLineDiff.Status.TIMEOUT);
     } catch (ExecutionException e) {
-      // If there was an error computing the result, carry it
-      // up to the caller so the cache knows this key is invalid.
-      Throwables.throwIfInstanceOf(e.getCause(), Exception.class);
-      throw new Exception(e.getMessage(), e.getCause());
+      throw asException(e);
+    }
+
+    List<Integer> replaced = new ArrayList<>();
+    List<Edit> regions = new ArrayList<>();
+    for (int i = 0; i < edits.size(); i++) {
+      if (edits.get(i).getType() == Edit.Type.REPLACE) {
+        replaced.add(i);
+        regions.add(edits.get(i));
+      }
+    }
+    int n = regions.size();
+    if (n == 0) {
+      return new IntraLineDiff(edits);
+    }
+
+    AtomicReferenceArray<Edit> results = new AtomicReferenceArray<>(n);
+    AtomicInteger next = new AtomicInteger();
+    AtomicBoolean expired = new AtomicBoolean();
+    AtomicInteger tooLarge = new AtomicInteger();
+    Callable<Void> worker =
+        () -> {
+          int i;
+          while (!expired.get() && (i = next.getAndIncrement()) < n) {
+            Edit e = regions.get(i);
+            ReplaceEdit r = intraline(aText, bText, e, maxHunkSize);
+            if (r != null) {
+              results.set(i, r);
+            } else {
+              results.set(i, e);
+              tooLarge.incrementAndGet();
+            }
+          }
+          return null;
+        };
+
+    List<Future<Void>> running = new ArrayList<>();
+    running.add(diffExecutor.submit(worker));
+    int extra = workers.acquire(Math.min(parallelism, n) - 1);
+    for (int i = 0; i < extra; i++) {
+      running.add(
+          diffExecutor.submit(
+              () -> {
+                try {
+                  return worker.call();
+                } finally {
+                  workers.release();
+                }
+              }));
+    }
+    try {
+      for (Future<Void> f : running) {
+        f.get(remaining(deadline), TimeUnit.NANOSECONDS);
+      }
+    } catch (InterruptedException | TimeoutException e) {
+      // Keep the regions that were diffed so far.
+    } catch (ExecutionException e) {
+      throw asException(e);
+    } finally {
+      // Workers stop after their current region. They are not cancelled, so that workers that
+      // didn't start yet still run and give back their extra thread.
+      expired.set(true);
+    }
+
+    int timedOut = 0;
+    for (int i = 0; i < n; i++) {
+      Edit r = results.get(i);
+      if (r != null) {
+        edits.set(replaced.get(i), r);
+      } else {
+        timedOut++;
+      }
+    }
+    int skipped = tooLarge.get();
+    metrics.hunks.incrementBy(HunkResult.COMPUTED, n - timedOut - skipped);
+    metrics.hunks.incrementBy(HunkResult.SKIPPED_TOO_LARGE, skipped);
+    metrics.hunks.incrementBy(HunkResult.SKIPPED_TIMEOUT, timedOut);
+
+    if (timedOut > 0) {
+      logTimeout(timedOut + " of " + n + " regions were not diffed");
+      if (timedOut == n) {
+        return new IntraLineDiff(IntraLineDiff.Status.TIMEOUT);
+      }
     }
+    return new IntraLineDiff(edits);
+  }
+
+  private static long remaining(long deadline) {
+    return Math.max(deadline - System.nanoTime(), 0);
+  }
+
+  private static Exception asException(ExecutionException e) throws Exception {
+    // If there was an error computing the result, carry it
+    // up to the caller so the cache knows this key is invalid.
+    Throwables.throwIfInstanceOf(e.getCause(), Exception.class);
+    return new Exception(e.getMessage(), e.getCause());
+  }
+
+  private void logTimeout(String detail) {
+    log.warn(
+        timeoutMillis
+            + " ms timeout reached for IntraLineDiff"
+            + " in project "
+            + args.project()
+            + " on commit "
+            + args.commit().name()
+            + " for path "
+            + args.path()
+            + " comparing "
+            + key.getBlobA().name()
+            + ".."
+            + key.getBlobB().name()
+            + ", "
+            + detail);
   }
 
   static IntraLineDiff compute(
@@ -117,149 +315,154 @@ class IntraLineLoader implements Callable<IntraLineDiff> {
 
     for (int i = 0; i < edits.size(); i++) {
       Edit e = edits.get(i);
-
       if (e.getType() == Edit.Type.REPLACE) {
-        CharText a = new CharText(aText, e.getBeginA(), e.getEndA());
-        CharText b = new CharText(bText, e.getBeginB(), e.getEndB());
-        CharTextComparator cmp = new CharTextComparator();
-
-        List<Edit> wordEdits = MyersDiff.INSTANCE.diff(cmp, a, b);
-
-        // Combine edits that are really close together. If they are
-        // just a few characters apart we tend to get better results
-        // by joining them together and taking the whole span.
-        //
-        for (int j = 0; j < wordEdits.size() - 1; ) {
-          Edit c = wordEdits.get(j);
-          Edit n = wordEdits.get(j + 1);
-
-          if (n.getBeginA() - c.getEndA() <= 5 || n.getBeginB() - c.getEndB() <= 5) {
-            int ab = c.getBeginA();
-            int ae = n.getEndA();
-
-            int bb = c.getBeginB();
-            int be = n.getEndB();
-
-            if (canCoalesce(a, c.getEndA(), n.getBeginA())
-                && canCoalesce(b, c.getEndB(), n.getBeginB())) {
-              wordEdits.set(j, new Edit(ab, ae, bb, be));
-              wordEdits.remove(j + 1);
-              continue;
-            }
-          }
+        edits.set(i, intraline(aText, bText, e, 0));
+      }
+    }
+    return new IntraLineDiff(edits);
+  }
+
+  /**
+   * Computes the intraline edits of one replaced region.
+   *
+   * @param maxSize maximum number of characters of both sides of the region, or 0 for no limit.
+   * @return the region with its intraline edits, or null if it exceeds {@code maxSize}.
+   */
+  private static ReplaceEdit intraline(Text aText, Text bText, Edit e, int maxSize) {
+    CharText a = new CharText(aText, e.getBeginA(), e.getEndA());
+    CharText b = new CharText(bText, e.getBeginB(), e.getEndB());
+    if (maxSize > 0 && a.size() + b.size() > maxSize) {
+      return null;
+    }
+    CharTextComparator cmp = new CharTextComparator();
+
+    List<Edit> wordEdits = MyersDiff.INSTANCE.diff(cmp, a, b);
+
+    // Combine edits that are really close together. If they are
+    // just a few characters apart we tend to get better results
+    // by joining them together and taking the whole span.
+    //
+    for (int j = 0; j < wordEdits.size() - 1; ) {
+      Edit c = wordEdits.get(j);
+      Edit n = wordEdits.get(j + 1);
+
+      if (n.getBeginA() - c.getEndA() <= 5 || n.getBeginB() - c.getEndB() <= 5) {
+        int ab = c.getBeginA();
+        int ae = n.getEndA();
 
-          j++;
+        int bb = c.getBeginB();
+        int be = n.getEndB();
+
+        if (canCoalesce(a, c.getEndA(), n.getBeginA())
+            && canCoalesce(b, c.getEndB(), n.getBeginB())) {
+          wordEdits.set(j, new Edit(ab, ae, bb, be));
+          wordEdits.remove(j + 1);
+          continue;
         }
+      }
 
-        // Apply some simple rules to fix up some of the edits. Our
-        // logic above, along with our per-character difference tends
-        // to produce some crazy stuff.
-        //
-        for (int j = 0; j < wordEdits.size(); j++) {
-          Edit c = wordEdits.get(j);
-          int ab = c.getBeginA();
-          int ae = c.getEndA();
-
-          int bb = c.getBeginB();
-          int be = c.getEndB();
-
-          // Sometimes the diff generator produces an INSERT or DELETE
-          // right up against a REPLACE, but we only find this after
-          // we've also played some shifting games on the prior edit.
-          // If that happened to us, coalesce them together so we can
-          // correct this mess for the user. If we don't we wind up
-          // with silly stuff like "es" -> "es = Addresses".
-          //
-          if (1 < j) {
-            Edit p = wordEdits.get(j - 1);
-            if (p.getEndA() == ab || p.getEndB() == bb) {
-              if (p.getEndA() == ab && p.getBeginA() < p.getEndA()) {
-                ab = p.getBeginA();
-              }
-              if (p.getEndB() == bb && p.getBeginB() < p.getEndB()) {
-                bb = p.getBeginB();
-              }
-              wordEdits.remove(--j);
-            }
-          }
+      j++;
+    }
 
-          // We sometimes collapsed an edit together in a strange way,
-          // such that the edges of each text is identical. Fix by
-          // by dropping out that incorrectly replaced region.
-          //
-          while (ab < ae && bb < be && cmp.equals(a, ab, b, bb)) {
-            ab++;
-            bb++;
+    // Apply some simple rules to fix up some of the edits. Our
+    // logic above, along with our per-character difference tends
+    // to produce some crazy stuff.
+    //
+    for (int j = 0; j < wordEdits.size(); j++) {
+      Edit c = wordEdits.get(j);
+      int ab = c.getBeginA();
+      int ae = c.getEndA();
+
+      int bb = c.getBeginB();
+      int be = c.getEndB();
+
+      // Sometimes the diff generator produces an INSERT or DELETE
+      // right up against a REPLACE, but we only find this after
+      // we've also played some shifting games on the prior edit.
+      // If that happened to us, coalesce them together so we can
+      // correct this mess for the user. If we don't we wind up
+      // with silly stuff like "es" -> "es = Addresses".
+      //
+      if (1 < j) {
+        Edit p = wordEdits.get(j - 1);
+        if (p.getEndA() == ab || p.getEndB() == bb) {
+          if (p.getEndA() == ab && p.getBeginA() < p.getEndA()) {
+            ab = p.getBeginA();
           }
-          while (ab < ae && bb < be && cmp.equals(a, ae - 1, b, be - 1)) {
-            ae--;
-            be--;
+          if (p.getEndB() == bb && p.getBeginB() < p.getEndB()) {
+            bb = p.getBeginB();
           }
+          wordEdits.remove(--j);
+        }
+      }
 
-          // The leading part of an edit and its trailing part in the same
-          // text might be identical. Slide down that edit and use the tail
-          // rather than the leading bit.
-          //
-          while (0 < ab
-              && ab < ae
-              && a.charAt(ab - 1) != '\n'
-              && cmp.equals(a, ab - 1, a, ae - 1)) {
-            ab--;
-            ae--;
-          }
-          if (!a.isLineStart(ab) || !a.contains(ab, ae, '\n')) {
-            while (ab < ae && ae < a.size() && cmp.equals(a, ab, a, ae)) {
-              ab++;
-              ae++;
-              if (a.charAt(ae - 1) == '\n') {
-                break;
-              }
-            }
-          }
+      // We sometimes collapsed an edit together in a strange way,
+      // such that the edges of each text is identical. Fix by
+      // by dropping out that incorrectly replaced region.
+      //
+      while (ab < ae && bb < be && cmp.equals(a, ab, b, bb)) {
+        ab++;
+        bb++;
+      }
+      while (ab < ae && bb < be && cmp.equals(a, ae - 1, b, be - 1)) {
+        ae--;
+        be--;
+      }
 
-          while (0 < bb
-              && bb < be
-              && b.charAt(bb - 1) != '\n'
-              && cmp.equals(b, bb - 1, b, be - 1)) {
-            bb--;
-            be--;
-          }
-          if (!b.isLineStart(bb) || !b.contains(bb, be, '\n')) {
-            while (bb < be && be < b.size() && cmp.equals(b, bb, b, be)) {
-              bb++;
-              be++;
-              if (b.charAt(be - 1) == '\n') {
-                break;
-              }
-            }
+      // The leading part of an edit and its trailing part in the same
+      // text might be identical. Slide down that edit and use the tail
+      // rather than the leading bit.
+      //
+      while (0 < ab && ab < ae && a.charAt(ab - 1) != '\n' && cmp.equals(a, ab - 1, a, ae - 1)) {
+        ab--;
+        ae--;
+      }
+      if (!a.isLineStart(ab) || !a.contains(ab, ae, '\n')) {
+        while (ab < ae && ae < a.size() && cmp.equals(a, ab, a, ae)) {
+          ab++;
+          ae++;
+          if (a.charAt(ae - 1) == '\n') {
+            break;
           }
+        }
+      }
 
-          // If most of a line was modified except the LF was common, make
-          // the LF part of the modification region. This is easier to read.
-          //
-          if (ab < ae //
-              && (ab == 0 || a.charAt(ab - 1) == '\n') //
-              && ae < a.size()
-              && a.charAt(ae - 1) != '\n'
-              && a.charAt(ae) == '\n') {
-            ae++;
-          }
-          if (bb < be //
-              && (bb == 0 || b.charAt(bb - 1) == '\n') //
-              && be < b.size()
-              && b.charAt(be - 1) != '\n'
-              && b.charAt(be) == '\n') {
-            be++;
+      while (0 < bb && bb < be && b.charAt(bb - 1) != '\n' && cmp.equals(b, bb - 1, b, be - 1)) {
+        bb--;
+        be--;
+      }
+      if (!b.isLineStart(bb) || !b.contains(bb, be, '\n')) {
+        while (bb < be && be < b.size() && cmp.equals(b, bb, b, be)) {
+          bb++;
+          be++;
+          if (b.charAt(be - 1) == '\n') {
+            break;
           }
-
-          wordEdits.set(j, new Edit(ab, ae, bb, be));
         }
+      }
 
-        edits.set(i, new ReplaceEdit(e, wordEdits));
+      // If most of a line was modified except the LF was common, make
+      // the LF part of the modification region. This is easier to read.
+      //
+      if (ab < ae //
+          && (ab == 0 || a.charAt(ab - 1) == '\n') //
+          && ae < a.size()
+          && a.charAt(ae - 1) != '\n'
+          && a.charAt(ae) == '\n') {
+        ae++;
+      }
+      if (bb < be //
+          && (bb == 0 || b.charAt(bb - 1) == '\n') //
+          && be < b.size()
+          && b.charAt(be - 1) != '\n'
+          && b.charAt(be) == '\n') {
+        be++;
       }
+
+      wordEdits.set(j, new Edit(ab, ae, bb, be));
     }
 
-    return new IntraLineDiff(edits);
+    return new ReplaceEdit(e, wordEdits);
   }
 
   private static void combineLineEdits(
@@ -0,0 +1,115 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.patch;
+
+import com.google.auto.value.AutoValue;
+import com.google.common.collect.ImmutableList;
+import com.google.gerrit.common.Nullable;
+import com.google.gerrit.reviewdb.client.Patch;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.eclipse.jgit.diff.DiffEntry;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.ObjectId;
+
+/**
+ * Files that are modified between two commits, computed from their trees without diffing the
+ * content of the files.
+ *
+ * <p>This is a cheaper alternative to {@link PatchList} for callers that only need the paths of
+ * the modified files.
+ */
+@AutoValue
+public abstract class ModifiedFiles {
+  static ModifiedFiles create(
+      @Nullable AnyObjectId oldId,
+      AnyObjectId newId,
+      boolean isMerge,
+      ComparisonType comparisonType,
+      List<DiffEntry> diffEntries) {
+    List<String> paths = new ArrayList<>(diffEntries.size());
+    for (DiffEntry e : diffEntries) {
+      switch (e.getChangeType()) {
+        case ADD:
+        case MODIFY:
+        case COPY:
+          paths.add(e.getNewPath());
+          break;
+
+        case DELETE:
+          paths.add(e.getOldPath());
+          break;
+
+        case RENAME:
+          paths.add(e.getOldPath());
+          paths.add(e.getNewPath());
+          break;
+      }
+    }
+    return create(oldId, newId, isMerge, comparisonType, paths);
+  }
+
+  static ModifiedFiles fromPatchList(PatchList patchList) {
+    List<String> paths = new ArrayList<>(patchList.getPatches().size());
+    for (PatchListEntry e : patchList.getPatches()) {
+      if (Patch.isMagic(e.getNewName())) {
+        continue;
+      }
+      if (e.getChangeType() == Patch.ChangeType.RENAMED) {
+        paths.add(e.getOldName());
+      }
+      paths.add(e.getNewName());
+    }
+    return create(
+        patchList.getOldId(),
+        patchList.getNewId(),
+        patchList.isMerge(),
+        patchList.getComparisonType(),
+        paths);
+  }
+
+  private static ModifiedFiles create(
+      @Nullable AnyObjectId oldId,
+      AnyObjectId newId,
+      boolean isMerge,
+      ComparisonType comparisonType,
+      List<String> paths) {
+    Collections.sort(paths);
+    return new AutoValue_ModifiedFiles(
+        oldId != null ? oldId.copy() : null,
+        newId.copy(),
+        isMerge,
+        comparisonType,
+        ImmutableList.copyOf(paths));
+  }
+
+  /** Old side tree or commit; null only if this is a combined diff. */
+  @Nullable
+  public abstract ObjectId getOldId();
+
+  /** New side commit. */
+  public abstract ObjectId getNewId();
+
+  public abstract boolean isMerge();
+
+  public abstract ComparisonType getComparisonType();
+
+  /**
+   * Sorted paths of the modified files, like {@link DiffSummary#getPaths()}. Renamed files are
+   * listed with their old and new path.
+   */
+  public abstract ImmutableList<String> getPaths();
+}
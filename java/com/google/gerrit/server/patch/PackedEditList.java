@@ -0,0 +1,253 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.patch;
+
+import com.google.common.collect.ImmutableList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.eclipse.jgit.diff.Edit;
+import org.eclipse.jgit.diff.ReplaceEdit;
+
+/**
+ * Immutable list of edits that is packed into arrays of primitives.
+ *
+ * <p>Each edit takes four ints instead of an {@link Edit} object and a reference to it, which is
+ * much smaller for files with many edits and can be shared without defensive copies. The internal
+ * edits of {@link ReplaceEdit}s are packed into a second array.
+ *
+ * <p>Use {@link #of(List)} and {@link #toEdits()} to convert from and to lists of {@link Edit}s
+ * for callers that need the objects.
+ */
+public final class PackedEditList {
+  private static final int[] NO_INTS = new int[0];
+
+  private static final PackedEditList EMPTY = new PackedEditList(NO_INTS, null, NO_INTS);
+
+  public static PackedEditList empty() {
+    return EMPTY;
+  }
+
+  public static PackedEditList of(List<Edit> edits) {
+    if (edits.isEmpty()) {
+      return EMPTY;
+    }
+    Builder b = builder(edits.size());
+    for (Edit e : edits) {
+      b.add(e.getBeginA(), e.getEndA(), e.getBeginB(), e.getEndB());
+      if (e instanceof ReplaceEdit) {
+        List<Edit> internal = ((ReplaceEdit) e).getInternalEdits();
+        if (internal != null) {
+          for (Edit i : internal) {
+            b.addInternal(i.getBeginA(), i.getEndA(), i.getBeginB(), i.getEndB());
+          }
+        }
+      }
+    }
+    return b.build();
+  }
+
+  public static Builder builder(int expectedSize) {
+    return new Builder(expectedSize);
+  }
+
+  /** Begin and end of both sides of each edit, in this order. */
+  private final int[] edits;
+
+  /**
+   * Index of the first internal edit of each edit, with an additional entry for the end of the last
+   * edit; null if no edit has internal edits.
+   */
+  private final int[] internalStart;
+
+  private final int[] internalEdits;
+
+  private PackedEditList(int[] edits, int[] internalStart, int[] internalEdits) {
+    this.edits = edits;
+    this.internalStart = internalStart;
+    this.internalEdits = internalEdits;
+  }
+
+  public int size() {
+    return edits.length / 4;
+  }
+
+  public boolean isEmpty() {
+    return edits.length == 0;
+  }
+
+  public int getBeginA(int i) {
+    return edits[4 * i];
+  }
+
+  public int getEndA(int i) {
+    return edits[4 * i + 1];
+  }
+
+  public int getBeginB(int i) {
+    return edits[4 * i + 2];
+  }
+
+  public int getEndB(int i) {
+    return edits[4 * i + 3];
+  }
+
+  /** @return whether the edit is a {@link ReplaceEdit} with internal edits. */
+  public boolean hasInternalEdits(int i) {
+    return internalStart != null && internalStart[i] < internalStart[i + 1];
+  }
+
+  /** @return internal edits of the edit, which don't have internal edits themselves. */
+  public PackedEditList getInternalEdits(int i) {
+    if (!hasInternalEdits(i)) {
+      return EMPTY;
+    }
+    return new PackedEditList(
+        Arrays.copyOfRange(internalEdits, 4 * internalStart[i], 4 * internalStart[i + 1]),
+        null,
+        NO_INTS);
+  }
+
+  /** @return new {@link Edit} object for the edit, without its internal edits. */
+  public Edit getEdit(int i) {
+    return new Edit(getBeginA(i), getEndA(i), getBeginB(i), getEndB(i));
+  }
+
+  /**
+   * Converts the list into new {@link Edit} objects, and into {@link ReplaceEdit}s for edits that
+   * have internal edits. The caller may modify the returned objects.
+   */
+  public ImmutableList<Edit> toEdits() {
+    ImmutableList.Builder<Edit> result = ImmutableList.builderWithExpectedSize(size());
+    for (int i = 0; i < size(); i++) {
+      if (hasInternalEdits(i)) {
+        List<Edit> internal = new ArrayList<>(internalStart[i + 1] - internalStart[i]);
+        for (int j = internalStart[i]; j < internalStart[i + 1]; j++) {
+          internal.add(
+              new Edit(
+                  internalEdits[4 * j],
+                  internalEdits[4 * j + 1],
+                  internalEdits[4 * j + 2],
+                  internalEdits[4 * j + 3]));
+        }
+        result.add(new ReplaceEdit(getBeginA(i), getEndA(i), getBeginB(i), getEndB(i), internal));
+      } else {
+        result.add(getEdit(i));
+      }
+    }
+    return result.build();
+  }
+
+  /** @return approximate number of bytes used by this list on a 64 bit JVM. */
+  int weigh() {
+    int size = 16 + 3 * 8 + 16 + 4 * edits.length;
+    if (internalStart != null) {
+      size += 16 + 4 * internalStart.length + 16 + 4 * internalEdits.length;
+    }
+    return size;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (!(o instanceof PackedEditList)) {
+      return false;
+    }
+    PackedEditList other = (PackedEditList) o;
+    return Arrays.equals(edits, other.edits)
+        && Arrays.equals(internalEdits, other.internalEdits)
+        && Arrays.equals(normalizedInternalStart(), other.normalizedInternalStart());
+  }
+
+  @Override
+  public int hashCode() {
+    return 31 * Arrays.hashCode(edits) + Arrays.hashCode(internalEdits);
+  }
+
+  @Override
+  public String toString() {
+    return toEdits().toString();
+  }
+
+  private int[] normalizedInternalStart() {
+    return internalEdits.length > 0 ? internalStart : null;
+  }
+
+  /** Builder that appends edits to growing arrays of primitives. */
+  public static class Builder {
+    private int[] edits;
+    private int size;
+    private int[] internalStart;
+    private int[] internalEdits;
+    private int internalSize;
+
+    private Builder(int expectedSize) {
+      edits = new int[4 * Math.max(expectedSize, 1)];
+      internalEdits = NO_INTS;
+    }
+
+    public Builder add(int beginA, int endA, int beginB, int endB) {
+      if (4 * size == edits.length) {
+        edits = Arrays.copyOf(edits, 2 * edits.length);
+      }
+      edits[4 * size] = beginA;
+      edits[4 * size + 1] = endA;
+      edits[4 * size + 2] = beginB;
+      edits[4 * size + 3] = endB;
+      size++;
+      if (internalStart != null) {
+        ensureInternalStartCapacity();
+        internalStart[size] = internalSize;
+      }
+      return this;
+    }
+
+    /** Adds an internal edit to the edit that was added last. */
+    public Builder addInternal(int beginA, int endA, int beginB, int endB) {
+      if (size == 0) {
+        throw new IllegalStateException("internal edit without edit");
+      }
+      if (internalStart == null) {
+        internalStart = new int[edits.length / 4 + 1];
+      }
+      ensureInternalStartCapacity();
+      if (4 * internalSize == internalEdits.length) {
+        internalEdits = Arrays.copyOf(internalEdits, Math.max(16, 2 * internalEdits.length));
+      }
+      internalEdits[4 * internalSize] = beginA;
+      internalEdits[4 * internalSize + 1] = endA;
+      internalEdits[4 * internalSize + 2] = beginB;
+      internalEdits[4 * internalSize + 3] = endB;
+      internalSize++;
+      internalStart[size] = internalSize;
+      return this;
+    }
+
+    public PackedEditList build() {
+      if (size == 0) {
+        return EMPTY;
+      }
+      return new PackedEditList(
+          Arrays.copyOf(edits, 4 * size),
+          internalStart != null ? Arrays.copyOf(internalStart, size + 1) : null,
+          internalSize > 0 ? Arrays.copyOf(internalEdits, 4 * internalSize) : NO_INTS);
+    }
+
+    private void ensureInternalStartCapacity() {
+      if (internalStart.length < size + 1) {
+        internalStart = Arrays.copyOf(internalStart, Math.max(size + 1, 2 * internalStart.length));
+      }
+    }
+  }
+}
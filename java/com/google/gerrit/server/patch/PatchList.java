@@ -126,6 +126,11 @@ public class PatchList implements Serializable {
     return comparisonType;
   }
 
+  /** @return true if the new side commit is a merge commit. */
+  public boolean isMerge() {
+    return isMerge;
+  }
+
   /** @return total number of new lines added. */
   public int getInsertions() {
     return insertions;
@@ -32,4 +32,22 @@ public interface PatchListCache {
 
   DiffSummary getDiffSummary(DiffSummaryKey key, Project.NameKey project)
       throws PatchListNotAvailableException;
+
+  /**
+   * Get the files that are modified between the two sides of the key, without diffing their
+   * content unless the whole patch list is needed anyway.
+   */
+  ModifiedFiles getModifiedFiles(PatchListKey key, Project.NameKey project)
+      throws PatchListNotAvailableException;
+
+  /**
+   * Get a patch list that contains the entry of a single file, if it was modified.
+   *
+   * <p>If the whole patch list is already cached, it is returned instead. Callers should look up
+   * the file with {@link PatchList#get(String)}.
+   *
+   * @param fileName the name of the file on the new side, or on the old side if it was deleted.
+   */
+  PatchList getFile(PatchListKey key, Project.NameKey project, String fileName)
+      throws PatchListNotAvailableException;
 }
@@ -17,7 +17,9 @@ package com.google.gerrit.server.patch;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.cache.Cache;
+import com.google.common.collect.ImmutableList;
 import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.google.gerrit.common.Nullable;
 import com.google.gerrit.extensions.client.DiffPreferencesInfo.Whitespace;
 import com.google.gerrit.reviewdb.client.Change;
 import com.google.gerrit.reviewdb.client.PatchSet;
@@ -27,8 +29,10 @@ import com.google.gerrit.server.config.GerritServerConfig;
 import com.google.inject.Inject;
 import com.google.inject.Module;
 import com.google.inject.Singleton;
+import com.google.inject.TypeLiteral;
 import com.google.inject.name.Named;
 import java.util.concurrent.ExecutionException;
+import org.eclipse.jgit.diff.DiffEntry;
 import org.eclipse.jgit.errors.LargeObjectException;
 import org.eclipse.jgit.lib.Config;
 import org.eclipse.jgit.lib.ObjectId;
@@ -39,6 +43,9 @@ public class PatchListCacheImpl implements PatchListCache {
   static final String FILE_NAME = "diff";
   static final String INTRA_NAME = "diff_intraline";
   static final String DIFF_SUMMARY = "diff_summary";
+  static final String MODIFIED_FILES_NAME = "diff_modified_files";
+  static final String SINGLE_FILE_NAME = "diff_file";
+  static final String RENAMES_NAME = "diff_renames";
 
   public static Module module() {
     return new CacheModule() {
@@ -60,6 +67,18 @@ public class PatchListCacheImpl implements PatchListCache {
             .weigher(DiffSummaryWeigher.class)
             .diskLimit(1 << 30);
 
+        cache(MODIFIED_FILES_NAME, PatchListKey.class, ModifiedFiles.class)
+            .maximumWeight(10 << 20)
+            .weigher(ModifiedFilesWeigher.class);
+
+        cache(SINGLE_FILE_NAME, PatchListFileKey.class, PatchList.class)
+            .maximumWeight(10 << 20)
+            .weigher(PatchListFileWeigher.class);
+
+        cache(RENAMES_NAME, TreePairKey.class, new TypeLiteral<ImmutableList<DiffEntry>>() {})
+            .maximumWeight(10 << 20)
+            .weigher(TreePairWeigher.class);
+
         bind(PatchListCacheImpl.class);
         bind(PatchListCache.class).to(PatchListCacheImpl.class);
       }
@@ -69,6 +88,8 @@ public class PatchListCacheImpl implements PatchListCache {
   private final Cache<PatchListKey, PatchList> fileCache;
   private final Cache<IntraLineDiffKey, IntraLineDiff> intraCache;
   private final Cache<DiffSummaryKey, DiffSummary> diffSummaryCache;
+  private final Cache<PatchListKey, ModifiedFiles> modifiedFilesCache;
+  private final Cache<PatchListFileKey, PatchList> singleFileCache;
   private final PatchListLoader.Factory fileLoaderFactory;
   private final IntraLineLoader.Factory intraLoaderFactory;
   private final DiffSummaryLoader.Factory diffSummaryLoaderFactory;
@@ -79,6 +100,8 @@ public class PatchListCacheImpl implements PatchListCache {
       @Named(FILE_NAME) Cache<PatchListKey, PatchList> fileCache,
       @Named(INTRA_NAME) Cache<IntraLineDiffKey, IntraLineDiff> intraCache,
       @Named(DIFF_SUMMARY) Cache<DiffSummaryKey, DiffSummary> diffSummaryCache,
+      @Named(MODIFIED_FILES_NAME) Cache<PatchListKey, ModifiedFiles> modifiedFilesCache,
+      @Named(SINGLE_FILE_NAME) Cache<PatchListFileKey, PatchList> singleFileCache,
       PatchListLoader.Factory fileLoaderFactory,
       IntraLineLoader.Factory intraLoaderFactory,
       DiffSummaryLoader.Factory diffSummaryLoaderFactory,
@@ -86,6 +109,8 @@ public class PatchListCacheImpl implements PatchListCache {
     this.fileCache = fileCache;
     this.intraCache = intraCache;
     this.diffSummaryCache = diffSummaryCache;
+    this.modifiedFilesCache = modifiedFilesCache;
+    this.singleFileCache = singleFileCache;
     this.fileLoaderFactory = fileLoaderFactory;
     this.intraLoaderFactory = intraLoaderFactory;
     this.diffSummaryLoaderFactory = diffSummaryLoaderFactory;
@@ -175,6 +200,62 @@ public class PatchListCacheImpl implements PatchListCache {
     }
   }
 
+  @Override
+  public ModifiedFiles getModifiedFiles(PatchListKey key, Project.NameKey project)
+      throws PatchListNotAvailableException {
+    PatchList pl = getIfPresent(key);
+    if (pl != null) {
+      return ModifiedFiles.fromPatchList(pl);
+    }
+    try {
+      return modifiedFilesCache.get(
+          key, () -> fileLoaderFactory.create(key, project).loadModifiedFiles());
+    } catch (ExecutionException e) {
+      PatchListLoader.log.warn("Error computing " + key, e);
+      throw new PatchListNotAvailableException(e);
+    } catch (UncheckedExecutionException e) {
+      if (e.getCause() instanceof LargeObjectException) {
+        PatchListLoader.log.warn("Error computing " + key, e);
+        throw new PatchListNotAvailableException(e);
+      }
+      throw e;
+    }
+  }
+
+  @Override
+  public PatchList getFile(PatchListKey key, Project.NameKey project, String fileName)
+      throws PatchListNotAvailableException {
+    PatchList pl = getIfPresent(key);
+    if (pl != null) {
+      return pl;
+    }
+    PatchListFileKey fileKey = PatchListFileKey.create(key, fileName);
+    try {
+      return singleFileCache.get(
+          fileKey, () -> fileLoaderFactory.create(key, project).loadFile(fileName));
+    } catch (ExecutionException e) {
+      PatchListLoader.log.warn("Error computing " + fileKey, e);
+      throw new PatchListNotAvailableException(e);
+    } catch (UncheckedExecutionException e) {
+      if (e.getCause() instanceof LargeObjectException) {
+        PatchListLoader.log.warn("Error computing " + fileKey, e);
+        throw new PatchListNotAvailableException(e);
+      }
+      throw e;
+    }
+  }
+
+  /** @return the whole patch list if it was already computed, or null. */
+  @Nullable
+  private PatchList getIfPresent(PatchListKey key) throws PatchListObjectTooLargeException {
+    PatchList pl = fileCache.getIfPresent(key);
+    if (pl instanceof LargeObjectTombstone) {
+      throw new PatchListObjectTooLargeException(
+          "Error computing " + key + ". Previous attempt failed with LargeObjectException");
+    }
+    return pl;
+  }
+
   /** Used to cache negative results in {@code fileCache}. */
   @VisibleForTesting
   public static class LargeObjectTombstone extends PatchList {
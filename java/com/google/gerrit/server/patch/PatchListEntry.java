@@ -55,7 +55,7 @@ public class PatchListEntry {
         null,
         fileName,
         EMPTY_HEADER,
-        ImmutableList.of(),
+        PackedEditList.empty(),
         ImmutableSet.of(),
         0,
         0,
@@ -68,7 +68,7 @@ public class PatchListEntry {
   private final String oldName;
   private final String newName;
   private final byte[] header;
-  private final ImmutableList<Edit> edits;
+  private final PackedEditList edits;
   private final ImmutableSet<Edit> editsDueToRebase;
   private final int insertions;
   private final int deletions;
@@ -108,9 +108,9 @@ public class PatchListEntry {
     header = compact(hdr);
 
     if (hdr instanceof CombinedFileHeader || hdr.getHunks().isEmpty()) {
-      edits = ImmutableList.of();
+      edits = PackedEditList.empty();
     } else {
-      edits = ImmutableList.copyOf(editList);
+      edits = PackedEditList.of(editList);
     }
     this.editsDueToRebase = ImmutableSet.copyOf(editsDueToRebase);
 
@@ -134,7 +134,7 @@ public class PatchListEntry {
       String oldName,
       String newName,
       byte[] header,
-      ImmutableList<Edit> edits,
+      PackedEditList edits,
       ImmutableSet<Edit> editsDueToRebase,
       int insertions,
       int deletions,
@@ -158,7 +158,7 @@ public class PatchListEntry {
     size += stringSize(oldName);
     size += stringSize(newName);
     size += header.length;
-    size += (8 + 16 + 4 * 4) * edits.size();
+    size += edits.weigh();
     size += (8 + 16 + 4 * 4) * editsDueToRebase.size();
     return size;
   }
@@ -186,7 +186,15 @@ public class PatchListEntry {
     return newName;
   }
 
+  /**
+   * Returns new {@link Edit} objects on every call. Callers that only read the edits should use
+   * {@link #getPackedEdits()} instead.
+   */
   public ImmutableList<Edit> getEdits() {
+    return edits.toEdits();
+  }
+
+  public PackedEditList getPackedEdits() {
     return edits;
   }
 
@@ -249,6 +257,16 @@ public class PatchListEntry {
     writeEditArray(out, editsDueToRebase);
   }
 
+  private static void writeEditArray(OutputStream out, PackedEditList edits) throws IOException {
+    writeVarInt32(out, edits.size());
+    for (int i = 0; i < edits.size(); i++) {
+      writeVarInt32(out, edits.getBeginA(i));
+      writeVarInt32(out, edits.getEndA(i));
+      writeVarInt32(out, edits.getBeginB(i));
+      writeVarInt32(out, edits.getEndB(i));
+    }
+  }
+
   private static void writeEditArray(OutputStream out, Collection<Edit> edits) throws IOException {
     writeVarInt32(out, edits.size());
     for (Edit edit : edits) {
@@ -270,8 +288,8 @@ public class PatchListEntry {
     long size = readFixInt64(in);
     long sizeDelta = readFixInt64(in);
 
-    Edit[] editArray = readEditArray(in);
-    Edit[] editsDueToRebase = readEditArray(in);
+    PackedEditList edits = readEditArray(in);
+    PackedEditList editsDueToRebase = readEditArray(in);
 
     return new PatchListEntry(
         changeType,
@@ -279,25 +297,25 @@ public class PatchListEntry {
         oldName,
         newName,
         hdr,
-        ImmutableList.copyOf(editArray),
-        ImmutableSet.copyOf(editsDueToRebase),
+        edits,
+        ImmutableSet.copyOf(editsDueToRebase.toEdits()),
         ins,
         del,
         size,
         sizeDelta);
   }
 
-  private static Edit[] readEditArray(InputStream in) throws IOException {
+  private static PackedEditList readEditArray(InputStream in) throws IOException {
     int numEdits = readVarInt32(in);
-    Edit[] edits = new Edit[numEdits];
+    PackedEditList.Builder edits = PackedEditList.builder(numEdits);
     for (int i = 0; i < numEdits; i++) {
       int beginA = readVarInt32(in);
       int endA = readVarInt32(in);
       int beginB = readVarInt32(in);
       int endB = readVarInt32(in);
-      edits[i] = new Edit(beginA, endA, beginB, endB);
+      edits.add(beginA, endA, beginB, endB);
     }
-    return edits;
+    return edits.build();
   }
 
   private static byte[] compact(FileHeader h) {
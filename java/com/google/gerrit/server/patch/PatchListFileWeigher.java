@@ -0,0 +1,35 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.patch;
+
+import com.google.common.cache.Weigher;
+
+/** Approximates memory usage for the PatchList of a single file in bytes of memory used. */
+public class PatchListFileWeigher implements Weigher<PatchListFileKey, PatchList> {
+  private final PatchListWeigher patchListWeigher = new PatchListWeigher();
+
+  @Override
+  public int weigh(PatchListFileKey key, PatchList value) {
+    return 16
+        + 2 * 8 // Size of PatchListFileKey, 64 bit JVM
+        + 16
+        + 8
+        + 4 * 4
+        + 16
+        + 8
+        + key.fileName().length() * 2 // String
+        + patchListWeigher.weigh(key.patchListKey(), value);
+  }
+}
@@ -23,13 +23,23 @@ import static org.eclipse.jgit.lib.Constants.OBJ_BLOB;
 
 import com.google.auto.value.AutoValue;
 import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMultimap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Multimap;
+import com.google.gerrit.common.Nullable;
 import com.google.gerrit.extensions.client.DiffPreferencesInfo.Whitespace;
+import com.google.gerrit.metrics.Counter0;
+import com.google.gerrit.metrics.Counter1;
+import com.google.gerrit.metrics.Description;
+import com.google.gerrit.metrics.Description.Units;
+import com.google.gerrit.metrics.Field;
+import com.google.gerrit.metrics.MetricMaker;
+import com.google.gerrit.metrics.Timer1;
 import com.google.gerrit.reviewdb.client.Patch;
 import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.server.cache.PerThreadCache;
 import com.google.gerrit.server.config.ConfigUtil;
 import com.google.gerrit.server.config.GerritServerConfig;
 import com.google.gerrit.server.git.GitRepositoryManager;
@@ -37,7 +47,9 @@ import com.google.gerrit.server.git.InMemoryInserter;
 import com.google.gerrit.server.git.MergeUtil;
 import com.google.gerrit.server.patch.EditTransformer.ContextAwareEdit;
 import com.google.inject.Inject;
+import com.google.inject.Singleton;
 import com.google.inject.assistedinject.Assisted;
+import com.google.inject.name.Named;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashSet;
@@ -50,8 +62,12 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import org.eclipse.jgit.diff.DiffEntry;
 import org.eclipse.jgit.diff.DiffEntry.ChangeType;
+import org.eclipse.jgit.diff.DiffEntry.Side;
 import org.eclipse.jgit.diff.DiffFormatter;
 import org.eclipse.jgit.diff.Edit;
 import org.eclipse.jgit.diff.EditList;
@@ -72,7 +88,7 @@ import org.eclipse.jgit.revwalk.RevCommit;
 import org.eclipse.jgit.revwalk.RevObject;
 import org.eclipse.jgit.revwalk.RevTree;
 import org.eclipse.jgit.revwalk.RevWalk;
-import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.storage.pack.PackConfig;
 import org.eclipse.jgit.util.io.DisabledOutputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -80,6 +96,80 @@ import org.slf4j.LoggerFactory;
 public class PatchListLoader implements Callable<PatchList> {
   static final Logger log = LoggerFactory.getLogger(PatchListLoader.class);
 
+  /** Buckets of the number of files in a patch list. */
+  enum FileCount {
+    UP_TO_10,
+    UP_TO_100,
+    UP_TO_1000,
+    OVER_1000;
+
+    static FileCount of(int files) {
+      if (files <= 10) {
+        return UP_TO_10;
+      } else if (files <= 100) {
+        return UP_TO_100;
+      } else if (files <= 1000) {
+        return UP_TO_1000;
+      }
+      return OVER_1000;
+    }
+  }
+
+  /** Outcome of the rename and copy detection between two trees. */
+  enum RenameDetection {
+    /** The result of an earlier detection between the same trees was reused. */
+    CACHED,
+
+    /** All added and deleted files were compared. */
+    COMPLETE,
+
+    /** Only exact renames were detected as there were too many added or deleted files. */
+    OVER_LIMIT;
+  }
+
+  @Singleton
+  static class Metrics {
+    final Timer1<FileCount> latency;
+    final Counter0 timeouts;
+    final Counter1<RenameDetection> renameDetection;
+    final Counter0 largeFiles;
+
+    @Inject
+    Metrics(MetricMaker metricMaker) {
+      latency =
+          metricMaker.newTimer(
+              "diff/patch_list_latency",
+              new Description("Latency for computing a patch list by its number of files")
+                  .setCumulative()
+                  .setUnit(Units.MILLISECONDS),
+              Field.ofEnum(FileCount.class, "files"));
+      timeouts =
+          metricMaker.newCounter(
+              "diff/patch_list_file_timeout_count",
+              new Description(
+                      "Files that were diffed without Myers diff as the patch list timed out")
+                  .setRate()
+                  .setUnit("files"));
+      renameDetection =
+          metricMaker.newCounter(
+              "diff/rename_detection_count",
+              new Description(
+                      "Rename detections between two trees by whether they were cached, complete"
+                          + " or exceeded the rename limit")
+                  .setRate()
+                  .setUnit("detections"),
+              Field.ofEnum(RenameDetection.class, "result"));
+      largeFiles =
+          metricMaker.newCounter(
+              "diff/large_file_count",
+              new Description(
+                      "Files that were treated as binary without reading their content as they"
+                          + " exceed the maximum text file size")
+                  .setRate()
+                  .setUnit("files"));
+    }
+  }
+
   public interface Factory {
     PatchListLoader create(PatchListKey key, Project.NameKey project);
   }
@@ -89,9 +179,14 @@ public class PatchListLoader implements Callable<PatchList> {
   private final ThreeWayMergeStrategy mergeStrategy;
   private final ExecutorService diffExecutor;
   private final AutoMerger autoMerger;
+  private final Metrics metrics;
+  private final Cache<TreePairKey, ImmutableList<DiffEntry>> renamesCache;
   private final PatchListKey key;
   private final Project.NameKey project;
   private final long timeoutMillis;
+  private final int parallelism;
+  @Nullable private final Integer renameLimit;
+  private final int maxTextFileSize;
   private final boolean save;
 
   @Inject
@@ -101,6 +196,9 @@ public class PatchListLoader implements Callable<PatchList> {
       @GerritServerConfig Config cfg,
       @DiffExecutor ExecutorService de,
       AutoMerger am,
+      Metrics metrics,
+      @Named(PatchListCacheImpl.RENAMES_NAME)
+          Cache<TreePairKey, ImmutableList<DiffEntry>> renamesCache,
       @Assisted PatchListKey k,
       @Assisted Project.NameKey p) {
     repoManager = mgr;
@@ -108,6 +206,8 @@ public class PatchListLoader implements Callable<PatchList> {
     mergeStrategy = MergeUtil.getMergeStrategy(cfg);
     diffExecutor = de;
     autoMerger = am;
+    this.metrics = metrics;
+    this.renamesCache = renamesCache;
     key = k;
     project = p;
     timeoutMillis =
@@ -118,6 +218,27 @@ public class PatchListLoader implements Callable<PatchList> {
             "timeout",
             TimeUnit.MILLISECONDS.convert(5, TimeUnit.SECONDS),
             TimeUnit.MILLISECONDS);
+    parallelism =
+        Math.max(
+            1,
+            cfg.getInt(
+                "cache",
+                PatchListCacheImpl.FILE_NAME,
+                "parallelism",
+                Runtime.getRuntime().availableProcessors()));
+    renameLimit =
+        cfg.getString("cache", PatchListCacheImpl.FILE_NAME, "renameLimit") != null
+            ? cfg.getInt("cache", PatchListCacheImpl.FILE_NAME, "renameLimit", 0)
+            : null;
+    maxTextFileSize =
+        (int)
+            Math.min(
+                cfg.getLong(
+                    "cache",
+                    PatchListCacheImpl.FILE_NAME,
+                    "maxTextFileSize",
+                    PackConfig.DEFAULT_BIG_FILE_THRESHOLD),
+                Integer.MAX_VALUE);
     save = AutoMerger.cacheAutomerge(cfg);
   }
 
@@ -127,8 +248,163 @@ public class PatchListLoader implements Callable<PatchList> {
         ObjectInserter ins = newInserter(repo);
         ObjectReader reader = ins.newReader();
         RevWalk rw = new RevWalk(reader)) {
-      return readPatchList(repo, rw, ins);
+      long start = System.nanoTime();
+      PatchList patchList = readPatchList(repo, rw, ins);
+      metrics.latency.record(
+          FileCount.of(patchList.getPatches().size()),
+          System.nanoTime() - start,
+          TimeUnit.NANOSECONDS);
+      return patchList;
+    }
+  }
+
+  /**
+   * Computes the files that are modified between the two sides of the key, without diffing their
+   * content.
+   *
+   * <p>If the edits due to rebase need to be known to tell which files are modified, the whole
+   * patch list is computed instead.
+   */
+  ModifiedFiles loadModifiedFiles() throws IOException, PatchListNotAvailableException {
+    try (Repository repo = repoManager.openRepository(project);
+        ObjectInserter ins = newInserter(repo);
+        ObjectReader reader = ins.newReader();
+        RevWalk rw = new RevWalk(reader);
+        DiffFormatter df = new DiffFormatter(DisabledOutputStream.INSTANCE)) {
+      RevCommit b = rw.parseCommit(key.getNewId());
+      RevObject a = aFor(key, repo, rw, ins, b);
+      if (a == null || hasEditsDueToRebase(a, b)) {
+        return ModifiedFiles.fromPatchList(patchListCache.get(key, project));
+      }
+      List<DiffEntry> diffEntries = scan(repo, rw, df, a, b);
+      return ModifiedFiles.create(
+          a, b, b.getParentCount() > 1, getComparisonType(a, b), diffEntries);
+    }
+  }
+
+  /**
+   * Computes the patch list entry of a single file.
+   *
+   * <p>The other files are only compared by their tree entries, to find renames and copies. If the
+   * edits due to rebase need to be known, the whole patch list is computed instead.
+   *
+   * @param fileName the name of the file on the new side, or on the old side if it was deleted.
+   * @return a patch list that contains the entry of the file, if it was modified.
+   */
+  PatchList loadFile(String fileName) throws IOException, PatchListNotAvailableException {
+    try (Repository repo = repoManager.openRepository(project);
+        ObjectInserter ins = newInserter(repo);
+        ObjectReader reader = ins.newReader();
+        RevWalk rw = new RevWalk(reader);
+        DiffFormatter df = new DiffFormatter(DisabledOutputStream.INSTANCE)) {
+      RevCommit b = rw.parseCommit(key.getNewId());
+      RevObject a = aFor(key, repo, rw, ins, b);
+      if (a == null || hasEditsDueToRebase(a, b)) {
+        return patchListCache.get(key, project);
+      }
+
+      RawTextComparator cmp = comparatorFor(key.getWhitespace());
+      ComparisonType comparisonType = getComparisonType(a, b);
+      RevCommit aCommit = a instanceof RevCommit ? (RevCommit) a : null;
+      boolean isMerge = b.getParentCount() > 1;
+      List<PatchListEntry> entries = new ArrayList<>(1);
+      if (fileName.equals(Patch.COMMIT_MSG)) {
+        entries.add(
+            newCommitMessage(
+                cmp, reader, comparisonType.isAgainstParentOrAutoMerge() ? null : aCommit, b));
+      } else if (fileName.equals(Patch.MERGE_LIST)) {
+        if (isMerge) {
+          entries.add(
+              newMergeList(
+                  cmp,
+                  reader,
+                  comparisonType.isAgainstParentOrAutoMerge() ? null : aCommit,
+                  b,
+                  comparisonType));
+        }
+      } else {
+        List<DiffEntry> diffEntries =
+            scan(repo, rw, df, a, b)
+                .stream()
+                .filter(e -> fileName.equals(nameOf(e)))
+                .collect(toImmutableList());
+        List<FileHeader> fileHeaders = toFileHeaders(repo, ins, cmp, b, diffEntries);
+        RevTree aTree = rw.parseTree(a);
+        for (int i = 0; i < diffEntries.size(); i++) {
+          getPatchListEntry(
+                  reader, fileHeaders.get(i), diffEntries.get(i), aTree, ImmutableSet.of())
+              .ifPresent(entries::add);
+        }
+      }
+      return new PatchList(
+          a, b, isMerge, comparisonType, entries.toArray(new PatchListEntry[entries.size()]));
+    }
+  }
+
+  /** @return the name of the patch list entry of a diff entry. */
+  private static String nameOf(DiffEntry diffEntry) {
+    return diffEntry.getChangeType() == ChangeType.DELETE
+        ? diffEntry.getOldPath()
+        : diffEntry.getNewPath();
+  }
+
+  /**
+   * Computes the files that are modified between the trees of {@code a} and {@code b}, with
+   * renames and copies detected, and prepares {@code df} to diff them.
+   *
+   * <p>The result only depends on the trees and is cached, so that the rename detection isn't
+   * repeated for other whitespace modes or bases that compare the same trees, nor for each file
+   * that is loaded on its own during the same request.
+   */
+  private List<DiffEntry> scan(
+      Repository repo, RevWalk rw, DiffFormatter df, RevObject a, RevObject b) throws IOException {
+    df.setReader(rw.getObjectReader(), repo.getConfig());
+    df.setDiffComparator(comparatorFor(key.getWhitespace()));
+    df.setDetectRenames(true);
+    if (renameLimit != null) {
+      df.getRenameDetector().setRenameLimit(renameLimit);
+    }
+
+    RevTree aTree = rw.parseTree(a);
+    RevTree bTree = rw.parseTree(b);
+    TreePairKey treePairKey = TreePairKey.create(project, aTree, bTree);
+    ImmutableList<DiffEntry> diffEntries = renamesCache.getIfPresent(treePairKey);
+    if (diffEntries == null) {
+      // Entries of the renames cache may be evicted while the files of a change are shown one by
+      // one, so the scan is also kept for the rest of the request.
+      PerThreadCache requestCache = PerThreadCache.get();
+      diffEntries =
+          requestCache != null ? requestCache.getIfPresent(requestKey(treePairKey)) : null;
+    }
+    if (diffEntries != null) {
+      metrics.renameDetection.increment(RenameDetection.CACHED);
+      return diffEntries;
+    }
+
+    diffEntries = ImmutableList.copyOf(df.scan(aTree, bTree));
+    if (df.getRenameDetector().isOverRenameLimit()) {
+      metrics.renameDetection.increment(RenameDetection.OVER_LIMIT);
+      log.debug(
+          "Rename limit exceeded comparing {}..{} in project {}, only exact renames were detected",
+          aTree.name(),
+          bTree.name(),
+          project);
+    } else {
+      metrics.renameDetection.increment(RenameDetection.COMPLETE);
     }
+    renamesCache.put(treePairKey, diffEntries);
+    PerThreadCache requestCache = PerThreadCache.get();
+    if (requestCache != null) {
+      ImmutableList<DiffEntry> scanned = diffEntries;
+      requestCache.get(requestKey(treePairKey), () -> scanned);
+    }
+    return diffEntries;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static PerThreadCache.Key<ImmutableList<DiffEntry>> requestKey(TreePairKey key) {
+    return PerThreadCache.Key.create(
+        (Class<ImmutableList<DiffEntry>>) (Class<?>) ImmutableList.class, key);
   }
 
   private static RawTextComparator comparatorFor(Whitespace ws) {
@@ -179,16 +455,12 @@ public class PatchListLoader implements Callable<PatchList> {
 
       RevCommit aCommit = a instanceof RevCommit ? (RevCommit) a : null;
       RevTree aTree = rw.parseTree(a);
-      RevTree bTree = b.getTree();
 
-      df.setReader(reader, repo.getConfig());
-      df.setDiffComparator(cmp);
-      df.setDetectRenames(true);
-      List<DiffEntry> diffEntries = df.scan(aTree, bTree);
+      List<DiffEntry> diffEntries = scan(repo, rw, df, a, b);
 
       Multimap<String, ContextAwareEdit> editsDueToRebasePerFilePath = ImmutableMultimap.of();
       EditsDueToRebaseResult editsDueToRebaseResult =
-          determineEditsDueToRebase(aCommit, b, diffEntries, df, rw);
+          determineEditsDueToRebase(repo, ins, cmp, aCommit, b, diffEntries, df, rw);
       diffEntries = editsDueToRebaseResult.getRelevantOriginalDiffEntries();
       editsDueToRebasePerFilePath = editsDueToRebaseResult.getEditsDueToRebasePerFilePath();
 
@@ -206,11 +478,13 @@ public class PatchListLoader implements Callable<PatchList> {
                 b,
                 comparisonType));
       }
-      for (DiffEntry diffEntry : diffEntries) {
+      List<FileHeader> fileHeaders = toFileHeaders(repo, ins, cmp, b, diffEntries);
+      for (int i = 0; i < diffEntries.size(); i++) {
+        DiffEntry diffEntry = diffEntries.get(i);
         Set<ContextAwareEdit> editsDueToRebase =
             getEditsDueToRebase(editsDueToRebasePerFilePath, diffEntry);
         Optional<PatchListEntry> patchListEntry =
-            getPatchListEntry(reader, df, diffEntry, aTree, bTree, editsDueToRebase);
+            getPatchListEntry(reader, fileHeaders.get(i), diffEntry, aTree, editsDueToRebase);
         patchListEntry.ifPresent(entries::add);
       }
       return new PatchList(
@@ -245,6 +519,9 @@ public class PatchListLoader implements Callable<PatchList> {
    *       (or just for specific types of merge commits).
    * </ul>
    *
+   * @param repo the repository
+   * @param ins the inserter that created the reader of {@code rw}
+   * @param cmp the comparator to diff with
    * @param commitA the commit defining {@code treeA}
    * @param commitB the commit defining {@code treeB}
    * @param diffEntries the list of {@code DiffEntries} for the diff between {@code commitA} and
@@ -256,17 +533,16 @@ public class PatchListLoader implements Callable<PatchList> {
    * @throws IOException if an error occurred while accessing the repository
    */
   private EditsDueToRebaseResult determineEditsDueToRebase(
+      Repository repo,
+      ObjectInserter ins,
+      RawTextComparator cmp,
       RevCommit commitA,
       RevCommit commitB,
       List<DiffEntry> diffEntries,
       DiffFormatter df,
       RevWalk rw)
       throws PatchListNotAvailableException, IOException {
-    if (commitA == null
-        || isRootOrMergeCommit(commitA)
-        || isRootOrMergeCommit(commitB)
-        || areParentChild(commitA, commitB)
-        || haveCommonParent(commitA, commitB)) {
+    if (!hasEditsDueToRebase(commitA, commitB)) {
       return EditsDueToRebaseResult.create(diffEntries, ImmutableMultimap.of());
     }
 
@@ -297,12 +573,12 @@ public class PatchListLoader implements Callable<PatchList> {
     rw.parseBody(parentCommitA);
     RevCommit parentCommitB = commitB.getParent(0);
     rw.parseBody(parentCommitB);
-    List<DiffEntry> parentDiffEntries = df.scan(parentCommitA, parentCommitB);
+    List<DiffEntry> parentDiffEntries = scan(repo, rw, df, parentCommitA, parentCommitB);
     // TODO(aliceks): Find a way to not construct a PatchListEntry as it contains many unnecessary
     // details and we don't fill all of them properly.
     List<PatchListEntry> parentPatchListEntries =
         getRelevantPatchListEntries(
-            parentDiffEntries, parentCommitA, parentCommitB, touchedFilePaths, df);
+            repo, ins, cmp, parentDiffEntries, parentCommitA, parentCommitB, touchedFilePaths);
 
     EditTransformer editTransformer = new EditTransformer(parentPatchListEntries);
     editTransformer.transformReferencesOfSideA(oldPatches);
@@ -311,6 +587,17 @@ public class PatchListLoader implements Callable<PatchList> {
         relevantDiffEntries, editTransformer.getEditsPerFilePath());
   }
 
+  private static boolean hasEditsDueToRebase(@Nullable RevObject a, RevCommit commitB) {
+    if (!(a instanceof RevCommit)) {
+      return false;
+    }
+    RevCommit commitA = (RevCommit) a;
+    return !isRootOrMergeCommit(commitA)
+        && !isRootOrMergeCommit(commitB)
+        && !areParentChild(commitA, commitB)
+        && !haveCommonParent(commitA, commitB);
+  }
+
   private static boolean isRootOrMergeCommit(RevCommit commit) {
     return commit.getParentCount() != 1;
   }
@@ -342,18 +629,23 @@ public class PatchListLoader implements Callable<PatchList> {
   }
 
   private List<PatchListEntry> getRelevantPatchListEntries(
+      Repository repo,
+      ObjectInserter ins,
+      RawTextComparator cmp,
       List<DiffEntry> parentDiffEntries,
       RevCommit parentCommitA,
       RevCommit parentCommitB,
-      Set<String> touchedFilePaths,
-      DiffFormatter diffFormatter)
+      Set<String> touchedFilePaths)
       throws IOException {
-    List<PatchListEntry> parentPatchListEntries = new ArrayList<>(parentDiffEntries.size());
-    for (DiffEntry parentDiffEntry : parentDiffEntries) {
-      if (!isTouched(touchedFilePaths, parentDiffEntry)) {
-        continue;
-      }
-      FileHeader fileHeader = toFileHeader(parentCommitB, diffFormatter, parentDiffEntry);
+    List<DiffEntry> relevantDiffEntries =
+        parentDiffEntries
+            .stream()
+            .filter(diffEntry -> isTouched(touchedFilePaths, diffEntry))
+            .collect(toImmutableList());
+    List<FileHeader> fileHeaders =
+        toFileHeaders(repo, ins, cmp, parentCommitB, relevantDiffEntries);
+    List<PatchListEntry> parentPatchListEntries = new ArrayList<>(fileHeaders.size());
+    for (FileHeader fileHeader : fileHeaders) {
       // The code which uses this PatchListEntry doesn't care about the last three parameters. As
       // they are expensive to compute, we use arbitrary values for them.
       PatchListEntry patchListEntry =
@@ -378,15 +670,13 @@ public class PatchListLoader implements Callable<PatchList> {
 
   private Optional<PatchListEntry> getPatchListEntry(
       ObjectReader objectReader,
-      DiffFormatter diffFormatter,
+      FileHeader fileHeader,
       DiffEntry diffEntry,
       RevTree treeA,
-      RevTree treeB,
       Set<ContextAwareEdit> editsDueToRebase)
       throws IOException {
-    FileHeader fileHeader = toFileHeader(key.getNewId(), diffFormatter, diffEntry);
-    long oldSize = getFileSize(objectReader, diffEntry.getOldMode(), diffEntry.getOldPath(), treeA);
-    long newSize = getFileSize(objectReader, diffEntry.getNewMode(), diffEntry.getNewPath(), treeB);
+    long oldSize = getFileSize(objectReader, diffEntry, Side.OLD);
+    long newSize = getFileSize(objectReader, diffEntry, Side.NEW);
     Set<Edit> contentEditsDueToRebase = getContentEdits(editsDueToRebase);
     PatchListEntry patchListEntry =
         newEntry(treeA, fileHeader, contentEditsDueToRebase, newSize, newSize - oldSize);
@@ -420,13 +710,40 @@ public class PatchListLoader implements Callable<PatchList> {
     return ComparisonType.againstOtherPatchSet();
   }
 
-  private static long getFileSize(ObjectReader reader, FileMode mode, String path, RevTree t)
+  /**
+   * Reads the size of a file from the header of its blob, without inflating the content of the
+   * blob.
+   */
+  private static long getFileSize(ObjectReader reader, DiffEntry diffEntry, Side side)
       throws IOException {
-    if (!isBlob(mode)) {
+    if (!isBlob(diffEntry.getMode(side))) {
       return 0;
     }
-    try (TreeWalk tw = TreeWalk.forPath(reader, path, t)) {
-      return tw != null ? reader.open(tw.getObjectId(0), OBJ_BLOB).getSize() : 0;
+    return reader.getObjectSize(diffEntry.getId(side).toObjectId(), OBJ_BLOB);
+  }
+
+  /** Whether a side of a diff entry is larger than {@code cache.diff.maxTextFileSize}. */
+  private boolean exceedsMaxTextFileSize(ObjectReader reader, DiffEntry diffEntry)
+      throws IOException {
+    return getFileSize(reader, diffEntry, Side.OLD) > maxTextFileSize
+        || getFileSize(reader, diffEntry, Side.NEW) > maxTextFileSize;
+  }
+
+  /**
+   * Formats the file header of a diff entry, treating files larger than {@code
+   * cache.diff.maxTextFileSize} as binary files without inflating their content.
+   */
+  private FileHeader toFileHeader(
+      Repository repo, ObjectReader reader, DiffFormatter df, DiffEntry diffEntry)
+      throws IOException {
+    if (!exceedsMaxTextFileSize(reader, diffEntry)) {
+      return df.toFileHeader(diffEntry);
+    }
+    metrics.largeFiles.increment();
+    try (DiffFormatter binaryDf = new DiffFormatter(DisabledOutputStream.INSTANCE)) {
+      binaryDf.setReader(new SizeOnlyReader(reader), repo.getConfig());
+      binaryDf.setBinaryFileThreshold(0);
+      return binaryDf.toFileHeader(diffEntry);
     }
   }
 
@@ -435,51 +752,122 @@ public class PatchListLoader implements Callable<PatchList> {
     return t == FileMode.TYPE_FILE || t == FileMode.TYPE_SYMLINK;
   }
 
-  private FileHeader toFileHeader(
-      ObjectId commitB, DiffFormatter diffFormatter, DiffEntry diffEntry) throws IOException {
-
-    Future<FileHeader> result =
-        diffExecutor.submit(
-            () -> {
-              synchronized (diffEntry) {
-                return diffFormatter.toFileHeader(diffEntry);
-              }
-            });
-
+  /**
+   * Computes the file headers of the given diff entries.
+   *
+   * <p>The entries are diffed concurrently on the {@link DiffExecutor}, by at most {@code
+   * cache.diff.parallelism} threads per patch list. Each thread uses its own {@link DiffFormatter}
+   * and {@link ObjectReader}, as neither is thread-safe. The whole computation must finish within
+   * {@code cache.diff.timeout}; entries that weren't diffed within that budget are diffed without
+   * falling back to the Myers algorithm, which can't run into the quadratic worst case.
+   */
+  private List<FileHeader> toFileHeaders(
+      Repository repo,
+      ObjectInserter ins,
+      RawTextComparator cmp,
+      ObjectId commitB,
+      List<DiffEntry> diffEntries)
+      throws IOException {
+    int n = diffEntries.size();
+    if (n == 0) {
+      return ImmutableList.of();
+    }
+    AtomicReferenceArray<FileHeader> results = new AtomicReferenceArray<>(n);
+    AtomicInteger next = new AtomicInteger();
+    AtomicBoolean expired = new AtomicBoolean();
+    Callable<Void> worker =
+        () -> {
+          try (ObjectReader reader = ins.newReader();
+              DiffFormatter df = new DiffFormatter(DisabledOutputStream.INSTANCE)) {
+            df.setReader(reader, repo.getConfig());
+            df.setDiffComparator(cmp);
+            df.setBinaryFileThreshold(maxTextFileSize);
+            int i;
+            while (!expired.get() && (i = next.getAndIncrement()) < n) {
+              results.set(i, toFileHeader(repo, reader, df, diffEntries.get(i)));
+            }
+          }
+          return null;
+        };
+
+    List<Future<Void>> workers = new ArrayList<>();
+    for (int i = 0; i < Math.min(parallelism, n); i++) {
+      workers.add(diffExecutor.submit(worker));
+    }
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
     try {
-      return result.get(timeoutMillis, TimeUnit.MILLISECONDS);
-    } catch (InterruptedException | TimeoutException e) {
-      log.warn(
-          timeoutMillis
-              + " ms timeout reached for Diff loader"
-              + " in project "
-              + project
-              + " on commit "
-              + commitB.name()
-              + " on path "
-              + diffEntry.getNewPath()
-              + " comparing "
-              + diffEntry.getOldId().name()
-              + ".."
-              + diffEntry.getNewId().name());
-      result.cancel(true);
-      synchronized (diffEntry) {
-        return toFileHeaderWithoutMyersDiff(diffFormatter, diffEntry);
+      for (Future<Void> f : workers) {
+        f.get(Math.max(deadline - System.nanoTime(), 0), TimeUnit.NANOSECONDS);
       }
+    } catch (InterruptedException | TimeoutException e) {
+      // Diff the remaining entries below.
     } catch (ExecutionException e) {
       // If there was an error computing the result, carry it
       // up to the caller so the cache knows this key is invalid.
       Throwables.throwIfInstanceOf(e.getCause(), IOException.class);
       throw new IOException(e.getMessage(), e.getCause());
+    } finally {
+      expired.set(true);
+      workers.forEach(f -> f.cancel(true));
     }
+
+    List<FileHeader> fileHeaders = new ArrayList<>(n);
+    int timedOut = 0;
+    try (ObjectReader reader = ins.newReader();
+        DiffFormatter df = newFormatterWithoutMyersDiff(repo, reader, cmp)) {
+      for (int i = 0; i < n; i++) {
+        FileHeader fileHeader = results.get(i);
+        if (fileHeader == null) {
+          DiffEntry diffEntry = diffEntries.get(i);
+          if (timedOut++ == 0) {
+            log.warn(
+                timeoutMillis
+                    + " ms timeout reached for Diff loader"
+                    + " in project "
+                    + project
+                    + " on commit "
+                    + commitB.name()
+                    + " on path "
+                    + diffEntry.getNewPath()
+                    + " comparing "
+                    + diffEntry.getOldId().name()
+                    + ".."
+                    + diffEntry.getNewId().name());
+          }
+          fileHeader = toFileHeader(repo, reader, df, diffEntry);
+        }
+        fileHeaders.add(fileHeader);
+      }
+    }
+    if (timedOut > 0) {
+      metrics.timeouts.incrementBy(timedOut);
+      if (timedOut > 1) {
+        log.warn(
+            timedOut
+                + " files of commit "
+                + commitB.name()
+                + " in project "
+                + project
+                + " were diffed without Myers diff");
+      }
+    }
+    return fileHeaders;
   }
 
-  private FileHeader toFileHeaderWithoutMyersDiff(DiffFormatter diffFormatter, DiffEntry diffEntry)
-      throws IOException {
+  /**
+   * Creates a formatter for the entries that weren't diffed within the timeout. It is separate from
+   * the formatter of the caller, which keeps diffing with the default algorithm.
+   */
+  private DiffFormatter newFormatterWithoutMyersDiff(
+      Repository repo, ObjectReader reader, RawTextComparator cmp) {
     HistogramDiff histogramDiff = new HistogramDiff();
     histogramDiff.setFallbackAlgorithm(null);
-    diffFormatter.setDiffAlgorithm(histogramDiff);
-    return diffFormatter.toFileHeader(diffEntry);
+    DiffFormatter df = new DiffFormatter(DisabledOutputStream.INSTANCE);
+    df.setReader(reader, repo.getConfig());
+    df.setDiffComparator(cmp);
+    df.setDiffAlgorithm(histogramDiff);
+    df.setBinaryFileThreshold(maxTextFileSize);
+    return df;
   }
 
   private PatchListEntry newCommitMessage(
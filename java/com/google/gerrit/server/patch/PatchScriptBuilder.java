@@ -14,6 +14,7 @@
 
 package com.google.gerrit.server.patch;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static java.nio.charset.StandardCharsets.UTF_8;
 
 import com.google.common.collect.ImmutableSet;
@@ -28,6 +29,7 @@ import com.google.gerrit.reviewdb.client.Change;
 import com.google.gerrit.reviewdb.client.Comment;
 import com.google.gerrit.reviewdb.client.Patch;
 import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.server.config.GerritServerConfig;
 import com.google.gerrit.server.mime.FileTypeRegistry;
 import com.google.inject.Inject;
 import eu.medsea.mimeutil.MimeType;
@@ -36,11 +38,13 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.Iterator;
 import java.util.List;
 import org.eclipse.jgit.diff.Edit;
 import org.eclipse.jgit.errors.CorruptObjectException;
 import org.eclipse.jgit.errors.IncorrectObjectTypeException;
 import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.lib.Config;
 import org.eclipse.jgit.lib.Constants;
 import org.eclipse.jgit.lib.FileMode;
 import org.eclipse.jgit.lib.ObjectId;
@@ -77,14 +81,21 @@ class PatchScriptBuilder {
   private List<Edit> edits;
   private final FileTypeRegistry registry;
   private final PatchListCache patchListCache;
+  private final int windowLineLimit;
   private int context;
+  private int firstHunk;
+  private int firstHunkOffset;
+  private int maxHunks;
 
   @Inject
-  PatchScriptBuilder(FileTypeRegistry ftr, PatchListCache plc) {
+  PatchScriptBuilder(FileTypeRegistry ftr, PatchListCache plc, @GerritServerConfig Config cfg) {
     a = new Side();
     b = new Side();
     registry = ftr;
     patchListCache = plc;
+    windowLineLimit = cfg.getInt("change", "diffWindowLineLimit", 5000);
+    checkArgument(
+        windowLineLimit > 0, "change.diffWindowLineLimit must be positive: %s", windowLineLimit);
   }
 
   void setRepository(Repository r, Project.NameKey projectKey) {
@@ -107,6 +118,21 @@ class PatchScriptBuilder {
     }
   }
 
+  /**
+   * Only include a window of hunks in the script, instead of the content of the whole file.
+   *
+   * @param firstHunk index of the first hunk of the window.
+   * @param firstHunkOffset number of lines of the first hunk to skip, as returned by {@link
+   *     PatchScript.Window#getNextOffset()} for a truncated window.
+   * @param maxHunks maximum number of hunks in the window. The window may have fewer hunks, to keep
+   *     the number of lines below {@code change.diffWindowLineLimit}.
+   */
+  void setWindow(int firstHunk, int firstHunkOffset, int maxHunks) {
+    this.firstHunk = firstHunk;
+    this.firstHunkOffset = firstHunkOffset;
+    this.maxHunks = maxHunks;
+  }
+
   void setTrees(ComparisonType ct, ObjectId a, ObjectId b) {
     comparisonType = ct;
     aId = a;
@@ -138,7 +164,7 @@ class PatchScriptBuilder {
     edits = new ArrayList<>(content.getEdits());
     ImmutableSet<Edit> editsDueToRebase = content.getEditsDueToRebase();
 
-    if (!isModify(content)) {
+    if (!isModify(content) || content.getPatchType() == Patch.PatchType.BINARY) {
       intralineDifferenceIsPossible = false;
     } else if (diffPrefs.intralineDifference) {
       IntraLineDiff d =
@@ -177,7 +203,14 @@ class PatchScriptBuilder {
     }
 
     boolean hugeFile = false;
-    if (a.src == b.src && a.size() <= context && content.getEdits().isEmpty()) {
+    PatchScript.Window window = null;
+    if (maxHunks > 0) {
+      // Only the lines of the requested hunks are sent, so the context
+      // is not extended to the whole file.
+      //
+      window = packWindow(diffPrefs.ignoreWhitespace != Whitespace.IGNORE_NONE);
+
+    } else if (a.src == b.src && a.size() <= context && content.getPackedEdits().isEmpty()) {
       // Odd special case; the files are identical (100% rename or copy)
       // and the user has asked for context that is larger than the file.
       // Send them the entire file, with an empty edit after the last line.
@@ -205,32 +238,35 @@ class PatchScriptBuilder {
       packContent(diffPrefs.ignoreWhitespace != Whitespace.IGNORE_NONE);
     }
 
-    return new PatchScript(
-        change.getKey(),
-        content.getChangeType(),
-        content.getOldName(),
-        content.getNewName(),
-        a.fileMode,
-        b.fileMode,
-        content.getHeaderLines(),
-        diffPrefs,
-        a.dst,
-        b.dst,
-        edits,
-        editsDueToRebase,
-        a.displayMethod,
-        b.displayMethod,
-        a.mimeType.toString(),
-        b.mimeType.toString(),
-        comments,
-        history,
-        hugeFile,
-        intralineDifferenceIsPossible,
-        intralineFailure,
-        intralineTimeout,
-        content.getPatchType() == Patch.PatchType.BINARY,
-        aId == null ? null : aId.getName(),
-        bId == null ? null : bId.getName());
+    PatchScript ps =
+        new PatchScript(
+            change.getKey(),
+            content.getChangeType(),
+            content.getOldName(),
+            content.getNewName(),
+            a.fileMode,
+            b.fileMode,
+            content.getHeaderLines(),
+            diffPrefs,
+            a.dst,
+            b.dst,
+            edits,
+            editsDueToRebase,
+            a.displayMethod,
+            b.displayMethod,
+            a.mimeType.toString(),
+            b.mimeType.toString(),
+            comments,
+            history,
+            hugeFile,
+            intralineDifferenceIsPossible,
+            intralineFailure,
+            intralineTimeout,
+            content.getPatchType() == Patch.PatchType.BINARY,
+            aId == null ? null : aId.getName(),
+            bId == null ? null : bId.getName());
+    ps.setWindow(window);
+    return ps;
   }
 
   private static boolean isModify(PatchListEntry content) {
@@ -394,33 +430,167 @@ class PatchScriptBuilder {
   private void packContent(boolean ignoredWhitespace) {
     EditList list = new EditList(edits, context, a.size(), b.size());
     for (EditList.Hunk hunk : list.getHunks()) {
-      while (hunk.next()) {
-        if (hunk.isContextLine()) {
-          final String lineA = a.src.getString(hunk.getCurA());
-          a.dst.addLine(hunk.getCurA(), lineA);
-
-          if (ignoredWhitespace) {
-            // If we ignored whitespace in some form, also get the line
-            // from b when it does not exactly match the line from a.
-            //
-            final String lineB = b.src.getString(hunk.getCurB());
-            if (!lineA.equals(lineB)) {
-              b.dst.addLine(hunk.getCurB(), lineB);
-            }
-          }
-          hunk.incBoth();
-          continue;
-        }
+      packHunk(hunk, ignoredWhitespace, Integer.MAX_VALUE);
+    }
+  }
 
-        if (hunk.isDeletedA()) {
-          a.addLine(hunk.getCurA());
-          hunk.incA();
+  /**
+   * Packs the hunks of the window and drops the edits outside of it.
+   *
+   * <p>Windows tile the file: a window starts at the end of the hunk before its first hunk, and
+   * the last window extends to the end of the file. The lines between the hunks are common to both
+   * sides and are not packed.
+   *
+   * <p>If the first hunk alone exceeds the line limit, e.g. because the whole file was requested as
+   * context, it is truncated to the limit and the window ends where the hunk was cut off. The next
+   * window then starts within the same hunk, by skipping the lines that were already packed.
+   */
+  private PatchScript.Window packWindow(boolean ignoredWhitespace) {
+    EditList list = new EditList(edits, context, a.size(), b.size());
+    int startA = 0;
+    int startB = 0;
+    int endA = 0;
+    int firstEdit = edits.size();
+    int endEdit = edits.size();
+    int lines = 0;
+    Integer nextHunk = null;
+    int i = 0;
+    Iterator<EditList.Hunk> hunks = list.getHunks().iterator();
+    while (hunks.hasNext()) {
+      EditList.Hunk hunk = hunks.next();
+      if (i < firstHunk) {
+        startA = hunk.getEndA();
+        startB = hunk.getEndB();
+        i++;
+        continue;
+      }
+      if (i == firstHunk) {
+        firstEdit = edits.indexOf(hunk.getCurEdit());
+        if (firstHunkOffset > 0) {
+          skipHunk(hunk, firstHunkOffset);
+          startA = hunk.getCurA();
+          startB = hunk.getCurB();
+        }
+      }
+      int hunkLines = hunk.getEndA() - hunk.getCurA() + hunk.getEndB() - hunk.getCurB();
+      if (i == firstHunk) {
+        if (hunkLines > windowLineLimit) {
+          int packed = packHunk(hunk, ignoredWhitespace, windowLineLimit);
+          edits = cutEdits(firstEdit, edits.size(), startA, startB, hunk.getCurA(), hunk.getCurB());
+          return new PatchScript.Window(
+              startA, startB, hunk.getCurA(), i, firstHunkOffset + packed);
         }
+      } else if (i - firstHunk == maxHunks || lines + hunkLines > windowLineLimit) {
+        endEdit = edits.indexOf(hunk.getCurEdit());
+        nextHunk = i;
+        break;
+      }
+      lines += hunkLines;
+      endA = hunk.getEndA();
+      packHunk(hunk, ignoredWhitespace, Integer.MAX_VALUE);
+      i++;
+    }
+    if (nextHunk == null) {
+      endA = a.size();
+    }
+    edits = cutEdits(firstEdit, endEdit, startA, startB, Integer.MAX_VALUE, Integer.MAX_VALUE);
+    return new PatchScript.Window(startA, startB, endA, nextHunk, 0);
+  }
 
-        if (hunk.isInsertedB()) {
-          b.addLine(hunk.getCurB());
-          hunk.incB();
+  /**
+   * Returns the edits from {@code firstEdit} to {@code endEdit}, cut to the lines from {@code
+   * startA} and {@code startB} to {@code endA} and {@code endB}. Edits outside of them are dropped;
+   * edits within them are kept as they are, with their intraline edits.
+   */
+  private List<Edit> cutEdits(
+      int firstEdit, int endEdit, int startA, int startB, int endA, int endB) {
+    List<Edit> cut = new ArrayList<>();
+    for (Edit e : edits.subList(firstEdit, endEdit)) {
+      if (e.getEndA() <= startA && e.getEndB() <= startB) {
+        continue;
+      }
+      if (e.getBeginA() >= endA && e.getBeginB() >= endB) {
+        break;
+      }
+      if (e.getBeginA() < startA
+          || e.getBeginB() < startB
+          || e.getEndA() > endA
+          || e.getEndB() > endB) {
+        e =
+            new Edit(
+                Math.max(e.getBeginA(), startA),
+                Math.min(e.getEndA(), endA),
+                Math.max(e.getBeginB(), startB),
+                Math.min(e.getEndB(), endB));
+      }
+      cut.add(e);
+    }
+    return cut;
+  }
+
+  /**
+   * Packs the lines of the hunk, stopping once {@code maxLines} lines of both sides were packed.
+   * Context lines count for both sides.
+   *
+   * @return number of lines that were packed.
+   */
+  private int packHunk(EditList.Hunk hunk, boolean ignoredWhitespace, int maxLines) {
+    int lines = 0;
+    while (lines < maxLines && hunk.next()) {
+      if (hunk.isContextLine()) {
+        final String lineA = a.src.getString(hunk.getCurA());
+        a.dst.addLine(hunk.getCurA(), lineA);
+
+        if (ignoredWhitespace) {
+          // If we ignored whitespace in some form, also get the line
+          // from b when it does not exactly match the line from a.
+          //
+          final String lineB = b.src.getString(hunk.getCurB());
+          if (!lineA.equals(lineB)) {
+            b.dst.addLine(hunk.getCurB(), lineB);
+          }
         }
+        hunk.incBoth();
+        lines += 2;
+        continue;
+      }
+
+      if (hunk.isDeletedA()) {
+        a.addLine(hunk.getCurA());
+        hunk.incA();
+        lines++;
+      }
+
+      if (hunk.isInsertedB()) {
+        b.addLine(hunk.getCurB());
+        hunk.incB();
+        lines++;
+      }
+    }
+    return lines;
+  }
+
+  /**
+   * Advances over the lines of the hunk like {@link #packHunk(EditList.Hunk, boolean, int)}, but
+   * without packing them.
+   */
+  private static void skipHunk(EditList.Hunk hunk, int maxLines) {
+    int lines = 0;
+    while (lines < maxLines && hunk.next()) {
+      if (hunk.isContextLine()) {
+        hunk.incBoth();
+        lines += 2;
+        continue;
+      }
+
+      if (hunk.isDeletedA()) {
+        hunk.incA();
+        lines++;
+      }
+
+      if (hunk.isInsertedB()) {
+        hunk.incB();
+        lines++;
       }
     }
   }
@@ -95,11 +95,15 @@ public class PatchScriptFactory implements Callable<PatchScript> {
   private final Provider<CurrentUser> userProvider;
   private final PermissionBackend permissionBackend;
   private final ProjectCache projectCache;
+  private final AutoMerger autoMerger;
   private Optional<ChangeEdit> edit;
 
   private final Change.Id changeId;
   private boolean loadHistory = true;
   private boolean loadComments = true;
+  private int firstHunk;
+  private int firstHunkOffset;
+  private int maxHunks;
 
   private ChangeNotes notes;
   private ObjectId aId;
@@ -119,6 +123,7 @@ public class PatchScriptFactory implements Callable<PatchScript> {
       Provider<CurrentUser> userProvider,
       PermissionBackend permissionBackend,
       ProjectCache projectCache,
+      AutoMerger autoMerger,
       @Assisted ChangeNotes notes,
       @Assisted String fileName,
       @Assisted("patchSetA") @Nullable PatchSet.Id patchSetA,
@@ -135,6 +140,7 @@ public class PatchScriptFactory implements Callable<PatchScript> {
     this.userProvider = userProvider;
     this.permissionBackend = permissionBackend;
     this.projectCache = projectCache;
+    this.autoMerger = autoMerger;
 
     this.fileName = fileName;
     this.psa = patchSetA;
@@ -157,6 +163,7 @@ public class PatchScriptFactory implements Callable<PatchScript> {
       Provider<CurrentUser> userProvider,
       PermissionBackend permissionBackend,
       ProjectCache projectCache,
+      AutoMerger autoMerger,
       @Assisted ChangeNotes notes,
       @Assisted String fileName,
       @Assisted int parentNum,
@@ -173,6 +180,7 @@ public class PatchScriptFactory implements Callable<PatchScript> {
     this.userProvider = userProvider;
     this.permissionBackend = permissionBackend;
     this.projectCache = projectCache;
+    this.autoMerger = autoMerger;
 
     this.fileName = fileName;
     this.psa = null;
@@ -192,6 +200,19 @@ public class PatchScriptFactory implements Callable<PatchScript> {
     loadComments = load;
   }
 
+  /**
+   * Only include a window of hunks in the script, see {@link PatchScript#getWindow()}.
+   *
+   * @param firstHunk index of the first hunk of the window.
+   * @param firstHunkOffset number of lines of the first hunk to skip.
+   * @param maxHunks maximum number of hunks in the window; 0 to include the whole file.
+   */
+  public void setWindow(int firstHunk, int firstHunkOffset, int maxHunks) {
+    this.firstHunk = firstHunk;
+    this.firstHunkOffset = firstHunkOffset;
+    this.maxHunks = maxHunks;
+  }
+
   @Override
   public PatchScript call()
       throws OrmException, LargeObjectException, AuthException, InvalidChangeOperationException,
@@ -254,15 +275,22 @@ public class PatchScriptFactory implements Callable<PatchScript> {
   }
 
   private PatchList listFor(PatchListKey key) throws PatchListNotAvailableException {
-    return patchListCache.get(key, notes.getProjectName());
+    return patchListCache.getFile(key, notes.getProjectName(), fileName);
   }
 
-  private PatchScriptBuilder newBuilder(PatchList list, Repository git) {
+  private PatchScriptBuilder newBuilder(PatchList list, Repository git) throws IOException {
+    ObjectId oldId = list.getOldId();
+    if (oldId != null && list.getComparisonType().isAgainstAutoMerge()) {
+      // The auto-merge may have been pruned since the diff was cached.
+      oldId = autoMerger.ensureStored(git, oldId, list.getNewId());
+    }
+
     final PatchScriptBuilder b = builderFactory.get();
     b.setRepository(git, notes.getProjectName());
     b.setChange(notes.getChange());
     b.setDiffPrefs(diffPrefs);
-    b.setTrees(list.getComparisonType(), list.getOldId(), list.getNewId());
+    b.setTrees(list.getComparisonType(), oldId, list.getNewId());
+    b.setWindow(firstHunk, firstHunkOffset, maxHunks);
     return b;
   }
 
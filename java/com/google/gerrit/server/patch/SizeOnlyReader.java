@@ -0,0 +1,139 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.patch;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.Set;
+import org.eclipse.jgit.errors.LargeObjectException;
+import org.eclipse.jgit.lib.AbbreviatedObjectId;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectLoader;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.ObjectStream;
+
+/**
+ * Reader whose loaders know the type and size of an object from its header, but only inflate its
+ * content once it is actually read.
+ *
+ * <p>{@code ObjectReader#open} inflates objects below {@code core.streamFileThreshold} completely,
+ * even if the caller only needs their size. With this reader, a {@code DiffFormatter} whose binary
+ * file threshold is exceeded formats a binary file header without reading the content.
+ */
+class SizeOnlyReader extends ObjectReader {
+  private final ObjectReader reader;
+
+  SizeOnlyReader(ObjectReader reader) {
+    this.reader = reader;
+  }
+
+  @Override
+  public ObjectReader newReader() {
+    return new SizeOnlyReader(reader.newReader());
+  }
+
+  @Override
+  public Collection<ObjectId> resolve(AbbreviatedObjectId id) throws IOException {
+    return reader.resolve(id);
+  }
+
+  @Override
+  public ObjectLoader open(AnyObjectId objectId, int typeHint) throws IOException {
+    return new Loader(objectId.copy(), typeHint, reader.getObjectSize(objectId, typeHint));
+  }
+
+  @Override
+  public long getObjectSize(AnyObjectId objectId, int typeHint) throws IOException {
+    return reader.getObjectSize(objectId, typeHint);
+  }
+
+  @Override
+  public Set<ObjectId> getShallowCommits() throws IOException {
+    return reader.getShallowCommits();
+  }
+
+  @Override
+  public void close() {
+    // Do nothing; the wrapped reader is owned by the caller.
+  }
+
+  private class Loader extends ObjectLoader {
+    private final ObjectId id;
+    private final int type;
+    private final long size;
+
+    Loader(ObjectId id, int type, long size) {
+      this.id = id;
+      this.type = type;
+      this.size = size;
+    }
+
+    @Override
+    public int getType() {
+      return type;
+    }
+
+    @Override
+    public long getSize() {
+      return size;
+    }
+
+    @Override
+    public boolean isLarge() {
+      return true;
+    }
+
+    @Override
+    public byte[] getCachedBytes() throws LargeObjectException {
+      throw new LargeObjectException(id);
+    }
+
+    @Override
+    public ObjectStream openStream() {
+      return new ObjectStream.Filter(type, size, new LazyInputStream());
+    }
+
+    /** Opens the object only when the first byte is read. */
+    private class LazyInputStream extends InputStream {
+      private InputStream in;
+
+      @Override
+      public int read() throws IOException {
+        return delegate().read();
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        return delegate().read(b, off, len);
+      }
+
+      @Override
+      public void close() throws IOException {
+        if (in != null) {
+          in.close();
+        }
+      }
+
+      private InputStream delegate() throws IOException {
+        if (in == null) {
+          in = reader.open(id, type).openStream();
+        }
+        return in;
+      }
+    }
+  }
+}
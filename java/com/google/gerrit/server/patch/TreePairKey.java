@@ -0,0 +1,41 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.patch;
+
+import com.google.auto.value.AutoValue;
+import com.google.gerrit.reviewdb.client.Project;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.ObjectId;
+
+/**
+ * Key of the files that are modified between two trees, after rename and copy detection.
+ *
+ * <p>Rename detection only depends on the trees, so the result is shared by all {@link
+ * PatchListKey}s that compare the same trees, regardless of their whitespace mode or how the old
+ * side was chosen.
+ */
+@AutoValue
+public abstract class TreePairKey {
+  public static TreePairKey create(
+      Project.NameKey project, AnyObjectId oldTreeId, AnyObjectId newTreeId) {
+    return new AutoValue_TreePairKey(project, oldTreeId.copy(), newTreeId.copy());
+  }
+
+  public abstract Project.NameKey project();
+
+  public abstract ObjectId oldTreeId();
+
+  public abstract ObjectId newTreeId();
+}
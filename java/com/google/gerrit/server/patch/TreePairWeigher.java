@@ -0,0 +1,47 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.patch;
+
+import com.google.common.cache.Weigher;
+import com.google.common.collect.ImmutableList;
+import org.eclipse.jgit.diff.DiffEntry;
+
+/** Approximates memory usage for the diff entries of a tree pair in bytes of memory used. */
+public class TreePairWeigher implements Weigher<TreePairKey, ImmutableList<DiffEntry>> {
+
+  @Override
+  public int weigh(TreePairKey key, ImmutableList<DiffEntry> value) {
+    int size =
+        16
+            + 3 * 8
+            + 2 * 36
+            + 16
+            + 8
+            + key.project().get().length() * 2 // Size of TreePairKey, 64 bit JVM
+            + 16
+            + 8; // Object[]
+    for (DiffEntry e : value) {
+      size +=
+          16
+              + 9 * 8
+              + 4 // Size of DiffEntry
+              + 2 * (16 + 8 + 36) // AbbreviatedObjectId
+              + 2 * (16 + 8 + 4 * 4 + 16 + 8) // String
+              + e.getOldPath().length() * 2
+              + e.getNewPath().length() * 2;
+    }
+    return size;
+  }
+}
@@ -20,10 +20,17 @@ import static com.google.gerrit.reviewdb.client.RefNames.REFS_CHANGES;
 import static com.google.gerrit.reviewdb.client.RefNames.REFS_CONFIG;
 import static com.google.gerrit.reviewdb.client.RefNames.REFS_USERS_SELF;
 import static java.util.stream.Collectors.toMap;
+import static java.util.stream.Collectors.toSet;
 
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
 import com.google.gerrit.common.Nullable;
 import com.google.gerrit.extensions.restapi.AuthException;
+import com.google.gerrit.metrics.Counter0;
+import com.google.gerrit.metrics.Description;
+import com.google.gerrit.metrics.Description.Units;
+import com.google.gerrit.metrics.MetricMaker;
+import com.google.gerrit.metrics.Timer0;
 import com.google.gerrit.reviewdb.client.Account;
 import com.google.gerrit.reviewdb.client.AccountGroup;
 import com.google.gerrit.reviewdb.client.Branch;
@@ -32,8 +39,11 @@ import com.google.gerrit.reviewdb.client.Project;
 import com.google.gerrit.reviewdb.client.RefNames;
 import com.google.gerrit.reviewdb.server.ReviewDb;
 import com.google.gerrit.server.CurrentUser;
+import com.google.gerrit.server.FanOutExecutor;
 import com.google.gerrit.server.IdentifiedUser;
 import com.google.gerrit.server.account.GroupCache;
+import com.google.gerrit.server.config.GerritServerConfig;
+import com.google.gerrit.server.git.RefSnapshots;
 import com.google.gerrit.server.git.SearchingChangeCacheImpl;
 import com.google.gerrit.server.git.TagCache;
 import com.google.gerrit.server.git.TagMatcher;
@@ -46,15 +56,24 @@ import com.google.gerrit.server.query.change.ChangeData;
 import com.google.gwtorm.server.OrmException;
 import com.google.inject.Inject;
 import com.google.inject.Provider;
+import com.google.inject.Singleton;
 import com.google.inject.assistedinject.Assisted;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.stream.Stream;
+import org.eclipse.jgit.lib.Config;
 import org.eclipse.jgit.lib.Constants;
 import org.eclipse.jgit.lib.Ref;
 import org.eclipse.jgit.lib.Repository;
@@ -69,7 +88,30 @@ class DefaultRefFilter {
     DefaultRefFilter create(ProjectControl projectControl);
   }
 
+  @Singleton
+  static class Metrics {
+    final Timer0 filterLatency;
+    final Counter0 parallelBatches;
+
+    @Inject
+    Metrics(MetricMaker metricMaker) {
+      filterLatency =
+          metricMaker.newTimer(
+              "permissions/ref_filter/filter_latency",
+              new Description("Latency for filtering refs by visibility")
+                  .setCumulative()
+                  .setUnit(Units.MILLISECONDS));
+      parallelBatches =
+          metricMaker.newCounter(
+              "permissions/ref_filter/parallel_batches",
+              new Description("Batches of refs checked for visibility in parallel")
+                  .setRate()
+                  .setUnit("batches"));
+    }
+  }
+
   private final TagCache tagCache;
+  private final RefSnapshots refSnapshots;
   private final ChangeNotes.Factory changeNotesFactory;
   @Nullable private final SearchingChangeCacheImpl changeCache;
   private final Provider<ReviewDb> db;
@@ -79,24 +121,35 @@ class DefaultRefFilter {
   private final CurrentUser user;
   private final ProjectState projectState;
   private final PermissionBackend.ForProject permissionBackendForProject;
+  private final ExecutorService executor;
+  private final Metrics metrics;
+  private final int parallelBatchSize;
 
   private Map<Change.Id, Branch.NameKey> visibleChanges;
 
   @Inject
   DefaultRefFilter(
       TagCache tagCache,
+      RefSnapshots refSnapshots,
       ChangeNotes.Factory changeNotesFactory,
       @Nullable SearchingChangeCacheImpl changeCache,
       Provider<ReviewDb> db,
       GroupCache groupCache,
       PermissionBackend permissionBackend,
+      @FanOutExecutor ExecutorService executor,
+      Metrics metrics,
+      @GerritServerConfig Config cfg,
       @Assisted ProjectControl projectControl) {
     this.tagCache = tagCache;
+    this.refSnapshots = refSnapshots;
     this.changeNotesFactory = changeNotesFactory;
     this.changeCache = changeCache;
     this.db = db;
     this.groupCache = groupCache;
     this.permissionBackend = permissionBackend;
+    this.executor = executor;
+    this.metrics = metrics;
+    this.parallelBatchSize = cfg.getInt("permissions", "refFilterParallelBatchSize", 0);
     this.projectControl = projectControl;
 
     this.user = projectControl.getUser();
@@ -106,6 +159,12 @@ class DefaultRefFilter {
   }
 
   Map<String, Ref> filter(Map<String, Ref> refs, Repository repo, RefFilterOptions opts) {
+    try (Timer0.Context ignored = metrics.filterLatency.start()) {
+      return doFilter(refs, repo, opts);
+    }
+  }
+
+  private Map<String, Ref> doFilter(Map<String, Ref> refs, Repository repo, RefFilterOptions opts) {
     if (projectState.isAllUsers()) {
       refs = addUsersSelfSymref(refs);
     }
@@ -139,6 +198,7 @@ class DefaultRefFilter {
 
     Map<String, Ref> result = new HashMap<>();
     List<Ref> deferredTags = new ArrayList<>();
+    List<Ref> branchLikeRefs = new ArrayList<>();
 
     for (Ref ref : refs.values()) {
       String name = ref.getName();
@@ -188,16 +248,28 @@ class DefaultRefFilter {
         if (viewMetadata) {
           result.put(name, ref);
         }
-      } else if (canReadRef(ref.getLeaf().getName())) {
-        // Use the leaf to lookup the control data. If the reference is
-        // symbolic we want the control around the final target. If its
-        // not symbolic then getLeaf() is a no-op returning ref itself.
-        result.put(name, ref);
-      } else if (isRefsUsersSelf(ref)) {
-        // viewMetadata allows to see all account refs, hence refs/users/self should be included as
-        // well
-        if (viewMetadata) {
-          result.put(name, ref);
+      } else {
+        // Check all remaining refs in bulk, refs sharing the same access sections are only
+        // evaluated once.
+        branchLikeRefs.add(ref);
+      }
+    }
+
+    if (!branchLikeRefs.isEmpty()) {
+      // Use the leaf to lookup the control data. If the reference is
+      // symbolic we want the control around the final target. If its
+      // not symbolic then getLeaf() is a no-op returning ref itself.
+      Set<String> readable =
+          canReadRefs(branchLikeRefs.stream().map(r -> r.getLeaf().getName()).collect(toSet()));
+      for (Ref ref : branchLikeRefs) {
+        if (readable.contains(ref.getLeaf().getName())) {
+          result.put(ref.getName(), ref);
+        } else if (isRefsUsersSelf(ref)) {
+          // viewMetadata allows to see all account refs, hence refs/users/self should be included
+          // as well
+          if (viewMetadata) {
+            result.put(ref.getName(), ref);
+          }
         }
       }
     }
@@ -206,19 +278,23 @@ class DefaultRefFilter {
     // to identify what tags we can actually reach, and what we cannot.
     //
     if (!deferredTags.isEmpty() && (!result.isEmpty() || opts.filterTagsSeparately())) {
+      Collection<Ref> visibleRefs;
+      if (opts.filterTagsSeparately()) {
+        Map<String, Ref> allRefs;
+        try {
+          allRefs = refSnapshots.get(repo).getAllRefs();
+        } catch (IOException e) {
+          log.error("Cannot read refs of " + projectState.getName(), e);
+          allRefs = Collections.emptyMap();
+        }
+        visibleRefs =
+            doFilter(allRefs, repo, opts.toBuilder().setFilterTagsSeparately(false).build())
+                .values();
+      } else {
+        visibleRefs = result.values();
+      }
       TagMatcher tags =
-          tagCache
-              .get(projectState.getNameKey())
-              .matcher(
-                  tagCache,
-                  repo,
-                  opts.filterTagsSeparately()
-                      ? filter(
-                              repo.getAllRefs(),
-                              repo,
-                              opts.toBuilder().setFilterTagsSeparately(false).build())
-                          .values()
-                      : result.values());
+          tagCache.get(projectState.getNameKey()).matcher(tagCache, repo, visibleRefs);
       for (Ref tag : deferredTags) {
         if (tags.isReachable(tag)) {
           result.put(tag.getName(), tag);
@@ -367,6 +443,39 @@ class DefaultRefFilter {
     return projectState.statePermitsRead();
   }
 
+  private Set<String> canReadRefs(Collection<String> refNames) {
+    if (!projectState.statePermitsRead()) {
+      return ImmutableSet.of();
+    }
+    if (parallelBatchSize <= 0 || refNames.size() <= parallelBatchSize) {
+      return projectControl.filterVisible(refNames);
+    }
+
+    // Resolve the group membership once in the calling thread, it is shared by all batches.
+    user.getEffectiveGroups();
+    List<Callable<Set<String>>> batches = new ArrayList<>();
+    for (List<String> batch : Iterables.partition(refNames, parallelBatchSize)) {
+      // ProjectControl is not thread-safe, give each batch its own instance.
+      ProjectControl batchControl = projectControl.forUser(user);
+      batches.add(() -> batchControl.filterVisible(batch));
+    }
+    metrics.parallelBatches.incrementBy(batches.size());
+    try {
+      Set<String> visible = new HashSet<>();
+      for (Future<Set<String>> f : executor.invokeAll(batches)) {
+        visible.addAll(f.get());
+      }
+      return visible;
+    } catch (InterruptedException | ExecutionException e) {
+      log.warn(
+          "Cannot check ref visibility in parallel for "
+              + projectState.getName()
+              + ", falling back to sequential check",
+          e);
+      return projectControl.filterVisible(refNames);
+    }
+  }
+
   private boolean checkProjectPermission(
       PermissionBackend.ForProject forProject, ProjectPermission perm) {
     try {
@@ -40,6 +40,7 @@ import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
 import java.util.stream.Collectors;
 
@@ -103,6 +104,41 @@ public class PermissionCollection {
       return perUser;
     }
 
+    /**
+     * Get the sections that apply to a reference, if the permissions computed from them are
+     * independent of the reference name.
+     *
+     * <p>Sections using exact or prefix patterns are ordered by pattern length only, so two
+     * references matched by the same such sections end up with identical collections. Regular
+     * expressions and per-user patterns are ordered by their distance to the reference name, and
+     * are therefore not shareable.
+     *
+     * @param matcherList collection of sections that should be considered, in priority order.
+     * @param ref reference being accessed.
+     * @return the sections matching {@code ref}, in input order, or empty if the collection has to
+     *     be computed for this reference alone.
+     */
+    Optional<List<SectionMatcher>> shareableSections(
+        Iterable<SectionMatcher> matcherList, String ref) {
+      if (isRE(ref) || ref.endsWith("/*")) {
+        return Optional.empty();
+      }
+      List<SectionMatcher> matching = new ArrayList<>();
+      for (SectionMatcher sm : matcherList) {
+        if (sm.getMatcher() instanceof ExpandParameters) {
+          if (((ExpandParameters) sm.getMatcher()).matchPrefix(ref)) {
+            return Optional.empty();
+          }
+        } else if (sm.match(ref, null)) {
+          if (isRE(sm.getSection().getName())) {
+            return Optional.empty();
+          }
+          matching.add(sm);
+        }
+      }
+      return Optional.of(matching);
+    }
+
     /**
      * Get all permissions that apply to a reference. The user is only used for per-user ref names,
      * so the return value may include permissions for groups the user is not part of.
@@ -49,6 +49,7 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
 import org.eclipse.jgit.lib.Ref;
 import org.eclipse.jgit.lib.Repository;
@@ -70,6 +71,7 @@ class ProjectControl {
 
   private List<SectionMatcher> allSections;
   private Map<String, RefControl> refControls;
+  private Map<List<SectionMatcher>, RefControl> refControlsBySections;
   private Boolean declaredOwner;
 
   @Inject
@@ -138,6 +140,42 @@ class ProjectControl {
     return ctl;
   }
 
+  /**
+   * Returns the subset of {@code refNames} that is visible to the user.
+   *
+   * <p>Refs that are matched by the same set of shareable access sections share the same effective
+   * permissions, so visibility is evaluated only once per distinct set of sections instead of once
+   * per ref. No per-ref {@link RefControl} is retained for refs evaluated this way.
+   */
+  Set<String> filterVisible(Collection<String> refNames) {
+    Set<String> visible = new HashSet<>();
+    for (String refName : refNames) {
+      if (controlForRefInGroup(refName).isVisible()) {
+        visible.add(refName);
+      }
+    }
+    return visible;
+  }
+
+  private RefControl controlForRefInGroup(String refName) {
+    if (refControls != null) {
+      RefControl ctl = refControls.get(refName);
+      if (ctl != null) {
+        return ctl;
+      }
+    }
+    Optional<List<SectionMatcher>> sections = permissionFilter.shareableSections(access(), refName);
+    if (!sections.isPresent()) {
+      return controlForRef(refName);
+    }
+    if (refControlsBySections == null) {
+      refControlsBySections = new HashMap<>();
+    }
+    return refControlsBySections.computeIfAbsent(
+        sections.get(),
+        s -> new RefControl(this, refName, permissionFilter.filter(s, refName, user)));
+  }
+
   CurrentUser getUser() {
     return user;
   }
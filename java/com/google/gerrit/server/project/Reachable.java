@@ -17,7 +17,9 @@ package com.google.gerrit.server.project;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Maps;
 import com.google.gerrit.reviewdb.client.Project;
-import com.google.gerrit.server.change.IncludedInResolver;
+import com.google.gerrit.server.git.ReachabilityCache;
+import com.google.gerrit.server.git.RefSnapshot;
+import com.google.gerrit.server.git.RefSnapshots;
 import com.google.gerrit.server.permissions.PermissionBackend;
 import com.google.gerrit.server.permissions.PermissionBackend.RefFilterOptions;
 import com.google.gerrit.server.permissions.PermissionBackendException;
@@ -28,7 +30,6 @@ import java.util.Collection;
 import java.util.Map;
 import org.eclipse.jgit.lib.Constants;
 import org.eclipse.jgit.lib.Ref;
-import org.eclipse.jgit.lib.RefDatabase;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.revwalk.RevCommit;
 import org.eclipse.jgit.revwalk.RevWalk;
@@ -44,10 +45,17 @@ public class Reachable {
   private static final Logger log = LoggerFactory.getLogger(Reachable.class);
 
   private final PermissionBackend permissionBackend;
+  private final ReachabilityCache reachabilityCache;
+  private final RefSnapshots refSnapshots;
 
   @Inject
-  Reachable(PermissionBackend permissionBackend) {
+  Reachable(
+      PermissionBackend permissionBackend,
+      ReachabilityCache reachabilityCache,
+      RefSnapshots refSnapshots) {
     this.permissionBackend = permissionBackend;
+    this.reachabilityCache = reachabilityCache;
+    this.refSnapshots = refSnapshots;
   }
 
   /** @return true if a commit is reachable from a given set of refs. */
@@ -59,7 +67,7 @@ public class Reachable {
               .currentUser()
               .project(project)
               .filter(refs, repo, RefFilterOptions.builder().setFilterTagsSeparately(true).build());
-      return IncludedInResolver.includedInAny(repo, rw, commit, filtered.values());
+      return reachabilityCache.isMergedIntoAny(project, repo, rw, commit, filtered.values());
     } catch (IOException | PermissionBackendException e) {
       log.error(
           String.format(
@@ -70,12 +78,28 @@ public class Reachable {
     }
   }
 
+  /** @return true if a commit is reachable from any ref of a repo. */
+  public boolean fromAllRefs(Project.NameKey project, Repository repo, RevCommit commit) {
+    try {
+      return fromRefs(project, repo, commit, refSnapshots.get(repo).getAllRefs());
+    } catch (IOException e) {
+      log.error(
+          String.format(
+              "Cannot verify permissions to commit object %s in repository %s",
+              commit.name(), project),
+          e);
+      return false;
+    }
+  }
+
   /** @return true if a commit is reachable from a repo's branches and tags. */
   boolean fromHeadsOrTags(Project.NameKey project, Repository repo, RevCommit commit) {
     try {
-      RefDatabase refdb = repo.getRefDatabase();
-      Collection<Ref> heads = refdb.getRefs(Constants.R_HEADS).values();
-      Collection<Ref> tags = refdb.getRefs(Constants.R_TAGS).values();
+      // Read the same snapshot that filtering tags separately uses, so that a read-only request
+      // scans the ref database only once.
+      RefSnapshot snapshot = refSnapshots.get(repo);
+      Collection<Ref> heads = snapshot.getRefs(Constants.R_HEADS).values();
+      Collection<Ref> tags = snapshot.getRefs(Constants.R_TAGS).values();
       Map<String, Ref> refs = Maps.newHashMapWithExpectedSize(heads.size() + tags.size());
       for (Ref r : Iterables.concat(heads, tags)) {
         refs.put(r.getName(), r);
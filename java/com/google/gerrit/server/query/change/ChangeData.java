@@ -30,6 +30,7 @@ import com.google.common.collect.Iterables;
 import com.google.common.collect.ListMultimap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.MultimapBuilder;
 import com.google.gerrit.common.Nullable;
 import com.google.gerrit.common.data.LabelTypes;
 import com.google.gerrit.common.data.SubmitRecord;
@@ -64,10 +65,14 @@ import com.google.gerrit.server.config.AllUsersName;
 import com.google.gerrit.server.config.TrackingFooters;
 import com.google.gerrit.server.git.GitRepositoryManager;
 import com.google.gerrit.server.git.MergeUtil;
+import com.google.gerrit.server.git.RefSnapshots;
 import com.google.gerrit.server.notedb.ChangeNotes;
+import com.google.gerrit.server.notedb.ChangeNotes.Factory.ChangeNotesResult;
+import com.google.gerrit.server.notedb.CommentSummary;
 import com.google.gerrit.server.notedb.NotesMigration;
 import com.google.gerrit.server.patch.DiffSummary;
 import com.google.gerrit.server.patch.DiffSummaryKey;
+import com.google.gerrit.server.patch.ModifiedFiles;
 import com.google.gerrit.server.patch.PatchListCache;
 import com.google.gerrit.server.patch.PatchListKey;
 import com.google.gerrit.server.patch.PatchListNotAvailableException;
@@ -118,11 +123,52 @@ public class ChangeData {
     return changes.stream().collect(toMap(ChangeData::getId, cd -> cd));
   }
 
+  /**
+   * Load the notes of all changes that don't have them yet, reading changes of the same project in
+   * bulk.
+   *
+   * <p>Changes whose notes can't be loaded are skipped; the error is reported when their notes are
+   * loaded lazily.
+   */
+  public static void ensureNotesLoaded(Iterable<ChangeData> changes) throws OrmException {
+    ChangeData first = Iterables.getFirst(changes, null);
+    if (first == null || !first.notesMigration.readChanges()) {
+      return;
+    }
+    ListMultimap<Project.NameKey, ChangeData> missing =
+        MultimapBuilder.hashKeys().arrayListValues().build();
+    for (ChangeData cd : changes) {
+      if (cd.notes == null && cd.lazyLoad) {
+        missing.put(cd.project(), cd);
+      }
+    }
+    for (Project.NameKey project : missing.keySet()) {
+      List<ChangeData> cds = missing.get(project);
+      if (cds.size() < 2) {
+        // Not worth a bulk load, loaded lazily on first access.
+        continue;
+      }
+      Map<Change.Id, ChangeData> byId = new HashMap<>();
+      cds.forEach(cd -> byId.put(cd.getId(), cd));
+      for (ChangeNotesResult r : first.notesFactory.createBulk(first.db, project, byId.keySet())) {
+        if (r.error().isPresent()) {
+          continue;
+        }
+        ChangeData cd = byId.get(r.id());
+        cd.notes = r.notes();
+        if (cd.change == null) {
+          cd.change = cd.notes.getChange();
+        }
+      }
+    }
+  }
+
   public static void ensureChangeLoaded(Iterable<ChangeData> changes) throws OrmException {
     ChangeData first = Iterables.getFirst(changes, null);
     if (first == null) {
       return;
     } else if (first.notesMigration.readChanges()) {
+      ensureNotesLoaded(Iterables.filter(changes, cd -> cd.change == null));
       for (ChangeData cd : changes) {
         cd.change();
       }
@@ -148,6 +194,7 @@ public class ChangeData {
     if (first == null) {
       return;
     } else if (first.notesMigration.readChanges()) {
+      ensureNotesLoaded(changes);
       for (ChangeData cd : changes) {
         cd.patchSets();
       }
@@ -178,6 +225,7 @@ public class ChangeData {
     if (first == null) {
       return;
     } else if (first.notesMigration.readChanges()) {
+      ensureNotesLoaded(changes);
       for (ChangeData cd : changes) {
         cd.currentPatchSet();
       }
@@ -204,6 +252,7 @@ public class ChangeData {
     if (first == null) {
       return;
     } else if (first.notesMigration.readChanges()) {
+      ensureNotesLoaded(changes);
       for (ChangeData cd : changes) {
         cd.currentApprovals();
       }
@@ -235,6 +284,7 @@ public class ChangeData {
     if (first == null) {
       return;
     } else if (first.notesMigration.readChanges()) {
+      ensureNotesLoaded(changes);
       for (ChangeData cd : changes) {
         cd.messages();
       }
@@ -324,7 +374,7 @@ public class ChangeData {
     ChangeData cd =
         new ChangeData(
             null, null, null, null, null, null, null, null, null, null, null, null, null, null,
-            null, null, null, null, project, id, null, null);
+            null, null, null, null, null, project, id, null, null);
     cd.currentPatchSet = new PatchSet(new PatchSet.Id(id, currentPatchSetId));
     return cd;
   }
@@ -337,6 +387,7 @@ public class ChangeData {
   private final ChangeNotes.Factory notesFactory;
   private final CommentsUtil commentsUtil;
   private final GitRepositoryManager repoManager;
+  private final RefSnapshots refSnapshots;
   private final IdentifiedUser.GenericFactory userFactory;
   private final MergeUtil.Factory mergeUtilFactory;
   private final MergeabilityCache mergeabilityCache;
@@ -406,6 +457,7 @@ public class ChangeData {
       ChangeNotes.Factory notesFactory,
       CommentsUtil commentsUtil,
       GitRepositoryManager repoManager,
+      RefSnapshots refSnapshots,
       IdentifiedUser.GenericFactory userFactory,
       MergeUtil.Factory mergeUtilFactory,
       MergeabilityCache mergeabilityCache,
@@ -427,6 +479,7 @@ public class ChangeData {
     this.notesFactory = notesFactory;
     this.commentsUtil = commentsUtil;
     this.repoManager = repoManager;
+    this.refSnapshots = refSnapshots;
     this.userFactory = userFactory;
     this.mergeUtilFactory = mergeUtilFactory;
     this.mergeabilityCache = mergeabilityCache;
@@ -483,12 +536,44 @@ public class ChangeData {
       if (!lazyLoad) {
         return Collections.emptyList();
       }
-      Optional<DiffSummary> p = getDiffSummary();
-      currentFiles = p.map(DiffSummary::getPaths).orElse(Collections.emptyList());
+      if (diffSummary != null) {
+        currentFiles = diffSummary.map(DiffSummary::getPaths).orElse(Collections.emptyList());
+      } else {
+        // Only the paths are needed, which doesn't require diffing the content of the files.
+        Optional<ModifiedFiles> p = getModifiedFiles();
+        currentFiles = p.map(ModifiedFiles::getPaths).orElse(Collections.emptyList());
+      }
     }
     return currentFiles;
   }
 
+  /**
+   * Get the paths of the files modified by the current patch set from its diff summary.
+   *
+   * <p>For callers that also need {@link #changedLines()}, like the change index. Both are then
+   * taken from the same diff summary, rather than the paths being computed on their own like
+   * {@link #currentFilePaths()} does.
+   */
+  public List<String> currentFilePathsFromDiffSummary() throws IOException, OrmException {
+    if (currentFiles == null && lazyLoad) {
+      getDiffSummary();
+    }
+    return currentFilePaths();
+  }
+
+  private Optional<ModifiedFiles> getModifiedFiles() throws OrmException, IOException {
+    Change c = change();
+    Optional<PatchListKey> pk = currentPatchListKey();
+    if (!pk.isPresent()) {
+      return Optional.empty();
+    }
+    try {
+      return Optional.of(patchListCache.getModifiedFiles(pk.get(), c.getProject()));
+    } catch (PatchListNotAvailableException e) {
+      return Optional.empty();
+    }
+  }
+
   private Optional<DiffSummary> getDiffSummary() throws OrmException, IOException {
     if (diffSummary == null) {
       if (!lazyLoad) {
@@ -496,18 +581,11 @@ public class ChangeData {
       }
 
       Change c = change();
-      PatchSet ps = currentPatchSet();
-      if (c == null || ps == null || !loadCommitData()) {
+      Optional<PatchListKey> pk = currentPatchListKey();
+      if (!pk.isPresent()) {
         return Optional.empty();
       }
-
-      ObjectId id = ObjectId.fromString(ps.getRevision().get());
-      Whitespace ws = Whitespace.IGNORE_NONE;
-      PatchListKey pk =
-          parentCount > 1
-              ? PatchListKey.againstParentNum(1, id, ws)
-              : PatchListKey.againstDefaultBase(id, ws);
-      DiffSummaryKey key = DiffSummaryKey.fromPatchListKey(pk);
+      DiffSummaryKey key = DiffSummaryKey.fromPatchListKey(pk.get());
       try {
         diffSummary = Optional.of(patchListCache.getDiffSummary(key, c.getProject()));
       } catch (PatchListNotAvailableException e) {
@@ -517,6 +595,21 @@ public class ChangeData {
     return diffSummary;
   }
 
+  private Optional<PatchListKey> currentPatchListKey() throws OrmException, IOException {
+    Change c = change();
+    PatchSet ps = currentPatchSet();
+    if (c == null || ps == null || !loadCommitData()) {
+      return Optional.empty();
+    }
+
+    ObjectId id = ObjectId.fromString(ps.getRevision().get());
+    Whitespace ws = Whitespace.IGNORE_NONE;
+    return Optional.of(
+        parentCount > 1
+            ? PatchListKey.againstParentNum(1, id, ws)
+            : PatchListKey.againstDefaultBase(id, ws));
+  }
+
   private Optional<ChangedLines> computeChangedLines() throws OrmException, IOException {
     Optional<DiffSummary> ds = getDiffSummary();
     if (ds.isPresent()) {
@@ -886,48 +979,23 @@ public class ChangeData {
         return null;
       }
 
-      List<Comment> comments =
-          Stream.concat(publishedComments().stream(), robotComments().stream()).collect(toList());
-
-      // Build a map of uuid to list of direct descendants.
-      Map<String, List<Comment>> forest = new HashMap<>();
-      for (Comment comment : comments) {
-        List<Comment> siblings = forest.get(comment.parentUuid);
-        if (siblings == null) {
-          siblings = new ArrayList<>();
-          forest.put(comment.parentUuid, siblings);
-        }
-        siblings.add(comment);
-      }
-
-      // Find latest comment in each thread and apply to unresolved counter.
-      int unresolved = 0;
-      if (forest.containsKey(null)) {
-        for (Comment root : forest.get(null)) {
-          if (getLatestComment(forest, root).unresolved) {
-            unresolved++;
-          }
-        }
-      }
-      unresolvedCommentCount = unresolved;
+      List<CommentSummary> comments =
+          Stream.concat(
+                  publishedComments().stream().map(CommentSummary::create),
+                  robotCommentSummaries().stream())
+              .collect(toList());
+      unresolvedCommentCount = CommentSummary.countUnresolvedThreads(comments);
     }
 
     return unresolvedCommentCount;
   }
 
-  protected Comment getLatestComment(Map<String, List<Comment>> forest, Comment root) {
-    List<Comment> children = forest.get(root.key.uuid);
-    if (children == null) {
-      return root;
-    }
-    Comment latest = null;
-    for (Comment comment : children) {
-      Comment branchLatest = getLatestComment(forest, comment);
-      if (latest == null || branchLatest.writtenOn.after(latest.writtenOn)) {
-        latest = branchLatest;
-      }
+  private List<CommentSummary> robotCommentSummaries() throws OrmException {
+    if (robotComments != null || !notesMigration.readChanges()) {
+      return robotComments().stream().map(CommentSummary::create).collect(toList());
     }
-    return latest;
+    // Robot comments tend to be large, don't decode them only to count unresolved threads.
+    return commentsUtil.robotCommentSummariesByChange(notes());
   }
 
   public void setUnresolvedCommentCount(Integer count) {
@@ -1042,7 +1110,7 @@ public class ChangeData {
       Change.Id id = checkNotNull(change.getId());
       try (Repository repo = repoManager.openRepository(project())) {
         for (Map.Entry<String, Ref> e :
-            repo.getRefDatabase().getRefs(RefNames.REFS_USERS).entrySet()) {
+            refSnapshots.getRefs(repo, RefNames.REFS_USERS).entrySet()) {
           if (id.equals(Change.Id.fromEditRefPart(e.getKey()))) {
             Account.Id accountId = Account.Id.fromRefPart(e.getKey());
             if (accountId != null) {
@@ -0,0 +1,165 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.restapi.change;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import com.google.gerrit.extensions.restapi.AuthException;
+import com.google.gerrit.extensions.restapi.BinaryResult;
+import com.google.gerrit.extensions.restapi.IdString;
+import com.google.gerrit.extensions.restapi.ResourceConflictException;
+import com.google.gerrit.extensions.restapi.ResourceNotFoundException;
+import com.google.gerrit.extensions.restapi.Response;
+import com.google.gerrit.extensions.restapi.RestModifyView;
+import com.google.gerrit.reviewdb.client.Change;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.server.change.ChangeResource;
+import com.google.gerrit.server.config.CanonicalWebUrl;
+import com.google.gerrit.server.git.WorkQueue;
+import com.google.gerrit.server.index.change.ChangeIndexer;
+import com.google.gerrit.server.notedb.ChangeNotesCompactor;
+import com.google.gerrit.server.notedb.NotesMigration;
+import com.google.gerrit.server.permissions.GlobalPermission;
+import com.google.gerrit.server.permissions.PermissionBackend;
+import com.google.gerrit.server.permissions.PermissionBackendException;
+import com.google.gerrit.server.project.NoSuchChangeException;
+import com.google.gerrit.server.restapi.change.CompactNoteDb.Input;
+import com.google.gerrit.server.util.IdGenerator;
+import com.google.gwtorm.server.OrmException;
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+import java.io.IOException;
+import org.eclipse.jgit.errors.ConfigInvalidException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+@Singleton
+public class CompactNoteDb implements RestModifyView<ChangeResource, Input> {
+  private static final Logger log = LoggerFactory.getLogger(CompactNoteDb.class);
+
+  public static class Input {
+    public boolean dryRun;
+    public boolean async;
+  }
+
+  private final NotesMigration migration;
+  private final PermissionBackend permissionBackend;
+  private final ChangeNotesCompactor compactor;
+  private final ChangeIndexer indexer;
+  private final WorkQueue workQueue;
+  private final Provider<String> canonicalUrl;
+
+  @Inject
+  CompactNoteDb(
+      NotesMigration migration,
+      PermissionBackend permissionBackend,
+      ChangeNotesCompactor compactor,
+      ChangeIndexer indexer,
+      WorkQueue workQueue,
+      @CanonicalWebUrl Provider<String> canonicalUrl) {
+    this.migration = migration;
+    this.permissionBackend = permissionBackend;
+    this.compactor = compactor;
+    this.indexer = indexer;
+    this.workQueue = workQueue;
+    this.canonicalUrl = canonicalUrl;
+  }
+
+  @Override
+  public Object apply(ChangeResource rsrc, Input input)
+      throws AuthException, PermissionBackendException, ResourceConflictException,
+          ResourceNotFoundException, IOException, ConfigInvalidException, OrmException {
+    permissionBackend.currentUser().check(GlobalPermission.MAINTAIN_SERVER);
+    if (!migration.disableChangeReviewDb()) {
+      throw new ResourceConflictException(
+          "NoteDb history can only be compacted if ReviewDb is disabled for changes");
+    }
+    Project.NameKey project = rsrc.getProject();
+    Change.Id changeId = rsrc.getId();
+    if (input.async) {
+      return applyAsync(project, changeId, input);
+    }
+    try {
+      return BinaryResult.create(compact(project, changeId, input));
+    } catch (NoSuchChangeException e) {
+      throw new ResourceNotFoundException(IdString.fromDecoded(changeId.toString()));
+    }
+  }
+
+  private Response.Accepted applyAsync(Project.NameKey project, Change.Id changeId, Input input) {
+    Runnable job =
+        new Runnable() {
+          @Override
+          public void run() {
+            try {
+              log.info(compact(project, changeId, input));
+            } catch (IOException | ConfigInvalidException | OrmException | RuntimeException e) {
+              log.error("Failed to compact NoteDb history of change {}", changeId, e);
+            }
+          }
+
+          @Override
+          public String toString() {
+            return (input.dryRun ? "Dry run of compacting" : "Compact")
+                + " NoteDb history of change "
+                + changeId;
+          }
+        };
+
+    @SuppressWarnings("unchecked")
+    WorkQueue.Task<Void> task = (WorkQueue.Task<Void>) workQueue.getDefaultQueue().submit(job);
+
+    String location =
+        canonicalUrl.get() + "a/config/server/tasks/" + IdGenerator.format(task.getTaskId());
+
+    return Response.accepted(location);
+  }
+
+  private String compact(Project.NameKey project, Change.Id changeId, Input input)
+      throws IOException, ConfigInvalidException, OrmException {
+    ChangeNotesCompactor.Result r = compactor.compact(project, changeId, input.dryRun);
+    if (r.applied()) {
+      indexer.indexAsync(project, changeId);
+    }
+
+    StringBuilder msg = new StringBuilder();
+    msg.append("Change ")
+        .append(changeId)
+        .append(": meta commits: ")
+        .append(r.commitsBefore())
+        .append(" -> ")
+        .append(r.commitsAfter())
+        .append(", parse time: ")
+        .append(NANOSECONDS.toMillis(r.parseNanosBefore()))
+        .append(" ms -> ")
+        .append(NANOSECONDS.toMillis(r.parseNanosAfter()))
+        .append(" ms\n");
+    if (!r.differences().isEmpty()) {
+      msg.append("Not compacted, parsed state differs in: ")
+          .append(String.join(", ", r.differences()))
+          .append('\n');
+    } else if (r.commitsBefore() == r.commitsAfter()) {
+      msg.append("Nothing to compact\n");
+    } else if (input.dryRun) {
+      msg.append("Dry run, meta ref not updated\n");
+    } else if (r.applied()) {
+      msg.append("Meta ref updated\n");
+    } else {
+      msg.append("Not compacted, meta ref was updated concurrently\n");
+    }
+    return msg.toString();
+  }
+}
@@ -111,6 +111,15 @@ public class GetDiff implements RestReadView<FileResource> {
   @Option(name = "--weblinks-only")
   boolean webLinksOnly;
 
+  @Option(name = "--window-start", metaVar = "HUNK")
+  int windowStart;
+
+  @Option(name = "--window-offset", metaVar = "LINES")
+  int windowOffset;
+
+  @Option(name = "--window-size", metaVar = "HUNKS")
+  int windowSize;
+
   @Inject
   GetDiff(
       ProjectCache projectCache,
@@ -157,7 +166,11 @@ public class GetDiff implements RestReadView<FileResource> {
     try {
       psf.setLoadHistory(false);
       psf.setLoadComments(context != DiffPreferencesInfo.WHOLE_FILE_CONTEXT);
+      if (windowSize > 0) {
+        psf.setWindow(Math.max(windowStart, 0), Math.max(windowOffset, 0), windowSize);
+      }
       PatchScript ps = psf.call();
+      PatchScript.Window window = ps.getWindow();
       Content content = new Content(ps);
       Set<Edit> editsDueToRebase = ps.getEditsDueToRebase();
       for (Edit edit : ps.getEdits()) {
@@ -190,7 +203,7 @@ public class GetDiff implements RestReadView<FileResource> {
             throw new IllegalStateException();
         }
       }
-      content.addCommon(ps.getA().size());
+      content.addCommon(window != null ? window.getEndA() : ps.getA().size());
 
       ProjectState state = projectCache.get(resource.getRevision().getChange().getProject());
 
@@ -258,6 +271,16 @@ public class GetDiff implements RestReadView<FileResource> {
           result.diffHeader = ps.getPatchHeader();
         }
         result.content = content.lines;
+        if (window != null) {
+          result.window = new DiffInfo.Window();
+          result.window.startA = window.getStartA();
+          result.window.startB = window.getStartB();
+          result.window.nextHunk = window.getNextHunk();
+          if (window.isTruncated()) {
+            result.window.nextOffset = window.getNextOffset();
+            result.window.truncated = true;
+          }
+        }
       }
 
       Response<DiffInfo> r = Response.ok(result);
@@ -302,6 +325,13 @@ public class GetDiff implements RestReadView<FileResource> {
     return this;
   }
 
+  public GetDiff setWindow(int windowStart, int windowOffset, int windowSize) {
+    this.windowStart = windowStart;
+    this.windowOffset = windowOffset;
+    this.windowSize = windowSize;
+    return this;
+  }
+
   private static class Content {
     final List<ContentEntry> lines;
     final SparseFileContent fileA;
@@ -309,6 +339,7 @@ public class GetDiff implements RestReadView<FileResource> {
     final boolean ignoreWS;
     final String commitIdA;
     final String commitIdB;
+    final int startA;
 
     int nextA;
     int nextB;
@@ -320,6 +351,11 @@ public class GetDiff implements RestReadView<FileResource> {
       ignoreWS = ps.isIgnoreWhitespace();
       commitIdA = ps.getCommitIdA();
       commitIdB = ps.getCommitIdB();
+      if (ps.getWindow() != null) {
+        nextA = ps.getWindow().getStartA();
+        nextB = ps.getWindow().getStartB();
+      }
+      startA = nextA;
     }
 
     void addCommon(int end) {
@@ -330,7 +366,8 @@ public class GetDiff implements RestReadView<FileResource> {
 
       while (nextA < end) {
         if (!fileA.contains(nextA)) {
-          int endRegion = Math.min(end, nextA == 0 ? fileA.first() : fileA.next(nextA - 1));
+          int endRegion =
+              Math.min(end, nextA == startA ? fileA.first() : fileA.next(nextA - 1));
           int len = endRegion - nextA;
           entry().skip = len;
           nextA = endRegion;
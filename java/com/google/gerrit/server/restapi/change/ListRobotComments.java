@@ -14,6 +14,8 @@
 
 package com.google.gerrit.server.restapi.change;
 
+import static java.util.stream.Collectors.toList;
+
 import com.google.gerrit.extensions.common.RobotCommentInfo;
 import com.google.gerrit.extensions.restapi.RestReadView;
 import com.google.gerrit.reviewdb.client.RobotComment;
@@ -23,16 +25,45 @@ import com.google.gerrit.server.change.RevisionResource;
 import com.google.gwtorm.server.OrmException;
 import com.google.inject.Inject;
 import com.google.inject.Provider;
-import com.google.inject.Singleton;
 import java.util.List;
 import java.util.Map;
+import java.util.stream.Stream;
+import org.kohsuke.args4j.Option;
 
-@Singleton
 public class ListRobotComments implements RestReadView<RevisionResource> {
   protected final Provider<ReviewDb> db;
   protected final Provider<CommentJson> commentJson;
   protected final CommentsUtil commentsUtil;
 
+  private String file;
+  private int limit;
+  private int start;
+
+  @Option(name = "--file", metaVar = "PATH", usage = "only list robot comments on this file")
+  public void setFile(String file) {
+    this.file = file;
+  }
+
+  @Option(
+    name = "--limit",
+    aliases = {"-n"},
+    metaVar = "CNT",
+    usage = "maximum number of robot comments to list"
+  )
+  public void setLimit(int limit) {
+    this.limit = limit;
+  }
+
+  @Option(
+    name = "--start",
+    aliases = {"-S"},
+    metaVar = "CNT",
+    usage = "number of robot comments to skip"
+  )
+  public void setStart(int start) {
+    this.start = start;
+  }
+
   @Inject
   ListRobotComments(
       Provider<ReviewDb> db, Provider<CommentJson> commentJson, CommentsUtil commentsUtil) {
@@ -59,6 +90,16 @@ public class ListRobotComments implements RestReadView<RevisionResource> {
   }
 
   private Iterable<RobotComment> listComments(RevisionResource rsrc) throws OrmException {
-    return commentsUtil.robotCommentsByPatchSet(rsrc.getNotes(), rsrc.getPatchSet().getId());
+    Stream<RobotComment> comments =
+        commentsUtil
+            .robotCommentsByPatchSet(rsrc.getNotes(), rsrc.getPatchSet().getId(), file)
+            .stream();
+    if (start > 0) {
+      comments = comments.skip(start);
+    }
+    if (limit > 0) {
+      comments = comments.limit(limit);
+    }
+    return comments.collect(toList());
   }
 }
@@ -26,18 +26,19 @@ import com.google.gerrit.server.change.RobotCommentResource;
 import com.google.gerrit.server.notedb.ChangeNotes;
 import com.google.gwtorm.server.OrmException;
 import com.google.inject.Inject;
+import com.google.inject.Provider;
 import com.google.inject.Singleton;
 
 @Singleton
 public class RobotComments implements ChildCollection<RevisionResource, RobotCommentResource> {
   private final DynamicMap<RestView<RobotCommentResource>> views;
-  private final ListRobotComments list;
+  private final Provider<ListRobotComments> list;
   private final CommentsUtil commentsUtil;
 
   @Inject
   RobotComments(
       DynamicMap<RestView<RobotCommentResource>> views,
-      ListRobotComments list,
+      Provider<ListRobotComments> list,
       CommentsUtil commentsUtil) {
     this.views = views;
     this.list = list;
@@ -51,7 +52,7 @@ public class RobotComments implements ChildCollection<RevisionResource, RobotCom
 
   @Override
   public ListRobotComments list() {
-    return list;
+    return list.get();
   }
 
   @Override
@@ -36,6 +36,7 @@ public class ConfigRestModule extends RestApiModule {
     child(CONFIG_KIND, "top-menus").to(TopMenuCollection.class);
     get(CONFIG_KIND, "version").to(GetVersion.class);
     get(CONFIG_KIND, "info").to(GetServerInfo.class);
+    get(CONFIG_KIND, "notedb.slow-loads").to(ListSlowChangeLoads.class);
     post(CONFIG_KIND, "check.consistency").to(CheckConsistency.class);
     post(CONFIG_KIND, "reload").to(ReloadConfig.class);
     get(CONFIG_KIND, "preferences").to(GetPreferences.class);
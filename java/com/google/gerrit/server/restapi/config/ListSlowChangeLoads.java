@@ -0,0 +1,66 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.restapi.config;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import com.google.gerrit.common.data.GlobalCapability;
+import com.google.gerrit.extensions.annotations.RequiresCapability;
+import com.google.gerrit.extensions.restapi.RestReadView;
+import com.google.gerrit.server.config.ConfigResource;
+import com.google.gerrit.server.notedb.SlowChangeLoads;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+
+@RequiresCapability(GlobalCapability.MAINTAIN_SERVER)
+@Singleton
+public class ListSlowChangeLoads implements RestReadView<ConfigResource> {
+  private final SlowChangeLoads slowLoads;
+
+  @Inject
+  ListSlowChangeLoads(SlowChangeLoads slowLoads) {
+    this.slowLoads = slowLoads;
+  }
+
+  @Override
+  public List<SlowChangeLoadInfo> apply(ConfigResource rsrc) {
+    List<SlowChangeLoadInfo> result = new ArrayList<>();
+    for (SlowChangeLoads.Entry e : slowLoads.getAll()) {
+      SlowChangeLoadInfo info = new SlowChangeLoadInfo();
+      info.project = e.project().get();
+      info.change = e.changeId().get();
+      info.incremental = e.incremental() ? true : null;
+      info.metaCommits = e.metaCommits();
+      info.noteBytes = e.noteBytes();
+      info.parseTimeMicros = NANOSECONDS.toMicros(e.parseNanos());
+      info.loadedOn = e.loadedOn();
+      result.add(info);
+    }
+    return result;
+  }
+
+  public static class SlowChangeLoadInfo {
+    public String project;
+    public int change;
+    public Boolean incremental;
+    public int metaCommits;
+    public long noteBytes;
+    public long parseTimeMicros;
+    public Timestamp loadedOn;
+  }
+}
@@ -20,6 +20,7 @@ import com.google.gerrit.extensions.restapi.AuthException;
 import com.google.gerrit.server.git.DefaultAdvertiseRefsHook;
 import com.google.gerrit.server.git.TransferConfig;
 import com.google.gerrit.server.git.UploadPackInitializer;
+import com.google.gerrit.server.git.UploadPackTracer;
 import com.google.gerrit.server.git.validators.UploadValidationException;
 import com.google.gerrit.server.git.validators.UploadValidators;
 import com.google.gerrit.server.permissions.PermissionBackend;
@@ -44,6 +45,7 @@ final class Upload extends AbstractGitCommand {
   @Inject private DynamicSet<PostUploadHook> postUploadHooks;
   @Inject private DynamicSet<UploadPackInitializer> uploadPackInitializers;
   @Inject private UploadValidators.Factory uploadValidatorsFactory;
+  @Inject private UploadPackTracer.Factory tracerFactory;
   @Inject private SshSession session;
   @Inject private PermissionBackend permissionBackend;
 
@@ -60,11 +62,16 @@ final class Upload extends AbstractGitCommand {
       throw new Failure(1, "fatal: unable to check permissions " + e);
     }
 
+    UploadPackTracer tracer =
+        tracerFactory.create(projectState.getNameKey(), session.getRemoteAddressAsString());
     final UploadPack up = new UploadPack(repo);
-    up.setAdvertiseRefsHook(new DefaultAdvertiseRefsHook(perm, RefFilterOptions.defaults()));
+    up.setAdvertiseRefsHook(
+        tracer.wrap(new DefaultAdvertiseRefsHook(perm, RefFilterOptions.defaults())));
     up.setPackConfig(config.getPackConfig());
     up.setTimeout(config.getTimeout());
-    up.setPostUploadHook(PostUploadHookChain.newChain(Lists.newArrayList(postUploadHooks)));
+    List<PostUploadHook> allPostUploadHooks = Lists.newArrayList(postUploadHooks);
+    allPostUploadHooks.add(tracer);
+    up.setPostUploadHook(PostUploadHookChain.newChain(allPostUploadHooks));
 
     List<PreUploadHook> allPreUploadHooks = Lists.newArrayList(preUploadHooks);
     allPreUploadHooks.add(
@@ -73,6 +73,7 @@ import com.google.gerrit.server.notedb.GwtormChangeBundleReader;
 import com.google.gerrit.server.notedb.MutableNotesMigration;
 import com.google.gerrit.server.notedb.NotesMigration;
 import com.google.gerrit.server.patch.DiffExecutor;
+import com.google.gerrit.server.patch.DiffPrecomputeExecutor;
 import com.google.gerrit.server.permissions.DefaultPermissionBackendModule;
 import com.google.gerrit.server.plugins.PluginRestApiModule;
 import com.google.gerrit.server.plugins.ServerInformationImpl;
@@ -229,6 +230,13 @@ public class InMemoryModule extends FactoryModule {
           public ExecutorService createDiffExecutor() {
             return MoreExecutors.newDirectExecutorService();
           }
+
+          @Provides
+          @Singleton
+          @DiffPrecomputeExecutor
+          public ExecutorService createDiffPrecomputeExecutor() {
+            return MoreExecutors.newDirectExecutorService();
+          }
         });
     install(new DefaultMemoryCacheModule());
     install(new H2CacheModule());
@@ -26,12 +26,14 @@ import com.google.common.base.Joiner;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.gerrit.acceptance.AbstractDaemonTest;
+import com.google.gerrit.acceptance.GerritConfig;
 import com.google.gerrit.acceptance.GitUtil;
 import com.google.gerrit.acceptance.PushOneCommit;
 import com.google.gerrit.acceptance.PushOneCommit.Result;
 import com.google.gerrit.common.RawInputUtil;
 import com.google.gerrit.extensions.api.changes.FileApi;
 import com.google.gerrit.extensions.api.changes.RebaseInput;
+import com.google.gerrit.extensions.client.DiffPreferencesInfo;
 import com.google.gerrit.extensions.common.ChangeType;
 import com.google.gerrit.extensions.common.DiffInfo;
 import com.google.gerrit.extensions.common.FileInfo;
@@ -365,6 +367,113 @@ public class RevisionDiffIT extends AbstractDaemonTest {
     assertThat(changedFiles.keySet()).containsExactly(COMMIT_MSG);
   }
 
+  @Test
+  public void diffCanBeRetrievedInWindowsOfHunks() throws Exception {
+    addModifiedPatchSet(
+        changeId,
+        FILE_NAME,
+        fileContent ->
+            fileContent
+                .replace("Line 10\n", "Line ten\n")
+                .replace("Line 50\n", "Line fifty\n")
+                .replace("Line 90\n", "Line ninety\n"));
+
+    DiffInfo diffInfo =
+        getDiffRequest(changeId, CURRENT, FILE_NAME).withContext(2).withWindow(0, 1).get();
+    assertThat(diffInfo.window.startA).isEqualTo(0);
+    assertThat(diffInfo.window.startB).isEqualTo(0);
+    assertThat(diffInfo.window.nextHunk).isEqualTo(1);
+    assertThat(diffInfo).content().hasSize(4);
+    assertThat(diffInfo.content.get(0).skip).isEqualTo(7);
+    assertThat(diffInfo).content().element(1).commonLines().containsExactly("Line 8", "Line 9");
+    assertThat(diffInfo).content().element(2).linesOfA().containsExactly("Line 10");
+    assertThat(diffInfo).content().element(2).linesOfB().containsExactly("Line ten");
+    assertThat(diffInfo).content().element(3).commonLines().containsExactly("Line 11", "Line 12");
+
+    diffInfo = getDiffRequest(changeId, CURRENT, FILE_NAME).withContext(2).withWindow(1, 1).get();
+    assertThat(diffInfo.window.startA).isEqualTo(12);
+    assertThat(diffInfo.window.startB).isEqualTo(12);
+    assertThat(diffInfo.window.nextHunk).isEqualTo(2);
+    assertThat(diffInfo).content().hasSize(4);
+    assertThat(diffInfo.content.get(0).skip).isEqualTo(35);
+    assertThat(diffInfo).content().element(2).linesOfA().containsExactly("Line 50");
+    assertThat(diffInfo).content().element(2).linesOfB().containsExactly("Line fifty");
+
+    diffInfo = getDiffRequest(changeId, CURRENT, FILE_NAME).withContext(2).withWindow(2, 1).get();
+    assertThat(diffInfo.window.startA).isEqualTo(52);
+    assertThat(diffInfo.window.nextHunk).isNull();
+    assertThat(diffInfo).content().hasSize(5);
+    assertThat(diffInfo).content().element(2).linesOfA().containsExactly("Line 90");
+    assertThat(diffInfo).content().element(2).linesOfB().containsExactly("Line ninety");
+    assertThat(diffInfo.content.get(4).skip).isEqualTo(8);
+    assertThat(diffInfo.metaA.lines).isEqualTo(100);
+  }
+
+  @Test
+  @GerritConfig(name = "change.diffWindowLineLimit", value = "20")
+  public void windowWithWholeFileContextIsTruncatedToLineLimit() throws Exception {
+    addModifiedPatchSet(
+        changeId, FILE_NAME, fileContent -> fileContent.replace("Line 5\n", "Line five\n"));
+
+    DiffInfo diffInfo =
+        getDiffRequest(changeId, CURRENT, FILE_NAME)
+            .withContext(DiffPreferencesInfo.WHOLE_FILE_CONTEXT)
+            .withWindow(0, 1)
+            .get();
+    assertThat(diffInfo.window.startA).isEqualTo(0);
+    assertThat(diffInfo.window.startB).isEqualTo(0);
+    assertThat(diffInfo.window.truncated).isTrue();
+    assertThat(diffInfo.window.nextHunk).isEqualTo(0);
+    assertThat(diffInfo.window.nextOffset).isEqualTo(20);
+    assertThat(diffInfo).content().hasSize(3);
+    assertThat(diffInfo)
+        .content()
+        .element(0)
+        .commonLines()
+        .containsExactly("Line 1", "Line 2", "Line 3", "Line 4")
+        .inOrder();
+    assertThat(diffInfo).content().element(1).linesOfA().containsExactly("Line 5");
+    assertThat(diffInfo).content().element(1).linesOfB().containsExactly("Line five");
+    assertThat(diffInfo)
+        .content()
+        .element(2)
+        .commonLines()
+        .containsExactly("Line 6", "Line 7", "Line 8", "Line 9", "Line 10")
+        .inOrder();
+    assertThat(diffInfo.metaA.lines).isEqualTo(100);
+
+    diffInfo =
+        getDiffRequest(changeId, CURRENT, FILE_NAME)
+            .withContext(DiffPreferencesInfo.WHOLE_FILE_CONTEXT)
+            .withWindow(0, 1)
+            .withWindowOffset(20)
+            .get();
+    assertThat(diffInfo.window.startA).isEqualTo(10);
+    assertThat(diffInfo.window.startB).isEqualTo(10);
+    assertThat(diffInfo.window.truncated).isTrue();
+    assertThat(diffInfo.window.nextHunk).isEqualTo(0);
+    assertThat(diffInfo.window.nextOffset).isEqualTo(40);
+    assertThat(diffInfo).content().hasSize(1);
+    assertThat(diffInfo).content().element(0).commonLines().hasSize(10);
+    assertThat(diffInfo.content.get(0).ab.get(0)).isEqualTo("Line 11");
+    assertThat(diffInfo.content.get(0).ab.get(9)).isEqualTo("Line 20");
+
+    diffInfo =
+        getDiffRequest(changeId, CURRENT, FILE_NAME)
+            .withContext(DiffPreferencesInfo.WHOLE_FILE_CONTEXT)
+            .withWindow(0, 1)
+            .withWindowOffset(180)
+            .get();
+    assertThat(diffInfo.window.startA).isEqualTo(90);
+    assertThat(diffInfo.window.startB).isEqualTo(90);
+    assertThat(diffInfo.window.truncated).isNull();
+    assertThat(diffInfo.window.nextHunk).isNull();
+    assertThat(diffInfo.window.nextOffset).isNull();
+    assertThat(diffInfo).content().hasSize(1);
+    assertThat(diffInfo).content().element(0).commonLines().hasSize(10);
+    assertThat(diffInfo.content.get(0).ab.get(9)).isEqualTo("Line 100");
+  }
+
   @Test
   public void rebaseHunksAtStartOfFileAreIdentified() throws Exception {
     String newFileContent =
@@ -28,6 +28,7 @@ import com.google.gerrit.acceptance.AbstractDaemonTest;
 import com.google.gerrit.acceptance.AcceptanceTestRequestScope;
 import com.google.gerrit.acceptance.GerritConfig;
 import com.google.gerrit.acceptance.PushOneCommit;
+import com.google.gerrit.acceptance.RestResponse;
 import com.google.gerrit.extensions.api.changes.ReviewInput;
 import com.google.gerrit.extensions.api.changes.ReviewInput.RobotCommentInput;
 import com.google.gerrit.extensions.client.Comment;
@@ -43,6 +44,7 @@ import com.google.gerrit.extensions.restapi.ResourceConflictException;
 import com.google.gerrit.extensions.restapi.ResourceNotFoundException;
 import com.google.gerrit.extensions.restapi.RestApiException;
 import com.google.gerrit.extensions.restapi.testing.BinaryResultSubject;
+import com.google.gson.reflect.TypeToken;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
@@ -146,6 +148,35 @@ public class RobotCommentsIT extends AbstractDaemonTest {
     assertRobotComment(robotCommentInfo, robotCommentInput);
   }
 
+  @Test
+  public void robotCommentsCanBeRetrievedInPages() throws Exception {
+    assume().that(notesMigration.readChanges()).isTrue();
+
+    RobotCommentInput in1 = createRobotCommentInput();
+    in1.line = 2;
+    addRobotComment(changeId, in1);
+    RobotCommentInput in2 = createRobotCommentInput();
+    in2.line = 1;
+    addRobotComment(changeId, in2);
+    RobotCommentInput in3 = createRobotCommentInput();
+    in3.path = FILE_NAME2;
+    addRobotComment(changeId, in3);
+
+    Map<String, List<RobotCommentInfo>> page = getRobotCommentsPage("n=2&S=1");
+    assertThat(page.keySet()).containsExactly(FILE_NAME);
+    assertThat(page.get(FILE_NAME).stream().map(c -> c.line).collect(toList()))
+        .containsExactly(1, 2)
+        .inOrder();
+
+    page = getRobotCommentsPage("file=" + FILE_NAME + "&S=1");
+    assertThat(page.keySet()).containsExactly(FILE_NAME);
+    assertRobotComment(Iterables.getOnlyElement(page.get(FILE_NAME)), in1, false);
+
+    page = getRobotCommentsPage("n=1");
+    assertThat(page.keySet()).containsExactly(FILE_NAME2);
+    assertRobotComment(Iterables.getOnlyElement(page.get(FILE_NAME2)), in3, false);
+  }
+
   @Test
   public void specificRobotCommentCanBeRetrieved() throws Exception {
     assume().that(notesMigration.readChanges()).isTrue();
@@ -1105,6 +1136,15 @@ public class RobotCommentsIT extends AbstractDaemonTest {
     gApi.changes().id(targetChangeId).current().review(reviewInput);
   }
 
+  private Map<String, List<RobotCommentInfo>> getRobotCommentsPage(String query)
+      throws Exception {
+    RestResponse r =
+        adminRestSession.get("/changes/" + changeId + "/revisions/current/robotcomments/?" + query);
+    r.assertOK();
+    return newGson()
+        .fromJson(r.getReader(), new TypeToken<Map<String, List<RobotCommentInfo>>>() {}.getType());
+  }
+
   private List<RobotCommentInfo> getRobotComments() throws RestApiException {
     return gApi.changes().id(changeId).current().robotCommentsAsList();
   }
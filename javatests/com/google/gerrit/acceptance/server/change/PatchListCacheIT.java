@@ -24,27 +24,43 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
 import com.google.gerrit.acceptance.AbstractDaemonTest;
+import com.google.gerrit.acceptance.GerritConfig;
 import com.google.gerrit.acceptance.NoHttpd;
+import com.google.gerrit.acceptance.PushOneCommit;
+import com.google.gerrit.acceptance.UseLocalDisk;
 import com.google.gerrit.extensions.client.DiffPreferencesInfo.Whitespace;
+import com.google.gerrit.extensions.common.DiffInfo;
 import com.google.gerrit.reviewdb.client.Patch;
 import com.google.gerrit.reviewdb.client.Patch.ChangeType;
+import com.google.gerrit.reviewdb.client.RefNames;
+import com.google.gerrit.server.patch.AutoMergePruner;
+import com.google.gerrit.server.patch.DiffPrecomputeExecutor;
+import com.google.gerrit.server.patch.DiffSummary;
+import com.google.gerrit.server.patch.DiffSummaryKey;
 import com.google.gerrit.server.patch.IntraLineDiff;
 import com.google.gerrit.server.patch.IntraLineDiffArgs;
 import com.google.gerrit.server.patch.IntraLineDiffKey;
+import com.google.gerrit.server.patch.ModifiedFiles;
 import com.google.gerrit.server.patch.PatchList;
 import com.google.gerrit.server.patch.PatchListCache;
 import com.google.gerrit.server.patch.PatchListCacheImpl;
 import com.google.gerrit.server.patch.PatchListEntry;
 import com.google.gerrit.server.patch.PatchListKey;
 import com.google.gerrit.server.patch.Text;
+import com.google.gerrit.server.patch.TreePairKey;
 import com.google.inject.Inject;
 import com.google.inject.name.Named;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.diff.DiffEntry;
 import org.eclipse.jgit.diff.Edit;
 import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.revwalk.RevCommit;
 import org.junit.Test;
 
@@ -64,6 +80,14 @@ public class PatchListCacheIT extends AbstractDaemonTest {
   @Named("diff")
   private Cache<PatchListKey, PatchList> abstractPatchListCache;
 
+  @Inject @DiffPrecomputeExecutor private ExecutorService diffPrecomputeExecutor;
+
+  @Inject private AutoMergePruner autoMergePruner;
+
+  @Inject
+  @Named("diff_renames")
+  private Cache<TreePairKey, ImmutableList<DiffEntry>> renamesCache;
+
   @Test
   public void listPatchesAgainstBase() throws Exception {
     commitBuilder().add(FILE_D, "4").message(SUBJECT_1).create();
@@ -188,6 +212,54 @@ public class PatchListCacheIT extends AbstractDaemonTest {
     assertDeleted(FILE_C, entriesReverse.get(1));
   }
 
+  @Test
+  public void getFileAndModifiedFilesWithoutWholePatchList() throws Exception {
+    ObjectId a = commitBuilder().add(FILE_C, "3").add(FILE_D, "4").message(SUBJECT_1).create();
+    ObjectId b =
+        commitBuilder().add(FILE_A, "1").add(FILE_C, "5").rm(FILE_D).message(SUBJECT_2).create();
+    pushHead(testRepo, "refs/heads/master", false);
+    PatchListKey key = getKey(a, b);
+
+    ModifiedFiles modifiedFiles = patchListCache.getModifiedFiles(key, project);
+    assertThat(modifiedFiles.getPaths()).containsExactly(FILE_A, FILE_C, FILE_D).inOrder();
+    assertThat(modifiedFiles.getOldId()).isEqualTo(a);
+    assertThat(modifiedFiles.getNewId()).isEqualTo(b);
+
+    List<PatchListEntry> entries = patchListCache.getFile(key, project, FILE_A).getPatches();
+    assertThat(entries).hasSize(1);
+    assertAdded(FILE_A, entries.get(0));
+
+    entries = patchListCache.getFile(key, project, FILE_D).getPatches();
+    assertThat(entries).hasSize(1);
+    assertDeleted(FILE_D, entries.get(0));
+
+    entries = patchListCache.getFile(key, project, Patch.COMMIT_MSG).getPatches();
+    assertThat(entries).hasSize(1);
+    assertModified(Patch.COMMIT_MSG, entries.get(0));
+
+    assertThat(patchListCache.getFile(key, project, FILE_B).getPatches()).isEmpty();
+    assertThat(abstractPatchListCache.getIfPresent(key)).isNull();
+
+    PatchList patchList = patchListCache.get(key, project);
+    PatchListEntry fileC = patchListCache.getFile(key, project, FILE_C).get(FILE_C);
+    assertModified(FILE_C, fileC);
+    assertThat(fileC.getEdits()).isEqualTo(patchList.get(FILE_C).getEdits());
+    assertThat(patchListCache.getModifiedFiles(key, project).getPaths())
+        .isEqualTo(modifiedFiles.getPaths());
+  }
+
+  @Test
+  @GerritConfig(name = "cache.diff.precompute", value = "true")
+  public void diffAgainstPreviousPatchSetIsPrecomputed() throws Exception {
+    PushOneCommit.Result r1 = createChange();
+    PushOneCommit.Result r2 = amendChange(r1.getChangeId());
+    PatchListKey key = getKey(r1.getCommit(), r2.getCommit());
+
+    // The single precompute thread runs tasks in order, so the diff is computed once this returns.
+    diffPrecomputeExecutor.submit(() -> {}).get();
+    assertThat(abstractPatchListCache.getIfPresent(key)).isNotNull();
+  }
+
   @Test
   public void harmfulMutationsOfEditsAreNotPossibleForIntraLineDiffArgsAndCachedValue() {
     String a = "First line\nSecond line\n";
@@ -233,6 +305,131 @@ public class PatchListCacheIT extends AbstractDaemonTest {
     assertThat(abstractPatchListCache.getIfPresent(key)).isSameAs(tombstone);
   }
 
+  @Test
+  @GerritConfig(name = "autoMergePruning.maxRefs", value = "1")
+  public void autoMergeRefsArePruned() throws Exception {
+    for (String file : ImmutableList.of("foo", "baz")) {
+      PushOneCommit.Result r = createMergeCommitChange("refs/for/master", file);
+      gApi.changes().id(r.getChangeId()).current().files();
+    }
+    assertThat(autoMergeRefs()).isAtLeast(2);
+
+    int pruned = autoMergePruner.prune(project);
+    assertThat(pruned).isGreaterThan(0);
+    assertThat(autoMergeRefs()).isEqualTo(1);
+    assertThat(autoMergePruner.prune(project)).isEqualTo(0);
+  }
+
+  @Test
+  @UseLocalDisk
+  @GerritConfig(name = "autoMergePruning.maxRefs", value = "0")
+  public void prunedAutoMergeIsRecreatedForCachedDiff() throws Exception {
+    PushOneCommit.Result r = createMergeCommitChange("refs/for/master", "foo");
+    String autoMergeRef = RefNames.refsCacheAutomerge(r.getCommit().name());
+    DiffInfo diff = gApi.changes().id(r.getChangeId()).current().file("foo").diff();
+    ObjectId autoMerge;
+    try (Repository repo = repoManager.openRepository(project)) {
+      autoMerge = repo.exactRef(autoMergeRef).getObjectId();
+    }
+
+    assertThat(autoMergePruner.prune(project)).isEqualTo(1);
+    try (Repository repo = repoManager.openRepository(project)) {
+      Git.wrap(repo).gc().setExpire(new Date(System.currentTimeMillis() + 1000)).call();
+      assertThat(repo.exactRef(autoMergeRef)).isNull();
+      assertThat(repo.hasObject(autoMerge)).isFalse();
+    }
+
+    // The diff against the pruned auto-merge is still cached.
+    DiffInfo cachedDiff = gApi.changes().id(r.getChangeId()).current().file("foo").diff();
+    assertThat(cachedDiff.content).hasSize(diff.content.size());
+    for (int i = 0; i < diff.content.size(); i++) {
+      assertThat(cachedDiff.content.get(i).a).isEqualTo(diff.content.get(i).a);
+      assertThat(cachedDiff.content.get(i).b).isEqualTo(diff.content.get(i).b);
+      assertThat(cachedDiff.content.get(i).ab).isEqualTo(diff.content.get(i).ab);
+    }
+    try (Repository repo = repoManager.openRepository(project)) {
+      assertThat(repo.exactRef(autoMergeRef).getObjectId()).isEqualTo(autoMerge);
+    }
+  }
+
+  @Test
+  public void renamesAreDetectedOnceForAllWhitespaceModes() throws Exception {
+    RevCommit parent = commitBuilder().add(FILE_D, "1\n2\n3\n4\n5\n").message(SUBJECT_1).create();
+    pushHead(testRepo, "refs/heads/master", false);
+
+    RevCommit c =
+        commitBuilder()
+            .add(FILE_A, "1\n2\n3\n4\n5\n6\n")
+            .rm(FILE_D)
+            .message(SUBJECT_2)
+            .insertChangeId()
+            .create();
+    pushHead(testRepo, "refs/for/master", false);
+
+    TreePairKey treePairKey = TreePairKey.create(project, parent.getTree(), c.getTree());
+    List<PatchListEntry> entries = getCurrentPatches(getChangeId(testRepo, c).get());
+    assertThat(entries).hasSize(2);
+    assertRenamed(FILE_A, FILE_D, entries.get(1));
+    ImmutableList<DiffEntry> diffEntries = renamesCache.getIfPresent(treePairKey);
+    assertThat(diffEntries).hasSize(1);
+
+    PatchListKey ignoreAllKey = PatchListKey.againstCommit(null, c, Whitespace.IGNORE_ALL);
+    entries = patchListCache.get(ignoreAllKey, project).getPatches();
+    assertThat(entries).hasSize(2);
+    assertRenamed(FILE_A, FILE_D, entries.get(1));
+    assertThat(renamesCache.getIfPresent(treePairKey)).isSameAs(diffEntries);
+  }
+
+  @Test
+  @GerritConfig(name = "cache.diff.renameLimit", value = "-1")
+  public void modifiedFilesAreNotRenamedOverRenameLimit() throws Exception {
+    commitBuilder().add(FILE_D, "1\n2\n3\n4\n5\n").message(SUBJECT_1).create();
+    pushHead(testRepo, "refs/heads/master", false);
+
+    RevCommit c =
+        commitBuilder()
+            .add(FILE_A, "1\n2\n3\n4\n5\n6\n")
+            .rm(FILE_D)
+            .message(SUBJECT_2)
+            .insertChangeId()
+            .create();
+    pushHead(testRepo, "refs/for/master", false);
+
+    List<PatchListEntry> entries = getCurrentPatches(getChangeId(testRepo, c).get());
+    assertThat(entries).hasSize(3);
+    assertAdded(FILE_A, entries.get(1));
+    assertDeleted(FILE_D, entries.get(2));
+  }
+
+  @Test
+  @GerritConfig(name = "cache.diff.maxTextFileSize", value = "10")
+  public void filesOverMaxTextFileSizeAreBinary() throws Exception {
+    commitBuilder().add(FILE_D, "4").message(SUBJECT_1).create();
+    pushHead(testRepo, "refs/heads/master", false);
+
+    String largeContent = "1\n2\n3\n4\n5\n6\n";
+    RevCommit c =
+        commitBuilder()
+            .add(FILE_A, largeContent)
+            .add(FILE_D, "5")
+            .message(SUBJECT_2)
+            .insertChangeId()
+            .create();
+    pushHead(testRepo, "refs/for/master", false);
+
+    List<PatchListEntry> entries = getCurrentPatches(getChangeId(testRepo, c).get());
+    assertThat(entries).hasSize(3);
+    assertAdded(FILE_A, entries.get(1));
+    assertThat(entries.get(1).getPatchType()).isEqualTo(Patch.PatchType.BINARY);
+    assertThat(entries.get(1).getSize()).isEqualTo(largeContent.length());
+    assertModified(FILE_D, entries.get(2));
+    assertThat(entries.get(2).getPatchType()).isEqualTo(Patch.PatchType.UNIFIED);
+
+    DiffSummary diffSummary =
+        patchListCache.getDiffSummary(DiffSummaryKey.fromPatchListKey(getKey(null, c)), project);
+    assertThat(diffSummary.getSizeDelta()).isEqualTo(largeContent.length());
+  }
+
   private static void assertAdded(String expectedNewName, PatchListEntry e) {
     assertName(expectedNewName, e);
     assertThat(e.getChangeType()).isEqualTo(ChangeType.ADDED);
@@ -248,11 +445,24 @@ public class PatchListCacheIT extends AbstractDaemonTest {
     assertThat(e.getChangeType()).isEqualTo(ChangeType.DELETED);
   }
 
+  private static void assertRenamed(
+      String expectedNewName, String expectedOldName, PatchListEntry e) {
+    assertThat(e.getChangeType()).isEqualTo(ChangeType.RENAMED);
+    assertThat(e.getNewName()).isEqualTo(expectedNewName);
+    assertThat(e.getOldName()).isEqualTo(expectedOldName);
+  }
+
   private static void assertName(String expectedNewName, PatchListEntry e) {
     assertThat(e.getNewName()).isEqualTo(expectedNewName);
     assertThat(e.getOldName()).isNull();
   }
 
+  private int autoMergeRefs() throws Exception {
+    try (Repository repo = repoManager.openRepository(project)) {
+      return repo.getRefDatabase().getRefs(RefNames.REFS_CACHE_AUTOMERGE).size();
+    }
+  }
+
   private List<PatchListEntry> getCurrentPatches(String changeId) throws Exception {
     return patchListCache.get(getKey(null, getCurrentRevisionId(changeId)), project).getPatches();
   }
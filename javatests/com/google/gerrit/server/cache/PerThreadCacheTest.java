@@ -75,6 +75,26 @@ public class PerThreadCacheTest {
     }
   }
 
+  @Test
+  public void getIfPresent() {
+    try (PerThreadCache cache = PerThreadCache.create()) {
+      PerThreadCache.Key<String> key = PerThreadCache.Key.create(String.class);
+      assertThat(cache.getIfPresent(key)).isNull();
+      cache.get(key, () -> "value1");
+      assertThat(cache.getIfPresent(key)).isEqualTo("value1");
+    }
+  }
+
+  @Test
+  public void allowRefCacheOnlyForReadOnlyRequests() {
+    try (PerThreadCache cache = PerThreadCache.create()) {
+      assertThat(cache.allowRefCache()).isFalse();
+    }
+    try (PerThreadCache cache = PerThreadCache.createReadOnly()) {
+      assertThat(cache.allowRefCache()).isTrue();
+    }
+  }
+
   @Test
   public void doubleInstantiationFails() {
     try (PerThreadCache ignored = PerThreadCache.create()) {
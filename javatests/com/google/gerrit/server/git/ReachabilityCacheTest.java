@@ -0,0 +1,118 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.git;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.gerrit.reviewdb.client.Project;
+import java.util.Collection;
+import org.eclipse.jgit.internal.storage.file.FileRepository;
+import org.eclipse.jgit.internal.storage.file.GC;
+import org.eclipse.jgit.junit.RepositoryTestCase;
+import org.eclipse.jgit.junit.TestRepository;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ReachabilityCacheTest extends RepositoryTestCase {
+  private static final Project.NameKey PROJECT = new Project.NameKey("project");
+
+  private TestRepository<FileRepository> tr;
+  private ReachabilityCache reachabilityCache;
+
+  @Override
+  @Before
+  public void setUp() throws Exception {
+    super.setUp();
+    tr = new TestRepository<>(db);
+    reachabilityCache = new ReachabilityCache(CacheBuilder.newBuilder().build());
+  }
+
+  @Test
+  public void withBitmapIndex() throws Exception {
+    RevCommit root = tr.commit().message("root").create();
+    RevCommit packed = tr.commit().parent(root).message("packed").create();
+    RevCommit side = tr.commit().parent(root).message("side").create();
+    tr.update("refs/heads/master", packed);
+    tr.update("refs/heads/side", side);
+    tr.lightweightTag("v1", packed);
+    new GC(db).gc();
+
+    RevCommit loose = tr.commit().parent(packed).message("loose").create();
+    tr.update("refs/heads/master", loose);
+
+    try (ObjectReader reader = db.newObjectReader()) {
+      assertThat(reader.getBitmapIndex()).isNotNull();
+    }
+    assertThat(refsContaining(root))
+        .containsExactly("refs/heads/master", "refs/heads/side", "refs/tags/v1");
+    assertThat(refsContaining(packed)).containsExactly("refs/heads/master", "refs/tags/v1");
+    assertThat(refsContaining(side)).containsExactly("refs/heads/side");
+    assertThat(refsContaining(loose)).containsExactly("refs/heads/master");
+
+    try (RevWalk rw = new RevWalk(db)) {
+      Collection<Ref> tags = db.getRefDatabase().getRefs("refs/tags/").values();
+      assertThat(reachabilityCache.isMergedIntoAny(PROJECT, db, rw, rw.parseCommit(root), tags))
+          .isTrue();
+      assertThat(reachabilityCache.isMergedIntoAny(PROJECT, db, rw, rw.parseCommit(side), tags))
+          .isFalse();
+    }
+  }
+
+  @Test
+  public void reusedAcrossRepack() throws Exception {
+    RevCommit root = tr.commit().message("root").create();
+    RevCommit packed = tr.commit().parent(root).message("packed").create();
+    tr.update("refs/heads/master", packed);
+    new GC(db).gc();
+
+    RevCommit loose = tr.commit().parent(packed).message("loose").create();
+    RevCommit side = tr.commit().parent(root).message("side").create();
+    tr.update("refs/heads/master", loose);
+    assertThat(refsContaining(root)).containsExactly("refs/heads/master");
+    assertThat(refsContaining(loose)).containsExactly("refs/heads/master");
+    assertThat(refsContaining(side)).isEmpty();
+
+    tr.update("refs/heads/side", side);
+    new GC(db).gc();
+
+    assertThat(refsContaining(root)).containsExactly("refs/heads/master", "refs/heads/side");
+    assertThat(refsContaining(packed)).containsExactly("refs/heads/master");
+    assertThat(refsContaining(loose)).containsExactly("refs/heads/master");
+    assertThat(refsContaining(side)).containsExactly("refs/heads/side");
+  }
+
+  @Test
+  public void withoutBitmapIndex() throws Exception {
+    RevCommit root = tr.commit().message("root").create();
+    RevCommit c = tr.commit().parent(root).message("c").create();
+    tr.update("refs/heads/master", c);
+    tr.update("refs/heads/stable", root);
+
+    assertThat(refsContaining(root)).containsExactly("refs/heads/master", "refs/heads/stable");
+    assertThat(refsContaining(c)).containsExactly("refs/heads/master");
+  }
+
+  private Collection<String> refsContaining(RevCommit commit) throws Exception {
+    Collection<Ref> refs = db.getRefDatabase().getRefs("refs/").values();
+    try (RevWalk rw = new RevWalk(db)) {
+      return reachabilityCache.refsContaining(PROJECT, db, rw, rw.parseCommit(commit), refs);
+    }
+  }
+}
@@ -0,0 +1,155 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.git;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth8.assertThat;
+
+import com.google.gerrit.metrics.Counter0;
+import com.google.gerrit.metrics.Description;
+import com.google.gerrit.metrics.DisabledMetricMaker;
+import com.google.gerrit.server.cache.PerThreadCache;
+import java.util.concurrent.atomic.AtomicLong;
+import org.eclipse.jgit.internal.storage.dfs.DfsRepositoryDescription;
+import org.eclipse.jgit.internal.storage.dfs.InMemoryRepository;
+import org.eclipse.jgit.junit.TestRepository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RefSnapshotTest {
+  private final AtomicLong scans = new AtomicLong();
+  private InMemoryRepository repo;
+  private TestRepository<?> tr;
+  private RefSnapshots refSnapshots;
+
+  @Before
+  public void setUp() throws Exception {
+    repo = new InMemoryRepository(new DfsRepositoryDescription("repo"));
+    tr = new TestRepository<>(repo);
+    refSnapshots =
+        new RefSnapshots(
+            new DisabledMetricMaker() {
+              @Override
+              public Counter0 newCounter(String name, Description desc) {
+                if (!name.equals("git/ref_snapshot/scan_count")) {
+                  return super.newCounter(name, desc);
+                }
+                return new Counter0() {
+                  @Override
+                  public void incrementBy(long value) {
+                    scans.addAndGet(value);
+                  }
+
+                  @Override
+                  public void remove() {}
+                };
+              }
+            });
+  }
+
+  @Test
+  public void getRefsByPrefix() throws Exception {
+    RevCommit c = tr.commit().create();
+    tr.update("refs/heads/master", c);
+    tr.update("refs/heads/foo/bar", c);
+    tr.update("refs/tags/v1", c);
+
+    RefSnapshot snapshot = refSnapshots.get(repo);
+    assertThat(snapshot.getRefs("refs/heads/").keySet()).containsExactly("master", "foo/bar");
+    assertThat(snapshot.getRefs("refs/tags/").keySet()).containsExactly("v1");
+    assertThat(snapshot.getRefs("refs/changes/")).isEmpty();
+    assertThat(snapshot.getAllRefs().keySet())
+        .containsExactly("refs/heads/master", "refs/heads/foo/bar", "refs/tags/v1");
+    assertThat(snapshot.get("refs/heads/master")).hasValue(c);
+    assertThat(snapshot.get("refs/heads/missing")).isEmpty();
+  }
+
+  @Test
+  public void sharedWithinReadOnlyRequest() throws Exception {
+    RevCommit c1 = tr.commit().create();
+    tr.update("refs/heads/master", c1);
+
+    try (PerThreadCache ignored = PerThreadCache.createReadOnly()) {
+      RefSnapshot snapshot = refSnapshots.get(repo);
+      assertThat(RefSnapshot.current(repo)).hasValue(snapshot);
+
+      RevCommit c2 = tr.commit().parent(c1).create();
+      tr.update("refs/heads/master", c2);
+
+      assertThat(refSnapshots.get(repo)).isSameAs(snapshot);
+      assertThat(new RepoRefCache(repo).get("refs/heads/master")).hasValue(c1);
+    }
+  }
+
+  @Test
+  public void notSharedWithinModifyingRequest() throws Exception {
+    RevCommit c1 = tr.commit().create();
+    tr.update("refs/heads/master", c1);
+
+    try (PerThreadCache ignored = PerThreadCache.create()) {
+      RefSnapshot snapshot = refSnapshots.get(repo);
+      assertThat(RefSnapshot.current(repo)).isEmpty();
+
+      RevCommit c2 = tr.commit().parent(c1).create();
+      tr.update("refs/heads/master", c2);
+
+      assertThat(refSnapshots.get(repo)).isNotSameAs(snapshot);
+      assertThat(refSnapshots.get(repo).get("refs/heads/master")).hasValue(c2);
+      assertThat(new RepoRefCache(repo).get("refs/heads/master")).hasValue(c2);
+    }
+  }
+
+  @Test
+  public void getRefsByPrefixReadsLoadedSnapshotOnly() throws Exception {
+    RevCommit c1 = tr.commit().create();
+    tr.update("refs/heads/master", c1);
+
+    try (PerThreadCache ignored = PerThreadCache.createReadOnly()) {
+      assertThat(refSnapshots.getRefs(repo, "refs/heads/").keySet()).containsExactly("master");
+      assertThat(RefSnapshot.current(repo)).isEmpty();
+
+      refSnapshots.get(repo);
+      RevCommit c2 = tr.commit().parent(c1).create();
+      tr.update("refs/heads/master", c2);
+      tr.update("refs/heads/other", c2);
+
+      assertThat(refSnapshots.getRefs(repo, "refs/heads/").keySet()).containsExactly("master");
+      assertThat(refSnapshots.getRefs(repo, "refs/heads/").get("master").getObjectId())
+          .isEqualTo(c1);
+    }
+
+    assertThat(refSnapshots.getRefs(repo, "refs/heads/").keySet())
+        .containsExactly("master", "other");
+  }
+
+  @Test
+  public void scansAreCounted() throws Exception {
+    tr.update("refs/heads/master", tr.commit().create());
+
+    refSnapshots.getRefs(repo, "refs/heads/");
+    assertThat(scans.get()).isEqualTo(1);
+
+    try (PerThreadCache ignored = PerThreadCache.createReadOnly()) {
+      refSnapshots.getRefs(repo, "refs/heads/");
+      assertThat(scans.get()).isEqualTo(2);
+
+      refSnapshots.get(repo);
+      refSnapshots.get(repo);
+      refSnapshots.getRefs(repo, "refs/heads/");
+      assertThat(scans.get()).isEqualTo(3);
+    }
+  }
+}
@@ -0,0 +1,198 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.git;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth8.assertThat;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.MoreFiles;
+import com.google.common.io.RecursiveDeleteOption;
+import com.google.gerrit.metrics.DisabledMetricMaker;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.server.config.SitePaths;
+import com.google.gerrit.server.git.UploadPackResponseCache.CachedResponse;
+import com.google.gerrit.server.git.UploadPackResponseCache.Capture;
+import com.google.gerrit.server.git.UploadPackResponseCache.CloneRequest;
+import com.google.gerrit.server.git.UploadPackResponseCache.Key;
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Optional;
+import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectIdRef;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.transport.PacketLineOut;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class UploadPackResponseCacheTest {
+  private static final Project.NameKey PROJECT = new Project.NameKey("project");
+  private static final ObjectId MASTER =
+      ObjectId.fromString("1111111111111111111111111111111111111111");
+  private static final ObjectId TAG =
+      ObjectId.fromString("2222222222222222222222222222222222222222");
+  private static final ObjectId HIDDEN =
+      ObjectId.fromString("3333333333333333333333333333333333333333");
+
+  private Path site;
+  private UploadPackResponseCache cache;
+
+  @Before
+  public void setUp() throws Exception {
+    site = Files.createTempDirectory("gerrit_site_");
+    Config cfg = new Config();
+    cfg.setLong("cache", "upload_packs", "diskLimit", 1024 * 1024);
+    cache = new UploadPackResponseCache(new SitePaths(site), cfg, new DisabledMetricMaker());
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    MoreFiles.deleteRecursively(site, RecursiveDeleteOption.ALLOW_INSECURE);
+  }
+
+  @Test
+  public void parseClone() throws Exception {
+    CloneRequest req =
+        CloneRequest.parse(
+                request(
+                    "want " + MASTER.name() + " side-band-64k ofs-delta agent=git/2.17.0",
+                    "want " + TAG.name()))
+            .get();
+    assertThat(req.wants()).containsExactly(MASTER, TAG).inOrder();
+    assertThat(req.options()).containsExactly("ofs-delta", "side-band-64k");
+  }
+
+  @Test
+  public void parseRejectsFetchesAndShallowClones() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    PacketLineOut pckOut = new PacketLineOut(out);
+    pckOut.writeString("want " + MASTER.name() + " side-band-64k\n");
+    pckOut.end();
+    pckOut.writeString("have " + TAG.name() + "\n");
+    pckOut.writeString("done\n");
+
+    assertThat(CloneRequest.parse(out.toByteArray())).isEmpty();
+    assertThat(CloneRequest.parse(request("want " + MASTER.name(), "deepen 1"))).isEmpty();
+    assertThat(CloneRequest.parse(new byte[] {'x'})).isEmpty();
+  }
+
+  @Test
+  public void keyRequiresVisibleWants() throws Exception {
+    Map<String, Ref> refs = ImmutableMap.of("refs/heads/master", ref("refs/heads/master", MASTER));
+    CloneRequest visible = CloneRequest.parse(request("want " + MASTER.name())).get();
+    CloneRequest hidden =
+        CloneRequest.parse(request("want " + MASTER.name(), "want " + HIDDEN.name())).get();
+
+    assertThat(cache.key(PROJECT, visible, false, refs)).isPresent();
+    assertThat(cache.key(PROJECT, hidden, false, refs)).isEmpty();
+  }
+
+  @Test
+  public void keyIgnoresAgent() throws Exception {
+    Map<String, Ref> refs = ImmutableMap.of("refs/heads/master", ref("refs/heads/master", MASTER));
+    Optional<Key> a =
+        cache.key(
+            PROJECT,
+            CloneRequest.parse(request("want " + MASTER.name() + " ofs-delta agent=git/2.1")).get(),
+            false,
+            refs);
+    Optional<Key> b =
+        cache.key(
+            PROJECT,
+            CloneRequest.parse(request("want " + MASTER.name() + " ofs-delta agent=git/2.2")).get(),
+            false,
+            refs);
+    Optional<Key> gzip =
+        cache.key(
+            PROJECT,
+            CloneRequest.parse(request("want " + MASTER.name() + " ofs-delta agent=git/2.2")).get(),
+            true,
+            refs);
+    assertThat(a).isEqualTo(b);
+    assertThat(a).isNotEqualTo(gzip);
+  }
+
+  @Test
+  public void keyDependsOnVisibleTagsIfTagsAreIncluded() throws Exception {
+    Map<String, Ref> withoutTag =
+        ImmutableMap.of("refs/heads/master", ref("refs/heads/master", MASTER));
+    Map<String, Ref> withTag =
+        ImmutableMap.of(
+            "refs/heads/master", ref("refs/heads/master", MASTER),
+            "refs/tags/v1", ref("refs/tags/v1", TAG));
+    CloneRequest includeTag =
+        CloneRequest.parse(request("want " + MASTER.name() + " include-tag")).get();
+    CloneRequest noTags = CloneRequest.parse(request("want " + MASTER.name())).get();
+
+    assertThat(cache.key(PROJECT, includeTag, false, withoutTag))
+        .isNotEqualTo(cache.key(PROJECT, includeTag, false, withTag));
+    assertThat(cache.key(PROJECT, noTags, false, withoutTag))
+        .isEqualTo(cache.key(PROJECT, noTags, false, withTag));
+  }
+
+  @Test
+  public void cacheResponseLargerThanQuarterOfDiskLimit() throws Exception {
+    Map<String, Ref> refs = ImmutableMap.of("refs/heads/master", ref("refs/heads/master", MASTER));
+    CloneRequest req = CloneRequest.parse(request("want " + MASTER.name())).get();
+    Key key = cache.key(PROJECT, req, false, refs).get();
+    byte[] chunk = new byte[64 * 1024];
+    try (Capture capture = cache.capture(key).get()) {
+      for (int i = 0; i < 12; i++) {
+        capture.write(chunk, 0, chunk.length);
+      }
+      capture.commit(null);
+    }
+
+    Optional<CachedResponse> response = cache.get(key);
+    assertThat(response).isPresent();
+    assertThat(response.get().length()).isEqualTo(12 * chunk.length);
+    assertThat(Files.size(response.get().file())).isEqualTo(12 * chunk.length);
+  }
+
+  @Test
+  public void responseLargerThanDiskLimitIsNotCached() throws Exception {
+    Map<String, Ref> refs = ImmutableMap.of("refs/heads/master", ref("refs/heads/master", MASTER));
+    CloneRequest req = CloneRequest.parse(request("want " + MASTER.name())).get();
+    Key key = cache.key(PROJECT, req, false, refs).get();
+    byte[] chunk = new byte[64 * 1024];
+    try (Capture capture = cache.capture(key).get()) {
+      for (int i = 0; i < 17; i++) {
+        capture.write(chunk, 0, chunk.length);
+      }
+      capture.commit(null);
+    }
+
+    assertThat(cache.get(key)).isEmpty();
+  }
+
+  private static byte[] request(String... wants) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    PacketLineOut pckOut = new PacketLineOut(out);
+    for (String want : wants) {
+      pckOut.writeString(want + "\n");
+    }
+    pckOut.end();
+    pckOut.writeString("done\n");
+    return out.toByteArray();
+  }
+
+  private static Ref ref(String name, ObjectId id) {
+    return new ObjectIdRef.PeeledNonTag(Ref.Storage.LOOSE, name, id);
+  }
+}
@@ -93,6 +93,14 @@ public abstract class AbstractChangeNotesTest extends GerritBaseTests {
     return cfg;
   }
 
+  @ConfigSuite.Config
+  public static Config changeNotesCompact() {
+    Config cfg = new Config();
+    cfg.setBoolean("notedb", null, "writeJson", true);
+    cfg.setBoolean("notedb", null, "writeCompactComments", true);
+    return cfg;
+  }
+
   @ConfigSuite.Parameter public Config testConfig;
 
   private static final TimeZone TZ = TimeZone.getTimeZone("America/Los_Angeles");
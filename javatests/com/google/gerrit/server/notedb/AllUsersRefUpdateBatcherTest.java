@@ -0,0 +1,127 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.notedb;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import com.google.common.collect.ImmutableList;
+import com.google.gerrit.metrics.DisabledMetricMaker;
+import com.google.gerrit.server.config.AllUsersName;
+import com.google.gerrit.server.git.LockFailureException;
+import com.google.gerrit.testing.InMemoryRepositoryManager;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.eclipse.jgit.junit.TestRepository;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevBlob;
+import org.eclipse.jgit.transport.ReceiveCommand;
+import org.junit.Before;
+import org.junit.Test;
+
+public class AllUsersRefUpdateBatcherTest {
+  private static final AllUsersName ALL_USERS = new AllUsersName("All-Users");
+
+  private InMemoryRepositoryManager repoManager;
+  private Repository repo;
+  private TestRepository<Repository> tr;
+  private AllUsersRefUpdateBatcher batcher;
+
+  @Before
+  public void setUp() throws Exception {
+    repoManager = new InMemoryRepositoryManager();
+    repo = repoManager.createRepository(ALL_USERS);
+    tr = new TestRepository<>(repo);
+    batcher =
+        new AllUsersRefUpdateBatcher(
+            repoManager,
+            ALL_USERS,
+            () -> new PersonIdent("Gerrit Server", "noreply@gerritcodereview.com"),
+            new AllUsersRefUpdateBatcher.Metrics(new DisabledMetricMaker()),
+            true,
+            0);
+  }
+
+  @Test
+  public void executeSetsResults() throws Exception {
+    RevBlob blob = tr.blob("star");
+    ReceiveCommand cmd = new ReceiveCommand(ObjectId.zeroId(), blob, "refs/starred-changes/1");
+    batcher.executeChecked(ImmutableList.of(cmd), null, "Update star labels");
+    assertThat(cmd.getResult()).isEqualTo(ReceiveCommand.Result.OK);
+    assertThat(repo.exactRef("refs/starred-changes/1").getObjectId()).isEqualTo(blob);
+  }
+
+  @Test
+  public void lockFailureOnlyFailsItsOwnCommands() throws Exception {
+    RevBlob old = tr.blob("old");
+    tr.update("refs/starred-changes/1", old);
+
+    ReceiveCommand stale =
+        new ReceiveCommand(tr.blob("stale"), tr.blob("new"), "refs/starred-changes/1");
+    try {
+      batcher.executeChecked(ImmutableList.of(stale), null, null);
+      fail("expected LockFailureException");
+    } catch (LockFailureException e) {
+      assertThat(e.getFailedRefs()).containsExactly("refs/starred-changes/1");
+    }
+    assertThat(repo.exactRef("refs/starred-changes/1").getObjectId()).isEqualTo(old);
+
+    ReceiveCommand other =
+        new ReceiveCommand(ObjectId.zeroId(), tr.blob("other"), "refs/starred-changes/2");
+    batcher.executeChecked(ImmutableList.of(other), null, null);
+    assertThat(other.getResult()).isEqualTo(ReceiveCommand.Result.OK);
+  }
+
+  @Test
+  public void concurrentUpdates() throws Exception {
+    int n = 20;
+    List<ReceiveCommand> cmds = new ArrayList<>();
+    for (int i = 0; i < n; i++) {
+      cmds.add(
+          new ReceiveCommand(ObjectId.zeroId(), tr.blob("star" + i), "refs/starred-changes/" + i));
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      for (int i = 0; i < n; i++) {
+        ReceiveCommand cmd = cmds.get(i);
+        // Updates on behalf of different users are executed with their own reflog ident.
+        PersonIdent ident = new PersonIdent("User " + (i % 3), "user" + (i % 3) + "@example.com");
+        futures.add(
+            executor.submit(
+                () -> {
+                  batcher.executeChecked(ImmutableList.of(cmd), ident, null);
+                  return null;
+                }));
+      }
+      for (Future<?> f : futures) {
+        f.get();
+      }
+    } finally {
+      executor.shutdown();
+    }
+
+    for (ReceiveCommand cmd : cmds) {
+      assertThat(cmd.getResult()).isEqualTo(ReceiveCommand.Result.OK);
+      assertThat(repo.exactRef(cmd.getRefName()).getObjectId()).isEqualTo(cmd.getNewId());
+    }
+  }
+}
@@ -0,0 +1,203 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.notedb;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.gerrit.reviewdb.client.RefNames.changeMetaRef;
+import static java.util.stream.Collectors.toList;
+
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.io.MoreFiles;
+import com.google.common.io.RecursiveDeleteOption;
+import com.google.gerrit.reviewdb.client.Change;
+import com.google.gerrit.reviewdb.client.ChangeMessage;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.server.git.GitRepositoryManager;
+import com.google.inject.Inject;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.SortedSet;
+import org.eclipse.jgit.internal.storage.file.FileRepository;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.ObjectWalk;
+import org.eclipse.jgit.revwalk.RevObject;
+import org.junit.Test;
+
+public class ChangeNotesCompactorTest extends AbstractChangeNotesTest {
+  @Inject private ChangeNotesCompactor compactor;
+  @Inject private ChangeNoteUtil noteUtil;
+  @Inject private NoteDbMetrics metrics;
+
+  @Test
+  public void dropSupersededVotes() throws Exception {
+    Change c = newChange();
+    for (int i = 0; i < 10; i++) {
+      ChangeUpdate update = newUpdate(c, otherUser);
+      update.putApproval("Verified", (short) (i % 2 == 0 ? -1 : 1));
+      update.commit();
+    }
+    ChangeUpdate update = newUpdate(c, otherUser);
+    update.putApproval("Verified", (short) 1);
+    update.setChangeMessage("Build succeeded");
+    update.commit();
+
+    ChangeNotes before = newNotes(c);
+    ObjectId oldMetaId = before.getRevision();
+
+    ChangeNotesCompactor.Result dryRun = compactor.compact(project, c.getId(), true);
+    assertThat(dryRun.commitsBefore()).isEqualTo(12);
+    assertThat(dryRun.commitsAfter()).isEqualTo(2);
+    assertThat(dryRun.differences()).isEmpty();
+    assertThat(dryRun.applied()).isFalse();
+    assertThat(repo.exactRef(changeMetaRef(c.getId())).getObjectId()).isEqualTo(oldMetaId);
+
+    ChangeNotesCompactor.Result result = compactor.compact(project, c.getId(), false);
+    assertThat(result.applied()).isTrue();
+    assertThat(repo.exactRef(changeMetaRef(c.getId())).getObjectId()).isNotEqualTo(oldMetaId);
+    assertThat(repo.exactRef(changeMetaRef(c.getId()) + "-compacted")).isNull();
+
+    ChangeNotes after = newNotes(c);
+    assertThat(after.getApprovals()).isEqualTo(before.getApprovals());
+    assertThat(messages(after)).isEqualTo(messages(before));
+    assertThat(after.getChange().getLastUpdatedOn())
+        .isEqualTo(before.getChange().getLastUpdatedOn());
+
+    assertThat(compactor.compact(project, c.getId(), false).commitsAfter()).isEqualTo(2);
+  }
+
+  @Test
+  public void keepVotesThatAreNotSuperseded() throws Exception {
+    Change c = newChange();
+    ChangeUpdate update = newUpdate(c, changeOwner);
+    update.putApproval("Code-Review", (short) 1);
+    update.commit();
+    for (int i = 0; i < 2; i++) {
+      update = newUpdate(c, otherUser);
+      update.putApproval("Verified", (short) 1);
+      update.commit();
+    }
+
+    ChangeNotes before = newNotes(c);
+    ChangeNotesCompactor.Result result = compactor.compact(project, c.getId(), false);
+    assertThat(result.commitsBefore()).isEqualTo(4);
+    assertThat(result.commitsAfter()).isEqualTo(3);
+    assertThat(result.applied()).isTrue();
+    assertThat(newNotes(c).getApprovals()).isEqualTo(before.getApprovals());
+  }
+
+  @Test
+  public void keepCommitsWithMessages() throws Exception {
+    Change c = newChange();
+    for (int i = 0; i < 3; i++) {
+      ChangeUpdate update = newUpdate(c, otherUser);
+      update.putApproval("Verified", (short) 1);
+      update.setChangeMessage("Build " + i + " succeeded");
+      update.commit();
+    }
+
+    ChangeNotesCompactor.Result result = compactor.compact(project, c.getId(), false);
+    assertThat(result.commitsBefore()).isEqualTo(4);
+    assertThat(result.commitsAfter()).isEqualTo(4);
+    assertThat(result.applied()).isFalse();
+    assertThat(newNotes(c).getChangeMessages()).hasSize(3);
+  }
+
+  @Test
+  public void compactOnLocalDisk() throws Exception {
+    Change c = newChange();
+    for (int i = 0; i < 4; i++) {
+      ChangeUpdate update = newUpdate(c, otherUser);
+      update.putApproval("Verified", (short) (i % 2 == 0 ? -1 : 1));
+      update.commit();
+    }
+
+    // Refs of repositories on disk reject non-fast-forward updates unless they are allowed.
+    Path dir = Files.createTempDirectory("gerrit_repo_");
+    try {
+      try (Repository diskRepo = new FileRepository(dir.toFile())) {
+        diskRepo.create(true);
+      }
+      GitRepositoryManager diskRepoManager =
+          new GitRepositoryManager() {
+            @Override
+            public Repository openRepository(Project.NameKey name) throws IOException {
+              return new FileRepository(dir.toFile());
+            }
+
+            @Override
+            public Repository createRepository(Project.NameKey name) {
+              throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public SortedSet<Project.NameKey> list() {
+              return ImmutableSortedSet.of(project);
+            }
+          };
+      String metaRef = changeMetaRef(c.getId());
+      ObjectId oldMetaId = repo.exactRef(metaRef).getObjectId();
+      try (Repository diskRepo = diskRepoManager.openRepository(project)) {
+        copy(repo, diskRepo, metaRef);
+      }
+
+      ChangeNotesCompactor diskCompactor =
+          new ChangeNotesCompactor(diskRepoManager, noteUtil, metrics, () -> serverIdent);
+      ChangeNotesCompactor.Result result = diskCompactor.compact(project, c.getId(), false);
+      assertThat(result.commitsBefore()).isEqualTo(5);
+      assertThat(result.commitsAfter()).isEqualTo(2);
+      assertThat(result.applied()).isTrue();
+      try (Repository diskRepo = diskRepoManager.openRepository(project)) {
+        assertThat(diskRepo.exactRef(metaRef).getObjectId()).isNotEqualTo(oldMetaId);
+        assertThat(diskRepo.exactRef(metaRef + "-compacted")).isNull();
+      }
+    } finally {
+      MoreFiles.deleteRecursively(dir, RecursiveDeleteOption.ALLOW_INSECURE);
+    }
+  }
+
+  private static void copy(Repository src, Repository dest, String refName) throws Exception {
+    ObjectId tip = src.exactRef(refName).getObjectId();
+    try (ObjectWalk ow = new ObjectWalk(src);
+        ObjectInserter ins = dest.newObjectInserter()) {
+      ow.markStart(ow.parseCommit(tip));
+      for (RevObject o = ow.next(); o != null; o = ow.next()) {
+        insert(ow, ins, o);
+      }
+      for (RevObject o = ow.nextObject(); o != null; o = ow.nextObject()) {
+        insert(ow, ins, o);
+      }
+      ins.flush();
+    }
+    RefUpdate ru = dest.updateRef(refName);
+    ru.setNewObjectId(tip);
+    assertThat(ru.update()).isEqualTo(RefUpdate.Result.NEW);
+  }
+
+  private static void insert(ObjectWalk ow, ObjectInserter ins, RevObject o) throws Exception {
+    ins.insert(o.getType(), ow.getObjectReader().open(o).getCachedBytes());
+  }
+
+  private static Object messages(ChangeNotes notes) {
+    return notes
+        .getChangeMessages()
+        .stream()
+        .map(ChangeMessage::getMessage)
+        .collect(toList());
+  }
+}
@@ -0,0 +1,300 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.notedb;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.util.stream.Collectors.toList;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableTable;
+import com.google.gerrit.common.data.SubmitRecord;
+import com.google.gerrit.reviewdb.client.Account;
+import com.google.gerrit.reviewdb.client.Change;
+import com.google.gerrit.reviewdb.client.ChangeMessage;
+import com.google.gerrit.reviewdb.client.Comment;
+import com.google.gerrit.reviewdb.client.LabelId;
+import com.google.gerrit.reviewdb.client.PatchSet;
+import com.google.gerrit.reviewdb.client.PatchSetApproval;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.reviewdb.client.RevId;
+import com.google.gerrit.server.ReviewerByEmailSet;
+import com.google.gerrit.server.ReviewerSet;
+import com.google.gerrit.server.ReviewerStatusUpdate;
+import com.google.gerrit.server.cache.proto.Cache.ChangeNotesKeyProto;
+import com.google.gerrit.server.mail.Address;
+import com.google.protobuf.ByteString;
+import java.sql.Timestamp;
+import org.eclipse.jgit.lib.ObjectId;
+import org.junit.Test;
+
+public class ChangeNotesStateTest {
+  private static final Change.Id ID = new Change.Id(123);
+  private static final ObjectId META_ID =
+      ObjectId.fromString("1234567812345678123456781234567812345678");
+  private static final String REVISION = "abcdabcdabcdabcdabcdabcdabcdabcdabcdabcd";
+  private static final Account.Id OWNER = new Account.Id(1000);
+  private static final Account.Id REVIEWER = new Account.Id(2000);
+  // Comments only keep seconds, as in NoteDb.
+  private static final Timestamp TS = new Timestamp(1_500_000_000_000L);
+
+  @Test
+  public void keySerializer() throws Exception {
+    ChangeNotesCache.Key key =
+        new AutoValue_ChangeNotesCache_Key(new Project.NameKey("project"), ID, META_ID);
+    ChangeNotesCache.Key.Serializer s = new ChangeNotesCache.Key.Serializer();
+    byte[] serialized = s.serialize(key);
+    assertThat(ChangeNotesKeyProto.parseFrom(serialized))
+        .isEqualTo(
+            ChangeNotesKeyProto.newBuilder()
+                .setProject("project")
+                .setChangeId(123)
+                .setId(
+                    bytes(
+                        0x12, 0x34, 0x56, 0x78, 0x12, 0x34, 0x56, 0x78, 0x12, 0x34, 0x56, 0x78,
+                        0x12, 0x34, 0x56, 0x78, 0x12, 0x34, 0x56, 0x78))
+                .build());
+    assertThat(s.deserialize(serialized)).isEqualTo(key);
+  }
+
+  @Test
+  public void serializeMinimalState() throws Exception {
+    ChangeNotesState state =
+        ChangeNotesState.create(
+            META_ID,
+            ID,
+            new Change.Key("Iabcd"),
+            TS,
+            TS,
+            OWNER,
+            "refs/heads/master",
+            null,
+            "Subject",
+            null,
+            null,
+            null,
+            null,
+            null,
+            ImmutableSet.of(),
+            null,
+            ImmutableMap.of(),
+            ImmutableListMultimap.of(),
+            ReviewerSet.empty(),
+            ReviewerByEmailSet.empty(),
+            ReviewerSet.empty(),
+            ReviewerByEmailSet.empty(),
+            ImmutableList.of(),
+            ImmutableList.of(),
+            ImmutableList.of(),
+            ImmutableList.of(),
+            ImmutableListMultimap.of(),
+            ImmutableListMultimap.of(),
+            null,
+            null,
+            null,
+            false,
+            null);
+
+    assertThat(roundTrip(state)).isEqualTo(state);
+  }
+
+  @Test
+  public void serializeFullState() throws Exception {
+    PatchSet.Id psId = new PatchSet.Id(ID, 1);
+    PatchSet ps = new PatchSet(psId);
+    ps.setRevision(new RevId(REVISION));
+    ps.setUploader(OWNER);
+    ps.setCreatedOn(TS);
+    ps.setGroups(ImmutableList.of("group"));
+    ps.setDescription("description");
+
+    PatchSetApproval psa =
+        new PatchSetApproval(
+            new PatchSetApproval.Key(psId, REVIEWER, new LabelId("Code-Review")), (short) 1, TS);
+    psa.setPostSubmit(true);
+
+    ChangeMessage message =
+        new ChangeMessage(new ChangeMessage.Key(ID, "uuid"), OWNER, TS, psId);
+    message.setMessage("Uploaded patch set 1.");
+
+    Comment comment =
+        new Comment(
+            new Comment.Key("uuid", "file", 1), REVIEWER, TS, (short) 1, "comment", "server", true);
+    comment.revId = REVISION;
+    comment.lineNbr = 5;
+
+    SubmitRecord rec = new SubmitRecord();
+    rec.status = SubmitRecord.Status.NOT_READY;
+    SubmitRecord.Label label = new SubmitRecord.Label();
+    label.label = "Code-Review";
+    label.status = SubmitRecord.Label.Status.NEED;
+    rec.labels = ImmutableList.of(label);
+
+    ChangeNotesState state =
+        ChangeNotesState.create(
+            META_ID,
+            ID,
+            new Change.Key("Iabcd"),
+            TS,
+            new Timestamp(2424L),
+            OWNER,
+            "refs/heads/master",
+            psId,
+            "Subject",
+            "topic",
+            "Original subject",
+            "submission",
+            REVIEWER,
+            Change.Status.NEW,
+            ImmutableSet.of(REVIEWER),
+            ImmutableSet.of("hashtag"),
+            ImmutableMap.of(psId, ps),
+            ImmutableListMultimap.of(psId, psa),
+            ReviewerSet.fromTable(
+                ImmutableTable.of(ReviewerStateInternal.REVIEWER, REVIEWER, TS)),
+            ReviewerByEmailSet.fromTable(
+                ImmutableTable.of(
+                    ReviewerStateInternal.CC, new Address("Name", "name@example.com"), TS)),
+            ReviewerSet.empty(),
+            ReviewerByEmailSet.fromTable(
+                ImmutableTable.of(
+                    ReviewerStateInternal.REVIEWER, new Address("other@example.com"), TS)),
+            ImmutableList.of(REVIEWER),
+            ImmutableList.of(
+                ReviewerStatusUpdate.create(TS, OWNER, REVIEWER, ReviewerStateInternal.REVIEWER)),
+            ImmutableList.of(rec),
+            ImmutableList.of(message),
+            ImmutableListMultimap.of(psId, message),
+            ImmutableListMultimap.of(new RevId(REVISION), comment),
+            new Timestamp(3636L),
+            true,
+            false,
+            true,
+            new Change.Id(99));
+
+    ChangeNotesState actual = roundTrip(state);
+    assertThat(actual.metaId()).isEqualTo(state.metaId());
+    assertThat(actual.columns()).isEqualTo(state.columns());
+    assertThat(actual.pastAssignees()).isEqualTo(state.pastAssignees());
+    assertThat(actual.hashtags()).isEqualTo(state.hashtags());
+    assertThat(actual.approvals()).isEqualTo(state.approvals());
+    assertThat(actual.reviewers()).isEqualTo(state.reviewers());
+    assertThat(actual.reviewersByEmail()).isEqualTo(state.reviewersByEmail());
+    assertThat(actual.pendingReviewers()).isEqualTo(state.pendingReviewers());
+    assertThat(actual.pendingReviewersByEmail()).isEqualTo(state.pendingReviewersByEmail());
+    assertThat(actual.allPastReviewers()).isEqualTo(state.allPastReviewers());
+    assertThat(actual.reviewerUpdates()).isEqualTo(state.reviewerUpdates());
+    assertThat(actual.submitRecords()).isEqualTo(state.submitRecords());
+    assertThat(actual.publishedComments()).isEqualTo(state.publishedComments());
+    assertThat(actual.readOnlyUntil()).isEqualTo(state.readOnlyUntil());
+    assertThat(actual.isPrivate()).isTrue();
+    assertThat(actual.isWorkInProgress()).isFalse();
+    assertThat(actual.revertOf()).isEqualTo(new Change.Id(99));
+
+    PatchSet actualPs = actual.patchSets().get(0).getValue();
+    assertThat(actual.patchSets().get(0).getKey()).isEqualTo(psId);
+    assertThat(actualPs.getRevision()).isEqualTo(ps.getRevision());
+    assertThat(actualPs.getUploader()).isEqualTo(OWNER);
+    assertThat(actualPs.getCreatedOn()).isEqualTo(TS);
+    assertThat(actualPs.getGroups()).containsExactly("group");
+    assertThat(actualPs.getDescription()).isEqualTo("description");
+
+    assertThat(actual.allChangeMessages().stream().map(ChangeMessage::getKey).collect(toList()))
+        .containsExactly(message.getKey());
+    assertThat(actual.changeMessagesByPatchSet().keySet()).containsExactly(psId);
+    assertThat(actual.allChangeMessages().get(0).getMessage()).isEqualTo("Uploaded patch set 1.");
+  }
+
+  @Test
+  public void serializeMessagesOfDeletedPatchSet() throws Exception {
+    PatchSet.Id deletedPsId = new PatchSet.Id(ID, 1);
+    PatchSet.Id psId = new PatchSet.Id(ID, 2);
+    PatchSet ps = new PatchSet(psId);
+    ps.setRevision(new RevId(REVISION));
+    ps.setUploader(OWNER);
+    ps.setCreatedOn(TS);
+
+    ChangeMessage deletedPsMessage =
+        new ChangeMessage(new ChangeMessage.Key(ID, "uuid1"), OWNER, TS, deletedPsId);
+    deletedPsMessage.setMessage("Uploaded patch set 1.");
+    ChangeMessage message = new ChangeMessage(new ChangeMessage.Key(ID, "uuid2"), OWNER, TS, psId);
+    message.setMessage("Uploaded patch set 2.");
+
+    ChangeNotesState state =
+        ChangeNotesState.create(
+            META_ID,
+            ID,
+            new Change.Key("Iabcd"),
+            TS,
+            TS,
+            OWNER,
+            "refs/heads/master",
+            psId,
+            "Subject",
+            null,
+            null,
+            null,
+            null,
+            null,
+            ImmutableSet.of(),
+            null,
+            ImmutableMap.of(psId, ps),
+            ImmutableListMultimap.of(),
+            ReviewerSet.empty(),
+            ReviewerByEmailSet.empty(),
+            ReviewerSet.empty(),
+            ReviewerByEmailSet.empty(),
+            ImmutableList.of(),
+            ImmutableList.of(),
+            ImmutableList.of(),
+            ImmutableList.of(deletedPsMessage, message),
+            ImmutableListMultimap.of(psId, message),
+            ImmutableListMultimap.of(),
+            null,
+            null,
+            null,
+            false,
+            null);
+
+    ChangeNotesState actual = roundTrip(state);
+    assertThat(actual.allChangeMessages().stream().map(ChangeMessage::getKey).collect(toList()))
+        .containsExactly(deletedPsMessage.getKey(), message.getKey())
+        .inOrder();
+    assertThat(actual.changeMessagesByPatchSet().keySet()).containsExactly(psId);
+    assertThat(
+            actual
+                .changeMessagesByPatchSet()
+                .get(psId)
+                .stream()
+                .map(ChangeMessage::getKey)
+                .collect(toList()))
+        .containsExactly(message.getKey());
+  }
+
+  private static ChangeNotesState roundTrip(ChangeNotesState state) throws Exception {
+    ChangeNotesState.Serializer s = new ChangeNotesState.Serializer();
+    return s.deserialize(s.serialize(state));
+  }
+
+  private static ByteString bytes(int... ints) {
+    byte[] bytes = new byte[ints.length];
+    for (int i = 0; i < ints.length; i++) {
+      bytes[i] = (byte) ints[i];
+    }
+    return ByteString.copyFrom(bytes);
+  }
+}
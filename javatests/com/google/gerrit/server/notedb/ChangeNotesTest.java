@@ -16,12 +16,14 @@ package com.google.gerrit.server.notedb;
 
 import static com.google.common.truth.Truth.assertThat;
 import static com.google.common.truth.Truth.assert_;
+import static com.google.common.truth.Truth8.assertThat;
 import static com.google.gerrit.reviewdb.client.RefNames.changeMetaRef;
 import static com.google.gerrit.reviewdb.client.RefNames.refsDraftComments;
 import static com.google.gerrit.server.notedb.ReviewerStateInternal.CC;
 import static com.google.gerrit.server.notedb.ReviewerStateInternal.REMOVED;
 import static com.google.gerrit.server.notedb.ReviewerStateInternal.REVIEWER;
 import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.stream.Collectors.toList;
 import static org.eclipse.jgit.lib.Constants.OBJ_BLOB;
 import static org.junit.Assert.fail;
 
@@ -51,7 +53,9 @@ import com.google.gerrit.server.IdentifiedUser;
 import com.google.gerrit.server.ReviewerSet;
 import com.google.gerrit.server.config.GerritServerId;
 import com.google.gerrit.server.mail.Address;
+import com.google.gerrit.server.notedb.ChangeNotes.Factory.ChangeNotesResult;
 import com.google.gerrit.server.notedb.ChangeNotesCommit.ChangeNotesRevWalk;
+import com.google.gerrit.server.project.NoSuchChangeException;
 import com.google.gerrit.server.util.RequestId;
 import com.google.gerrit.testing.TestChanges;
 import com.google.gerrit.testing.TestTimeUtil;
@@ -59,9 +63,15 @@ import com.google.gwtorm.server.OrmException;
 import com.google.inject.Inject;
 import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import org.eclipse.jgit.errors.ConfigInvalidException;
 import org.eclipse.jgit.lib.Constants;
@@ -96,6 +106,76 @@ public class ChangeNotesTest extends AbstractChangeNotesTest {
     assertThat(notes.getChangeMessages().get(0).getTag()).isEqualTo(tag);
   }
 
+  @Test
+  public void createBulk() throws Exception {
+    Change c1 = newChange();
+    Change c2 = newChange();
+    Change missing = TestChanges.newChange(project, changeOwner.getAccountId());
+
+    ChangeNotes.Factory factory = new ChangeNotes.Factory(args, null, null);
+    List<ChangeNotesResult> results =
+        factory.createBulk(
+            null, project, ImmutableList.of(c2.getId(), missing.getId(), c1.getId()));
+    assertThat(results.stream().map(ChangeNotesResult::id).collect(toList()))
+        .containsExactly(c2.getId(), missing.getId(), c1.getId())
+        .inOrder();
+    assertThat(results.get(0).notes().getMetaId()).isEqualTo(newNotes(c2).getMetaId());
+    assertThat(results.get(1).error().get()).isInstanceOf(NoSuchChangeException.class);
+    assertThat(results.get(2).notes().getMetaId()).isEqualTo(newNotes(c1).getMetaId());
+  }
+
+  @Test
+  public void createBulkInParallel() throws Exception {
+    List<Change.Id> ids = new ArrayList<>();
+    for (int i = 0; i < 20; i++) {
+      ids.add(newChange().getId());
+    }
+
+    ChangeNotes.Factory factory = new ChangeNotes.Factory(args, null, null);
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      factory.setBulkLoadExecutor(executor);
+      List<ChangeNotesResult> results = factory.createBulk(null, project, ids);
+      assertThat(results.stream().map(ChangeNotesResult::id).collect(toList()))
+          .containsExactlyElementsIn(ids)
+          .inOrder();
+      for (ChangeNotesResult r : results) {
+        assertThat(r.error()).isEmpty();
+        assertThat(r.notes().getChange().getId()).isEqualTo(r.id());
+        assertThat(r.notes().getPatchSets()).hasSize(1);
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void scanInParallel() throws Exception {
+    Set<Change.Id> ids = new HashSet<>();
+    for (int i = 0; i < 200; i++) {
+      ids.add(newChange().getId());
+    }
+
+    ChangeNotes.Factory factory = new ChangeNotes.Factory(args, null, null);
+    ExecutorService executor = Executors.newFixedThreadPool(3);
+    try {
+      Set<Change.Id> scanned = ConcurrentHashMap.newKeySet();
+      factory.scanInParallel(
+          repo,
+          () -> null,
+          project,
+          executor,
+          4,
+          (db, r) -> {
+            assertThat(r.error()).isEmpty();
+            assertThat(scanned.add(r.notes().getChangeId())).isTrue();
+          });
+      assertThat(scanned).containsExactlyElementsIn(ids);
+    } finally {
+      executor.shutdown();
+    }
+  }
+
   @Test
   public void patchSetDescription() throws Exception {
     String description = "descriptive";
@@ -3564,6 +3644,117 @@ public class ChangeNotesTest extends AbstractChangeNotesTest {
     TestChanges.incrementPatchSet(c);
   }
 
+  @Test
+  public void incrementalParseMatchesFullParse() throws Exception {
+    Change c = newChange();
+    ChangeUpdate update = newUpdate(c, changeOwner);
+    update.putReviewer(otherUser.getAccountId(), REVIEWER);
+    update.setChangeMessage("Added reviewer");
+    update.commit();
+    ChangeNotesState base = parseState(c, newNotes(c).getRevision());
+
+    update = newUpdate(c, otherUser);
+    update.putApproval("Code-Review", (short) 1);
+    update.setChangeMessage("Looks good");
+    update.putComment(
+        Status.PUBLISHED,
+        newComment(
+            c.currentPatchSetId(),
+            "file1",
+            "uuid1",
+            null,
+            1,
+            otherUser,
+            null,
+            TimeUtil.nowTs(),
+            "comment",
+            (short) 1,
+            "abcd1234abcd1234abcd1234abcd1234abcd1234",
+            false));
+    update.commit();
+    incrementPatchSet(c);
+    update = newUpdate(c, changeOwner);
+    update.setTopic("topic");
+    update.setHashtags(ImmutableSet.of("hashtag"));
+    update.putReviewer(changeOwner.getAccountId(), CC);
+    update.commit();
+
+    ObjectId tip = newNotes(c).getRevision();
+    ChangeNotesState incremental = parseIncremental(c, base, tip).get();
+    assertSameState(incremental, parseState(c, tip));
+    assertThat(incremental.allChangeMessages()).hasSize(3);
+    assertThat(incremental.publishedComments().values()).hasSize(1);
+  }
+
+  @Test
+  public void incrementalParseFallsBackForWorkInProgress() throws Exception {
+    Change c = newChange();
+    ChangeNotesState base = parseState(c, newNotes(c).getRevision());
+
+    ChangeUpdate update = newUpdate(c, changeOwner);
+    update.setWorkInProgress(true);
+    update.commit();
+
+    assertThat(parseIncremental(c, base, newNotes(c).getRevision()).isPresent()).isFalse();
+  }
+
+  @Test
+  public void incrementalParseFallsBackForReaddedReviewer() throws Exception {
+    Change c = newChange();
+    ChangeUpdate update = newUpdate(c, otherUser);
+    update.putReviewer(otherUser.getAccountId(), REVIEWER);
+    update.putApproval("Code-Review", (short) 1);
+    update.commit();
+    update = newUpdate(c, changeOwner);
+    update.removeReviewer(otherUser.getAccountId());
+    update.commit();
+    ChangeNotesState base = parseState(c, newNotes(c).getRevision());
+    assertThat(base.approvals()).isEmpty();
+
+    update = newUpdate(c, changeOwner);
+    update.putReviewer(otherUser.getAccountId(), REVIEWER);
+    update.commit();
+
+    ObjectId tip = newNotes(c).getRevision();
+    assertThat(parseIncremental(c, base, tip).isPresent()).isFalse();
+    assertThat(parseState(c, tip).approvals()).hasSize(1);
+  }
+
+  private ChangeNotesState parseState(Change c, ObjectId tip) throws Exception {
+    try (ChangeNotesRevWalk walk = ChangeNotesCommit.newRevWalk(repo)) {
+      return new ChangeNotesParser(c.getId(), tip, walk, noteUtil, args.metrics).parseAll();
+    }
+  }
+
+  private Optional<ChangeNotesState> parseIncremental(
+      Change c, ChangeNotesState base, ObjectId tip) throws Exception {
+    try (ChangeNotesRevWalk walk = ChangeNotesCommit.newRevWalk(repo)) {
+      return new ChangeNotesParser(c.getId(), tip, walk, noteUtil, args.metrics)
+          .parseIncremental(base);
+    }
+  }
+
+  private static void assertSameState(ChangeNotesState actual, ChangeNotesState expected) {
+    assertThat(actual.metaId()).isEqualTo(expected.metaId());
+    assertThat(actual.columns()).isEqualTo(expected.columns());
+    assertThat(actual.hashtags()).isEqualTo(expected.hashtags());
+    assertThat(actual.pastAssignees()).isEqualTo(expected.pastAssignees());
+    assertThat(actual.patchSets().stream().map(e -> e.getValue().getRevision()).collect(toList()))
+        .containsExactlyElementsIn(
+            expected.patchSets().stream().map(e -> e.getValue().getRevision()).collect(toList()));
+    assertThat(actual.approvals()).containsExactlyElementsIn(expected.approvals());
+    assertThat(actual.reviewers()).isEqualTo(expected.reviewers());
+    assertThat(actual.reviewersByEmail()).isEqualTo(expected.reviewersByEmail());
+    assertThat(actual.allPastReviewers()).containsExactlyElementsIn(expected.allPastReviewers());
+    assertThat(actual.reviewerUpdates()).isEqualTo(expected.reviewerUpdates());
+    assertThat(actual.submitRecords()).isEqualTo(expected.submitRecords());
+    assertThat(actual.allChangeMessages().stream().map(ChangeMessage::getKey).collect(toList()))
+        .containsExactlyElementsIn(
+            expected.allChangeMessages().stream().map(ChangeMessage::getKey).collect(toList()))
+        .inOrder();
+    assertThat(actual.publishedComments()).isEqualTo(expected.publishedComments());
+  }
+
   private RevCommit incrementPatchSet(Change c) throws Exception {
     return incrementPatchSet(c, userFactory.create(c.getOwner()));
   }
@@ -0,0 +1,115 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.notedb;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.util.stream.Collectors.toList;
+
+import com.google.common.collect.ImmutableList;
+import com.google.gerrit.reviewdb.client.Account;
+import com.google.gerrit.reviewdb.client.Comment;
+import com.google.gerrit.reviewdb.client.RobotComment;
+import java.io.ByteArrayOutputStream;
+import java.sql.Timestamp;
+import java.util.List;
+import org.junit.Test;
+
+public class CompactCommentNoteTest {
+  private static final String REV = "abcd1234abcd1234abcd1234abcd1234abcd1234";
+  private static final Account.Id AUTHOR = new Account.Id(1000);
+
+  @Test
+  public void roundTrip() throws Exception {
+    Comment root = comment("uuid1", null, 1000, true);
+    Comment reply = comment("uuid2", "uuid1", 2000, false);
+    byte[] raw = write("certificate", root, reply);
+
+    assertThat(CompactCommentNote.isCompact(raw, 0)).isTrue();
+    assertThat(CompactCommentNote.isCompact("{}".getBytes(), 0)).isFalse();
+
+    CompactCommentNote note = CompactCommentNote.parse(raw, 0);
+    assertThat(note.getPushCert()).isEqualTo("certificate");
+    assertThat(note.getSummaries())
+        .containsExactly(CommentSummary.create(root), CommentSummary.create(reply))
+        .inOrder();
+    List<Comment> comments = note.decodeComments(Comment.class);
+    assertThat(comments).containsExactly(root, reply).inOrder();
+    assertThat(comments.get(1).parentUuid).isEqualTo("uuid1");
+    assertThat(comments.get(1).message).isEqualTo("message uuid2");
+  }
+
+  @Test
+  public void roundTripRobotComments() throws Exception {
+    RobotComment c =
+        new RobotComment(
+            new Comment.Key("uuid", "file", 1),
+            AUTHOR,
+            new Timestamp(1000),
+            (short) 1,
+            "message",
+            "server",
+            "robot",
+            "run");
+    c.revId = REV;
+    c.url = "http://example.com";
+
+    List<RobotComment> comments =
+        CompactCommentNote.parse(write(null, c), 0).decodeComments(RobotComment.class);
+    assertThat(comments).hasSize(1);
+    assertThat(comments.get(0).robotId).isEqualTo("robot");
+    assertThat(comments.get(0).url).isEqualTo("http://example.com");
+  }
+
+  @Test
+  public void countUnresolvedThreads() throws Exception {
+    List<CommentSummary> summaries =
+        ImmutableList.of(
+                // Resolved by a reply.
+                comment("a", null, 1000, true),
+                comment("a1", "a", 2000, false),
+                // Reopened by the latest reply.
+                comment("b", null, 1000, false),
+                comment("b1", "b", 2000, false),
+                comment("b2", "b", 3000, true),
+                // Unresolved without replies.
+                comment("c", null, 1000, true))
+            .stream()
+            .map(CommentSummary::create)
+            .collect(toList());
+    assertThat(CommentSummary.countUnresolvedThreads(summaries)).isEqualTo(2);
+  }
+
+  private static byte[] write(String pushCert, Comment... comments) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    CompactCommentNote.write(pushCert, ImmutableList.copyOf(comments), out);
+    return out.toByteArray();
+  }
+
+  private static Comment comment(
+      String uuid, String parentUuid, long writtenOnMillis, boolean unresolved) {
+    Comment c =
+        new Comment(
+            new Comment.Key(uuid, "file", 1),
+            AUTHOR,
+            new Timestamp(writtenOnMillis),
+            (short) 1,
+            "message " + uuid,
+            "server",
+            unresolved);
+    c.parentUuid = parentUuid;
+    c.revId = REV;
+    return c;
+  }
+}
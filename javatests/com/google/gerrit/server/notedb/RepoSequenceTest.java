@@ -22,14 +22,24 @@ import static org.junit.Assert.fail;
 import com.github.rholder.retry.Retryer;
 import com.github.rholder.retry.RetryerBuilder;
 import com.github.rholder.retry.StopStrategies;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.common.util.concurrent.Runnables;
+import com.google.gerrit.common.Nullable;
 import com.google.gerrit.reviewdb.client.Project;
 import com.google.gerrit.reviewdb.client.RefNames;
 import com.google.gerrit.server.extensions.events.GitReferenceUpdated;
 import com.google.gerrit.testing.InMemoryRepositoryManager;
 import com.google.gwtorm.server.OrmException;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import org.eclipse.jgit.errors.IncorrectObjectTypeException;
@@ -74,7 +84,7 @@ public class RepoSequenceTest {
           throw new AssertionError("failed batchSize=" + batchSize + ", i=" + i, e);
         }
       }
-      assertThat(s.acquireCount)
+      assertThat(s.acquireCount.get())
           .named("acquireCount for " + name)
           .isEqualTo(divCeil(max, batchSize));
     }
@@ -83,31 +93,31 @@ public class RepoSequenceTest {
   @Test
   public void oneCallerNoLoop() throws Exception {
     RepoSequence s = newSequence("id", 1, 3);
-    assertThat(s.acquireCount).isEqualTo(0);
+    assertThat(s.acquireCount.get()).isEqualTo(0);
 
     assertThat(s.next()).isEqualTo(1);
-    assertThat(s.acquireCount).isEqualTo(1);
+    assertThat(s.acquireCount.get()).isEqualTo(1);
     assertThat(s.next()).isEqualTo(2);
-    assertThat(s.acquireCount).isEqualTo(1);
+    assertThat(s.acquireCount.get()).isEqualTo(1);
     assertThat(s.next()).isEqualTo(3);
-    assertThat(s.acquireCount).isEqualTo(1);
+    assertThat(s.acquireCount.get()).isEqualTo(1);
 
     assertThat(s.next()).isEqualTo(4);
-    assertThat(s.acquireCount).isEqualTo(2);
+    assertThat(s.acquireCount.get()).isEqualTo(2);
     assertThat(s.next()).isEqualTo(5);
-    assertThat(s.acquireCount).isEqualTo(2);
+    assertThat(s.acquireCount.get()).isEqualTo(2);
     assertThat(s.next()).isEqualTo(6);
-    assertThat(s.acquireCount).isEqualTo(2);
+    assertThat(s.acquireCount.get()).isEqualTo(2);
 
     assertThat(s.next()).isEqualTo(7);
-    assertThat(s.acquireCount).isEqualTo(3);
+    assertThat(s.acquireCount.get()).isEqualTo(3);
     assertThat(s.next()).isEqualTo(8);
-    assertThat(s.acquireCount).isEqualTo(3);
+    assertThat(s.acquireCount.get()).isEqualTo(3);
     assertThat(s.next()).isEqualTo(9);
-    assertThat(s.acquireCount).isEqualTo(3);
+    assertThat(s.acquireCount.get()).isEqualTo(3);
 
     assertThat(s.next()).isEqualTo(10);
-    assertThat(s.acquireCount).isEqualTo(4);
+    assertThat(s.acquireCount.get()).isEqualTo(4);
   }
 
   @Test
@@ -164,7 +174,7 @@ public class RepoSequenceTest {
     assertThat(doneBgUpdate.get()).isFalse();
     assertThat(s.next()).isEqualTo(1234);
     // Single acquire call that results in 2 ref reads.
-    assertThat(s.acquireCount).isEqualTo(1);
+    assertThat(s.acquireCount.get()).isEqualTo(1);
     assertThat(doneBgUpdate.get()).isTrue();
   }
 
@@ -212,25 +222,25 @@ public class RepoSequenceTest {
   public void nextWithCountOneCaller() throws Exception {
     RepoSequence s = newSequence("id", 1, 3);
     assertThat(s.next(2)).containsExactly(1, 2).inOrder();
-    assertThat(s.acquireCount).isEqualTo(1);
+    assertThat(s.acquireCount.get()).isEqualTo(1);
     assertThat(s.next(2)).containsExactly(3, 4).inOrder();
-    assertThat(s.acquireCount).isEqualTo(2);
+    assertThat(s.acquireCount.get()).isEqualTo(2);
     assertThat(s.next(2)).containsExactly(5, 6).inOrder();
-    assertThat(s.acquireCount).isEqualTo(2);
+    assertThat(s.acquireCount.get()).isEqualTo(2);
 
     assertThat(s.next(3)).containsExactly(7, 8, 9).inOrder();
-    assertThat(s.acquireCount).isEqualTo(3);
+    assertThat(s.acquireCount.get()).isEqualTo(3);
     assertThat(s.next(3)).containsExactly(10, 11, 12).inOrder();
-    assertThat(s.acquireCount).isEqualTo(4);
+    assertThat(s.acquireCount.get()).isEqualTo(4);
     assertThat(s.next(3)).containsExactly(13, 14, 15).inOrder();
-    assertThat(s.acquireCount).isEqualTo(5);
+    assertThat(s.acquireCount.get()).isEqualTo(5);
 
     assertThat(s.next(7)).containsExactly(16, 17, 18, 19, 20, 21, 22).inOrder();
-    assertThat(s.acquireCount).isEqualTo(6);
+    assertThat(s.acquireCount.get()).isEqualTo(6);
     assertThat(s.next(7)).containsExactly(23, 24, 25, 26, 27, 28, 29).inOrder();
-    assertThat(s.acquireCount).isEqualTo(7);
+    assertThat(s.acquireCount.get()).isEqualTo(7);
     assertThat(s.next(7)).containsExactly(30, 31, 32, 33, 34, 35, 36).inOrder();
-    assertThat(s.acquireCount).isEqualTo(8);
+    assertThat(s.acquireCount.get()).isEqualTo(8);
   }
 
   @Test
@@ -239,19 +249,19 @@ public class RepoSequenceTest {
     RepoSequence s2 = newSequence("id", 1, 4);
 
     assertThat(s1.next(2)).containsExactly(1, 2).inOrder();
-    assertThat(s1.acquireCount).isEqualTo(1);
+    assertThat(s1.acquireCount.get()).isEqualTo(1);
 
     // s1 hasn't exhausted its last batch.
     assertThat(s2.next(2)).containsExactly(4, 5).inOrder();
-    assertThat(s2.acquireCount).isEqualTo(1);
+    assertThat(s2.acquireCount.get()).isEqualTo(1);
 
     // s1 acquires again to cover this request, plus a whole new batch.
     assertThat(s1.next(3)).containsExactly(3, 8, 9);
-    assertThat(s1.acquireCount).isEqualTo(2);
+    assertThat(s1.acquireCount.get()).isEqualTo(2);
 
     // s2 hasn't exhausted its last batch, do so now.
     assertThat(s2.next(2)).containsExactly(6, 7);
-    assertThat(s2.acquireCount).isEqualTo(1);
+    assertThat(s2.acquireCount.get()).isEqualTo(1);
   }
 
   @Test
@@ -343,10 +353,105 @@ public class RepoSequenceTest {
     s.increaseTo(2);
   }
 
+  @Test
+  public void prefetchNextBatchWhenHalfIsHandedOut() throws Exception {
+    RepoSequence s = newSequence("id", 1, 4, MoreExecutors.newDirectExecutorService());
+    assertThat(s.next()).isEqualTo(1);
+    assertThat(s.acquireCount.get()).isEqualTo(1);
+    assertThat(readBlob("id")).isEqualTo("5");
+
+    // Half of the batch is left, so the next batch is acquired.
+    assertThat(s.next()).isEqualTo(2);
+    assertThat(s.acquireCount.get()).isEqualTo(2);
+    assertThat(readBlob("id")).isEqualTo("9");
+
+    assertThat(s.next(3)).containsExactly(3, 4, 5).inOrder();
+    assertThat(s.next()).isEqualTo(6);
+    assertThat(s.next()).isEqualTo(7);
+    assertThat(s.acquireCount.get()).isEqualTo(3);
+    assertThat(readBlob("id")).isEqualTo("13");
+  }
+
+  @Test
+  public void prefetchWithConcurrentCallers() throws Exception {
+    ExecutorService prefetchExecutor = Executors.newSingleThreadExecutor();
+    ExecutorService callers = Executors.newFixedThreadPool(4);
+    try {
+      RepoSequence s = newSequence("id", 1, 10, prefetchExecutor);
+      List<Future<ImmutableList<Integer>>> results = new ArrayList<>();
+      for (int i = 0; i < 4; i++) {
+        results.add(
+            callers.submit(
+                () -> {
+                  ImmutableList.Builder<Integer> ids = ImmutableList.builder();
+                  for (int j = 0; j < 50; j++) {
+                    ids.add(s.next());
+                  }
+                  return ids.build();
+                }));
+      }
+      Set<Integer> ids = new HashSet<>();
+      for (Future<ImmutableList<Integer>> result : results) {
+        ids.addAll(result.get());
+      }
+      assertThat(ids).hasSize(200);
+    } finally {
+      callers.shutdown();
+      prefetchExecutor.shutdown();
+    }
+  }
+
+  @Test
+  public void reportRetriesAndWastedIds() throws Exception {
+    writeBlob("id", "1");
+    AtomicBoolean doneBgUpdate = new AtomicBoolean(false);
+    Runnable bgUpdate =
+        () -> {
+          if (!doneBgUpdate.getAndSet(true)) {
+            writeBlob("id", "1234");
+          }
+        };
+    AtomicInteger retries = new AtomicInteger();
+    AtomicInteger wasted = new AtomicInteger();
+    RepoSequence.Listener listener =
+        new RepoSequence.Listener() {
+          @Override
+          public void onAcquire(boolean prefetch, int r, long elapsedNanos) {
+            retries.addAndGet(r);
+          }
+
+          @Override
+          public void onWasted(int count) {
+            wasted.addAndGet(count);
+          }
+        };
+
+    RepoSequence s = newSequence("id", 1, 10, bgUpdate, RETRYER, null, listener);
+    assertThat(s.next()).isEqualTo(1234);
+    assertThat(retries.get()).isEqualTo(1);
+
+    // The 9 IDs left in the batch are dropped.
+    s.increaseTo(2000);
+    assertThat(wasted.get()).isEqualTo(9);
+    assertThat(s.next()).isEqualTo(2000);
+  }
+
   private RepoSequence newSequence(String name, int start, int batchSize) {
     return newSequence(name, start, batchSize, Runnables.doNothing(), RETRYER);
   }
 
+  private RepoSequence newSequence(
+      String name, int start, int batchSize, ExecutorService prefetchExecutor) {
+    return newSequence(
+        name,
+        start,
+        batchSize,
+        Runnables.doNothing(),
+        RETRYER,
+        prefetchExecutor,
+        RepoSequence.Listener.NONE);
+  }
+
   private RepoSequence newSequence(
       String name,
       final int start,
@@ -364,6 +469,28 @@ public class RepoSequenceTest {
         retryer);
   }
 
+  private RepoSequence newSequence(
+      String name,
+      int start,
+      int batchSize,
+      Runnable afterReadRef,
+      Retryer<RefUpdate.Result> retryer,
+      @Nullable ExecutorService prefetchExecutor,
+      RepoSequence.Listener listener) {
+    return new RepoSequence(
+        repoManager,
+        GitReferenceUpdated.DISABLED,
+        project,
+        name,
+        () -> start,
+        batchSize,
+        afterReadRef,
+        retryer,
+        0,
+        prefetchExecutor,
+        listener);
+  }
+
   private ObjectId writeBlob(String sequenceName, String value) {
     String refName = RefNames.REFS_SEQUENCES + sequenceName;
     try (Repository repo = repoManager.openRepository(project);
@@ -0,0 +1,126 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.notedb;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.util.stream.Collectors.toList;
+
+import com.google.gerrit.common.TimeUtil;
+import com.google.gerrit.reviewdb.client.Change;
+import com.google.gerrit.reviewdb.client.Comment;
+import com.google.gerrit.reviewdb.client.PatchSet;
+import com.google.gerrit.reviewdb.client.RefNames;
+import com.google.gerrit.reviewdb.client.RobotComment;
+import com.google.inject.Inject;
+import java.util.List;
+import org.junit.Test;
+
+public class RobotCommentCacheTest extends AbstractChangeNotesTest {
+  private static final String REV1 = "abcd1234abcd1234abcd1234abcd1234abcd1234";
+  private static final String REV2 = "abcd4567abcd4567abcd4567abcd4567abcd4567";
+
+  @Inject private RobotCommentCache robotCommentCache;
+
+  @Test
+  public void noRobotComments() throws Exception {
+    Change c = newChange();
+    ChangeNotes notes = newNotes(c);
+    assertThat(robotCommentCache.getAll(notes)).isEmpty();
+    assertThat(robotCommentCache.get(notes, c.currentPatchSetId(), null)).isEmpty();
+    assertThat(robotCommentCache.getSummaries(notes)).isEmpty();
+    assertThat(notes.getRobotCommentsMetaId()).isNull();
+  }
+
+  @Test
+  public void getByPatchSetAndFile() throws Exception {
+    Change c = newChange();
+    PatchSet.Id ps1 = new PatchSet.Id(c.getId(), 1);
+    PatchSet.Id ps2 = new PatchSet.Id(c.getId(), 2);
+    String rev1 = revision(c, ps1);
+    ChangeUpdate update = newUpdate(c, changeOwner);
+    update.putRobotComment(newRobotComment(ps1, "a.txt", "uuid1", rev1));
+    update.putRobotComment(newRobotComment(ps1, "b.txt", "uuid2", rev1));
+    update.putRobotComment(newRobotComment(ps2, "a.txt", "uuid3", REV2));
+    update.commit();
+
+    ChangeNotes notes = newNotes(c);
+    assertThat(uuids(robotCommentCache.getAll(notes))).containsExactly("uuid1", "uuid2", "uuid3");
+    assertThat(uuids(robotCommentCache.get(notes, ps1, null))).containsExactly("uuid1", "uuid2");
+    assertThat(uuids(robotCommentCache.get(notes, ps1, "b.txt"))).containsExactly("uuid2");
+    assertThat(uuids(robotCommentCache.get(notes, ps2, "a.txt"))).containsExactly("uuid3");
+    assertThat(robotCommentCache.get(notes, ps2, "b.txt")).isEmpty();
+    assertThat(robotCommentCache.getSummaries(notes)).hasSize(3);
+
+    assertThat(notes.getRobotCommentsMetaId())
+        .isEqualTo(repo.exactRef(RefNames.robotCommentsRef(c.getId())).getObjectId());
+  }
+
+  @Test
+  public void reflectsNewRobotComments() throws Exception {
+    Change c = newChange();
+    PatchSet.Id ps1 = c.currentPatchSetId();
+    String rev1 = revision(c, ps1);
+    ChangeUpdate update = newUpdate(c, changeOwner);
+    update.putRobotComment(newRobotComment(ps1, "a.txt", "uuid1", rev1));
+    update.commit();
+    assertThat(uuids(robotCommentCache.get(newNotes(c), ps1, null))).containsExactly("uuid1");
+
+    update = newUpdate(c, changeOwner);
+    update.putRobotComment(newRobotComment(ps1, "a.txt", "uuid2", rev1));
+    update.commit();
+    assertThat(uuids(robotCommentCache.get(newNotes(c), ps1, null)))
+        .containsExactly("uuid1", "uuid2");
+  }
+
+  @Test
+  public void onlyReadsNotesOfPatchSetRevision() throws Exception {
+    Change c = newChange();
+    PatchSet.Id ps1 = c.currentPatchSetId();
+    ChangeUpdate update = newUpdate(c, changeOwner);
+    update.putRobotComment(newRobotComment(ps1, "a.txt", "uuid1", revision(c, ps1)));
+    // Not a revision of the patch set nor of its base, so its note is not read.
+    update.putRobotComment(newRobotComment(ps1, "a.txt", "uuid2", REV1));
+    update.commit();
+
+    ChangeNotes notes = newNotes(c);
+    assertThat(uuids(robotCommentCache.get(notes, ps1, null))).containsExactly("uuid1");
+    assertThat(uuids(robotCommentCache.getAll(notes))).containsExactly("uuid1", "uuid2");
+  }
+
+  private String revision(Change c, PatchSet.Id psId) throws Exception {
+    return newNotes(c).getPatchSets().get(psId).getRevision().get();
+  }
+
+  private RobotComment newRobotComment(
+      PatchSet.Id psId, String filename, String uuid, String revId) {
+    RobotComment c =
+        new RobotComment(
+            new Comment.Key(uuid, filename, psId.get()),
+            changeOwner.getAccountId(),
+            TimeUtil.nowTs(),
+            (short) 1,
+            "message",
+            "server",
+            "robot",
+            "run");
+    c.lineNbr = 1;
+    c.revId = revId;
+    return c;
+  }
+
+  private static List<String> uuids(List<RobotComment> comments) {
+    return comments.stream().map(c -> c.key.uuid).collect(toList());
+  }
+}
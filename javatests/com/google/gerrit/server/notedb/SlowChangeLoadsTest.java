@@ -0,0 +1,62 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.notedb;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.util.stream.Collectors.toList;
+
+import com.google.gerrit.reviewdb.client.Change;
+import com.google.gerrit.reviewdb.client.Project;
+import java.util.List;
+import org.junit.Test;
+
+public class SlowChangeLoadsTest {
+  private static final Project.NameKey PROJECT = new Project.NameKey("project");
+
+  @Test
+  public void keepSlowestLoads() {
+    SlowChangeLoads loads = new SlowChangeLoads(2);
+    record(loads, 1, 100);
+    record(loads, 2, 300);
+    record(loads, 3, 200);
+    record(loads, 4, 50);
+    assertThat(changes(loads)).containsExactly(2, 3).inOrder();
+  }
+
+  @Test
+  public void keepSlowestLoadPerChange() {
+    SlowChangeLoads loads = new SlowChangeLoads(2);
+    record(loads, 1, 100);
+    record(loads, 1, 300);
+    record(loads, 1, 200);
+    assertThat(changes(loads)).containsExactly(1);
+    assertThat(loads.getAll().get(0).parseNanos()).isEqualTo(300);
+  }
+
+  @Test
+  public void disabled() {
+    SlowChangeLoads loads = new SlowChangeLoads(0);
+    record(loads, 1, 100);
+    assertThat(loads.getAll()).isEmpty();
+  }
+
+  private static void record(SlowChangeLoads loads, int change, long nanos) {
+    loads.record(PROJECT, new Change.Id(change), false, 10, 1000, nanos);
+  }
+
+  private static List<Integer> changes(SlowChangeLoads loads) {
+    return loads.getAll().stream().map(e -> e.changeId().get()).collect(toList());
+  }
+}
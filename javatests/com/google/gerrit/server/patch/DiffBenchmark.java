@@ -0,0 +1,466 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.patch;
+
+import static com.google.common.collect.ImmutableList.toImmutableList;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.gerrit.extensions.client.DiffPreferencesInfo;
+import com.google.gerrit.extensions.client.DiffPreferencesInfo.Whitespace;
+import com.google.gerrit.metrics.DisabledMetricMaker;
+import com.google.gerrit.metrics.MetricMaker;
+import com.google.gerrit.reviewdb.client.Account;
+import com.google.gerrit.reviewdb.client.Change;
+import com.google.gerrit.reviewdb.client.Patch;
+import com.google.gerrit.reviewdb.client.PatchSet;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.server.mime.FileTypeRegistry;
+import com.google.gerrit.testing.InMemoryRepositoryManager;
+import com.google.gerrit.testing.TestChanges;
+import eu.medsea.mimeutil.MimeType;
+import eu.medsea.mimeutil.MimeUtil2;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Consumer;
+import org.eclipse.jgit.diff.DiffEntry;
+import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+
+/**
+ * Replays the {@link DiffBenchmarkCorpus synthetic corpora} through the stages of the diff engine
+ * and reports their throughput, allocation rate and latency percentiles.
+ *
+ * <p>Nothing is cached between iterations, so every iteration measures the full computation of a
+ * stage. All work runs on the calling thread, to attribute the allocated bytes to the stage and to
+ * keep the latencies free of scheduling noise.
+ *
+ * <p>Run with {@code bazel run //javatests/com/google/gerrit/server:diff_benchmark -- --help}.
+ */
+public class DiffBenchmark {
+  enum Stage {
+    /** Patch list of the change against its parent. */
+    PATCH_LIST,
+
+    /** Patch list between the change and its rebased patch set, with the edits due to rebase. */
+    REBASE,
+
+    /** Transformation of the edits of the change by the edits of the upstream commit. */
+    EDIT_TRANSFORMER,
+
+    /** Intraline diffs of all modified files of the change. */
+    INTRALINE,
+
+    /** Patch scripts of all files of the change, without intraline diffs. */
+    PATCH_SCRIPT;
+  }
+
+  static class Result {
+    final DiffBenchmarkCorpus.Kind corpus;
+    final Stage stage;
+    final long[] latencyNanos;
+    final long totalNanos;
+
+    /** Bytes allocated by all iterations, or -1 if the JVM can't measure them. */
+    final long allocatedBytes;
+
+    private Result(
+        DiffBenchmarkCorpus.Kind corpus, Stage stage, long[] latencyNanos, long allocatedBytes) {
+      this.corpus = corpus;
+      this.stage = stage;
+      this.latencyNanos = latencyNanos.clone();
+      this.totalNanos = Arrays.stream(latencyNanos).sum();
+      this.allocatedBytes = allocatedBytes;
+      Arrays.sort(this.latencyNanos);
+    }
+
+    double opsPerSecond() {
+      return latencyNanos.length / (totalNanos / 1e9);
+    }
+
+    double percentileMillis(double p) {
+      int i = (int) Math.ceil(p / 100 * latencyNanos.length) - 1;
+      return latencyNanos[Math.max(0, Math.min(i, latencyNanos.length - 1))] / 1e6;
+    }
+
+    double allocatedMegabytesPerSecond() {
+      return allocatedBytes < 0 ? -1 : allocatedBytes / 1e6 / (totalNanos / 1e9);
+    }
+
+    double allocatedKilobytesPerOp() {
+      return allocatedBytes < 0 ? -1 : allocatedBytes / 1e3 / latencyNanos.length;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(
+          "%-12s %-16s %10.2f %9.2f %9.2f %9.2f %9.2f %12.1f %14.1f",
+          corpus,
+          stage,
+          opsPerSecond(),
+          percentileMillis(50),
+          percentileMillis(90),
+          percentileMillis(99),
+          percentileMillis(100),
+          allocatedMegabytesPerSecond(),
+          allocatedKilobytesPerOp());
+    }
+
+    static String header() {
+      return String.format(
+          "%-12s %-16s %10s %9s %9s %9s %9s %12s %14s",
+          "corpus",
+          "stage",
+          "ops/s",
+          "p50 ms",
+          "p90 ms",
+          "p99 ms",
+          "max ms",
+          "alloc MB/s",
+          "alloc KB/op");
+    }
+  }
+
+  @Option(name = "--corpus", usage = "corpus to replay, may be repeated; all corpora by default")
+  private List<DiffBenchmarkCorpus.Kind> corpora = new ArrayList<>();
+
+  @Option(name = "--stage", usage = "stage to measure, may be repeated; all stages by default")
+  private List<Stage> stages = new ArrayList<>();
+
+  @Option(name = "--scale", usage = "factor for the number of files of the corpora")
+  private int scale = 1;
+
+  @Option(name = "--warmup", usage = "iterations that are run before measuring")
+  private int warmup = 5;
+
+  @Option(name = "--iterations", usage = "iterations that are measured")
+  private int iterations = 20;
+
+  @Option(name = "--help", aliases = "-h", usage = "display this help text")
+  private boolean help;
+
+  public static void main(String[] argv) throws Exception {
+    DiffBenchmark benchmark = new DiffBenchmark();
+    CmdLineParser parser = new CmdLineParser(benchmark);
+    try {
+      parser.parseArgument(argv);
+    } catch (CmdLineException e) {
+      System.err.println(e.getMessage());
+      parser.printUsage(System.err);
+      System.exit(1);
+    }
+    if (benchmark.help) {
+      parser.printUsage(System.out);
+      return;
+    }
+
+    System.out.println(Result.header());
+    benchmark.run(System.out::println);
+  }
+
+  private final InMemoryRepositoryManager repoManager = new InMemoryRepositoryManager();
+  private final ExecutorService executor = MoreExecutors.newDirectExecutorService();
+  private final MetricMaker metricMaker = new DisabledMetricMaker();
+  private final Config cfg = new Config();
+  private final PatchListCache patchListCache = new UncachedPatchListCache();
+  private final AutoMerger autoMerger =
+      new AutoMerger(
+          cfg,
+          new PersonIdent("Gerrit Code Review", "gerrit@localhost"),
+          new AutoMergeStore(),
+          new AutoMerger.Metrics(metricMaker));
+  private final PatchListLoader.Metrics patchListMetrics = new PatchListLoader.Metrics(metricMaker);
+  private final IntraLineLoader.Metrics intraLineMetrics = new IntraLineLoader.Metrics(metricMaker);
+  private final IntraLineLoader.Workers intraLineWorkers = new IntraLineLoader.Workers(cfg);
+  private final FileTypeRegistry fileTypeRegistry = new UnknownFileTypeRegistry();
+
+  DiffBenchmark() {}
+
+  DiffBenchmark(
+      Set<DiffBenchmarkCorpus.Kind> corpora,
+      Set<Stage> stages,
+      int scale,
+      int warmup,
+      int iterations) {
+    this.corpora = new ArrayList<>(corpora);
+    this.stages = new ArrayList<>(stages);
+    this.scale = scale;
+    this.warmup = warmup;
+    this.iterations = iterations;
+  }
+
+  void run(Consumer<Result> listener) throws Exception {
+    Set<DiffBenchmarkCorpus.Kind> kinds =
+        corpora.isEmpty() ? EnumSet.allOf(DiffBenchmarkCorpus.Kind.class) : EnumSet.copyOf(corpora);
+    Set<Stage> selected = stages.isEmpty() ? EnumSet.allOf(Stage.class) : EnumSet.copyOf(stages);
+    for (DiffBenchmarkCorpus.Kind kind : kinds) {
+      Prepared prepared = new Prepared(DiffBenchmarkCorpus.create(repoManager, kind, scale));
+      for (Stage stage : selected) {
+        listener.accept(measure(prepared, stage));
+      }
+    }
+  }
+
+  private Result measure(Prepared p, Stage stage) throws Exception {
+    for (int i = 0; i < warmup; i++) {
+      runStage(p, stage);
+    }
+    long[] latencies = new long[Math.max(iterations, 1)];
+    long allocatedBefore = allocatedBytes();
+    for (int i = 0; i < latencies.length; i++) {
+      long start = System.nanoTime();
+      runStage(p, stage);
+      latencies[i] = System.nanoTime() - start;
+    }
+    long allocatedAfter = allocatedBytes();
+    return new Result(
+        p.corpus.kind,
+        stage,
+        latencies,
+        allocatedBefore < 0 ? -1 : allocatedAfter - allocatedBefore);
+  }
+
+  private void runStage(Prepared p, Stage stage) throws Exception {
+    switch (stage) {
+      case PATCH_LIST:
+        patchList(p.corpus, PatchListKey.againstDefaultBase(p.corpus.patchSet1, p.whitespace));
+        return;
+
+      case REBASE:
+        patchList(
+            p.corpus,
+            PatchListKey.againstCommit(p.corpus.patchSet1, p.corpus.patchSet2, p.whitespace));
+        return;
+
+      case EDIT_TRANSFORMER:
+        EditTransformer transformer = new EditTransformer(p.upstreamEntries);
+        transformer.transformReferencesOfSideA(p.patchSet1Entries);
+        transformer.transformReferencesOfSideB(p.patchSet2Entries);
+        transformer.getEditsPerFilePath();
+        return;
+
+      case INTRALINE:
+        for (IntraLineDiffArgs args : p.intraLineArgs) {
+          newIntraLineLoader(
+                  IntraLineDiffKey.create(ObjectId.zeroId(), ObjectId.zeroId(), p.whitespace),
+                  args)
+              .call();
+        }
+        return;
+
+      case PATCH_SCRIPT:
+        try (Repository repo = repoManager.openRepository(p.corpus.project)) {
+          for (PatchListEntry entry : p.patchSet1List.getPatches()) {
+            PatchScriptBuilder b = new PatchScriptBuilder(fileTypeRegistry, patchListCache, cfg);
+            b.setRepository(repo, p.corpus.project);
+            b.setChange(p.change);
+            b.setDiffPrefs(p.diffPrefs);
+            b.setTrees(
+                p.patchSet1List.getComparisonType(),
+                p.patchSet1List.getOldId(),
+                p.patchSet1List.getNewId());
+            b.toPatchScript(entry, null, ImmutableList.of());
+          }
+        }
+        return;
+    }
+    throw new IllegalArgumentException("unknown stage " + stage);
+  }
+
+  private PatchList patchList(DiffBenchmarkCorpus corpus, PatchListKey key)
+      throws PatchListNotAvailableException {
+    return patchListCache.get(key, corpus.project);
+  }
+
+  private PatchListLoader newPatchListLoader(PatchListKey key, Project.NameKey project) {
+    // Rename detections are not kept, so that every iteration detects renames again.
+    Cache<TreePairKey, ImmutableList<DiffEntry>> renames =
+        CacheBuilder.newBuilder().maximumSize(0).build();
+    return new PatchListLoader(
+        repoManager,
+        patchListCache,
+        cfg,
+        executor,
+        autoMerger,
+        patchListMetrics,
+        renames,
+        key,
+        project);
+  }
+
+  private IntraLineLoader newIntraLineLoader(IntraLineDiffKey key, IntraLineDiffArgs args) {
+    return new IntraLineLoader(executor, intraLineMetrics, intraLineWorkers, cfg, key, args);
+  }
+
+  private static long allocatedBytes() {
+    java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+      return -1;
+    }
+    com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+    if (!sunBean.isThreadAllocatedMemorySupported() || !sunBean.isThreadAllocatedMemoryEnabled()) {
+      return -1;
+    }
+    return sunBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
+  /** Inputs of the stages that are computed once per corpus. */
+  private class Prepared {
+    final DiffBenchmarkCorpus corpus;
+    final Whitespace whitespace = Whitespace.IGNORE_NONE;
+    final DiffPreferencesInfo diffPrefs;
+    final Change change;
+    final PatchList patchSet1List;
+    final List<PatchListEntry> upstreamEntries;
+    final List<PatchListEntry> patchSet1Entries;
+    final List<PatchListEntry> patchSet2Entries;
+    final List<IntraLineDiffArgs> intraLineArgs;
+
+    Prepared(DiffBenchmarkCorpus corpus) throws Exception {
+      this.corpus = corpus;
+      diffPrefs = DiffPreferencesInfo.defaults();
+      diffPrefs.intralineDifference = false;
+      change = TestChanges.newChange(corpus.project, new Account.Id(1));
+      patchSet1List =
+          patchList(corpus, PatchListKey.againstDefaultBase(corpus.patchSet1, whitespace));
+      upstreamEntries =
+          files(patchList(corpus, PatchListKey.againstDefaultBase(corpus.upstream, whitespace)));
+      patchSet1Entries = files(patchSet1List);
+      patchSet2Entries =
+          files(patchList(corpus, PatchListKey.againstDefaultBase(corpus.patchSet2, whitespace)));
+
+      intraLineArgs = new ArrayList<>();
+      try (Repository repo = repoManager.openRepository(corpus.project);
+          ObjectReader reader = repo.newObjectReader()) {
+        for (PatchListEntry e : patchSet1Entries) {
+          if (e.getPatchType() != Patch.PatchType.UNIFIED
+              || e.getEdits().isEmpty()
+              || (e.getChangeType() != Patch.ChangeType.MODIFIED
+                  && e.getChangeType() != Patch.ChangeType.RENAMED)) {
+            continue;
+          }
+          String oldName = e.getOldName() != null ? e.getOldName() : e.getNewName();
+          intraLineArgs.add(
+              IntraLineDiffArgs.create(
+                  text(reader, corpus.base, oldName),
+                  text(reader, corpus.patchSet1, e.getNewName()),
+                  e.getEdits(),
+                  ImmutableSet.of(),
+                  corpus.project,
+                  corpus.patchSet1,
+                  e.getNewName()));
+        }
+      }
+    }
+
+    private List<PatchListEntry> files(PatchList list) {
+      return list.getPatches()
+          .stream()
+          .filter(e -> !Patch.isMagic(e.getNewName()))
+          .collect(toImmutableList());
+    }
+
+    private Text text(ObjectReader reader, RevCommit commit, String path) throws IOException {
+      try (TreeWalk tw = TreeWalk.forPath(reader, path, commit.getTree())) {
+        return new Text(reader.open(tw.getObjectId(0)));
+      }
+    }
+  }
+
+  /** Computes every patch list and intraline diff again, instead of caching them. */
+  private class UncachedPatchListCache implements PatchListCache {
+    @Override
+    public PatchList get(PatchListKey key, Project.NameKey project)
+        throws PatchListNotAvailableException {
+      try {
+        return newPatchListLoader(key, project).call();
+      } catch (IOException e) {
+        throw new PatchListNotAvailableException(e);
+      }
+    }
+
+    @Override
+    public PatchList get(Change change, PatchSet patchSet) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public ObjectId getOldId(Change change, PatchSet patchSet, Integer parentNum) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public IntraLineDiff getIntraLineDiff(IntraLineDiffKey key, IntraLineDiffArgs args) {
+      try {
+        return newIntraLineLoader(key, args).call();
+      } catch (Exception e) {
+        Throwables.throwIfUnchecked(e);
+        throw new IllegalStateException("intraline diff failed", e);
+      }
+    }
+
+    @Override
+    public DiffSummary getDiffSummary(DiffSummaryKey key, Project.NameKey project) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public ModifiedFiles getModifiedFiles(PatchListKey key, Project.NameKey project) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public PatchList getFile(PatchListKey key, Project.NameKey project, String fileName) {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  private static class UnknownFileTypeRegistry implements FileTypeRegistry {
+    @Override
+    public MimeType getMimeType(String path, byte[] content) {
+      return MimeUtil2.UNKNOWN_MIME_TYPE;
+    }
+
+    @Override
+    public MimeType getMimeType(String path, InputStream is) {
+      return MimeUtil2.UNKNOWN_MIME_TYPE;
+    }
+
+    @Override
+    public boolean isSafeInline(MimeType type) {
+      return false;
+    }
+  }
+}
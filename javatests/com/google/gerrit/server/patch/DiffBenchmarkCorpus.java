@@ -0,0 +1,203 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.patch;
+
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.testing.InMemoryRepositoryManager;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.function.UnaryOperator;
+import org.eclipse.jgit.dircache.DirCacheEntry;
+import org.eclipse.jgit.junit.TestRepository;
+import org.eclipse.jgit.revwalk.RevCommit;
+
+/**
+ * Synthetic commits that stress different parts of the diff engine.
+ *
+ * <p>Each corpus has a base commit and an upstream commit that inserts a line at the top of every
+ * file. A change is applied on top of both, as if it was rebased from the base to the upstream
+ * commit. The content is generated from a fixed seed, so every run replays the same commits.
+ */
+class DiffBenchmarkCorpus {
+  enum Kind {
+    /** Many files that are moved to another directory and slightly modified. */
+    RENAMES,
+
+    /** Large files that are reindented, with a few real modifications. */
+    WHITESPACE,
+
+    /** Files of a single long line in which some tokens are modified. */
+    MINIFIED,
+
+    /** Very many small files that each have a one line modification. */
+    SMALL_FILES;
+  }
+
+  static DiffBenchmarkCorpus create(InMemoryRepositoryManager repoManager, Kind kind, int scale)
+      throws Exception {
+    Project.NameKey project = new Project.NameKey(kind.name().toLowerCase(Locale.US));
+    Random random = new Random(kind.ordinal());
+    Map<String, String> files;
+    UnaryOperator<Map<String, String>> change;
+    switch (kind) {
+      case RENAMES:
+        files = files(random, "src/old/File", 200 * scale, 60);
+        change =
+            t ->
+                transform(
+                    t,
+                    (p, c) -> p.replace("src/old/", "src/new/"),
+                    (p, c) -> replaceLine(c, 30, "renamed();"));
+        break;
+
+      case WHITESPACE:
+        files = files(random, "src/Large", 10 * scale, 2000);
+        change = t -> transform(t, (p, c) -> p, (p, c) -> reindent(c));
+        break;
+
+      case MINIFIED:
+        files = new TreeMap<>();
+        for (int i = 0; i < 5 * scale; i++) {
+          files.put("js/min" + i + ".js", minified(random, 3000));
+        }
+        change = t -> transform(t, (p, c) -> p, (p, c) -> c.replace("b", "c"));
+        break;
+
+      case SMALL_FILES:
+        files = new TreeMap<>();
+        for (int i = 0; i < 2000 * scale; i++) {
+          files.putAll(files(random, "dir" + (i % 100) + "/small" + i + "_", 1, 5));
+        }
+        change = t -> transform(t, (p, c) -> p, (p, c) -> replaceLine(c, 2, "modified();"));
+        break;
+
+      default:
+        throw new IllegalArgumentException("unknown corpus " + kind);
+    }
+
+    Map<String, String> upstreamFiles =
+        transform(files, (p, c) -> p, (p, c) -> "upstream();\n" + c);
+    try (TestRepository<InMemoryRepositoryManager.Repo> tr =
+        new TestRepository<>(repoManager.createRepository(project))) {
+      RevCommit base = commit(tr, files);
+      RevCommit upstream = commit(tr, upstreamFiles, base);
+      return new DiffBenchmarkCorpus(
+          kind,
+          project,
+          base,
+          upstream,
+          commit(tr, change.apply(files), base),
+          commit(tr, change.apply(upstreamFiles), upstream));
+    }
+  }
+
+  final Kind kind;
+  final Project.NameKey project;
+  final RevCommit base;
+  final RevCommit upstream;
+
+  /** The change on top of the base commit. */
+  final RevCommit patchSet1;
+
+  /** The change rebased on top of the upstream commit. */
+  final RevCommit patchSet2;
+
+  private DiffBenchmarkCorpus(
+      Kind kind,
+      Project.NameKey project,
+      RevCommit base,
+      RevCommit upstream,
+      RevCommit patchSet1,
+      RevCommit patchSet2) {
+    this.kind = kind;
+    this.project = project;
+    this.base = base;
+    this.upstream = upstream;
+    this.patchSet1 = patchSet1;
+    this.patchSet2 = patchSet2;
+  }
+
+  private interface Transformation {
+    String apply(String path, String content);
+  }
+
+  private static Map<String, String> transform(
+      Map<String, String> files, Transformation path, Transformation content) {
+    Map<String, String> result = new TreeMap<>();
+    for (Map.Entry<String, String> e : files.entrySet()) {
+      result.put(path.apply(e.getKey(), e.getValue()), content.apply(e.getKey(), e.getValue()));
+    }
+    return result;
+  }
+
+  private static RevCommit commit(
+      TestRepository<?> tr, Map<String, String> files, RevCommit... parents) throws Exception {
+    List<DirCacheEntry> entries = new ArrayList<>(files.size());
+    for (Map.Entry<String, String> e : files.entrySet()) {
+      entries.add(tr.file(e.getKey(), tr.blob(e.getValue())));
+    }
+    return tr.commit(tr.tree(entries.toArray(new DirCacheEntry[entries.size()])), parents);
+  }
+
+  private static Map<String, String> files(Random random, String prefix, int count, int lines) {
+    Map<String, String> files = new TreeMap<>();
+    for (int i = 0; i < count; i++) {
+      StringBuilder content = new StringBuilder();
+      for (int l = 0; l < lines; l++) {
+        content.append(l % 10 == 0 ? "" : "    ").append(statement(random)).append('\n');
+      }
+      files.put(prefix + i + ".java", content.toString());
+    }
+    return files;
+  }
+
+  private static String minified(Random random, int statements) {
+    StringBuilder content = new StringBuilder();
+    for (int i = 0; i < statements; i++) {
+      content.append(statement(random));
+    }
+    return content.append('\n').toString();
+  }
+
+  private static String statement(Random random) {
+    StringBuilder s = new StringBuilder();
+    for (int i = 2 + random.nextInt(4); i > 0; i--) {
+      s.append((char) ('a' + random.nextInt(26))).append(random.nextInt(100));
+    }
+    return s.append("();").toString();
+  }
+
+  private static String replaceLine(String content, int line, String replacement) {
+    String[] lines = content.split("\n", -1);
+    lines[Math.min(line, lines.length - 2)] = replacement;
+    return String.join("\n", lines);
+  }
+
+  private static String reindent(String content) {
+    StringBuilder result = new StringBuilder();
+    String[] lines = content.split("\n", -1);
+    for (int i = 0; i < lines.length; i++) {
+      if (i > 0) {
+        result.append('\n');
+      }
+      result.append(i % 100 == 50 ? "modified();" : lines[i].replace("    ", "  "));
+    }
+    return result.toString();
+  }
+}
@@ -0,0 +1,40 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.patch;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.gerrit.server.patch.DiffBenchmark.Result;
+import com.google.gerrit.server.patch.DiffBenchmark.Stage;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import org.junit.Test;
+
+public class DiffBenchmarkTest {
+  @Test
+  public void allCorporaAndStagesAreMeasured() throws Exception {
+    List<Result> results = new ArrayList<>();
+    new DiffBenchmark(
+            EnumSet.allOf(DiffBenchmarkCorpus.Kind.class), EnumSet.allOf(Stage.class), 1, 0, 2)
+        .run(results::add);
+
+    assertThat(results).hasSize(DiffBenchmarkCorpus.Kind.values().length * Stage.values().length);
+    for (Result r : results) {
+      assertThat(r.latencyNanos).hasLength(2);
+      assertThat(r.percentileMillis(50)).isAtMost(r.percentileMillis(100));
+    }
+  }
+}
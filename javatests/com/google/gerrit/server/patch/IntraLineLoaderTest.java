@@ -19,10 +19,25 @@ import static java.nio.charset.StandardCharsets.UTF_8;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.gerrit.extensions.client.DiffPreferencesInfo.Whitespace;
+import com.google.gerrit.metrics.Counter1;
+import com.google.gerrit.metrics.Description;
+import com.google.gerrit.metrics.DisabledMetricMaker;
+import com.google.gerrit.metrics.Field;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.server.patch.IntraLineLoader.HunkResult;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import org.eclipse.jgit.diff.Edit;
 import org.eclipse.jgit.diff.EditList;
 import org.eclipse.jgit.diff.ReplaceEdit;
+import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.lib.ObjectId;
 import org.junit.Test;
 
 public class IntraLineLoaderTest {
@@ -130,6 +145,185 @@ public class IntraLineLoaderTest {
                 .edits);
   }
 
+  @Test
+  public void regionsOverMaxHunkSizeAreSkipped() throws Exception {
+    String a = "abc\nx\ndef ghij\n";
+    String b = "abd\nx\ndefghijklmnopqrstuvwxyz\n";
+    Config cfg = new Config();
+    cfg.setInt("cache", "diff_intraline", "maxHunkSize", 10);
+    IntraLineLoader loader =
+        new IntraLineLoader(
+            MoreExecutors.newDirectExecutorService(),
+            new IntraLineLoader.Metrics(new DisabledMetricMaker()),
+            new IntraLineLoader.Workers(cfg),
+            cfg,
+            IntraLineDiffKey.create(ObjectId.zeroId(), ObjectId.zeroId(), Whitespace.IGNORE_NONE),
+            IntraLineDiffArgs.create(
+                new Text(a.getBytes(UTF_8)),
+                new Text(b.getBytes(UTF_8)),
+                ImmutableList.of(new Edit(0, 1, 0, 1), new Edit(2, 3, 2, 3)),
+                ImmutableSet.of(),
+                new Project.NameKey("project"),
+                ObjectId.zeroId(),
+                "file"));
+
+    IntraLineDiff diff = loader.call();
+    assertThat(diff.getStatus()).isEqualTo(IntraLineDiff.Status.EDIT_LIST);
+    List<Edit> edits = diff.getEdits();
+    assertThat(edits).hasSize(2);
+    assertThat(edits.get(0)).isInstanceOf(ReplaceEdit.class);
+    assertThat(((ReplaceEdit) edits.get(0)).getInternalEdits())
+        .isEqualTo(ref().common("ab").replace("c", "d").common("\n").edits);
+    assertThat(edits.get(1)).isNotInstanceOf(ReplaceEdit.class);
+    assertThat(edits.get(1)).isEqualTo(new Edit(2, 3, 2, 3));
+  }
+
+  @Test
+  public void extraThreadsAreSharedAndReleased() throws Exception {
+    String a = "abc\nx\ndef\nx\nghi\n";
+    String b = "abd\nx\ndeg\nx\ngha\n";
+    Config cfg = new Config();
+    cfg.setInt("cache", "diff_intraline", "parallelism", 3);
+    cfg.setInt("cache", "diff_intraline", "maxExtraThreads", 1);
+    IntraLineLoader.Workers workers = new IntraLineLoader.Workers(cfg);
+    IntraLineLoader loader =
+        new IntraLineLoader(
+            MoreExecutors.newDirectExecutorService(),
+            new IntraLineLoader.Metrics(new DisabledMetricMaker()),
+            workers,
+            cfg,
+            IntraLineDiffKey.create(ObjectId.zeroId(), ObjectId.zeroId(), Whitespace.IGNORE_NONE),
+            IntraLineDiffArgs.create(
+                new Text(a.getBytes(UTF_8)),
+                new Text(b.getBytes(UTF_8)),
+                ImmutableList.of(new Edit(0, 1, 0, 1), new Edit(2, 3, 2, 3), new Edit(4, 5, 4, 5)),
+                ImmutableSet.of(),
+                new Project.NameKey("project"),
+                ObjectId.zeroId(),
+                "file"));
+
+    IntraLineDiff diff = loader.call();
+    assertThat(diff.getStatus()).isEqualTo(IntraLineDiff.Status.EDIT_LIST);
+    assertThat(diff.getEdits()).hasSize(3);
+    for (Edit e : diff.getEdits()) {
+      assertThat(e).isInstanceOf(ReplaceEdit.class);
+    }
+    assertThat(workers.acquire(2)).isEqualTo(1);
+  }
+
+  @Test
+  public void regionsDiffedBeforeTimeoutAreKept() throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+    Text a = new BlockingText("abc\nx\nblock\n", release);
+    Text b = new Text("abd\nx\nblocks\n".getBytes(UTF_8));
+    ImmutableList<Edit> regions = ImmutableList.of(new Edit(0, 1, 0, 1), new Edit(2, 3, 2, 3));
+    Map<HunkResult, Long> hunks = new ConcurrentHashMap<>();
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    IntraLineDiff diff;
+    try {
+      diff = newLoader(executor, hunks, a, b, regions).call();
+    } finally {
+      release.countDown();
+      executor.shutdown();
+    }
+
+    assertThat(diff.getStatus()).isEqualTo(IntraLineDiff.Status.EDIT_LIST);
+    List<Edit> edits = diff.getEdits();
+    assertThat(edits).hasSize(2);
+    assertThat(edits.get(0)).isInstanceOf(ReplaceEdit.class);
+    assertThat(((ReplaceEdit) edits.get(0)).getInternalEdits())
+        .isEqualTo(ref().common("ab").replace("c", "d").common("\n").edits);
+    assertThat(edits.get(1)).isNotInstanceOf(ReplaceEdit.class);
+    assertThat(edits.get(1)).isEqualTo(new Edit(2, 3, 2, 3));
+    assertThat(hunks).containsExactly(HunkResult.COMPUTED, 1L, HunkResult.SKIPPED_TIMEOUT, 1L);
+  }
+
+  @Test
+  public void timeoutIsReturnedIfNoRegionWasDiffed() throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+    Text a = new BlockingText("block\nx\nabc\n", release);
+    Text b = new Text("blocks\nx\nabd\n".getBytes(UTF_8));
+    ImmutableList<Edit> regions = ImmutableList.of(new Edit(0, 1, 0, 1), new Edit(2, 3, 2, 3));
+    Map<HunkResult, Long> hunks = new ConcurrentHashMap<>();
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    IntraLineDiff diff;
+    try {
+      diff = newLoader(executor, hunks, a, b, regions).call();
+    } finally {
+      release.countDown();
+      executor.shutdown();
+    }
+
+    assertThat(diff.getStatus()).isEqualTo(IntraLineDiff.Status.TIMEOUT);
+    assertThat(hunks).containsExactly(HunkResult.SKIPPED_TIMEOUT, 2L);
+  }
+
+  /** Creates a loader with a short timeout that diffs the regions on a single thread. */
+  private static IntraLineLoader newLoader(
+      ExecutorService executor,
+      Map<HunkResult, Long> hunks,
+      Text a,
+      Text b,
+      ImmutableList<Edit> edits) {
+    Config cfg = new Config();
+    cfg.setString("cache", "diff_intraline", "timeout", "500 ms");
+    cfg.setInt("cache", "diff_intraline", "parallelism", 1);
+    DisabledMetricMaker metricMaker =
+        new DisabledMetricMaker() {
+          @Override
+          public <F1> Counter1<F1> newCounter(String name, Description desc, Field<F1> field1) {
+            return new Counter1<F1>() {
+              @Override
+              public void incrementBy(F1 field1, long value) {
+                if (value > 0) {
+                  hunks.merge((HunkResult) field1, value, Long::sum);
+                }
+              }
+
+              @Override
+              public void remove() {}
+            };
+          }
+        };
+    return new IntraLineLoader(
+        executor,
+        new IntraLineLoader.Metrics(metricMaker),
+        new IntraLineLoader.Workers(cfg),
+        cfg,
+        IntraLineDiffKey.create(ObjectId.zeroId(), ObjectId.zeroId(), Whitespace.IGNORE_NONE),
+        IntraLineDiffArgs.create(
+            a,
+            b,
+            edits,
+            ImmutableSet.of(),
+            new Project.NameKey("project"),
+            ObjectId.zeroId(),
+            "file"));
+  }
+
+  /** Text that blocks the diff of regions containing "block" until it is released. */
+  private static class BlockingText extends Text {
+    private final CountDownLatch release;
+
+    BlockingText(String content, CountDownLatch release) {
+      super(content.getBytes(UTF_8));
+      this.release = release;
+    }
+
+    @Override
+    protected String decode(int s, int e) {
+      String decoded = super.decode(s, e);
+      if (decoded.contains("block")) {
+        try {
+          release.await();
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+        }
+      }
+      return decoded;
+    }
+  }
+
   // helper functions to call IntraLineLoader.compute
 
   private static int countLines(String s) {
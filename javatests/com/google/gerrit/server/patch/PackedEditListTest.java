@@ -0,0 +1,94 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.patch;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import java.util.List;
+import org.eclipse.jgit.diff.Edit;
+import org.eclipse.jgit.diff.ReplaceEdit;
+import org.junit.Test;
+
+public class PackedEditListTest {
+  @Test
+  public void empty() {
+    PackedEditList edits = PackedEditList.of(ImmutableList.of());
+    assertThat(edits.isEmpty()).isTrue();
+    assertThat(edits.size()).isEqualTo(0);
+    assertThat(edits.toEdits()).isEmpty();
+    assertThat(edits).isSameAs(PackedEditList.empty());
+  }
+
+  @Test
+  public void convertEdits() {
+    List<Edit> input = ImmutableList.of(new Edit(1, 2, 3, 4), new Edit(5, 5, 6, 8));
+    PackedEditList edits = PackedEditList.of(input);
+
+    assertThat(edits.size()).isEqualTo(2);
+    assertThat(edits.getBeginA(1)).isEqualTo(5);
+    assertThat(edits.getEndA(1)).isEqualTo(5);
+    assertThat(edits.getBeginB(1)).isEqualTo(6);
+    assertThat(edits.getEndB(1)).isEqualTo(8);
+    assertThat(edits.hasInternalEdits(0)).isFalse();
+    assertThat(edits.toEdits()).containsExactlyElementsIn(input).inOrder();
+  }
+
+  @Test
+  public void convertReplaceEdits() {
+    List<Edit> internal = ImmutableList.of(new Edit(0, 1, 0, 2), new Edit(4, 5, 5, 5));
+    List<Edit> input =
+        ImmutableList.of(
+            new Edit(0, 1, 0, 1), new ReplaceEdit(3, 4, 3, 4, internal), new Edit(7, 8, 7, 7));
+    PackedEditList edits = PackedEditList.of(input);
+
+    assertThat(edits.hasInternalEdits(0)).isFalse();
+    assertThat(edits.hasInternalEdits(1)).isTrue();
+    assertThat(edits.hasInternalEdits(2)).isFalse();
+    assertThat(edits.getInternalEdits(1).toEdits()).containsExactlyElementsIn(internal).inOrder();
+
+    List<Edit> output = edits.toEdits();
+    assertThat(output).containsExactlyElementsIn(input).inOrder();
+    assertThat(output.get(0)).isNotInstanceOf(ReplaceEdit.class);
+    assertThat(((ReplaceEdit) output.get(1)).getInternalEdits())
+        .containsExactlyElementsIn(internal)
+        .inOrder();
+  }
+
+  @Test
+  public void toEditsCreatesNewObjects() {
+    PackedEditList edits = PackedEditList.of(ImmutableList.of(new Edit(1, 2, 3, 4)));
+    edits.toEdits().get(0).shift(5);
+    assertThat(edits.toEdits()).containsExactly(new Edit(1, 2, 3, 4));
+  }
+
+  @Test
+  public void builderGrows() {
+    PackedEditList.Builder b = PackedEditList.builder(1);
+    for (int i = 0; i < 100; i++) {
+      b.add(i, i + 1, i, i + 1);
+      if (i % 10 == 0) {
+        b.addInternal(0, 1, 0, 1);
+      }
+    }
+    PackedEditList edits = b.build();
+
+    assertThat(edits.size()).isEqualTo(100);
+    assertThat(edits.getEndB(99)).isEqualTo(100);
+    assertThat(edits.hasInternalEdits(90)).isTrue();
+    assertThat(edits.hasInternalEdits(91)).isFalse();
+    assertThat(edits).isEqualTo(PackedEditList.of(edits.toEdits()));
+  }
+}
@@ -0,0 +1,143 @@
+// Copyright (C) 2018 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.patch;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.base.Strings;
+import com.google.common.cache.CacheBuilder;
+import com.google.gerrit.extensions.client.DiffPreferencesInfo.Whitespace;
+import com.google.gerrit.metrics.Counter0;
+import com.google.gerrit.metrics.Description;
+import com.google.gerrit.metrics.DisabledMetricMaker;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.testing.InMemoryRepositoryManager;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import org.eclipse.jgit.diff.Edit;
+import org.eclipse.jgit.junit.TestRepository;
+import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PatchListLoaderTest {
+  private static final Project.NameKey PROJECT = new Project.NameKey("project");
+
+  // The only common line occurs too often for histogram diff, which falls back to Myers diff.
+  private static final String OLD_CONTENT = "p\n" + Strings.repeat("x\n", 70);
+  private static final String NEW_CONTENT = Strings.repeat("x\n", 70) + "q\n";
+
+  private final InMemoryRepositoryManager repoManager = new InMemoryRepositoryManager();
+  private final AtomicLong timeouts = new AtomicLong();
+  private ExecutorService executor;
+  private RevCommit change;
+
+  @Before
+  public void setUp() throws Exception {
+    executor = Executors.newFixedThreadPool(2);
+    try (TestRepository<InMemoryRepositoryManager.Repo> tr =
+        new TestRepository<>(repoManager.createRepository(PROJECT))) {
+      RevCommit base = tr.commit().add("a.txt", OLD_CONTENT).add("b.txt", OLD_CONTENT).create();
+      change =
+          tr.commit().parent(base).add("a.txt", NEW_CONTENT).add("b.txt", NEW_CONTENT).create();
+    }
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void filesAreDiffedOnDiffExecutor() throws Exception {
+    PatchList patchList = newLoader(new Config()).call();
+
+    assertThat(patchList.get("a.txt").getEdits())
+        .containsExactly(new Edit(0, 1, 0, 0), new Edit(71, 71, 70, 71))
+        .inOrder();
+    assertThat(patchList.get("b.txt").getEdits())
+        .containsExactly(new Edit(0, 1, 0, 0), new Edit(71, 71, 70, 71))
+        .inOrder();
+    assertThat(timeouts.get()).isEqualTo(0);
+  }
+
+  @Test
+  public void filesNotDiffedWithinTimeoutAreDiffedWithoutMyersDiff() throws Exception {
+    Config cfg = new Config();
+    cfg.setString("cache", "diff", "timeout", "0");
+    // Occupy all threads of the executor, so that no file is diffed before the timeout.
+    CountDownLatch release = new CountDownLatch(1);
+    for (int i = 0; i < 2; i++) {
+      executor.submit(
+          () -> {
+            release.await();
+            return null;
+          });
+    }
+
+    PatchList patchList;
+    try {
+      patchList = newLoader(cfg).call();
+    } finally {
+      release.countDown();
+    }
+
+    assertThat(patchList.get("a.txt").getEdits()).containsExactly(new Edit(0, 71, 0, 71));
+    assertThat(patchList.get("b.txt").getEdits()).containsExactly(new Edit(0, 71, 0, 71));
+    assertThat(timeouts.get()).isEqualTo(2);
+  }
+
+  private PatchListLoader newLoader(Config cfg) {
+    cfg.setInt("cache", "diff", "parallelism", 2);
+    DisabledMetricMaker metricMaker =
+        new DisabledMetricMaker() {
+          @Override
+          public Counter0 newCounter(String name, Description desc) {
+            if (!name.equals("diff/patch_list_file_timeout_count")) {
+              return super.newCounter(name, desc);
+            }
+            return new Counter0() {
+              @Override
+              public void incrementBy(long value) {
+                timeouts.addAndGet(value);
+              }
+
+              @Override
+              public void remove() {}
+            };
+          }
+        };
+    return new PatchListLoader(
+        repoManager,
+        // Only needed for edits due to rebase, which a change against its parent doesn't have.
+        null,
+        cfg,
+        executor,
+        new AutoMerger(
+            cfg,
+            new PersonIdent("Gerrit Code Review", "gerrit@localhost"),
+            new AutoMergeStore(),
+            new AutoMerger.Metrics(metricMaker)),
+        new PatchListLoader.Metrics(metricMaker),
+        CacheBuilder.newBuilder().build(),
+        PatchListKey.againstDefaultBase(change, Whitespace.IGNORE_NONE),
+        PROJECT);
+  }
+}
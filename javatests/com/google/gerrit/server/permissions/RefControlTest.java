@@ -35,6 +35,7 @@ import static com.google.gerrit.testing.InMemoryRepositoryManager.newRepository;
 
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSortedSet;
 import com.google.common.collect.Lists;
 import com.google.gerrit.common.Nullable;
@@ -43,11 +44,14 @@ import com.google.gerrit.common.data.PermissionRange;
 import com.google.gerrit.common.data.PermissionRule;
 import com.google.gerrit.common.errors.InvalidNameException;
 import com.google.gerrit.extensions.api.projects.CommentLinkInfo;
+import com.google.gerrit.metrics.DisabledMetricMaker;
 import com.google.gerrit.reviewdb.client.AccountGroup;
 import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.reviewdb.client.RefNames;
 import com.google.gerrit.reviewdb.server.ReviewDb;
 import com.google.gerrit.server.CurrentUser;
 import com.google.gerrit.server.account.CapabilityCollection;
+import com.google.gerrit.server.account.GroupCache;
 import com.google.gerrit.server.account.GroupMembership;
 import com.google.gerrit.server.account.ListGroupMembership;
 import com.google.gerrit.server.config.AllProjectsName;
@@ -55,7 +59,11 @@ import com.google.gerrit.server.config.AllProjectsNameProvider;
 import com.google.gerrit.server.config.AllUsersName;
 import com.google.gerrit.server.config.AllUsersNameProvider;
 import com.google.gerrit.server.config.SitePaths;
+import com.google.gerrit.server.git.RefSnapshots;
+import com.google.gerrit.server.git.TagCache;
 import com.google.gerrit.server.index.SingleVersionModule.SingleVersionListener;
+import com.google.gerrit.server.notedb.ChangeNotes;
+import com.google.gerrit.server.permissions.PermissionBackend.RefFilterOptions;
 import com.google.gerrit.server.project.ProjectCache;
 import com.google.gerrit.server.project.ProjectConfig;
 import com.google.gerrit.server.project.ProjectState;
@@ -80,8 +88,14 @@ import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import org.eclipse.jgit.errors.ConfigInvalidException;
 import org.eclipse.jgit.internal.storage.dfs.InMemoryRepository;
+import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectIdRef;
+import org.eclipse.jgit.lib.Ref;
 import org.eclipse.jgit.lib.Repository;
 import org.junit.After;
 import org.junit.Before;
@@ -202,6 +216,10 @@ public class RefControlTest {
   @Inject private InMemoryDatabase schemaFactory;
   @Inject private ThreadLocalRequestContext requestContext;
   @Inject private DefaultRefFilter.Factory refFilterFactory;
+  @Inject private TagCache tagCache;
+  @Inject private RefSnapshots refSnapshots;
+  @Inject private ChangeNotes.Factory changeNotesFactory;
+  @Inject private GroupCache groupCache;
 
   @Before
   public void setUp() throws Exception {
@@ -946,6 +964,94 @@ public class RefControlTest {
     RefPattern.validate("^refs/heads/tmp/sdk/[0-9]{3,3}_R[1-9][A-Z][0-9]{3,3}");
   }
 
+  @Test
+  public void bulkRefFilterMatchesPerRefVisibility() throws Exception {
+    setUpRefFilterPermissions();
+    ProjectControl u = user(local, DEVS);
+    Map<String, Ref> refs = refsForFilter();
+
+    Map<String, Ref> visible = filterRefs(u, refs, 0);
+
+    ProjectControl perRef = user(local, DEVS);
+    List<String> expected = new ArrayList<>();
+    for (String name : refs.keySet()) {
+      if (perRef.controlForRef(name).isVisible()) {
+        expected.add(name);
+      }
+    }
+    assertThat(visible.keySet()).containsExactlyElementsIn(expected);
+    assertThat(visible).doesNotContainKey("refs/heads/secret/0");
+    assertThat(visible).doesNotContainKey("refs/drafts/secret/0");
+    assertThat(visible).doesNotContainKey(RefNames.REFS_CONFIG);
+    assertThat(visible).containsKey("refs/drafts/master/0");
+  }
+
+  @Test
+  public void parallelRefFilterMatchesSerialRefFilter() throws Exception {
+    setUpRefFilterPermissions();
+    Map<String, Ref> refs = refsForFilter();
+
+    Map<String, Ref> serial = filterRefs(user(local, DEVS), refs, 0);
+    for (int batchSize : new int[] {1, 7, refs.size() - 1}) {
+      assertThat(filterRefs(user(local, DEVS), refs, batchSize)).isEqualTo(serial);
+    }
+  }
+
+  private void setUpRefFilterPermissions() {
+    allow(local, READ, DEVS, "refs/heads/*");
+    deny(local, READ, DEVS, "refs/heads/secret/*");
+    allow(local, READ, DEVS, "refs/drafts/*");
+    deny(local, READ, DEVS, "refs/drafts/secret/*");
+    allow(local, READ, DEVS, "^refs/heads/re-[0-9]+");
+  }
+
+  private Map<String, Ref> refsForFilter() {
+    ObjectId id = ObjectId.fromString("0123456789012345678901234567890123456789");
+    Map<String, Ref> refs = new HashMap<>();
+    for (String prefix :
+        ImmutableList.of(
+            "refs/heads/master/",
+            "refs/heads/secret/",
+            "refs/heads/re-",
+            "refs/drafts/master/",
+            "refs/drafts/secret/",
+            "refs/other/")) {
+      for (int i = 0; i < 10; i++) {
+        String name = prefix + i;
+        refs.put(name, new ObjectIdRef.PeeledNonTag(Ref.Storage.LOOSE, name, id));
+      }
+    }
+    refs.put(
+        RefNames.REFS_CONFIG,
+        new ObjectIdRef.PeeledNonTag(Ref.Storage.LOOSE, RefNames.REFS_CONFIG, id));
+    return refs;
+  }
+
+  private Map<String, Ref> filterRefs(ProjectControl u, Map<String, Ref> refs, int batchSize)
+      throws Exception {
+    Config cfg = new Config();
+    cfg.setInt("permissions", null, "refFilterParallelBatchSize", batchSize);
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try (Repository repo = repoManager.openRepository(localKey)) {
+      DefaultRefFilter filter =
+          new DefaultRefFilter(
+              tagCache,
+              refSnapshots,
+              changeNotesFactory,
+              null,
+              Providers.of(db),
+              groupCache,
+              permissionBackend,
+              executor,
+              new DefaultRefFilter.Metrics(new DisabledMetricMaker()),
+              cfg,
+              u);
+      return filter.filter(refs, repo, RefFilterOptions.defaults());
+    } finally {
+      executor.shutdown();
+    }
+  }
+
   private InMemoryRepository add(ProjectConfig pc) {
     SitePaths sitePaths = null;
     List<CommentLinkInfo> commentLinks = null;